@@ -119,12 +119,14 @@ import exm.stc.ast.FilePosition.LineMapping;
 @parser::members {
     public boolean parserError = false;
     public LineMapping lineMap = null;
+    public boolean quiet = false; // if true, don't report errors
 
     public void displayRecognitionError(String[] tokenNames,
                                     RecognitionException e) {
       // Log that there was an error, otherwise antlr might
       // recover silently
       parserError = true;
+      if (quiet) return;
       String hdr;
       /* Use lineMap if available */
       if (lineMap != null) {
@@ -159,9 +161,11 @@ import exm.stc.ast.FilePosition.LineMapping;
     public static int CPP = 5;
     public LineMapping lineMap = null;
     public boolean quiet = false; // if true, don't report errors
+    public boolean lexerError = false;
 
     public void displayRecognitionError(String[] tokenNames,
                                     RecognitionException e) {
+      lexerError = true;
       if (quiet) return;
       String hdr;
       /* Use lineMap if available */
@@ -15,7 +15,9 @@
  */
 package exm.stc.ast;
 
+import java.util.Collections;
 import java.util.Map.Entry;
+import java.util.SortedMap;
 import java.util.TreeMap;
 
 /** 
@@ -82,6 +84,13 @@ public class FilePosition {
             precedingP.line + diff);
       }
     }
+    /**
+     * @return map from preprocessor output line to position in input
+     */
+    public SortedMap<Integer, FilePosition> mappings() {
+      return Collections.unmodifiableSortedMap(fileMap);
+    }
+
     public String toString() {
       return fileMap.toString();
     }
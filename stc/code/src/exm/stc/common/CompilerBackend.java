@@ -17,6 +17,7 @@ package exm.stc.common;
 
 import java.io.IOException;
 import java.io.OutputStream;
+import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
@@ -382,7 +383,9 @@ public interface CompilerBackend {
    * Direction is implied by context.
    * Variables must have a tracked refcount as defined in {@link RefCounting}.
    */
-  public static class RefCount {
+  public static class RefCount implements Serializable {
+    private static final long serialVersionUID = 1L;
+
     public final Var var;
     public final RefCountType type;
     public final Arg amount;
@@ -435,6 +438,50 @@ public interface CompilerBackend {
     public static final List<DirRefCount> NONE = Collections.emptyList();
   }
 
+  /**
+   * Represents retrieval of the value of a scalar or file future into
+   * a local value variable.
+   */
+  public static class Retrieval {
+    /** Local value variable */
+    public final Var dst;
+    /** Scalar or file future */
+    public final Var src;
+    /** Read refcounts to decrement from src */
+    public final Arg decr;
+
+    public Retrieval(Var dst, Var src, Arg decr) {
+      this.dst = dst;
+      this.src = src;
+      this.decr = decr;
+    }
+
+    @Override
+    public String toString() {
+      return dst.name() + " = " + src.name() + "<-" + decr + ">";
+    }
+  }
+
+  /**
+   * Represents storing a local value into a scalar future or shared struct.
+   */
+  public static class Assignment {
+    /** Scalar future or shared struct */
+    public final Var dst;
+    /** Local value of matching type */
+    public final Arg src;
+
+    public Assignment(Var dst, Arg src) {
+      this.dst = dst;
+      this.src = src;
+    }
+
+    @Override
+    public String toString() {
+      return dst.name() + " = " + src;
+    }
+  }
+
   /**
    * Add comment to output code.
    * @param comment
@@ -542,6 +589,16 @@ public interface CompilerBackend {
    */
   public void retrieveFile(Var dst, Var src, Arg decr);
 
+  /**
+   * Retrieve values of several scalar or file futures, all of which
+   * should be closed.  A batch is provided to allow backend to optimize
+   * if possible.
+   * @param retrievals list of retrievals, in same form as
+   *        {@link #retrieveScalar(Var, Var, Arg)} and
+   *        {@link #retrieveFile(Var, Var, Arg)}
+   */
+  public void retrieveMulti(List<Retrieval> retrievals);
+
   /**
    * Set target=addressof(src)
    * @param dst reference future type (i.e. of {@link RefType})
@@ -600,6 +657,15 @@ public interface CompilerBackend {
    */
   public void assignStruct(Var dst, Arg src);
 
+  /**
+   * Store values into several scalar futures or shared structs.  A batch
+   * is provided to allow backend to optimize if possible.
+   * @param assignments list of assignments, in same form as
+   *        {@link #assignScalar(Var, Arg)} and
+   *        {@link #assignStruct(Var, Arg)}
+   */
+  public void assignMulti(List<Assignment> assignments);
+
   /**
    * Retrieve contents of local struct representation to dst
    * @param dst local var of {@link StructType}
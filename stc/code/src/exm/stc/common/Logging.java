@@ -17,8 +17,6 @@
 package exm.stc.common;
 
 import java.io.IOException;
-import java.util.HashSet;
-import java.util.Set;
 
 import org.apache.log4j.Level;
 import org.apache.log4j.Logger;
@@ -30,12 +28,6 @@ public class Logging
 {
   private static final String STC_LOGGER_NAME = "exm.stc";
 
-  /**
-   * Messages already emitted.
-   */
-  static final Set<Pair<org.apache.log4j.Level, String>> emitted =
-       new HashSet<Pair<org.apache.log4j.Level, String>>();
-
   public static Logger getSTCLogger()
   {
     return Logger.getLogger(STC_LOGGER_NAME);
@@ -55,7 +47,8 @@ public class Logging
    */
   public static boolean addEmitted(org.apache.log4j.Level level, String msg)
   {
-    return emitted.add(Pair.create(level, msg));
+    // Track per settings scope so that each compilation gets warnings
+    return Settings.getScope().emitted().add(Pair.create(level, msg));
   }
 
   public static void uniqueWarn(String msg)
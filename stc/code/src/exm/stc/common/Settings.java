@@ -24,8 +24,15 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.apache.log4j.Level;
 
 import exm.stc.common.exceptions.InvalidOptionException;
 import exm.stc.common.exceptions.STCRuntimeError;
@@ -37,6 +44,11 @@ import exm.stc.common.util.Pair;
  *
  * List of Java properties not processed here:
  * stc.logfile: used to set up logging in Main
+ *
+ * Settings may be read concurrently, e.g. by optimizer passes running
+ * in parallel, but should only be modified during initialization.
+ * Settings are held in a {@link Scope}, so that independent compilations
+ * in the same JVM can each have their own settings.
  * */
 public class Settings {
 
@@ -74,6 +86,17 @@ public class Settings {
 
   public static final String OPT_FUNCTION_SIGNATURE =
                               "stc.opt.function-signature";
+  /* Clone functions for calls with constant arguments */
+  public static final String OPT_FUNCTION_SPECIALIZE =
+                              "stc.opt.function-specialize";
+  /* Max total instructions in specialized copies of functions */
+  public static final String OPT_FUNCTION_SPECIALIZE_THRESHOLD =
+                              "stc.opt.function-specialize-threshold";
+
+  public static final int FUNCTION_SPECIALIZE_THRESHOLD_DEFAULT = 500;
+
+  /* Use summaries of called functions in intraprocedural passes */
+  public static final String OPT_INTERPROCEDURAL = "stc.opt.interprocedural";
   public static final String OPT_DISABLE_ASSERTS = "stc.opt.disable-asserts";
   /* Master switch for loop unrolling pass.  At minimum manually
    * annotated loops are unrolled */
@@ -98,21 +121,61 @@ public class Settings {
   public static final String OPT_REORDER_INSTS = "stc.opt.reorder-insts";
   public static final String OPT_ARRAY_BUILD = "stc.opt.array-build";
   public static final String OPT_LOOP_SIMPLIFY = "stc.opt.loop-simplify";
+  public static final String OPT_AUTO_SPLIT_DEGREE = "stc.opt.auto-split-degree";
   public static final String OPT_PROPAGATE_ALIASES = "stc.opt.propagate-aliases";
 
   public static final String OPT_MERGE_REFCOUNTS = "stc.opt.merge-refcounts";
   public static final String OPT_CANCEL_REFCOUNTS = "stc.opt.cancel-refcounts";
   public static final String OPT_PIGGYBACK_REFCOUNTS = "stc.opt.piggyback-refcounts";
   public static final String OPT_BATCH_REFCOUNTS = "stc.opt.batch-refcounts";
+  public static final String OPT_BATCH_RETRIEVES = "stc.opt.batch-retrieves";
+  public static final String OPT_BATCH_STORES = "stc.opt.batch-stores";
   public static final String OPT_HOIST_REFCOUNTS = "stc.opt.hoist-refcounts";
 
   public static final String OPT_MAX_ITERATIONS = "stc.opt.max-iterations";
 
+  /** Skip optimizer passes if program is at a fixed point for them */
+  public static final String OPT_FIXED_POINT = "stc.opt.fixed-point";
+
+  /**
+   * Validate IR after every optimizer pass, only rechecking functions
+   * modified by the pass.  If false, only validate at pipeline boundaries.
+   */
+  public static final String OPT_VALIDATE_PASSES = "stc.opt.validate-passes";
+
+  /** Number of threads to run per-function optimizer passes with */
+  public static final String OPT_THREADS = "stc.opt.threads";
+
+  /** File to write optimizer profile to, or empty for no profiling */
+  public static final String OPT_PROFILE_FILE = "stc.opt.profile-file";
+
+  /**
+   * Task profile from previous run of program to guide optimization,
+   * or empty for none
+   */
+  public static final String OPT_RUNTIME_PROFILE = "stc.opt.runtime-profile";
+
+  /**
+   * Generate code that records extra information in task profiles,
+   * such as foreach loop leaf degrees, for use with
+   * {@link #OPT_RUNTIME_PROFILE} in a later compile
+   */
+  public static final String TASK_PROFILE = "stc.task-profile";
+
   public static final String ENABLE_REFCOUNTING = "stc.refcounting";
   public static final String ENABLE_CHECKPOINTING = "stc.checkpointing";
 
   public static final String AUTO_DECLARE = "stc.auto-declare";
 
+  /** Code generation backend: "turbine" or "jvm" */
+  public static final String BACKEND = "stc.backend";
+  public static final String BACKEND_TURBINE = "turbine";
+  public static final String BACKEND_JVM = "jvm";
+
+  /** Write Tcl code for each function to output as soon as it is finished,
+   * rather than keeping the whole program in memory */
+  public static final String STREAM_OUTPUT = "stc.stream-output";
+
   public static final String INPUT_FILENAME = "stc.input_filename";
   public static final String OUTPUT_FILENAME = "stc.output_filename";
   public static final String STC_HOME = "stc.stc_home";
@@ -123,6 +186,28 @@ public class Settings {
   public static final String LOG_TRACE = "stc.log.trace";
   public static final String COMPILER_DEBUG = "stc.compiler-debug";
 
+  /** Directory to cache parsed modules in, or empty to disable cache */
+  public static final String MODULE_CACHE_DIR = "stc.module-cache-dir";
+
+  /**
+   * Number of threads to parse imported modules ahead of time with.
+   * If one, modules are parsed as they are imported.
+   */
+  public static final String PARSE_THREADS = "stc.parse-threads";
+
+  /** File to write precompiled IC package for main module to, or empty */
+  public static final String IC_PACKAGE_OUTPUT = "stc.ic-package-output";
+
+  /** Directories to search for precompiled IC packages of imported modules */
+  public static final String IC_PACKAGE_PATH = "stc.ic-package-path";
+
+  /**
+   * Directory to cache optimized functions in, or empty to disable cache.
+   * The cache is not used if function inlining, specialization or
+   * signature optimization is enabled, as at -O2 and above.
+   */
+  public static final String IC_CACHE_DIR = "stc.ic-cache-dir";
+
   /** Run compiler repeatedly so can be profiled */
   public static final String PROFILE_STC = "stc.profile";
 
@@ -131,21 +216,27 @@ public class Settings {
   public static final String PREPROCESSOR_FORCE_GCC = "stc.preproc.force-gcc";
   public static final String PREPROCESSOR_FORCE_CPP = "stc.preproc.force-cpp";
 
+  /**
+   * Use built-in preprocessor if possible, rather than running cpp or gcc.
+   * Ignored if cpp or gcc is forced.
+   */
+  public static final String PREPROCESSOR_BUILTIN = "stc.preproc.builtin";
+
 
   /** Record assumption that we need to pass waited-on vars into block */
   public static final String MUST_PASS_WAIT_VARS = "stc.must_pass_wait_vars";
 
-  private static final Properties defaults;
-  private static final Properties properties;
+  /** Defaults for a new scope */
+  private static final Properties initialDefaults;
 
-  private static final List<String> modulePath = new ArrayList<String>();
+  /** Scope used by threads that haven't entered another scope */
+  private static final Scope rootScope;
 
-  /** Additional metadata */
-  private static final List<Pair<String, String>> metadata =
-            new ArrayList<Pair<String, String>>();
+  private static final ThreadLocal<Scope> currentScope =
+                                          new ThreadLocal<Scope>();
 
   static {
-    defaults = new Properties();
+    Properties defaults = new Properties();
     // Set defaults here
     defaults.setProperty(TURBINE_VERSION, "0.0.5");
     defaults.setProperty(DEBUG_LEVEL, "COMMENTS");
@@ -160,6 +251,7 @@ public class Settings {
     defaults.setProperty(PREPROCESS_ONLY, "false");
     defaults.setProperty(PREPROCESSOR_FORCE_CPP, "false");
     defaults.setProperty(PREPROCESSOR_FORCE_GCC, "false");
+    defaults.setProperty(PREPROCESSOR_BUILTIN, "true");
 
     // Code optimisation settings - defaults
     defaults.setProperty(OPT_FLATTEN_NESTED, "true");
@@ -189,23 +281,43 @@ public class Settings {
     defaults.setProperty(OPT_FUNCTION_ALWAYS_INLINE_THRESHOLD,
               Long.toString(FUNCTION_ALWAYS_INLINE_THRESHOLD_DEFAULT));
     defaults.setProperty(OPT_FUNCTION_SIGNATURE, "true");
+    defaults.setProperty(OPT_FUNCTION_SPECIALIZE, "true");
+    defaults.setProperty(OPT_FUNCTION_SPECIALIZE_THRESHOLD,
+              Long.toString(FUNCTION_SPECIALIZE_THRESHOLD_DEFAULT));
+    defaults.setProperty(OPT_INTERPROCEDURAL, "true");
     defaults.setProperty(OPT_HOIST, "true");
     defaults.setProperty(OPT_REORDER_INSTS, "false");
     defaults.setProperty(OPT_ARRAY_BUILD, "true");
     defaults.setProperty(OPT_LOOP_SIMPLIFY, "true");
+    defaults.setProperty(OPT_AUTO_SPLIT_DEGREE, "true");
     defaults.setProperty(OPT_PROPAGATE_ALIASES, "true");
     defaults.setProperty(OPT_MERGE_REFCOUNTS, "true");
     defaults.setProperty(OPT_CANCEL_REFCOUNTS, "true");
     defaults.setProperty(OPT_PIGGYBACK_REFCOUNTS, "true");
-    defaults.setProperty(OPT_BATCH_REFCOUNTS, "true");
+    defaults.setProperty(OPT_BATCH_REFCOUNTS, "false");
+    defaults.setProperty(OPT_BATCH_RETRIEVES, "false");
+    defaults.setProperty(OPT_BATCH_STORES, "false");
     defaults.setProperty(OPT_HOIST_REFCOUNTS, "true");
     defaults.setProperty(OPT_MAX_ITERATIONS, "10");
+    defaults.setProperty(OPT_FIXED_POINT, "false");
+    defaults.setProperty(OPT_VALIDATE_PASSES, "true");
+    defaults.setProperty(OPT_THREADS, "1");
+    defaults.setProperty(OPT_PROFILE_FILE, "");
+    defaults.setProperty(OPT_RUNTIME_PROFILE, "");
+    defaults.setProperty(TASK_PROFILE, "false");
     defaults.setProperty(ENABLE_REFCOUNTING, "true");
     defaults.setProperty(ENABLE_CHECKPOINTING, "true");
     defaults.setProperty(AUTO_DECLARE, "true");
     defaults.setProperty(PROFILE_STC, "false");
     defaults.setProperty(LOG_FILE, "");
     defaults.setProperty(LOG_TRACE, "false");
+    defaults.setProperty(MODULE_CACHE_DIR, "");
+    defaults.setProperty(PARSE_THREADS, "1");
+    defaults.setProperty(IC_PACKAGE_OUTPUT, "");
+    defaults.setProperty(IC_PACKAGE_PATH, "");
+    defaults.setProperty(IC_CACHE_DIR, "");
+    defaults.setProperty(BACKEND, BACKEND_TURBINE);
+    defaults.setProperty(STREAM_OUTPUT, "true");
 
 
 
@@ -215,7 +327,76 @@ public class Settings {
     // Turbine code generation
     // Turbine version
     defaults.setProperty(TURBINE_VERSION, "unknown");
-    properties = new Properties(defaults);
+    initialDefaults = defaults;
+    rootScope = new Scope();
+  }
+
+  /**
+   * Settings and other per-compilation state.  Normally all threads share
+   * a single root scope, but compilations running concurrently in the same
+   * JVM must each enter their own scope so that they don't see each
+   * other's settings.
+   */
+  public static class Scope {
+    private final Properties defaults;
+    private final Properties properties;
+
+    private final List<String> modulePath =
+              new CopyOnWriteArrayList<String>();
+
+    /** Additional metadata */
+    private final List<Pair<String, String>> metadata =
+              new CopyOnWriteArrayList<Pair<String, String>>();
+
+    /** Store in sorted order as nicety */
+    private final Map<String, String> compileTimeArgs =
+              Collections.synchronizedMap(new TreeMap<String, String>());
+
+    /** Log messages already emitted */
+    private final Set<Pair<Level, String>> emitted =
+              Collections.synchronizedSet(new HashSet<Pair<Level, String>>());
+
+    private Scope() {
+      this.defaults = new Properties();
+      this.defaults.putAll(initialDefaults);
+      this.properties = new Properties(defaults);
+    }
+
+    public Map<String, String> compileTimeArgs() {
+      return compileTimeArgs;
+    }
+
+    public Set<Pair<Level, String>> emitted() {
+      return emitted;
+    }
+  }
+
+  /**
+   * @return a new scope with default settings
+   */
+  public static Scope newScope() {
+    return new Scope();
+  }
+
+  /**
+   * @return scope for the current thread
+   */
+  public static Scope getScope() {
+    Scope scope = currentScope.get();
+    return scope != null ? scope : rootScope;
+  }
+
+  /**
+   * Set the scope for the current thread.  Tasks that are handed off to
+   * other threads must be run in the scope of the thread that created them.
+   * @param scope the scope, or null to revert to the root scope
+   */
+  public static void setScope(Scope scope) {
+    if (scope == null) {
+      currentScope.remove();
+    } else {
+      currentScope.set(scope);
+    }
   }
 
   /**
@@ -224,10 +405,20 @@ public class Settings {
    */
   public static void initSTCProperties() throws InvalidOptionException {
     // Pull in properties from wrapper script
+    initSTCProperties(System.getProperties());
+  }
+
+  /**
+     Try to overwrite each default property in properties
+     with value from provided properties
+   */
+  public static void initSTCProperties(Properties overrides)
+                                      throws InvalidOptionException {
+    Properties properties = getScope().properties;
     for (String key: properties.stringPropertyNames()) {
-      String sysVal = System.getProperty(key);
-      if (sysVal != null) {
-        properties.setProperty(key, sysVal);
+      String val = overrides.getProperty(key);
+      if (val != null) {
+        properties.setProperty(key, val);
       }
     }
     validateProperties();
@@ -236,36 +427,37 @@ public class Settings {
   }
 
   public static void set(String key, String value) {
-    properties.setProperty(key, value);
+    getScope().properties.setProperty(key, value);
   }
 
   private static void initModulePath() {
     // Search Turbine directory first
+    List<String> modulePath = getScope().modulePath;
     modulePath.add(0, Settings.get(Settings.TURBINE_HOME) + "/export");
     // Search current directory last
     modulePath.add(".");
   }
 
   public static void addModulePath(String dir) {
-    modulePath.add(dir);
+    getScope().modulePath.add(dir);
   }
 
   /**
    * @return list of directory paths to search, from first to last
    */
   public static List<String> getModulePath() {
-    return Collections.unmodifiableList(modulePath);
+    return Collections.unmodifiableList(getScope().modulePath);
   }
 
   public static void addMetadata(String key, String val) {
-    metadata.add(Pair.create(key, val));
+    getScope().metadata.add(Pair.create(key, val));
   }
 
   /**
    * @return list of directory paths to search, from first to last
    */
   public static List<Pair<String, String>> getMetadata() {
-    return Collections.unmodifiableList(metadata);
+    return Collections.unmodifiableList(getScope().metadata);
   }
 
   private static void loadVersionNumber() {
@@ -277,7 +469,7 @@ public class Settings {
       BufferedReader r = new BufferedReader(new FileReader(versionFile));
       String version = r.readLine().trim();
       r.close();
-      properties.setProperty(STC_VERSION, version);
+      set(STC_VERSION, version);
     } catch (FileNotFoundException e) {
       throw new STCRuntimeError("Version file missing: " + versionFile);
     } catch (IOException e) {
@@ -289,7 +481,7 @@ public class Settings {
 
   public static List<String> getKeys() {
     ArrayList<String> keys;
-    keys = new ArrayList<String>(properties.stringPropertyNames());
+    keys = new ArrayList<String>(getScope().properties.stringPropertyNames());
     Collections.sort(keys);
     return keys;
   }
@@ -325,6 +517,9 @@ public class Settings {
     getBoolean(OPT_PIPELINE);
     getBoolean(OPT_CONTROLFLOW_FUSION);
     getBoolean(OPT_FUNCTION_SIGNATURE);
+    getBoolean(OPT_FUNCTION_SPECIALIZE);
+    getLong(OPT_FUNCTION_SPECIALIZE_THRESHOLD);
+    getBoolean(OPT_INTERPROCEDURAL);
     getBoolean(OPT_HOIST);
     getBoolean(OPT_REORDER_INSTS);
     getBoolean(OPT_UNROLL_LOOPS);
@@ -332,6 +527,7 @@ public class Settings {
     getBoolean(OPT_FULL_UNROLL);
     getBoolean(OPT_ARRAY_BUILD);
     getBoolean(OPT_LOOP_SIMPLIFY);
+    getBoolean(OPT_AUTO_SPLIT_DEGREE);
     getBoolean(OPT_PROPAGATE_ALIASES);
     getLong(OPT_EXPAND_LOOP_THRESHOLD_ITERS);
     getLong(OPT_UNROLL_LOOP_THRESHOLD_ITERS);
@@ -341,23 +537,32 @@ public class Settings {
     getBoolean(OPT_CANCEL_REFCOUNTS);
     getBoolean(OPT_PIGGYBACK_REFCOUNTS);
     getBoolean(OPT_BATCH_REFCOUNTS);
+    getBoolean(OPT_BATCH_RETRIEVES);
+    getBoolean(OPT_BATCH_STORES);
     getBoolean(OPT_HOIST_REFCOUNTS);
     getBoolean(ENABLE_REFCOUNTING);
     getBoolean(ENABLE_CHECKPOINTING);
     getBoolean(AUTO_DECLARE);
     getBoolean(COMPILER_DEBUG);
     getBoolean(PROFILE_STC);
+    getBoolean(TASK_PROFILE);
     getBoolean(USE_C_PREPROCESSOR);
     getBoolean(PREPROCESS_ONLY);
     getBoolean(PREPROCESSOR_FORCE_CPP);
     getBoolean(PREPROCESSOR_FORCE_GCC);
+    getBoolean(PREPROCESSOR_BUILTIN);
     getBoolean(MUST_PASS_WAIT_VARS);
 
+    getBoolean(OPT_FIXED_POINT);
+    getBoolean(OPT_VALIDATE_PASSES);
     getLong(OPT_MAX_ITERATIONS);
+    getInt(OPT_THREADS);
+    getInt(PARSE_THREADS);
 
     initInlineProperties();
 
     checkOneOf(DEBUG_LEVEL, Arrays.asList("off", "comments", "debugger"));
+    checkOneOf(BACKEND, Arrays.asList(BACKEND_TURBINE, BACKEND_JVM));
   }
 
   private static void initInlineProperties() throws InvalidOptionException {
@@ -365,9 +570,10 @@ public class Settings {
     boolean fullInline = getBoolean(OPT_FULL_FUNCTION_INLINE);
 
     if (fullInline) {
-      defaults.setProperty(OPT_FUNCTION_INLINE_THRESHOLD,
+      Scope scope = getScope();
+      scope.defaults.setProperty(OPT_FUNCTION_INLINE_THRESHOLD,
                 Long.toString(FUNCTION_INLINE_THRESHOLD_FULL));
-      properties.setProperty(OPT_FUNCTION_INLINE, "true");
+      scope.properties.setProperty(OPT_FUNCTION_INLINE, "true");
     }
 
     getBoolean(OPT_FUNCTION_INLINE);
@@ -378,7 +584,7 @@ public class Settings {
   public static String get(String key)
   {
     // System.out.println("Setting: " + key + " " + properties.getProperty(key));
-    return properties.getProperty(key);
+    return getScope().properties.getProperty(key);
   }
 
   /**
@@ -393,7 +599,7 @@ public class Settings {
 
     boolean found = false;
     // Case insensitive
-    String val = properties.getProperty(key);
+    String val = get(key);
     if (val == null) {
       throw new InvalidOptionException("Could not find property " + key);
     }
@@ -421,7 +627,7 @@ public class Settings {
   }
 
   public static long getLong(String key) throws InvalidOptionException {
-    String strVal = properties.getProperty(key);
+    String strVal = get(key);
     if (strVal == null) {
       throw new InvalidOptionException("no value set for option " + key);
     }
@@ -448,7 +654,7 @@ public class Settings {
   }
 
   public static int getInt(String key) throws InvalidOptionException {
-    String strVal = properties.getProperty(key);
+    String strVal = get(key);
     if (strVal == null) {
       throw new InvalidOptionException("no value set for option " + key);
     }
@@ -476,7 +682,7 @@ public class Settings {
 
   public static boolean getBoolean(String key)
                   throws InvalidOptionException {
-    String strVal = properties.getProperty(key);
+    String strVal = get(key);
     if (strVal == null) {
       throw new InvalidOptionException("no value set for option " + key);
     }
@@ -15,6 +15,9 @@
  */
 package exm.stc.common.lang;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
@@ -25,7 +28,9 @@ import exm.stc.common.lang.Types.Typed;
 import exm.stc.common.util.TernaryLogic.Ternary;
 import exm.stc.tclbackend.tree.TclString;
 
-public class Arg implements Comparable<Arg>, Typed {
+public class Arg implements Comparable<Arg>, Typed, Serializable {
+  private static final long serialVersionUID = 1L;
+
   public static final Arg ZERO = Arg.newInt(0);
   public static final Arg ONE = Arg.newInt(1);
   public static final Arg TRUE = Arg.newBool(true);
@@ -47,7 +52,7 @@ public class Arg implements Comparable<Arg>, Typed {
   private final boolean boollit;
   private final Var var;
 
-  private final int hashCode;
+  private transient int hashCode;
 
   /**
    * Private constructor: it can only be built using the static builder
@@ -300,6 +305,13 @@ public class Arg implements Comparable<Arg>, Typed {
     return this.kind.hashCode() ^ hash1;
   }
 
+  private void readObject(ObjectInputStream in)
+      throws IOException, ClassNotFoundException {
+    in.defaultReadObject();
+    // Hash codes of enums differ between JVMs
+    hashCode = calcHashCode();
+  }
+
   @Override
   public boolean equals(Object otherO) {
     if (!(otherO instanceof Arg)) {
@@ -1,5 +1,6 @@
 package exm.stc.common.lang;
 
+import java.io.Serializable;
 import java.util.Arrays;
 import java.util.List;
 
@@ -8,9 +9,12 @@ import exm.stc.tclbackend.TclOpTemplate;
 /**
  * Represent an asynchronous execution provider
  */
-public class AsyncExecutor {
+public class AsyncExecutor implements Serializable {
+  private static final long serialVersionUID = 1L;
+
   private final String name;
-  private final TclOpTemplate template;
+  /** Only name is serialized: reader must resolve executor by name */
+  private final transient TclOpTemplate template;
   private final boolean appExecutor;
 
   /**
@@ -15,6 +15,7 @@
  */
 package exm.stc.common.lang;
 
+import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
@@ -30,7 +31,9 @@ import exm.stc.common.util.Pair;
  * time should run in a control context.
  *
  */
-public class ExecContext {
+public class ExecContext implements Serializable {
+  private static final long serialVersionUID = 1L;
+
   /**
    * Represent a general kind of context
    */
@@ -49,10 +52,14 @@ public class ExecContext {
    *
    * Compare based on identity
    * Include string to identify in debug messages, etc.
+   * Only the name is serialized: the reader must resolve it to the
+   * matching instance.
    */
-  public static class WorkContext {
+  public static class WorkContext implements Serializable {
+    private static final long serialVersionUID = 1L;
+
     private final String name;
-    private final AsyncExecutor asyncExecutor;
+    private final transient AsyncExecutor asyncExecutor;
 
     private WorkContext(String name, AsyncExecutor asyncExecutor) {
       this.name = name;
@@ -15,12 +15,15 @@
  */
 package exm.stc.common.lang;
 
+import java.io.Serializable;
+
 
 
 /**
  * Class that represents where a bit of code should be executed.
  */
-public class ExecTarget {
+public class ExecTarget implements Serializable {
+  private static final long serialVersionUID = 1L;
 
   private ExecTarget(boolean async, boolean dispatched, ExecContext targetContext) {
     validate(async, dispatched, targetContext);
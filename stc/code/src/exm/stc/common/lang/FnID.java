@@ -1,5 +1,7 @@
 package exm.stc.common.lang;
 
+import java.io.Serializable;
+
 import exm.stc.common.exceptions.STCRuntimeError;
 
 /**
@@ -7,7 +9,8 @@ import exm.stc.common.exceptions.STCRuntimeError;
  *
  * @author tim
  */
-public class FnID {
+public class FnID implements Serializable {
+  private static final long serialVersionUID = 1L;
 
   public static final FnID MAIN_FUNCTION =
       new FnID(Constants.MAIN_FUNCTION, Constants.MAIN_FUNCTION);
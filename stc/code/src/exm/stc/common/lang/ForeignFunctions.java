@@ -15,6 +15,7 @@
  */
 package exm.stc.common.lang;
 
+import java.io.Serializable;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
@@ -34,7 +35,8 @@ import exm.stc.common.util.TwoWayMap;
  *
  * Currently it is sufficient to have this as a static class.
  */
-public class ForeignFunctions {
+public class ForeignFunctions implements Serializable {
+  private static final long serialVersionUID = 1L;
 
 
   /**
@@ -64,6 +66,7 @@ public class ForeignFunctions {
   /**
    * Track all foreign functions used in the program
    */
+  @SuppressWarnings("serial")
   private final SetMultimap<FnID, Prop> props = HashMultimap.create();
 
   /**
@@ -94,25 +97,33 @@ public class ForeignFunctions {
   }
 
   public void copyProperties(FnID newID, FnID oldID) {
+    copyProperties(newID, this, oldID);
+  }
+
+  /**
+   * Copy properties of function, which may be from another set
+   * of foreign functions
+   */
+  public void copyProperties(FnID newID, ForeignFunctions from, FnID oldID) {
     addForeignFunction(newID);
 
-    props.putAll(newID, props.get(oldID));
-    SpecialFunction special = specialImpls.get(oldID);
+    props.putAll(newID, from.props.get(oldID));
+    SpecialFunction special = from.specialImpls.get(oldID);
     if (special != null) {
       addSpecialImpl(special, newID);;
     }
 
-    BuiltinOpcode equiv = equivalentOps.get(oldID);
+    BuiltinOpcode equiv = from.equivalentOps.get(oldID);
     if (equiv != null) {
       addOpEquiv(newID, equiv);
     }
 
-    FnID localID = getLocalImpl(oldID);
+    FnID localID = from.getLocalImpl(oldID);
     if (localID != null) {
       addLocalImpl(newID, localID);
     }
 
-    ExecTarget taskMode = taskModes.get(oldID);
+    ExecTarget taskMode = from.taskModes.get(oldID);
     if (taskMode != null) {
       addTaskMode(newID, taskMode);
     }
@@ -288,6 +299,36 @@ public class ForeignFunctions {
     return Collections.unmodifiableSet(localImpls.keySet());
   }
 
+  /**
+   * Describe all properties of a function in a canonical form, so that
+   * changes between compiler runs can be detected
+   */
+  public String describe(FnID id) {
+    StringBuilder sb = new StringBuilder(id.toString());
+    for (Prop prop: Prop.values()) {
+      if (hasProp(id, prop)) {
+        sb.append(" " + prop);
+      }
+    }
+    SpecialFunction special = specialImpls.get(id);
+    if (special != null) {
+      sb.append(" special=" + special);
+    }
+    BuiltinOpcode equiv = equivalentOps.get(id);
+    if (equiv != null) {
+      sb.append(" op=" + equiv);
+    }
+    FnID localImpl = localImpls.get(id);
+    if (localImpl != null) {
+      sb.append(" local=" + localImpl);
+    }
+    ExecTarget taskMode = taskModes.get(id);
+    if (taskMode != null) {
+      sb.append(" mode=" + taskMode);
+    }
+    return sb.toString();
+  }
+
   public void addTaskMode(FnID id, ExecTarget mode) {
     taskModes.put(id, mode);
   }
@@ -341,7 +341,7 @@ public class Operators {
     }
 
     private static OpType build(PrimType out, List<PrimType> in) {
-      return build(new ScalarFutureType(out), scalarFutureList(in));
+      return build(ScalarFutureType.create(out), scalarFutureList(in));
     }
 
     private static OpType build(Type out, List<Type> in) {
@@ -352,7 +352,7 @@ public class Operators {
     private static List<Type> scalarFutureList(List<PrimType> pts) {
       List<Type> result = new ArrayList<Type>(pts.size());
       for (PrimType pt: pts) {
-        result.add(new ScalarFutureType(pt));
+        result.add(ScalarFutureType.create(pt));
       }
       return result;
     }
@@ -1,5 +1,6 @@
 package exm.stc.common.lang;
 
+import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
@@ -12,7 +13,9 @@ import java.util.ListIterator;
  * Represents a variable passed between tasks
  *
  */
-public class PassedVar {
+public class PassedVar implements Serializable {
+  private static final long serialVersionUID = 1L;
+
   public final Var var;
   /** True if var isn't read in inner scope */
   public final boolean writeOnly;
@@ -15,6 +15,7 @@
  */
 package exm.stc.common.lang;
 
+import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
@@ -24,7 +25,9 @@ import java.util.Map;
  * members are null for no redirection
  *
  */
-public class Redirects<T> {
+public class Redirects<T> implements Serializable {
+  private static final long serialVersionUID = 1L;
+
   /**
    * Keys to use when storing redirects in map
    */
@@ -93,8 +96,11 @@ public class Redirects<T> {
     return res;
   }
   
+  @SuppressWarnings("serial")
   public T stdin = null;
+  @SuppressWarnings("serial")
   public T stdout = null;
+  @SuppressWarnings("serial")
   public T stderr = null;
   
   /**
@@ -0,0 +1,174 @@
+/*
+ * Copyright 2013 University of Chicago and Argonne National Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package exm.stc.common.lang;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+import exm.stc.common.lang.Types.Type;
+
+/**
+ * Hash-consing table of types.  Types are created through factory methods
+ * in Types that intern them here, so that structurally identical types
+ * are a single canonical instance.
+ *
+ * Types are looked up by their class and the parts they were constructed
+ * from.  Since the component types are themselves canonical, they are
+ * compared by identity, so lookup does not need to recurse into types.
+ * Note that this is stricter than Type.equals(), which treats some types
+ * with different structure as equal, e.g. unions with alternatives in a
+ * different order.
+ *
+ * Entries are weakly referenced so that types no longer used by any
+ * compilation can be garbage collected.  The table is safe to use from
+ * multiple threads.
+ */
+class TypeTable {
+
+  private static final ConcurrentHashMap<Key, Entry> table =
+                                      new ConcurrentHashMap<Key, Entry>();
+
+  private static final ReferenceQueue<Type> collected =
+                                      new ReferenceQueue<Type>();
+
+  /**
+   * Return canonical instance of type
+   * @param type newly constructed type
+   * @param parts everything type was constructed from.  Types and lists of
+   *        types must be canonical.  Other parts are compared with equals.
+   * @return canonical instance, which may be the argument
+   */
+  @SuppressWarnings("unchecked")
+  static <T extends Type> T intern(T type, Object ...parts) {
+    expunge();
+
+    Key key = new Key(type.getClass(), parts);
+    while (true) {
+      Entry entry = table.get(key);
+      if (entry == null) {
+        entry = new Entry(type, key, collected);
+        Entry prev = table.putIfAbsent(key, entry);
+        if (prev == null) {
+          return type;
+        }
+        entry = prev;
+      }
+
+      Type canonical = entry.get();
+      if (canonical != null) {
+        // Key includes class
+        return (T)canonical;
+      }
+      // Collected but not yet expunged
+      table.remove(key, entry);
+    }
+  }
+
+  private static void expunge() {
+    Object ref;
+    while ((ref = collected.poll()) != null) {
+      Entry entry = (Entry)ref;
+      table.remove(entry.key, entry);
+    }
+  }
+
+  private static class Entry extends WeakReference<Type> {
+    private final Key key;
+
+    private Entry(Type type, Key key, ReferenceQueue<Type> queue) {
+      super(type, queue);
+      this.key = key;
+    }
+  }
+
+  private static class Key {
+    private final Class<?> typeClass;
+    private final Object parts[];
+    private final int hashCode;
+
+    private Key(Class<?> typeClass, Object parts[]) {
+      this.typeClass = typeClass;
+      this.parts = parts;
+      this.hashCode = calcHashCode();
+    }
+
+    private int calcHashCode() {
+      int code = typeClass.hashCode();
+      for (Object part: parts) {
+        code = code * 31 + partHashCode(part);
+      }
+      return code;
+    }
+
+    private static int partHashCode(Object part) {
+      if (part instanceof Type) {
+        return System.identityHashCode(part);
+      } else if (part instanceof List) {
+        int code = 1;
+        for (Object elem: (List<?>)part) {
+          code = code * 31 + partHashCode(elem);
+        }
+        return code;
+      } else {
+        return part == null ? 0 : part.hashCode();
+      }
+    }
+
+    private static boolean partEquals(Object a, Object b) {
+      if (a instanceof Type || b instanceof Type) {
+        return a == b;
+      } else if (a instanceof List && b instanceof List) {
+        List<?> al = (List<?>)a, bl = (List<?>)b;
+        if (al.size() != bl.size()) {
+          return false;
+        }
+        for (int i = 0; i < al.size(); i++) {
+          if (!partEquals(al.get(i), bl.get(i))) {
+            return false;
+          }
+        }
+        return true;
+      } else {
+        return a == null ? b == null : a.equals(b);
+      }
+    }
+
+    @Override
+    public int hashCode() {
+      return hashCode;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (!(obj instanceof Key)) {
+        return false;
+      }
+      Key other = (Key)obj;
+      if (other.hashCode != hashCode || other.typeClass != typeClass ||
+          other.parts.length != parts.length) {
+        return false;
+      }
+      for (int i = 0; i < parts.length; i++) {
+        if (!partEquals(parts[i], other.parts[i])) {
+          return false;
+        }
+      }
+      return true;
+    }
+  }
+}
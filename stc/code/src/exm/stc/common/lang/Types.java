@@ -15,6 +15,9 @@
  */
 package exm.stc.common.lang;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
@@ -45,22 +48,35 @@ import exm.stc.common.lang.Var.Alloc;
 public class Types {
 
   public static class ArrayType extends Type {
+    private static final long serialVersionUID = 1L;
     private final boolean local; // If stored locally
     private final Type keyType;
     private final Type memberType;
+    private transient int hashCode;
 
-    public ArrayType(boolean local, Type keyType, Type memberType) {
+    private ArrayType(boolean local, Type keyType, Type memberType) {
       this.local = local;
       this.keyType = keyType;
       this.memberType = memberType;
+      this.hashCode = calcHashCode();
+    }
+
+    public static ArrayType create(boolean local, Type keyType,
+                                   Type memberType) {
+      return TypeTable.intern(new ArrayType(local, keyType, memberType),
+                              local, keyType, memberType);
+    }
+
+    private Object readResolve() {
+      return create(local, keyType, memberType);
     }
 
     public static ArrayType sharedArray(Type keyType, Type memberType) {
-      return new ArrayType(false, keyType, memberType);
+      return create(false, keyType, memberType);
     }
 
     public static ArrayType localArray(Type keyType, Type memberType) {
-      return new ArrayType(true, keyType, memberType);
+      return create(true, keyType, memberType);
     }
 
     @Override
@@ -102,6 +118,9 @@ public class Types {
 
     @Override
     public boolean equals(Object other) {
+      if (this == other) {
+        return true;
+      }
       if (!(other instanceof Type)) {
         throw new STCRuntimeError("Comparing ArrayType with non-type " +
                 "object");
@@ -117,19 +136,30 @@ public class Types {
 
     @Override
     public int hashCode() {
+      return hashCode;
+    }
+
+    private int calcHashCode() {
       return memberType.hashCode() + 13 *
             (ArrayType.class.hashCode() + 13 * (local ? 0 : 1));
     }
 
+    private void readObject(ObjectInputStream in)
+        throws IOException, ClassNotFoundException {
+      in.defaultReadObject();
+      // Hash codes of classes differ between JVMs
+      hashCode = calcHashCode();
+    }
+
     @Override
     public Type bindTypeVars(Map<String, Type> vals) {
-      return new ArrayType(local, keyType.bindTypeVars(vals),
+      return ArrayType.create(local, keyType.bindTypeVars(vals),
                            memberType.bindTypeVars(vals));
     }
 
     @Override
     public Type bindAllTypeVars(Type type) {
-      return new ArrayType(local, keyType.bindAllTypeVars(type),
+      return ArrayType.create(local, keyType.bindAllTypeVars(type),
           memberType.bindAllTypeVars(type));
     }
 
@@ -165,7 +195,7 @@ public class Types {
       Type cKey = keyType.concretize(concreteArray.keyType);
       if (cMember == this.memberType && cKey == this.keyType)
         return this;
-      return new ArrayType(this.local, cKey, cMember);
+      return ArrayType.create(this.local, cKey, cMember);
     }
 
     @Override
@@ -194,7 +224,7 @@ public class Types {
       if (implMember == memberType && implKey == keyType) {
         return this;
       } else {
-        return new ArrayType(local, implKey, implMember);
+        return ArrayType.create(local, implKey, implMember);
       }
     }
 
@@ -204,7 +234,7 @@ public class Types {
     }
 
     public Type substituteElemType(Type newElem) {
-      return new ArrayType(local, keyType, newElem);
+      return ArrayType.create(local, keyType, newElem);
     }
   }
 
@@ -212,22 +242,33 @@ public class Types {
    * Unordered set of data which allows duplicates
    */
   public static class BagType extends Type {
+    private static final long serialVersionUID = 1L;
 
     private final boolean local; // If stored locally
     public static final String BAG = "bag";
     private final Type elemType;
+    private transient int hashCode;
 
-    public BagType(boolean local, Type elemType) {
+    private BagType(boolean local, Type elemType) {
       this.local = local;
       this.elemType = elemType;
+      this.hashCode = calcHashCode();
+    }
+
+    public static BagType create(boolean local, Type elemType) {
+      return TypeTable.intern(new BagType(local, elemType), local, elemType);
+    }
+
+    private Object readResolve() {
+      return create(local, elemType);
     }
 
     public static BagType sharedBag(Type memberType) {
-      return new BagType(false, memberType);
+      return create(false, memberType);
     }
 
     public static BagType localBag(Type memberType) {
-      return new BagType(true, memberType);
+      return create(true, memberType);
     }
 
     @Override
@@ -265,6 +306,9 @@ public class Types {
 
     @Override
     public boolean equals(Object other) {
+      if (this == other) {
+        return true;
+      }
       if (!(other instanceof Type)) {
         throw new STCRuntimeError("Comparing BagType with non-type " +
                 "object");
@@ -279,18 +323,29 @@ public class Types {
 
     @Override
     public int hashCode() {
+      return hashCode;
+    }
+
+    private int calcHashCode() {
       return local ? 0 : 1 + 31 *
               (elemType.hashCode() + 31 * BagType.class.hashCode());
     }
 
+    private void readObject(ObjectInputStream in)
+        throws IOException, ClassNotFoundException {
+      in.defaultReadObject();
+      // Hash codes of classes differ between JVMs
+      hashCode = calcHashCode();
+    }
+
     @Override
     public Type bindTypeVars(Map<String, Type> vals) {
-      return new BagType(local, elemType.bindTypeVars(vals));
+      return BagType.create(local, elemType.bindTypeVars(vals));
     }
 
     @Override
     public Type bindAllTypeVars(Type type) {
-      return new BagType(local, elemType.bindAllTypeVars(type));
+      return BagType.create(local, elemType.bindAllTypeVars(type));
     }
 
     @Override
@@ -311,7 +366,7 @@ public class Types {
       Type cElem = elemType.concretize(concreteBag.memberType());
       if (cElem == this.elemType)
         return this;
-      return new BagType(local, cElem);
+      return BagType.create(local, cElem);
     }
 
     @Override
@@ -338,7 +393,7 @@ public class Types {
       if (implElem == elemType)
         return this;
       else
-        return new BagType(local, implElem);
+        return BagType.create(local, implElem);
     }
 
     @Override
@@ -347,17 +402,29 @@ public class Types {
     }
 
     public Type substituteElemType(Type newElem) {
-      return new BagType(local, newElem);
+      return BagType.create(local, newElem);
     }
   }
 
   public static class RefType extends Type {
+    private static final long serialVersionUID = 1L;
     private final Type referencedType;
     private final boolean mutable;
+    private transient int hashCode;
 
-    public RefType(Type referencedType, boolean mutable) {
+    private RefType(Type referencedType, boolean mutable) {
       this.referencedType = referencedType;
       this.mutable = mutable;
+      this.hashCode = calcHashCode();
+    }
+
+    public static RefType create(Type referencedType, boolean mutable) {
+      return TypeTable.intern(new RefType(referencedType, mutable),
+                              referencedType, mutable);
+    }
+
+    private Object readResolve() {
+      return create(referencedType, mutable);
     }
 
     public boolean mutable() {
@@ -397,6 +464,9 @@ public class Types {
 
     @Override
     public boolean equals(Object other) {
+      if (this == other) {
+        return true;
+      }
       if (!(other instanceof Type)) {
         throw new STCRuntimeError("Comparing ReferenceType with " +
               "non-type object");
@@ -426,19 +496,30 @@ public class Types {
 
     @Override
     public int hashCode() {
+      return hashCode;
+    }
+
+    private int calcHashCode() {
       return (referencedType.hashCode() * 13 + RefType.class.hashCode()) +
               (mutable ? 1 : 0);
     }
 
+    private void readObject(ObjectInputStream in)
+        throws IOException, ClassNotFoundException {
+      in.defaultReadObject();
+      // Hash codes of classes differ between JVMs
+      hashCode = calcHashCode();
+    }
+
     @Override
     public Type bindTypeVars(Map<String, Type> vals) {
-      return new RefType(referencedType.bindTypeVars(vals), mutable);
+      return RefType.create(referencedType.bindTypeVars(vals), mutable);
     }
 
 
     @Override
     public Type bindAllTypeVars(Type type) {
-      return new RefType(referencedType.bindAllTypeVars(type), mutable);
+      return RefType.create(referencedType.bindAllTypeVars(type), mutable);
     }
 
 
@@ -458,7 +539,7 @@ public class Types {
       Type cMember = referencedType.concretize(concrete.memberType());
       if (cMember == this.referencedType)
         return this;
-      return new RefType(cMember, mutable);
+      return RefType.create(cMember, mutable);
     }
 
     @Override
@@ -474,7 +555,7 @@ public class Types {
       else if (implMember == null)
         return null;
       else
-        return new RefType(implMember, mutable);
+        return RefType.create(implMember, mutable);
     }
 
     @Override
@@ -484,7 +565,10 @@ public class Types {
   }
 
   public static class StructType extends Type {
-    public static class StructField implements Typed {
+    private static final long serialVersionUID = 1L;
+    public static class StructField implements Typed, Serializable {
+      private static final long serialVersionUID = 1L;
+
       private final Type type;
       private final String name;
       public StructField(Type type, String name) {
@@ -507,7 +591,7 @@ public class Types {
       }
     }
 
-    public StructType(boolean local, String typeName,
+    private StructType(boolean local, String typeName,
                        List<StructField> fields) {
       this.local = local;
       this.typeName = typeName;
@@ -515,23 +599,39 @@ public class Types {
       this.hashCode = calcHashCode();
     }
 
+    public static StructType create(boolean local, String typeName,
+                                    List<StructField> fields) {
+      List<Object> fieldParts = new ArrayList<Object>(fields.size() * 2);
+      for (StructField field: fields) {
+        fieldParts.add(field.name);
+        fieldParts.add(field.type);
+      }
+      return TypeTable.intern(new StructType(local, typeName, fields),
+                              local, typeName, fieldParts);
+    }
+
+    private Object readResolve() {
+      return create(local, typeName, fields);
+    }
+
     private final boolean local;
+    @SuppressWarnings("serial")
     private final List<StructField> fields;
     private final String typeName;
 
-    private final int hashCode;
+    private transient int hashCode;
 
     public static StructType localStruct(StructType structType) {
       if (structType.local) {
         return structType;
       } else {
-        return new StructType(true, structType.typeName, structType.fields);
+        return StructType.create(true, structType.typeName, structType.fields);
       }
     }
 
     public static StructType sharedStruct(StructType structType) {
       if (structType.local) {
-        return new StructType(false, structType.typeName, structType.fields);
+        return StructType.create(false, structType.typeName, structType.fields);
       } else {
         return structType;
       }
@@ -539,12 +639,12 @@ public class Types {
 
     public static StructType localStruct(String typeName,
                                    List<StructField> fields) {
-      return new StructType(true, typeName, fields);
+      return StructType.create(true, typeName, fields);
     }
 
     public static StructType sharedStruct(String typeName,
                                   List<StructField> fields) {
-      return new StructType(false, typeName, fields);
+      return StructType.create(false, typeName, fields);
     }
 
     /**
@@ -619,6 +719,9 @@ public class Types {
 
     @Override
     public boolean equals(Object other) {
+      if (this == other) {
+        return true;
+      }
       if (!(other instanceof Type)) {
         throw new STCRuntimeError("Comparing ReferenceType with " +
               "non-type object");
@@ -697,6 +800,13 @@ public class Types {
       return code;
     }
 
+    private void readObject(ObjectInputStream in)
+        throws IOException, ClassNotFoundException {
+      in.defaultReadObject();
+      // Hash codes of classes differ between JVMs
+      hashCode = calcHashCode();
+    }
+
     @Override
     public Type bindTypeVars(Map<String, Type> vals) {
       // Assume no type variables inside struct
@@ -808,6 +918,7 @@ public class Types {
    * Abstract class with common functionality for primitive types
    */
   public static abstract class AbstractPrimType extends Type {
+    private static final long serialVersionUID = 1L;
 
     @Override
     public abstract PrimType primType();
@@ -868,6 +979,7 @@ public class Types {
    * Abstract class with common functionality for scalar types
    */
   public static abstract class AbstractScalarType extends AbstractPrimType {
+    private static final long serialVersionUID = 1L;
     protected final PrimType primType;
 
     public AbstractScalarType(PrimType primType) {
@@ -904,11 +1016,20 @@ public class Types {
   }
 
   public static class ScalarValueType extends AbstractScalarType {
+    private static final long serialVersionUID = 1L;
 
-    public ScalarValueType(PrimType type) {
+    private ScalarValueType(PrimType type) {
       super(type);
     }
 
+    public static ScalarValueType create(PrimType type) {
+      return TypeTable.intern(new ScalarValueType(type), type);
+    }
+
+    private Object readResolve() {
+      return create(primType);
+    }
+
     @Override
     public StructureType structureType() {
       return StructureType.SCALAR_VALUE;
@@ -922,10 +1043,19 @@ public class Types {
 
 
   public static class ScalarFutureType extends AbstractScalarType {
-    public ScalarFutureType(PrimType primType) {
+    private static final long serialVersionUID = 1L;
+    private ScalarFutureType(PrimType primType) {
       super(primType);
     }
 
+    public static ScalarFutureType create(PrimType primType) {
+      return TypeTable.intern(new ScalarFutureType(primType), primType);
+    }
+
+    private Object readResolve() {
+      return create(primType);
+    }
+
     @Override
     public StructureType structureType() {
       return StructureType.SCALAR_FUTURE;
@@ -938,10 +1068,19 @@ public class Types {
   }
 
   public static class ScalarUpdateableType extends AbstractScalarType {
-    public ScalarUpdateableType(PrimType primType) {
+    private static final long serialVersionUID = 1L;
+    private ScalarUpdateableType(PrimType primType) {
       super(primType);
     }
 
+    public static ScalarUpdateableType create(PrimType primType) {
+      return TypeTable.intern(new ScalarUpdateableType(primType), primType);
+    }
+
+    private Object readResolve() {
+      return create(primType);
+    }
+
     @Override
     public StructureType structureType() {
       return StructureType.SCALAR_UPDATEABLE;
@@ -954,12 +1093,12 @@ public class Types {
 
     public static ScalarFutureType asScalarFuture(Type upType) {
       assert(upType instanceof ScalarUpdateableType);
-      return new ScalarFutureType(upType.primType());
+      return ScalarFutureType.create(upType.primType());
     }
 
     public static ScalarValueType asScalarValue(Type valType) {
       assert(valType instanceof ScalarUpdateableType);
-      return new ScalarValueType(valType.primType());
+      return ScalarValueType.create(valType.primType());
     }
 
   }
@@ -1015,6 +1154,7 @@ public class Types {
    * those on a local file system, or those represented by a URL
    */
   public abstract static class AbstractFileType extends AbstractPrimType {
+    private static final long serialVersionUID = 1L;
 
     protected final FileKind kind;
 
@@ -1055,11 +1195,20 @@ public class Types {
   }
 
   public static class FileValueType extends AbstractFileType {
+    private static final long serialVersionUID = 1L;
 
-    public FileValueType(FileKind kind) {
+    private FileValueType(FileKind kind) {
       super(kind);
     }
 
+    public static FileValueType create(FileKind kind) {
+      return TypeTable.intern(new FileValueType(kind), kind);
+    }
+
+    private Object readResolve() {
+      return create(kind);
+    }
+
     @Override
     public StructureType structureType() {
       return StructureType.FILE_VALUE;
@@ -1073,11 +1222,20 @@ public class Types {
   }
 
   public static class FileFutureType extends AbstractFileType {
+    private static final long serialVersionUID = 1L;
 
-    public FileFutureType(FileKind kind) {
+    private FileFutureType(FileKind kind) {
       super(kind);
     }
 
+    public static FileFutureType create(FileKind kind) {
+      return TypeTable.intern(new FileFutureType(kind), kind);
+    }
+
+    private Object readResolve() {
+      return create(kind);
+    }
+
     @Override
     public StructureType structureType() {
       return StructureType.FILE_FUTURE;
@@ -1096,12 +1254,25 @@ public class Types {
    * - An expression that can be evaluated to multiple possible types.
    */
   public static class UnionType extends Type {
+    private static final long serialVersionUID = 1L;
+    @SuppressWarnings("serial")
     private final List<Type> alts;
+    private transient int hashCode;
 
     private UnionType(ArrayList<Type> alts) {
       // Shouldn't have single-element union type
       assert(alts.size() != 1);
       this.alts = Collections.unmodifiableList(alts);
+      this.hashCode = calcHashCode();
+    }
+
+    private static UnionType create(ArrayList<Type> alts) {
+      UnionType union = new UnionType(alts);
+      return TypeTable.intern(union, union.alts);
+    }
+
+    private Object readResolve() {
+      return create(new ArrayList<Type>(alts));
     }
 
     public List<Type> getAlternatives() {
@@ -1131,7 +1302,7 @@ public class Types {
       if (deduplicated.size() == 1) {
         return deduplicated.get(0);
       } else {
-        return new UnionType(new ArrayList<Type>(deduplicated));
+        return UnionType.create(new ArrayList<Type>(deduplicated));
       }
     }
 
@@ -1143,7 +1314,7 @@ public class Types {
         for (Type alt: alts) {
           list.add(alt);
         }
-        return new UnionType(list);
+        return UnionType.create(list);
       }
     }
 
@@ -1188,6 +1359,9 @@ public class Types {
 
     @Override
     public boolean equals(Object other) {
+      if (this == other) {
+        return true;
+      }
       if (!(other instanceof Type)) {
         throw new STCRuntimeError("Comparing UnionType " +
             "with non-type object");
@@ -1230,6 +1404,10 @@ public class Types {
 
     @Override
     public int hashCode() {
+      return hashCode;
+    }
+
+    private int calcHashCode() {
       int hash = UnionType.class.hashCode();
       for (Type alt: alts) {
         // Iteration order doesn't matter for xor
@@ -1238,13 +1416,20 @@ public class Types {
       return hash;
     }
 
+    private void readObject(ObjectInputStream in)
+        throws IOException, ClassNotFoundException {
+      in.defaultReadObject();
+      // Hash codes of classes differ between JVMs
+      hashCode = calcHashCode();
+    }
+
     @Override
     public Type bindTypeVars(Map<String, Type> vals) {
       ArrayList<Type> boundAlts = new ArrayList<Type>(alts.size());
       for (Type alt: alts) {
         boundAlts.add(alt.bindTypeVars(vals));
       }
-      return new UnionType(boundAlts);
+      return UnionType.create(boundAlts);
     }
 
     @Override
@@ -1253,7 +1438,7 @@ public class Types {
       for (Type alt: alts) {
         boundAlts.add(alt.bindAllTypeVars(type));
       }
-      return new UnionType(boundAlts);
+      return UnionType.create(boundAlts);
     }
 
     @Override
@@ -1289,7 +1474,7 @@ public class Types {
       for (Type t: alts) {
         implAlts.add(t.getImplType());
       }
-      return new UnionType(implAlts);
+      return UnionType.create(implAlts);
     }
 
     @Override
@@ -1302,12 +1487,25 @@ public class Types {
    * A type with multiple fields.
    */
   public static class TupleType extends Type {
+    private static final long serialVersionUID = 1L;
+    @SuppressWarnings("serial")
     private final List<Type> fields;
+    private transient int hashCode;
 
     private TupleType(ArrayList<Type> alts) {
       // Shouldn't have single-element union type
       assert(alts.size() != 1);
       this.fields = Collections.unmodifiableList(alts);
+      this.hashCode = calcHashCode();
+    }
+
+    private static TupleType create(ArrayList<Type> fields) {
+      TupleType tuple = new TupleType(fields);
+      return TypeTable.intern(tuple, tuple.fields);
+    }
+
+    private Object readResolve() {
+      return create(new ArrayList<Type>(fields));
     }
 
     public List<Type> getFields() {
@@ -1342,7 +1540,7 @@ public class Types {
       if (fields.size() == 1) {
         return fields.get(0);
       } else {
-        return new TupleType(new ArrayList<Type>(fields));
+        return TupleType.create(new ArrayList<Type>(fields));
       }
     }
 
@@ -1391,6 +1589,9 @@ public class Types {
 
     @Override
     public boolean equals(Object other) {
+      if (this == other) {
+        return true;
+      }
       if (!(other instanceof Type)) {
         throw new STCRuntimeError("Comparing TupleType " +
             "with non-type object");
@@ -1438,6 +1639,10 @@ public class Types {
 
     @Override
     public int hashCode() {
+      return hashCode;
+    }
+
+    private int calcHashCode() {
       int hash = TupleType.class.hashCode();
       for (Type field: fields) {
         hash = hash * 13 + field.hashCode();
@@ -1445,13 +1650,20 @@ public class Types {
       return hash;
     }
 
+    private void readObject(ObjectInputStream in)
+        throws IOException, ClassNotFoundException {
+      in.defaultReadObject();
+      // Hash codes of classes differ between JVMs
+      hashCode = calcHashCode();
+    }
+
     @Override
     public Type bindTypeVars(Map<String, Type> vals) {
       ArrayList<Type> boundFields = new ArrayList<Type>(fields.size());
       for (Type field: fields) {
         boundFields.add(field.bindTypeVars(vals));
       }
-      return new TupleType(boundFields);
+      return TupleType.create(boundFields);
     }
 
     @Override
@@ -1460,7 +1672,7 @@ public class Types {
       for (Type field: fields) {
         boundFields.add(field.bindAllTypeVars(type));
       }
-      return new TupleType(boundFields);
+      return TupleType.create(boundFields);
     }
 
     @Override
@@ -1535,7 +1747,7 @@ public class Types {
       }
 
       // Avoid creating identical type objects
-      return differences ? new TupleType(implFields) : this;
+      return differences ? TupleType.create(implFields) : this;
     }
 
     @Override
@@ -1553,13 +1765,22 @@ public class Types {
    * A type variable that represents a wildcard type
    */
   public static class TypeVariable extends Type {
+    private static final long serialVersionUID = 1L;
     private final String typeVarName;
 
-    public TypeVariable(String typeVarName) {
+    private TypeVariable(String typeVarName) {
       super();
       this.typeVarName = typeVarName;
     }
 
+    public static TypeVariable create(String typeVarName) {
+      return TypeTable.intern(new TypeVariable(typeVarName), typeVarName);
+    }
+
+    private Object readResolve() {
+      return create(typeVarName);
+    }
+
     /**
      * Check two sets of bindings are compatible with each other
      * @param m1
@@ -1673,6 +1894,18 @@ public class Types {
   }
 
   public static class WildcardType extends Type {
+    private static final long serialVersionUID = 1L;
+
+    private WildcardType() {
+    }
+
+    public static WildcardType create() {
+      return TypeTable.intern(new WildcardType());
+    }
+
+    private Object readResolve() {
+      return create();
+    }
 
     @Override
     public StructureType structureType() {
@@ -1769,8 +2002,12 @@ public class Types {
    * Class to represent a complex swift type, which can be recursively
    * constructed out of scalar types, arrays, and structures.
    *
+   * Types are interned in {@link TypeTable}.  Each concrete subclass
+   * defines readResolve() so that deserialized types are also replaced
+   * with the canonical instance.
    */
-  public abstract static class Type implements Typed {
+  public abstract static class Type implements Typed, Serializable {
+    private static final long serialVersionUID = 1L;
 
     /**
      * For Typed interface
@@ -1905,6 +2142,7 @@ public class Types {
    * Function types are kept distinct from value types
    */
   public static class FunctionType extends Type {
+    private static final long serialVersionUID = 1L;
 
     private final ArrayList<Type> inputs = new ArrayList<Type>();
     private final ArrayList<Type> outputs = new ArrayList<Type>();
@@ -1913,11 +2151,9 @@ public class Types {
     /** if varargs is true, the final argument can be repeated many times */
     private final boolean varargs;
 
-    public FunctionType(List<Type> inputs, List<Type> outputs,
-                                                boolean varargs) {
-      this(inputs, outputs, varargs, null);
-    }
-    public FunctionType(List<Type> inputs, List<Type> outputs,
+    private transient int hashCode;
+
+    private FunctionType(List<Type> inputs, List<Type> outputs,
           boolean varargs, Collection<String> typeVars) {
       this.inputs.addAll(inputs);
       this.outputs.addAll(outputs);
@@ -1926,6 +2162,23 @@ public class Types {
         this.typeVars.addAll(typeVars);
         Collections.sort(this.typeVars);
       }
+      this.hashCode = calcHashCode();
+    }
+
+    public static FunctionType create(List<Type> inputs, List<Type> outputs,
+                                                boolean varargs) {
+      return create(inputs, outputs, varargs, null);
+    }
+
+    public static FunctionType create(List<Type> inputs, List<Type> outputs,
+          boolean varargs, Collection<String> typeVars) {
+      FunctionType ft = new FunctionType(inputs, outputs, varargs, typeVars);
+      return TypeTable.intern(ft, ft.inputs, ft.outputs, varargs,
+                              ft.typeVars);
+    }
+
+    private Object readResolve() {
+      return create(inputs, outputs, varargs, typeVars);
     }
 
     public List<Type> getInputs() {
@@ -1976,6 +2229,9 @@ public class Types {
 
     @Override
     public boolean equals(Object obj) {
+      if (this == obj) {
+        return true;
+      }
       if (!(obj instanceof Type)) {
         throw new STCRuntimeError("Comparing FunctionType " +
             "with non-type object");
@@ -2002,6 +2258,10 @@ public class Types {
 
     @Override
     public int hashCode() {
+      return hashCode;
+    }
+
+    private int calcHashCode() {
       int code = FunctionType.class.hashCode();
       for (Type t: inputs) {
         code ^= t.hashCode();
@@ -2012,6 +2272,13 @@ public class Types {
       code ^= ((Boolean)varargs).hashCode();
       return code;
     }
+
+    private void readObject(ObjectInputStream in)
+        throws IOException, ClassNotFoundException {
+      in.defaultReadObject();
+      // Hash codes of classes differ between JVMs
+      hashCode = calcHashCode();
+    }
     @Override
     public Type bindTypeVars(Map<String, Type> vals) {
       List<Type> boundInputs = new ArrayList<Type>();
@@ -2024,7 +2291,7 @@ public class Types {
         boundOutputs.add(output.bindTypeVars(vals));
       }
 
-      return new FunctionType(boundInputs, boundOutputs, varargs);
+      return FunctionType.create(boundInputs, boundOutputs, varargs);
     }
 
     @Override
@@ -2039,7 +2306,7 @@ public class Types {
         boundOutputs.add(output.bindAllTypeVars(type));
       }
 
-      return new FunctionType(boundInputs, boundOutputs, varargs);
+      return FunctionType.create(boundInputs, boundOutputs, varargs);
     }
 
     @Override
@@ -2077,7 +2344,7 @@ public class Types {
         concreteOut.add(out.concretize(cOut));
       }
       // TODO: how to handle varargs?
-      return new FunctionType(concreteIn, concreteOut, varargs);
+      return FunctionType.create(concreteIn, concreteOut, varargs);
     }
 
     @Override
@@ -2108,7 +2375,7 @@ public class Types {
         outs.add(out.getImplType());
       }
 
-      return new FunctionType(ins, outs, varargs);
+      return FunctionType.create(ins, outs, varargs);
     }
 
     @Override
@@ -2119,15 +2386,24 @@ public class Types {
   }
 
   public static class SubType extends Type {
+    private static final long serialVersionUID = 1L;
     private final Type baseType;
     private final String name;
 
-    public SubType(Type baseType, String name) {
+    private SubType(Type baseType, String name) {
       super();
       this.baseType = baseType;
       this.name = name;
     }
 
+    public static SubType create(Type baseType, String name) {
+      return TypeTable.intern(new SubType(baseType, name), baseType, name);
+    }
+
+    private Object readResolve() {
+      return create(baseType, name);
+    }
+
     @Override
     public StructureType structureType() {
       return baseType.structureType();
@@ -2158,12 +2434,12 @@ public class Types {
 
     @Override
     public Type bindTypeVars(Map<String, Type> vals) {
-      return new SubType(baseType.bindTypeVars(vals), name);
+      return SubType.create(baseType.bindTypeVars(vals), name);
     }
 
     @Override
     public Type bindAllTypeVars(Type type) {
-      return new SubType(baseType.bindAllTypeVars(type), name);
+      return SubType.create(baseType.bindAllTypeVars(type), name);
     }
 
     @Override
@@ -2212,6 +2488,9 @@ public class Types {
 
     @Override
     public boolean equals(Object o) {
+      if (this == o) {
+        return true;
+      }
       if (!(o instanceof SubType)) {
         return false;
       }
@@ -2374,7 +2653,7 @@ public class Types {
     }
 
     if (isRef) {
-      return new RefType(newCont, isMutableRef);
+      return RefType.create(newCont, isMutableRef);
     } else {
       return newCont;
     }
@@ -2706,9 +2985,9 @@ public class Types {
    */
   public static Type retrievedType(Typed t, boolean recursive) {
     if (isScalarFuture(t) || isScalarUpdateable(t))  {
-      return new ScalarValueType(t.type().primType());
+      return ScalarValueType.create(t.type().primType());
     } else if (isFile(t)) {
-      return new FileValueType(t.type().fileKind());
+      return FileValueType.create(t.type().fileKind());
     } else if (isRef(t)) {
       return t.type().baseType().memberType();
     } else if (recursive &&
@@ -2745,12 +3024,12 @@ public class Types {
   public static Type storeResultType(Typed t, boolean mutable) {
     if (isScalarFuture(t) || isScalarUpdateable(t) ||
             isFile(t) || isRef(t) || isContainer(t) || isStruct(t))  {
-      return new RefType(t.type(), mutable);
+      return RefType.create(t.type(), mutable);
     } else if (isScalarValue(t)) {
-      return new ScalarFutureType(t.type().primType());
+      return ScalarFutureType.create(t.type().primType());
     } else if (isFileVal(t)) {
       FileValueType fv = (FileValueType)t.type().getImplType();
-      return new FileFutureType(fv.fileKind());
+      return FileFutureType.create(fv.fileKind());
     } else if (isArrayLocal(t)) {
       ArrayType at = (ArrayType)t.type().getImplType();
       Type storedMemberType = storeResultType(at.memberType(), mutable);
@@ -2822,7 +3101,7 @@ public class Types {
     }
 
     if (differences) {
-      return new StructType(true, "unpacked:" + structType.typeName(),
+      return StructType.create(true, "unpacked:" + structType.typeName(),
                             unpackedFields);
     } else {
       return StructType.localStruct(structType);
@@ -2999,7 +3278,7 @@ public static boolean isTypeVar(Typed type) {
    */
   public static List<Type> typeIntersection(List<Type> types) {
     if(types.size() == 0) {
-      return Collections.<Type>singletonList(new WildcardType());
+      return Collections.<Type>singletonList(WildcardType.create());
     }
     // Shortcircuit common cases
     if (types.size() == 1 ||
@@ -3042,7 +3321,7 @@ public static boolean isTypeVar(Typed type) {
 
     if (intersection == null) {
       assert(sawWildcard);
-      return Collections.<Type>singletonList(new WildcardType());
+      return Collections.<Type>singletonList(WildcardType.create());
     }
 
     // Make sure alternatives in original order
@@ -3067,41 +3346,41 @@ public static boolean isTypeVar(Typed type) {
     return t;
   }
 
-  public static final Type F_INT = new ScalarFutureType(PrimType.INT);
-  public static final Type V_INT = new ScalarValueType(PrimType.INT);
+  public static final Type F_INT = ScalarFutureType.create(PrimType.INT);
+  public static final Type V_INT = ScalarValueType.create(PrimType.INT);
 
-  public static final Type F_STRING = new ScalarFutureType(PrimType.STRING);
-  public static final Type V_STRING = new ScalarValueType(PrimType.STRING);
+  public static final Type F_STRING = ScalarFutureType.create(PrimType.STRING);
+  public static final Type V_STRING = ScalarValueType.create(PrimType.STRING);
 
-  public static final Type F_FLOAT = new ScalarFutureType(PrimType.FLOAT);
-  public static final Type V_FLOAT = new ScalarValueType(PrimType.FLOAT);
-  public static final Type UP_FLOAT = new ScalarUpdateableType(PrimType.FLOAT);
+  public static final Type F_FLOAT = ScalarFutureType.create(PrimType.FLOAT);
+  public static final Type V_FLOAT = ScalarValueType.create(PrimType.FLOAT);
+  public static final Type UP_FLOAT = ScalarUpdateableType.create(PrimType.FLOAT);
 
-  public static final Type F_BOOL = new ScalarFutureType(PrimType.BOOL);
-  public static final Type V_BOOL = new ScalarValueType(PrimType.BOOL);
+  public static final Type F_BOOL = ScalarFutureType.create(PrimType.BOOL);
+  public static final Type V_BOOL = ScalarValueType.create(PrimType.BOOL);
 
-  public static final Type F_BLOB = new ScalarFutureType(PrimType.BLOB);
-  public static final Type V_BLOB = new ScalarValueType(PrimType.BLOB);
+  public static final Type F_BLOB = ScalarFutureType.create(PrimType.BLOB);
+  public static final Type V_BLOB = ScalarValueType.create(PrimType.BLOB);
 
-  public static final Type F_FILE = new FileFutureType(FileKind.LOCAL_FS);
-  public static final Type V_FILE = new FileValueType(FileKind.LOCAL_FS);
+  public static final Type F_FILE = FileFutureType.create(FileKind.LOCAL_FS);
+  public static final Type V_FILE = FileValueType.create(FileKind.LOCAL_FS);
 
-  public static final Type F_URL = new FileFutureType(FileKind.URL);
-  public static final Type V_URL = new FileValueType(FileKind.URL);
+  public static final Type F_URL = FileFutureType.create(FileKind.URL);
+  public static final Type V_URL = FileValueType.create(FileKind.URL);
 
-  public static final Type V_VOID = new ScalarValueType(PrimType.VOID);
-  public static final Type F_VOID = new ScalarFutureType(PrimType.VOID);
+  public static final Type V_VOID = ScalarValueType.create(PrimType.VOID);
+  public static final Type F_VOID = ScalarFutureType.create(PrimType.VOID);
 
   /**
    * Represents location of execution
    */
   public static final Type F_LOC_STRICTNESS =
-                        new SubType(F_STRING, "LocationStrictness");
+                        SubType.create(F_STRING, "LocationStrictness");
   public static final Type V_LOC_STRICTNESS =
                         V_STRING; // Internally a string
 
   public static final Type F_LOC_ACCURACY =
-                        new SubType(F_STRING, "LocationAccuracy");
+                        SubType.create(F_STRING, "LocationAccuracy");
   public static final Type V_LOC_ACCURACY =
                         V_STRING; // Internally a string
 
@@ -3150,7 +3429,7 @@ public static boolean isTypeVar(Typed type) {
     fields.add(new StructField(F_LOC_STRICTNESS, "strictness"));
     fields.add(new StructField(F_LOC_ACCURACY, "accuracy"));
 
-    return new StructType(local, "location", fields);
+    return StructType.create(local, "location", fields);
   }
 
 }
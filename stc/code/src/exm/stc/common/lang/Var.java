@@ -16,6 +16,7 @@
 
 package exm.stc.common.lang;
 
+import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
@@ -38,7 +39,9 @@ import exm.stc.common.util.TernaryLogic.Ternary;
  * safely shared between multiple data structures
  *
  */
-public class Var implements Comparable<Var>, Typed {
+public class Var implements Comparable<Var>, Typed, Serializable {
+  private static final long serialVersionUID = 1L;
+
   private final Type type;
   private final String name;
   private final Alloc storage;
@@ -561,7 +564,9 @@ public class Var implements Comparable<Var>, Typed {
    * variables
    * TODO: can we capture when the optimizer replaces one var with another?
    */
-  public static class VarProvenance {
+  public static class VarProvenance implements Serializable {
+    private static final long serialVersionUID = 1L;
+
     /**
      * The type of provenance
      */
@@ -575,8 +580,10 @@ public class Var implements Comparable<Var>, Typed {
     /**
      * Any predecessor vars (interpretation depends on type)
      */
+    @SuppressWarnings("serial")
     public final List<Var> predecessors;
 
+    @SuppressWarnings("serial")
     public final List<String> additional;
 
     private VarProvenance(VarProvType type, SourceLoc sourceLoc,
@@ -707,7 +714,9 @@ public class Var implements Comparable<Var>, Typed {
   /**
    * Location in a source file.
    */
-  public static class SourceLoc {
+  public static class SourceLoc implements Serializable {
+    private static final long serialVersionUID = 1L;
+
     public SourceLoc(String file, String moduleName,
                       String func, int line, int column) {
       this.file = file;
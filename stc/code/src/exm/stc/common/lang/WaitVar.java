@@ -1,5 +1,6 @@
 package exm.stc.common.lang;
 
+import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
@@ -13,7 +14,9 @@ import exm.stc.common.exceptions.STCRuntimeError;
  * Represent a variable being waited for.
  * TODO: add recursive?
  */
-public class WaitVar implements Comparable<WaitVar> {
+public class WaitVar implements Comparable<WaitVar>, Serializable {
+  private static final long serialVersionUID = 1L;
+
   public final Var var;
   public final boolean explicit;
   public WaitVar(Var var, boolean explicit) {
@@ -41,7 +41,10 @@ public class Misc {
      @return Current time formatted as human-readable String
    */
   public static String timestamp() {
-    return df.format(new Date());
+    // DateFormat is not thread-safe
+    synchronized (df) {
+      return df.format(new Date());
+    }
   }
 
   public static String stackTrace(Throwable e) {
@@ -0,0 +1,434 @@
+/*
+ * Copyright 2013 University of Chicago and Argonne National Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package exm.stc.common.util;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * Immutable hash map implemented as a hash array mapped trie.  Updates
+ * return a new map that shares all unmodified nodes with the old map,
+ * so keeping old versions around is cheap.  Lookups and updates take
+ * O(log32 n) steps.
+ *
+ * Null keys and values are supported.
+ */
+public final class PersistentHashMap<K, V>
+                        implements Iterable<Map.Entry<K, V>> {
+  private static final int BITS = 5;
+  private static final int MASK = (1 << BITS) - 1;
+
+  @SuppressWarnings("rawtypes")
+  private static final PersistentHashMap EMPTY =
+                                new PersistentHashMap(null, 0);
+
+  /** Root of trie, null if empty */
+  private final Node root;
+  private final int size;
+
+  private PersistentHashMap(Node root, int size) {
+    this.root = root;
+    this.size = size;
+  }
+
+  @SuppressWarnings("unchecked")
+  public static <K, V> PersistentHashMap<K, V> empty() {
+    return EMPTY;
+  }
+
+  public int size() {
+    return size;
+  }
+
+  public boolean isEmpty() {
+    return size == 0;
+  }
+
+  public boolean containsKey(Object key) {
+    return find(key) != null;
+  }
+
+  public V get(Object key) {
+    Leaf<K, V> leaf = find(key);
+    return leaf == null ? null : leaf.value;
+  }
+
+  /**
+   * @return map with key bound to value
+   */
+  public PersistentHashMap<K, V> plus(K key, V value) {
+    Leaf<K, V> old = find(key);
+    if (old != null && old.value == value) {
+      return this;
+    }
+
+    int hash = hash(key);
+    Leaf<K, V> leaf = new Leaf<K, V>(hash, key, value);
+    Node newRoot = root == null ? new BitmapNode(bit(hash, 0),
+                                                 new Object[] {leaf})
+                                : root.put(leaf, 0);
+    return new PersistentHashMap<K, V>(newRoot,
+                                       old == null ? size + 1 : size);
+  }
+
+  /**
+   * @return map without key
+   */
+  public PersistentHashMap<K, V> minus(Object key) {
+    if (find(key) == null) {
+      return this;
+    }
+    return new PersistentHashMap<K, V>(root.remove(hash(key), key, 0),
+                                       size - 1);
+  }
+
+  @Override
+  public Iterator<Map.Entry<K, V>> iterator() {
+    return new EntryIt<K, V>(root);
+  }
+
+  @SuppressWarnings("unchecked")
+  private Leaf<K, V> find(Object key) {
+    if (root == null) {
+      return null;
+    }
+    return (Leaf<K, V>)root.find(hash(key), key, 0);
+  }
+
+  private static int hash(Object key) {
+    int h = key == null ? 0 : key.hashCode();
+    return h ^ (h >>> 16);
+  }
+
+  private static int bit(int hash, int shift) {
+    return 1 << ((hash >>> shift) & MASK);
+  }
+
+  private static boolean keyEquals(Object a, Object b) {
+    return a == b || (a != null && a.equals(b));
+  }
+
+  /**
+   * Make node holding two slots with different hashes or collision node
+   * @param a existing leaf or node
+   * @param hashA hash of all keys under a
+   * @param b new leaf
+   */
+  private static Node pair(Object a, int hashA, Leaf<?, ?> b, int shift) {
+    if (hashA == b.hash) {
+      if (a instanceof Leaf) {
+        return new CollisionNode(hashA, new Object[] {a, b});
+      }
+      return ((Node)a).put(b, shift);
+    }
+    int bitA = bit(hashA, shift);
+    int bitB = bit(b.hash, shift);
+    if (bitA == bitB) {
+      return new BitmapNode(bitA,
+                    new Object[] {pair(a, hashA, b, shift + BITS)});
+    } else if (Integer.compareUnsigned(bitA, bitB) < 0) {
+      return new BitmapNode(bitA | bitB, new Object[] {a, b});
+    } else {
+      return new BitmapNode(bitA | bitB, new Object[] {b, a});
+    }
+  }
+
+  private static Object[] replace(Object[] array, int i, Object val) {
+    Object[] result = array.clone();
+    result[i] = val;
+    return result;
+  }
+
+  private static Object[] insert(Object[] array, int i, Object val) {
+    Object[] result = new Object[array.length + 1];
+    System.arraycopy(array, 0, result, 0, i);
+    result[i] = val;
+    System.arraycopy(array, i, result, i + 1, array.length - i);
+    return result;
+  }
+
+  private static Object[] delete(Object[] array, int i) {
+    Object[] result = new Object[array.length - 1];
+    System.arraycopy(array, 0, result, 0, i);
+    System.arraycopy(array, i + 1, result, i, array.length - i - 1);
+    return result;
+  }
+
+  private static final class Leaf<K, V> implements Map.Entry<K, V> {
+    final int hash;
+    final K key;
+    final V value;
+
+    Leaf(int hash, K key, V value) {
+      this.hash = hash;
+      this.key = key;
+      this.value = value;
+    }
+
+    @Override
+    public K getKey() {
+      return key;
+    }
+
+    @Override
+    public V getValue() {
+      return value;
+    }
+
+    @Override
+    public V setValue(V value) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public int hashCode() {
+      return (key == null ? 0 : key.hashCode()) ^
+             (value == null ? 0 : value.hashCode());
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (!(obj instanceof Map.Entry)) {
+        return false;
+      }
+      Map.Entry<?, ?> other = (Map.Entry<?, ?>)obj;
+      return keyEquals(key, other.getKey()) &&
+             keyEquals(value, other.getValue());
+    }
+
+    @Override
+    public String toString() {
+      return key + "=" + value;
+    }
+  }
+
+  /**
+   * Trie node.  Slots of array are either leaves or child nodes.
+   */
+  private static abstract class Node {
+    final Object array[];
+
+    Node(Object array[]) {
+      this.array = array;
+    }
+
+    abstract Leaf<?, ?> find(int hash, Object key, int shift);
+
+    /**
+     * @return updated node
+     */
+    abstract Node put(Leaf<?, ?> leaf, int shift);
+
+    /**
+     * Remove key, which must be present
+     * @return updated node, or null if empty
+     */
+    abstract Node remove(int hash, Object key, int shift);
+  }
+
+  private static final class BitmapNode extends Node {
+    private final int bitmap;
+
+    BitmapNode(int bitmap, Object array[]) {
+      super(array);
+      this.bitmap = bitmap;
+    }
+
+    private int index(int bit) {
+      return Integer.bitCount(bitmap & (bit - 1));
+    }
+
+    @Override
+    Leaf<?, ?> find(int hash, Object key, int shift) {
+      int bit = bit(hash, shift);
+      if ((bitmap & bit) == 0) {
+        return null;
+      }
+      Object slot = array[index(bit)];
+      if (slot instanceof Leaf) {
+        Leaf<?, ?> leaf = (Leaf<?, ?>)slot;
+        return leaf.hash == hash && keyEquals(leaf.key, key) ? leaf : null;
+      }
+      return ((Node)slot).find(hash, key, shift + BITS);
+    }
+
+    @Override
+    Node put(Leaf<?, ?> leaf, int shift) {
+      int bit = bit(leaf.hash, shift);
+      int i = index(bit);
+      if ((bitmap & bit) == 0) {
+        return new BitmapNode(bitmap | bit, insert(array, i, leaf));
+      }
+
+      Object slot = array[i];
+      Object newSlot;
+      if (slot instanceof Leaf) {
+        Leaf<?, ?> old = (Leaf<?, ?>)slot;
+        if (old.hash == leaf.hash && keyEquals(old.key, leaf.key)) {
+          newSlot = leaf;
+        } else {
+          newSlot = pair(old, old.hash, leaf, shift + BITS);
+        }
+      } else {
+        newSlot = ((Node)slot).put(leaf, shift + BITS);
+      }
+      return new BitmapNode(bitmap, replace(array, i, newSlot));
+    }
+
+    @Override
+    Node remove(int hash, Object key, int shift) {
+      int bit = bit(hash, shift);
+      int i = index(bit);
+      Object slot = array[i];
+      Object newSlot;
+      if (slot instanceof Leaf) {
+        newSlot = null;
+      } else {
+        Node newChild = ((Node)slot).remove(hash, key, shift + BITS);
+        if (newChild != null && newChild.array.length == 1 &&
+            newChild.array[0] instanceof Leaf) {
+          // Pull single leaf up into this node
+          newSlot = newChild.array[0];
+        } else {
+          newSlot = newChild;
+        }
+      }
+
+      if (newSlot != null) {
+        return new BitmapNode(bitmap, replace(array, i, newSlot));
+      } else if (array.length == 1) {
+        return null;
+      } else {
+        return new BitmapNode(bitmap & ~bit, delete(array, i));
+      }
+    }
+  }
+
+  /**
+   * Node for leaves with identical hashes
+   */
+  private static final class CollisionNode extends Node {
+    private final int hash;
+
+    CollisionNode(int hash, Object array[]) {
+      super(array);
+      this.hash = hash;
+    }
+
+    private int index(Object key) {
+      for (int i = 0; i < array.length; i++) {
+        if (keyEquals(((Leaf<?, ?>)array[i]).key, key)) {
+          return i;
+        }
+      }
+      return -1;
+    }
+
+    @Override
+    Leaf<?, ?> find(int hash, Object key, int shift) {
+      if (hash != this.hash) {
+        return null;
+      }
+      int i = index(key);
+      return i < 0 ? null : (Leaf<?, ?>)array[i];
+    }
+
+    @Override
+    Node put(Leaf<?, ?> leaf, int shift) {
+      if (leaf.hash != hash) {
+        return pair(this, hash, leaf, shift);
+      }
+      int i = index(leaf.key);
+      if (i < 0) {
+        return new CollisionNode(hash, insert(array, array.length, leaf));
+      } else {
+        return new CollisionNode(hash, replace(array, i, leaf));
+      }
+    }
+
+    @Override
+    Node remove(int hash, Object key, int shift) {
+      if (array.length == 1) {
+        return null;
+      }
+      return new CollisionNode(hash, delete(array, index(key)));
+    }
+  }
+
+  /**
+   * Depth-first iterator over leaves
+   */
+  private static final class EntryIt<K, V>
+                        implements Iterator<Map.Entry<K, V>> {
+    /** Arrays of nodes on path from root */
+    private final Object stack[][] = new Object[32 / BITS + 2][];
+    /** Next index to visit in each array on path */
+    private final int pos[] = new int[stack.length];
+    private int depth;
+    private Leaf<K, V> next;
+
+    EntryIt(Node root) {
+      if (root == null) {
+        depth = -1;
+      } else {
+        stack[0] = root.array;
+        depth = 0;
+      }
+      advance();
+    }
+
+    @SuppressWarnings("unchecked")
+    private void advance() {
+      next = null;
+      while (depth >= 0) {
+        Object array[] = stack[depth];
+        if (pos[depth] >= array.length) {
+          depth--;
+          continue;
+        }
+        Object slot = array[pos[depth]++];
+        if (slot instanceof Leaf) {
+          next = (Leaf<K, V>)slot;
+          return;
+        }
+        depth++;
+        stack[depth] = ((Node)slot).array;
+        pos[depth] = 0;
+      }
+    }
+
+    @Override
+    public boolean hasNext() {
+      return next != null;
+    }
+
+    @Override
+    public Map.Entry<K, V> next() {
+      if (next == null) {
+        throw new NoSuchElementException();
+      }
+      Leaf<K, V> result = next;
+      advance();
+      return result;
+    }
+
+    @Override
+    public void remove() {
+      throw new UnsupportedOperationException();
+    }
+  }
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright 2013 University of Chicago and Argonne National Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package exm.stc.common.util;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Map for tracking information in nested scopes.  A child map starts
+ * with all of the entries of its parent, and modifications to the child
+ * are not visible in the parent.
+ *
+ * The contents are held in a persistent map, so creating a child is
+ * constant time, and lookups don't depend on nesting depth.  Unlike
+ * a chain of maps, the child gets a snapshot of the parent: entries added
+ * to the parent after the child was created are not visible in the child.
+ */
+public class ScopedMap<K, V> extends AbstractMap<K, V> {
+  private PersistentHashMap<K, V> map;
+
+  public ScopedMap() {
+    this(PersistentHashMap.<K, V>empty());
+  }
+
+  private ScopedMap(PersistentHashMap<K, V> map) {
+    this.map = map;
+  }
+
+  /**
+   * @return new map starting with current contents of this map
+   */
+  public ScopedMap<K, V> makeChild() {
+    return new ScopedMap<K, V>(map);
+  }
+
+  @Override
+  public boolean containsKey(Object key) {
+    return map.containsKey(key);
+  }
+
+  @Override
+  public V get(Object key) {
+    return map.get(key);
+  }
+
+  @Override
+  public V put(K key, V value) {
+    V prev = map.get(key);
+    map = map.plus(key, value);
+    return prev;
+  }
+
+  @Override
+  public V remove(Object key) {
+    V prev = map.get(key);
+    map = map.minus(key);
+    return prev;
+  }
+
+  @Override
+  public void clear() {
+    map = PersistentHashMap.empty();
+  }
+
+  @Override
+  public int size() {
+    return map.size();
+  }
+
+  @Override
+  public boolean isEmpty() {
+    return map.isEmpty();
+  }
+
+  @Override
+  public Set<Map.Entry<K, V>> entrySet() {
+    return new EntrySet();
+  }
+
+  private class EntrySet extends AbstractSet<Map.Entry<K, V>> {
+    @Override
+    public Iterator<Map.Entry<K, V>> iterator() {
+      // Iterate over snapshot, so removal doesn't disturb iteration
+      final Iterator<Map.Entry<K, V>> it = map.iterator();
+      return new Iterator<Map.Entry<K, V>>() {
+        private Map.Entry<K, V> last = null;
+
+        @Override
+        public boolean hasNext() {
+          return it.hasNext();
+        }
+
+        @Override
+        public Map.Entry<K, V> next() {
+          last = it.next();
+          return last;
+        }
+
+        @Override
+        public void remove() {
+          if (last == null) {
+            throw new IllegalStateException();
+          }
+          ScopedMap.this.remove(last.getKey());
+          last = null;
+        }
+      };
+    }
+
+    @Override
+    public int size() {
+      return map.size();
+    }
+  }
+}
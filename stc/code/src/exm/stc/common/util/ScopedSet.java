@@ -0,0 +1,109 @@
+/*
+ * Copyright 2013 University of Chicago and Argonne National Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package exm.stc.common.util;
+
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Set for tracking information in nested scopes, with the same
+ * semantics as ScopedMap: a child starts with a snapshot of the parent's
+ * members and additions to the child are not visible in the parent.
+ */
+public class ScopedSet<T> extends AbstractSet<T> {
+  private PersistentHashMap<T, Boolean> set;
+
+  public ScopedSet() {
+    this(PersistentHashMap.<T, Boolean>empty());
+  }
+
+  private ScopedSet(PersistentHashMap<T, Boolean> set) {
+    this.set = set;
+  }
+
+  /**
+   * @return new set starting with current contents of this set
+   */
+  public ScopedSet<T> makeChild() {
+    return new ScopedSet<T>(set);
+  }
+
+  @Override
+  public boolean contains(Object o) {
+    return set.containsKey(o);
+  }
+
+  @Override
+  public boolean add(T e) {
+    PersistentHashMap<T, Boolean> prev = set;
+    set = set.plus(e, Boolean.TRUE);
+    return set != prev;
+  }
+
+  @Override
+  public boolean remove(Object o) {
+    PersistentHashMap<T, Boolean> prev = set;
+    set = set.minus(o);
+    return set != prev;
+  }
+
+  @Override
+  public void clear() {
+    set = PersistentHashMap.empty();
+  }
+
+  @Override
+  public int size() {
+    return set.size();
+  }
+
+  @Override
+  public boolean isEmpty() {
+    return set.isEmpty();
+  }
+
+  @Override
+  public Iterator<T> iterator() {
+    // Iterate over snapshot, so removal doesn't disturb iteration
+    final Iterator<Map.Entry<T, Boolean>> it = set.iterator();
+    return new Iterator<T>() {
+      private T last;
+      private boolean canRemove = false;
+
+      @Override
+      public boolean hasNext() {
+        return it.hasNext();
+      }
+
+      @Override
+      public T next() {
+        last = it.next().getKey();
+        canRemove = true;
+        return last;
+      }
+
+      @Override
+      public void remove() {
+        if (!canRemove) {
+          throw new IllegalStateException();
+        }
+        ScopedSet.this.remove(last);
+        canRemove = false;
+      }
+    };
+  }
+}
@@ -3,9 +3,11 @@ package exm.stc.common.util;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.Map.Entry;
 import java.util.Set;
 
+import com.google.common.collect.ArrayListMultimap;
 import com.google.common.collect.HashMultimap;
 import com.google.common.collect.SetMultimap;
 
@@ -35,7 +37,8 @@ public class ScopedUnionFind<T> {
    * Internal mapping from member to canonical.
    *
    * We keep this up-to-date so every entry directly links an entry to its
-   * canonical.
+   * canonical.  Iterates in insertion order so that users of keys() see
+   * the same order every time for the same code.
    */
   private final TwoWayMap<T, T> canonical;
 
@@ -49,7 +52,8 @@ public class ScopedUnionFind<T> {
 
   private ScopedUnionFind(ScopedUnionFind<T> parent) {
     this.parent = parent;
-    this.canonical = TwoWayMap.create();
+    this.canonical = new TwoWayMap<T, T>(new LinkedHashMap<T, T>(),
+                                         ArrayListMultimap.<T, T>create());
     this.subscribed = HashMultimap.create();
   }
 
@@ -1,5 +1,6 @@
 package exm.stc.common.util;
 
+import java.io.Serializable;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.Map;
@@ -13,9 +14,13 @@ import com.google.common.collect.Multimaps;
  * Map that also stores the inverse mapping to allow for efficient lookup.
  * @author tim
  */
-public class TwoWayMap<K, V> extends ForwardingMap<K, V> implements Map<K, V> {
+public class TwoWayMap<K, V> extends ForwardingMap<K, V>
+                           implements Map<K, V>, Serializable {
+  private static final long serialVersionUID = 1L;
 
+  @SuppressWarnings("serial")
   private Map<K, V> map;
+  @SuppressWarnings("serial")
   private Multimap<V, K> mapInv;
 
   public TwoWayMap() {
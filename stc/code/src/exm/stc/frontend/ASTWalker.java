@@ -15,22 +15,32 @@
  */
 package exm.stc.frontend;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Map.Entry;
 import java.util.Set;
+import java.util.TreeMap;
 
+import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.FilenameUtils;
 import org.apache.commons.lang3.StringUtils;
 
+import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.ListMultimap;
+
 import exm.stc.ast.FilePosition.LineMapping;
 import exm.stc.ast.SwiftAST;
 import exm.stc.ast.antlr.ExMParser;
 import exm.stc.common.Logging;
+import exm.stc.common.Settings;
 import exm.stc.common.exceptions.DoubleDefineException;
 import exm.stc.common.exceptions.InvalidAnnotationException;
 import exm.stc.common.exceptions.InvalidConstructException;
@@ -108,6 +118,7 @@ import exm.stc.frontend.tree.VariableDeclaration;
 import exm.stc.frontend.tree.VariableDeclaration.VariableDescriptor;
 import exm.stc.frontend.tree.Wait;
 import exm.stc.frontend.typecheck.TypeChecker;
+import exm.stc.ic.ICPackage;
 import exm.stc.ic.STCMiddleEnd;
 import exm.stc.tclbackend.TclFunRef;
 import exm.stc.tclbackend.TclOpTemplate;
@@ -130,6 +141,10 @@ public class ASTWalker {
 
   /** Track which modules are loaded and compiled */
   private final LoadedModules modules;
+
+  /** Functions compiled from source, by module */
+  private final ListMultimap<String, FnID> moduleFunctions =
+                                        ArrayListMultimap.create();
   private static enum FrontendPass {
     DEFINITIONS, // Process top level defs
     COMPILE_TOPLEVEL, // Compile top-levelcode
@@ -154,10 +169,13 @@ public class ASTWalker {
    * @param originalMainFilePath original main file, in case a temporary file
    *                             is being directly parsed
    * @param preprocessed true if module was preprocessed
+   * @param lineMapping line mapping from preprocessor, or null if it
+   *                    must be extracted from preprocessor output
    * @throws UserException
    */
   public void walk(String mainFilePath, String originalMainFilePath,
-                 boolean preprocessed) throws UserException {
+                 boolean preprocessed, LineMapping lineMapping)
+                     throws UserException {
 
     GlobalContext context = new GlobalContext(mainFilePath,
                       Logging.getSTCLogger(), foreignFuncs);
@@ -165,9 +183,11 @@ public class ASTWalker {
     // Assume root module for now
     String mainModuleName =  FilenameUtils.getBaseName(originalMainFilePath);
     LocatedModule mainModule = new LocatedModule(mainFilePath, mainModuleName,
-                                                 preprocessed);
+                                                 preprocessed, lineMapping);
     LocatedModule builtins = LocatedModule.fromPath(context,
                           Arrays.asList("builtins"), false);
+    modules.prefetch(builtins);
+    modules.prefetch(mainModule);
 
     /*
      * Three passes:
@@ -179,7 +199,12 @@ public class ASTWalker {
 
     compileTopLevel(context, mainModule, builtins);
 
-    compileFunctions(context);
+    compileFunctions(context, mainModule);
+
+    String packageOutput = Settings.get(Settings.IC_PACKAGE_OUTPUT);
+    if (packageOutput != null && packageOutput.length() > 0) {
+      buildPackage(context, mainModule, originalMainFilePath, packageOutput);
+    }
   }
 
   private void loadDefinitions(GlobalContext context,
@@ -232,12 +257,134 @@ public class ASTWalker {
     backend.endFunction();
   }
 
-  private void compileFunctions(GlobalContext context) throws UserException {
+  private void compileFunctions(GlobalContext context,
+        LocatedModule mainModule) throws UserException {
     for (LocatedModule loadedModule: modules.loadedModules()) {
+      if (!loadedModule.canonicalName.equals(mainModule.canonicalName) &&
+          linkPackage(context, loadedModule)) {
+        // Use precompiled functions instead
+        continue;
+      }
       loadModule(context, null, FrontendPass.COMPILE_FUNCTIONS, loadedModule);
     }
   }
 
+  /**
+   * Link precompiled functions for module if an up-to-date package
+   * compatible with this program can be found.
+   * @return true if package was linked
+   */
+  private boolean linkPackage(GlobalContext context, LocatedModule module)
+                                                   throws UserException {
+    ICPackage pkg = ICPackage.find(Logging.getSTCLogger(),
+        module.canonicalName, module.filePath, foreignFuncs,
+        workContexts(context));
+    if (pkg == null) {
+      return false;
+    }
+
+    for (Entry<String, String> dep: pkg.dependencies().entrySet()) {
+      LocatedModule depModule = findLoadedModule(dep.getKey());
+      if (depModule == null || !dep.getValue().equals(
+            ICPackage.sourceHash(readSource(context, depModule.filePath)))) {
+        LogHelper.debug(context, "Package for " + module.canonicalName +
+            " was compiled against different module " + dep.getKey());
+        return false;
+      }
+    }
+
+    for (Entry<FnID, FunctionType> export: pkg.exports().entrySet()) {
+      FunctionType type = findFunctionType(context, export.getKey());
+      if (type == null || !type.equals(export.getValue())) {
+        LogHelper.debug(context, "Package for " + module.canonicalName +
+            " has incompatible function " + export.getKey());
+        return false;
+      }
+    }
+
+    for (FnID ref: pkg.externalRefs()) {
+      if (!foreignFuncs.isForeignFunction(ref) &&
+          findFunctionType(context, ref) == null) {
+        LogHelper.debug(context, "Package for " + module.canonicalName +
+            " refers to undefined function " + ref);
+        return false;
+      }
+    }
+
+    LogHelper.debug(context, "Using precompiled functions for module " +
+                    module.canonicalName);
+    backend.linkPackage(pkg);
+    return true;
+  }
+
+  /**
+   * Build a precompiled package for the main module
+   */
+  private void buildPackage(GlobalContext context, LocatedModule mainModule,
+      String originalMainFilePath, String output) throws UserException {
+    Map<FnID, FunctionType> exports = new LinkedHashMap<FnID, FunctionType>();
+    for (FnID id: moduleFunctions.get(mainModule.canonicalName)) {
+      exports.put(id, findFunctionType(context, id));
+    }
+
+    List<FnID> externalFns = new ArrayList<FnID>();
+    Map<String, String> dependencies = new TreeMap<String, String>();
+    for (LocatedModule module: modules.loadedModules()) {
+      if (!module.canonicalName.equals(mainModule.canonicalName)) {
+        externalFns.addAll(moduleFunctions.get(module.canonicalName));
+        dependencies.put(module.canonicalName,
+            ICPackage.sourceHash(readSource(context, module.filePath)));
+      }
+    }
+
+    String key = ICPackage.key(readSource(context, originalMainFilePath));
+    backend.buildPackage(new File(output), mainModule.canonicalName, key,
+                         dependencies, exports, externalFns);
+  }
+
+  private LocatedModule findLoadedModule(String canonicalName) {
+    for (LocatedModule module: modules.loadedModules()) {
+      if (module.canonicalName.equals(canonicalName)) {
+        return module;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * @return type of function with given ID, or null if not defined
+   */
+  private static FunctionType findFunctionType(GlobalContext context,
+                                               FnID id) {
+    for (FnOverload overload: context.lookupFunction(id.originalName())) {
+      if (overload.id.equals(id)) {
+        return overload.type;
+      }
+    }
+    return null;
+  }
+
+  private static List<WorkContext> workContexts(GlobalContext context)
+                                                  throws UserException {
+    List<WorkContext> result = new ArrayList<WorkContext>();
+    for (String name: context.execTargetNames()) {
+      WorkContext workContext = context.lookupExecContext(name).workContext();
+      if (workContext != null) {
+        result.add(workContext);
+      }
+    }
+    return result;
+  }
+
+  private static byte[] readSource(Context context, String path)
+                                       throws ModuleLoadException {
+    try {
+      return FileUtils.readFileToByteArray(new File(path));
+    } catch (IOException e) {
+      throw new ModuleLoadException(context, path, e);
+    }
+  }
+
   /**
    * Walk the statements in a file.
    * @param context
@@ -1064,7 +1211,7 @@ public class ASTWalker {
             VarRepr.backendArg(startVal), VarRepr.backendArg(endVal),
             VarRepr.backendArg(stepVal),
             loop.getDesiredUnroll(), loop.getSplitDegree(),
-            loop.getLeafDegree());
+            loop.getLeafDegree(), loop.isAutoDegree());
     // Need to spawn off task per iteration
     if (!loop.isSyncLoop()) {
       backend.startWaitStatement(fc.getFunctionName() + "range-iter" + loopNum,
@@ -1161,7 +1308,8 @@ public class ASTWalker {
     backend.startForeachLoop(fc.getFunctionName() + "-foreach" + loopNum,
             VarRepr.backendVar(realArray), backendIterVar,
             loopCountVal == null ? null : VarRepr.backendVar(loopCountVal),
-            loop.getSplitDegree(), loop.getLeafDegree(), true);
+            loop.getSplitDegree(), loop.getLeafDegree(),
+            loop.isAutoDegree(), true);
 
 
     if (memberIsVal) {
@@ -1991,6 +2139,7 @@ public class ASTWalker {
     ExecTarget mode = context.hasFunctionProp(id, FnProp.SYNC) ?
                   ExecTarget.syncControl() : ExecTarget.dispatchedControl();
     backend.startFunction(id, backendOList, backendIList, mode);
+    moduleFunctions.put(modules.currentModule().moduleName(), id);
     block(functionContext, block);
     backend.endFunction();
 
@@ -2117,6 +2266,7 @@ public class ASTWalker {
 
     backend.startFunction(id, backendOutArgs, backendInArgs,
                           ExecTarget.syncControl());
+    moduleFunctions.put(modules.currentModule().moduleName(), id);
     ExecContext targetContext = execCx.val == null ? ExecContext.defaultWorker()
                                                    : execCx.val;
 
@@ -2434,7 +2584,7 @@ public class ASTWalker {
       // Unpack to flat representation
       NestedContainerInfo ci = new NestedContainerInfo(in.type());
       Type memberValType = Types.retrievedType(ci.baseType);
-      Type localInType =  new ArrayType(true, Types.F_INT, memberValType);
+      Type localInType =  ArrayType.create(true, Types.F_INT, memberValType);
       localInput = varCreator.createValueVar(context, localInType, in, true);
       backend.unpackArrayToFlat(VarRepr.backendVar(localInput),
                                 VarRepr.backendArg(in));
@@ -2668,7 +2818,7 @@ public class ASTWalker {
     if (aliasOnly) {
       newType = baseType;
     } else {
-      newType = new SubType(baseType, typeName);
+      newType = SubType.create(baseType, typeName);
     }
 
     context.defineType(typeName, newType);
@@ -1,6 +1,7 @@
 package exm.stc.frontend;
 
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
@@ -9,6 +10,10 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 
 import exm.stc.ast.FilePosition.LineMapping;
 import exm.stc.ast.SwiftAST;
@@ -16,12 +21,33 @@ import exm.stc.ast.antlr.ExMParser;
 import exm.stc.common.Settings;
 import exm.stc.common.exceptions.InvalidSyntaxException;
 import exm.stc.common.exceptions.ModuleLoadException;
+import exm.stc.common.exceptions.STCRuntimeError;
+import exm.stc.common.exceptions.UserException;
 import exm.stc.common.util.Pair;
 import exm.stc.common.util.StackLite;
 import exm.stc.frontend.tree.Literals;
 
+/**
+ * Tracks modules that are loaded during compilation.
+ *
+ * If {@link Settings#PARSE_THREADS} is greater than one, modules are
+ * prefetched: once a module is loaded, the modules it imports are located
+ * and parsed in the background, so that a module with many imports doesn't
+ * need to wait for them to be parsed one after another.  Modules are still
+ * only loaded in import order, so the order in which modules are type
+ * checked and compiled doesn't change.  Prefetching doesn't report syntax
+ * or IO errors: modules that couldn't be prefetched are reparsed when
+ * loaded, so errors are reported in the same order as without prefetching.
+ */
 public class LoadedModules {
 
+  /**
+   * Pools by parallelism.  Pools are shared between compilations, which
+   * may run concurrently with different numbers of threads.
+   */
+  private static final Map<Integer, ForkJoinPool> pools =
+                            new HashMap<Integer, ForkJoinPool>();
+
   /** Stack of input files.  Top of stack is one currently processed */
   private StackLite<ParsedModule> moduleStack = new StackLite<ParsedModule>();
 
@@ -36,6 +62,18 @@ public class LoadedModules {
   private Set<ParsedModule> startedTopLevelCompile =
               new HashSet<ParsedModule>();
 
+  /** Cache of parsed modules, or null if disabled */
+  private final ModuleCache cache = ModuleCache.fromSettings();
+
+  /** Number of threads to prefetch modules with, or 1 if disabled */
+  private final int parseThreads =
+          Math.max(1, Settings.getIntUnchecked(Settings.PARSE_THREADS));
+
+  /** Modules being prefetched, by canonical name */
+  private final Map<String, Pair<LocatedModule, Future<ParsedModule>>>
+    prefetched = new HashMap<String,
+                             Pair<LocatedModule, Future<ParsedModule>>>();
+
   public List<LocatedModule> loadedModules() {
     return Collections.unmodifiableList(loadedModules);
   }
@@ -56,19 +94,149 @@ public class LoadedModules {
       parsed = loadedModuleMap.get(module.canonicalName);
     } else {
       didLoad = true;
-      // Load the file
-      try {
-        parsed = ParsedModule.parse(module.canonicalName, module.filePath,
-                                    module.preprocessed);
-      } catch (IOException e) {
-        throw new ModuleLoadException(context, module.filePath, e);
+      parsed = takePrefetched(module);
+      if (parsed == null) {
+        // Load the file
+        try {
+          if (cache != null) {
+            parsed = cache.parse(module);
+          } else {
+            parsed = ParsedModule.parse(module);
+          }
+        } catch (IOException e) {
+          throw new ModuleLoadException(context, module.filePath, e);
+        }
       }
       loadedModuleMap.put(module.canonicalName, parsed);
       loadedModules.add(module);
+      prefetchImports(context, parsed);
     }
     return Pair.create(parsed, didLoad);
   }
 
+  /**
+   * Start parsing module in the background if prefetching is enabled
+   * and the module isn't already loaded.
+   * @param module
+   */
+  public void prefetch(LocatedModule module) {
+    if (parseThreads <= 1 ||
+        loadedModuleMap.containsKey(module.canonicalName) ||
+        prefetched.containsKey(module.canonicalName)) {
+      return;
+    }
+
+    Future<ParsedModule> result = getPool(parseThreads).submit(
+                  new PrefetchTask(Settings.getScope(), cache, module));
+    prefetched.put(module.canonicalName, Pair.create(module, result));
+  }
+
+  /**
+   * Prefetch all modules imported at top level of module.  Imports that
+   * can't be resolved are skipped: the error will be reported when the
+   * import is compiled.
+   * @param context
+   * @param module
+   */
+  private void prefetchImports(Context context, ParsedModule module) {
+    if (parseThreads <= 1) {
+      return;
+    }
+
+    for (SwiftAST stmt: module.ast.children()) {
+      if (stmt.getType() == ExMParser.IMPORT && stmt.childCount() == 1) {
+        LocatedModule imported;
+        try {
+          imported = LocatedModule.fromModuleNameAST(context, stmt.child(0),
+                                                     false);
+        } catch (UserException e) {
+          continue;
+        }
+        prefetch(imported);
+      }
+    }
+  }
+
+  /**
+   * Wait for prefetched module
+   * @param module
+   * @return the parsed module, or null if it wasn't prefetched or couldn't
+   *        be parsed
+   */
+  private ParsedModule takePrefetched(LocatedModule module) {
+    Pair<LocatedModule, Future<ParsedModule>> entry =
+                              prefetched.remove(module.canonicalName);
+    if (entry == null || !entry.val1.filePath.equals(module.filePath) ||
+        entry.val1.preprocessed != module.preprocessed) {
+      return null;
+    }
+
+    while (true) {
+      try {
+        return entry.val2.get();
+      } catch (InterruptedException e) {
+        // Continue on after spurious interrupt
+      } catch (ExecutionException e) {
+        Throwable cause = e.getCause();
+        if (cause instanceof RuntimeException) {
+          throw (RuntimeException)cause;
+        } else if (cause instanceof Error) {
+          throw (Error)cause;
+        } else {
+          throw new STCRuntimeError("Unexpected exception in parser", cause);
+        }
+      }
+    }
+  }
+
+  private static synchronized ForkJoinPool getPool(int threads) {
+    ForkJoinPool pool = pools.get(threads);
+    if (pool == null) {
+      pool = new ForkJoinPool(threads);
+      pools.put(threads, pool);
+    }
+    return pool;
+  }
+
+  private static class PrefetchTask implements Callable<ParsedModule> {
+    private final Settings.Scope scope;
+    private final ModuleCache cache;
+    private final LocatedModule module;
+
+    public PrefetchTask(Settings.Scope scope, ModuleCache cache,
+                        LocatedModule module) {
+      this.scope = scope;
+      this.cache = cache;
+      this.module = module;
+    }
+
+    /**
+     * @return the parsed module, or null if there were any errors
+     */
+    @Override
+    public ParsedModule call() {
+      // Run in settings scope of compilation
+      Settings.Scope prevScope = Settings.getScope();
+      Settings.setScope(scope);
+      try {
+        if (cache != null) {
+          return cache.parseQuietly(module);
+        } else {
+          FileInputStream input = new FileInputStream(module.filePath);
+          try {
+            return ParsedModule.parseQuietly(module, input);
+          } finally {
+            input.close();
+          }
+        }
+      } catch (IOException e) {
+        return null;
+      } finally {
+        Settings.setScope(prevScope);
+      }
+    }
+  }
+
   public ParsedModule currentModule() {
     return moduleStack.peek();
   }
@@ -139,11 +307,23 @@ public class LoadedModules {
     public final String canonicalName;
     public final boolean preprocessed;
 
+    /**
+     * Line mapping for preprocessed module, or null if it must be
+     * extracted from line markers in the preprocessor output
+     */
+    public final LineMapping lineMapping;
+
     public LocatedModule(String filePath, String canonicalName,
       boolean preprocessed) {
+      this(filePath, canonicalName, preprocessed, null);
+    }
+
+    public LocatedModule(String filePath, String canonicalName,
+      boolean preprocessed, LineMapping lineMapping) {
       this.filePath = filePath;
       this.canonicalName = canonicalName;
       this.preprocessed = preprocessed;
+      this.lineMapping = lineMapping;
     }
 
     /**
@@ -0,0 +1,321 @@
+package exm.stc.frontend;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Map;
+
+import org.antlr.runtime.CommonToken;
+import org.apache.commons.io.FileUtils;
+import org.apache.log4j.Logger;
+
+import exm.stc.ast.FilePosition;
+import exm.stc.ast.FilePosition.LineMapping;
+import exm.stc.ast.SwiftAST;
+import exm.stc.ast.antlr.ExMParser;
+import exm.stc.common.Logging;
+import exm.stc.common.Settings;
+import exm.stc.common.exceptions.STCRuntimeError;
+import exm.stc.common.util.Pair;
+import exm.stc.common.util.StackLite;
+import exm.stc.frontend.LoadedModules.LocatedModule;
+
+/**
+ * On-disk cache of parsed modules, so that modules imported by many
+ * programs don't need to be lexed and parsed by every compile.
+ *
+ * Entries are keyed by canonical module name, a hash of the module
+ * source, preprocessor macros, and the STC version and grammar, so
+ * stale entries are never used.  Each entry holds the AST and line
+ * mapping for the module.  Frontend annotations on the AST, such
+ * as types and variable usage info, are not cached since they
+ * depend on the compilation context.
+ */
+public class ModuleCache {
+
+  private static final int MAGIC = 0x53544341; // "STCA"
+  private static final int FORMAT_VERSION = 1;
+  private static final String SUFFIX = ".ast";
+
+  private final Logger logger = Logging.getSTCLogger();
+  private final File cacheDir;
+
+  public ModuleCache(File cacheDir) {
+    this.cacheDir = cacheDir;
+  }
+
+  /**
+   * @return cache configured in settings, or null if disabled
+   */
+  public static ModuleCache fromSettings() {
+    String dir = Settings.get(Settings.MODULE_CACHE_DIR);
+    if (dir == null || dir.length() == 0) {
+      return null;
+    }
+    return new ModuleCache(new File(dir));
+  }
+
+  /**
+   * Load module from cache if present, otherwise parse it and
+   * add to cache.
+   * @param module
+   * @return
+   * @throws IOException if module source couldn't be read
+   */
+  public ParsedModule parse(LocatedModule module) throws IOException {
+    return parse(module, false);
+  }
+
+  /**
+   * As parse(), but don't report syntax errors
+   * @return the module, or null if there were syntax errors
+   * @throws IOException if module source couldn't be read
+   */
+  public ParsedModule parseQuietly(LocatedModule module) throws IOException {
+    return parse(module, true);
+  }
+
+  private ParsedModule parse(LocatedModule module, boolean quiet)
+                                                throws IOException {
+    String moduleName = module.canonicalName;
+    String path = module.filePath;
+    boolean preprocessed = module.preprocessed;
+    byte[] source = FileUtils.readFileToByteArray(new File(path));
+    File entry = new File(cacheDir, cacheKey(moduleName, path, preprocessed,
+                                             source) + SUFFIX);
+
+    if (entry.isFile()) {
+      try {
+        ParsedModule cached = read(entry, moduleName, path);
+        logger.debug("Loaded module " + moduleName + " from cache " + entry);
+        return cached;
+      } catch (IOException e) {
+        // Fall back to parsing
+        logger.debug("Could not read module cache entry " + entry + ": " +
+                     e.getMessage());
+      }
+    }
+
+    ParsedModule parsed;
+    if (quiet) {
+      parsed = ParsedModule.parseQuietly(module,
+                                         new ByteArrayInputStream(source));
+      if (parsed == null) {
+        return null;
+      }
+    } else {
+      parsed = ParsedModule.parse(module, new ByteArrayInputStream(source));
+    }
+    if (parsed.lexerError) {
+      // Errors were reported but wouldn't be if loaded from cache
+      logger.debug("Not caching module " + moduleName +
+                   " with lexer errors");
+      return parsed;
+    }
+    try {
+      write(entry, parsed);
+      logger.debug("Added module " + moduleName + " to cache " + entry);
+    } catch (IOException e) {
+      // Cache is just an optimization
+      logger.debug("Could not write module cache entry " + entry + ": " +
+                   e.getMessage());
+    }
+    return parsed;
+  }
+
+  private static String cacheKey(String moduleName, String path,
+                  boolean preprocessed, byte[] source) {
+    MessageDigest digest;
+    try {
+      digest = MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new STCRuntimeError("SHA-256 not supported by JVM", e);
+    }
+    updateDigest(digest, Settings.get(Settings.STC_VERSION));
+    updateDigest(digest, Integer.toString(FORMAT_VERSION));
+    updateDigest(digest, Arrays.toString(ExMParser.tokenNames));
+    updateDigest(digest, moduleName);
+    updateDigest(digest, Boolean.toString(preprocessed));
+    if (!preprocessed) {
+      // Line mapping refers to file path
+      updateDigest(digest, path);
+    }
+    for (Pair<String, String> md: Settings.getMetadata()) {
+      if (md.val1.equals("Macro")) {
+        updateDigest(digest, md.val2);
+      }
+    }
+    digest.update(source);
+
+    StringBuilder sb = new StringBuilder();
+    for (byte b: digest.digest()) {
+      sb.append(String.format("%02x", b));
+    }
+    return sb.toString();
+  }
+
+  private static void updateDigest(MessageDigest digest, String s) {
+    String val = s == null ? "" : s;
+    digest.update(val.getBytes(StandardCharsets.UTF_8));
+    // Separator so that fields can't run together
+    digest.update((byte)0);
+  }
+
+  private void write(File entry, ParsedModule module) throws IOException {
+    if (!cacheDir.isDirectory() && !cacheDir.mkdirs()) {
+      throw new IOException("Could not create directory " + cacheDir);
+    }
+
+    // Write to temporary file and rename so that concurrent compiles
+    // never see partial entries
+    File tmp = File.createTempFile("stc-module", SUFFIX + ".tmp", cacheDir);
+    try {
+      DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                                              new FileOutputStream(tmp)));
+      try {
+        out.writeInt(MAGIC);
+        out.writeInt(FORMAT_VERSION);
+        writeLineMapping(out, module.lineMapping);
+        writeAST(out, module.ast);
+      } finally {
+        out.close();
+      }
+      if (!tmp.renameTo(entry)) {
+        throw new IOException("Could not rename " + tmp + " to " + entry);
+      }
+    } finally {
+      if (tmp.exists()) {
+        tmp.delete();
+      }
+    }
+  }
+
+  private ParsedModule read(File entry, String moduleName, String path)
+                                                        throws IOException {
+    DataInputStream in = new DataInputStream(new BufferedInputStream(
+                                              new FileInputStream(entry)));
+    try {
+      if (in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION) {
+        throw new IOException("Invalid header");
+      }
+      LineMapping lineMapping = readLineMapping(in);
+      SwiftAST ast = readAST(in);
+      return new ParsedModule(moduleName, path, ast, lineMapping);
+    } finally {
+      in.close();
+    }
+  }
+
+  private static void writeLineMapping(DataOutputStream out,
+                    LineMapping lineMapping) throws IOException {
+    Map<Integer, FilePosition> mappings = lineMapping.mappings();
+    out.writeInt(mappings.size());
+    for (Map.Entry<Integer, FilePosition> e: mappings.entrySet()) {
+      out.writeInt(e.getKey());
+      out.writeUTF(e.getValue().file);
+      out.writeInt(e.getValue().line);
+    }
+  }
+
+  private static LineMapping readLineMapping(DataInputStream in)
+                                                throws IOException {
+    LineMapping lineMapping = new LineMapping();
+    int size = in.readInt();
+    for (int i = 0; i < size; i++) {
+      int preprocLine = in.readInt();
+      String file = in.readUTF();
+      int line = in.readInt();
+      lineMapping.addPreprocInfo(preprocLine, file, line);
+    }
+    return lineMapping;
+  }
+
+  /**
+   * Write tree in preorder.  Use explicit stack since trees for long
+   * expressions can be deep.
+   */
+  private static void writeAST(DataOutputStream out, SwiftAST root)
+                                                throws IOException {
+    StackLite<SwiftAST> stack = new StackLite<SwiftAST>();
+    stack.push(root);
+    while (!stack.isEmpty()) {
+      SwiftAST tree = stack.pop();
+      out.writeBoolean(tree.isNil());
+      if (!tree.isNil()) {
+        out.writeInt(tree.getType());
+        String text = tree.getText();
+        out.writeBoolean(text != null);
+        if (text != null) {
+          writeLongUTF(out, text);
+        }
+        out.writeInt(tree.getLine());
+        out.writeInt(tree.getCharPositionInLine());
+      }
+      out.writeInt(tree.childCount());
+      // Push in reverse so children are written in order
+      for (int i = tree.childCount() - 1; i >= 0; i--) {
+        stack.push(tree.child(i));
+      }
+    }
+  }
+
+  private static SwiftAST readAST(DataInputStream in) throws IOException {
+    // Stack of nodes with count of children still to be read
+    StackLite<Pair<SwiftAST, Integer>> stack =
+                        new StackLite<Pair<SwiftAST, Integer>>();
+    SwiftAST root = null;
+    do {
+      CommonToken token = null;
+      boolean isNil = in.readBoolean();
+      if (!isNil) {
+        int type = in.readInt();
+        String text = in.readBoolean() ? readLongUTF(in) : null;
+        token = new CommonToken(type, text);
+        token.setLine(in.readInt());
+        token.setCharPositionInLine(in.readInt());
+      }
+      int childCount = in.readInt();
+      SwiftAST tree = new SwiftAST(token);
+
+      if (root == null) {
+        root = tree;
+      } else {
+        Pair<SwiftAST, Integer> parent = stack.pop();
+        parent.val1.addChild(tree);
+        if (parent.val2 > 1) {
+          stack.push(Pair.create(parent.val1, parent.val2 - 1));
+        }
+      }
+      if (childCount > 0) {
+        stack.push(Pair.create(tree, childCount));
+      }
+    } while (!stack.isEmpty());
+    return root;
+  }
+
+  /**
+   * writeUTF is limited to 64k bytes, which string literals could exceed
+   */
+  private static void writeLongUTF(DataOutputStream out, String s)
+                                                  throws IOException {
+    byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  private static String readLongUTF(DataInputStream in) throws IOException {
+    byte[] bytes = new byte[in.readInt()];
+    in.readFully(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+}
@@ -3,6 +3,7 @@ package exm.stc.frontend;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.StreamTokenizer;
 import java.io.StringReader;
 
@@ -18,6 +19,7 @@ import exm.stc.ast.antlr.ExMLexer;
 import exm.stc.ast.antlr.ExMParser;
 import exm.stc.common.exceptions.STCFatal;
 import exm.stc.common.exceptions.STCRuntimeError;
+import exm.stc.frontend.LoadedModules.LocatedModule;
 import exm.stc.ui.ExitCode;
 
 /**
@@ -27,10 +29,16 @@ public class ParsedModule {
 
   public ParsedModule(String moduleName, String filePath, SwiftAST ast,
                       LineMapping lineMapping) {
+    this(moduleName, filePath, ast, lineMapping, false);
+  }
+
+  public ParsedModule(String moduleName, String filePath, SwiftAST ast,
+                      LineMapping lineMapping, boolean lexerError) {
     this.moduleName = moduleName;
     this.inputFilePath = filePath;
     this.ast = ast;
     this.lineMapping = lineMapping;
+    this.lexerError = lexerError;
   }
 
   /** Canonical name for module */
@@ -40,19 +48,57 @@ public class ParsedModule {
   public final LineMapping lineMapping;
 
   /**
-   * Parse the specified file and create a ParsedModule object
-   * @param path
-   * @param preprocessed
+   * True if the lexer reported errors and recovered.  The AST may not
+   * match the source, so the module must not be cached.
+   */
+  public final boolean lexerError;
+
+  /**
+   * Parse the specified module file and create a ParsedModule object
+   * @param module
+   * @return
+   * @throws IOException
+   */
+  public static ParsedModule parse(LocatedModule module) throws IOException {
+    return parse(module, setupInput(module.filePath));
+  }
+
+  /**
+   * Parse module source from a stream and create a ParsedModule object
+   * @param module
+   * @param inputStream
    * @return
    * @throws IOException
    */
-  public static ParsedModule parse(String moduleName, String path,
-                                   boolean preprocessed) throws IOException {
-    FileInputStream inputStream = setupInput(path);
+  public static ParsedModule parse(LocatedModule module,
+                  InputStream inputStream) throws IOException {
+    return parse(module, inputStream, false);
+  }
+
+  /**
+   * Parse module source from a stream without reporting any errors,
+   * for example to parse a module ahead of time on another thread.
+   * @param module
+   * @param inputStream
+   * @return the module, or null if there were syntax errors
+   * @throws IOException
+   */
+  public static ParsedModule parseQuietly(LocatedModule module,
+                  InputStream inputStream) throws IOException {
+    return parse(module, inputStream, true);
+  }
+
+  private static ParsedModule parse(LocatedModule module,
+        InputStream inputStream, boolean quiet) throws IOException {
+    String moduleName = module.canonicalName;
+    String path = module.filePath;
     /* Parse the input file and build AST */
     ANTLRInputStream antlrInput = new ANTLRInputStream(inputStream);
     LineMapping lineMapping;
-    if (preprocessed) {
+    if (module.lineMapping != null) {
+      // Preprocessor already provided mapping
+      lineMapping = module.lineMapping;
+    } else if (module.preprocessed) {
       int startMark = antlrInput.mark();
       lineMapping = parsePreprocOutput(antlrInput);
       antlrInput.rewind(startMark);
@@ -60,9 +106,14 @@ public class ParsedModule {
       // Treat # lines as comments.  All input from same file
       lineMapping = LineMapping.makeSimple(path);
     }
-    SwiftAST tree = runANTLR(antlrInput, lineMapping);
+    ExMLexer lexer = new ExMLexer(antlrInput);
+    SwiftAST tree = runANTLR(lexer, lineMapping, quiet);
+    if (tree == null) {
+      return null;
+    }
 
-    return new ParsedModule(moduleName, path, tree, lineMapping);
+    return new ParsedModule(moduleName, path, tree, lineMapping,
+                            lexer.lexerError);
   }
   /**
    * @param filePath
@@ -92,15 +143,18 @@ public class ParsedModule {
 
   /**
      Use ANTLR to parse the input and get the Tree
+   * @param quiet if true, return null on errors instead of reporting them
    * @throws IOException
    */
-  private static SwiftAST runANTLR(ANTLRInputStream input, LineMapping lineMap) {
+  private static SwiftAST runANTLR(ExMLexer lexer, LineMapping lineMap,
+                                   boolean quiet) {
 
-    ExMLexer lexer = new ExMLexer(input);
     lexer.lineMap = lineMap;
+    lexer.quiet = quiet;
     CommonTokenStream tokens = new CommonTokenStream(lexer);
     ExMParser parser = new ExMParser(tokens);
     parser.lineMap = lineMap;
+    parser.quiet = quiet;
     parser.setTreeAdaptor(new SwTreeAdaptor());
 
     // Launch parsing
@@ -111,6 +165,9 @@ public class ParsedModule {
     }
     catch (RecognitionException e)
     {
+      if (quiet) {
+        return null;
+      }
       // This is an internal error
       e.printStackTrace();
       System.out.println("Parsing failed: internal error");
@@ -122,6 +179,9 @@ public class ParsedModule {
      *    parse tree that it thinks is most plausible.  This is where
      *    we detect this case.
      */
+    if (quiet && (parser.parserError || lexer.lexerError)) {
+      return null;
+    }
     if (parser.parserError) {
       // This is a user error
       System.err.println("Error occurred during parsing.");
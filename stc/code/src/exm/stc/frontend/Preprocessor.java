@@ -0,0 +1,1357 @@
+/*
+ * Copyright 2013 University of Chicago and Argonne National Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package exm.stc.frontend;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.commons.io.FileUtils;
+
+import exm.stc.ast.FilePosition.LineMapping;
+import exm.stc.common.Logging;
+
+/**
+ * Built-in C preprocessor, so that preprocessing a program doesn't require
+ * running cpp or gcc in a separate process.
+ *
+ * Supports the subset of the C preprocessor used by Swift programs:
+ * #include, object-like and function-like macros (including # and ##),
+ * #undef, conditionals, #error, #warning and #pragma once.  As with
+ * cpp -undef, the only predefined macros are __FILE__, __LINE__, __STDC__
+ * and __STDC_HOSTED__.  Output has line markers in the same format as cpp
+ * output, but the line mapping is also returned directly so that it
+ * doesn't need to be recovered by lexing the output.
+ *
+ * Input that has errors or uses other features causes a
+ * PreprocessorException.  The caller should then fall back to an external
+ * preprocessor, which reports any errors in the usual way.
+ *
+ * Only the main program file is preprocessed, by this class or by the
+ * external preprocessor.  Modules loaded with import are parsed directly,
+ * so preprocessor directives in them are ignored like comments.
+ *
+ * Tokenized headers are cached between runs, and checked against the
+ * file's size and modification time before use.  Headers with include
+ * guards aren't reread if the guard macro is defined.
+ */
+public class Preprocessor {
+
+  /** Maximum depth of nested includes, same as cpp */
+  private static final int MAX_INCLUDE_DEPTH = 200;
+
+  /** Emit line marker instead of more than this many blank lines */
+  private static final int MAX_BLANK_LINES = 8;
+
+  /** Multi-character punctuators, longest first */
+  private static final List<String> PUNCTUATORS = Arrays.asList(
+      "...", "<<=", ">>=",
+      "##", "->", "++", "--", "<<", ">>", "<=", ">=", "==", "!=", "&&", "||",
+      "+=", "-=", "*=", "/=", "%=", "&=", "|=", "^=");
+
+  /** Binary operators in #if expressions by precedence */
+  private static final Map<String, Integer> BINARY_OPS;
+  static {
+    Map<String, Integer> ops = new HashMap<String, Integer>();
+    ops.put("||", 1);
+    ops.put("&&", 2);
+    ops.put("|", 3);
+    ops.put("^", 4);
+    ops.put("&", 5);
+    ops.put("==", 6);
+    ops.put("!=", 6);
+    ops.put("<", 7);
+    ops.put(">", 7);
+    ops.put("<=", 7);
+    ops.put(">=", 7);
+    ops.put("<<", 8);
+    ops.put(">>", 8);
+    ops.put("+", 9);
+    ops.put("-", 9);
+    ops.put("*", 10);
+    ops.put("/", 10);
+    ops.put("%", 10);
+    BINARY_OPS = Collections.unmodifiableMap(ops);
+  }
+
+  /** Tokenized headers by canonical path */
+  private static final Map<String, SourceFile> headerCache =
+                          new ConcurrentHashMap<String, SourceFile>();
+
+  private final List<String> includePath;
+  private final Map<String, Macro> macros = new HashMap<String, Macro>();
+
+  /** Canonical paths of files with #pragma once */
+  private final Set<String> onceFiles = new HashSet<String>();
+
+  private final StringBuilder out = new StringBuilder();
+  private final LineMapping lineMapping = new LineMapping();
+
+  /** Line number of output line being written */
+  private int outLine = 1;
+  /** Whether anything has been written to current output line */
+  private boolean lineEmpty = true;
+  /** Source position of current output line */
+  private String srcFile = null;
+  private int srcLine = 0;
+  /** Last token written to output */
+  private Token lastEmitted = null;
+
+  /** File currently being processed, for __FILE__ and errors */
+  private String currFile = null;
+  private int includeDepth = 0;
+
+  private Preprocessor(List<String> includePath) {
+    this.includePath = includePath;
+    defineBuiltin("__STDC__", "1");
+    defineBuiltin("__STDC_HOSTED__", "1");
+  }
+
+  /**
+   * Preprocess a file
+   * @param input path of input file
+   * @param output path to write preprocessed output to
+   * @param includePath directories to search for included files
+   * @param macroDefs macro definitions, in form NAME or NAME=VALUE as
+   *                  for cpp -D
+   * @return line mapping for output
+   * @throws PreprocessorException if input has errors or uses features
+   *                               that aren't supported
+   * @throws IOException
+   */
+  public static LineMapping preprocess(String input, String output,
+      List<String> includePath, List<String> macroDefs)
+          throws PreprocessorException, IOException {
+    Preprocessor pp = new Preprocessor(includePath);
+    for (String macroDef: macroDefs) {
+      pp.defineFromCommandLine(macroDef);
+    }
+
+    File inputFile = new File(input);
+    List<Token> tokens = tokenize(input, FileUtils.readFileToString(
+                              inputFile, StandardCharsets.ISO_8859_1));
+    pp.marker(input, 1, "");
+    pp.processFile(input, inputFile.getCanonicalPath(), tokens);
+    pp.finish();
+
+    FileUtils.writeStringToFile(new File(output), pp.out.toString(),
+                                StandardCharsets.ISO_8859_1);
+    return pp.lineMapping;
+  }
+
+  /**
+   * Input had an error or used a feature that isn't supported
+   */
+  public static class PreprocessorException extends Exception {
+    private static final long serialVersionUID = 1L;
+
+    public PreprocessorException(String msg) {
+      super(msg);
+    }
+  }
+
+  private PreprocessorException error(Token at, String msg) {
+    return new PreprocessorException(currFile + ":" + at.line + ": " + msg);
+  }
+
+  private static enum TokenType {
+    IDENT,
+    NUMBER,
+    STRING,
+    CHAR,
+    PUNCT,
+    /** Other character, or unterminated string or character literal */
+    OTHER,
+    NEWLINE,
+  }
+
+  /**
+   * Preprocessing token.  Tokens are immutable, so tokens of cached
+   * headers can be shared.
+   */
+  private static class Token {
+    final TokenType type;
+    final String text;
+    final int line;
+    final int col;
+    /** Whether preceded by whitespace */
+    final boolean space;
+    /** Macros that must not be expanded from this token */
+    final Set<String> hideSet;
+    /** Whether token is result of macro expansion */
+    final boolean fromMacro;
+
+    Token(TokenType type, String text, int line, int col, boolean space,
+          Set<String> hideSet, boolean fromMacro) {
+      this.type = type;
+      this.text = text;
+      this.line = line;
+      this.col = col;
+      this.space = space;
+      this.hideSet = hideSet;
+      this.fromMacro = fromMacro;
+    }
+
+    Token(TokenType type, String text, int line, int col, boolean space) {
+      this(type, text, line, col, space, Collections.<String>emptySet(),
+           false);
+    }
+
+    boolean is(String s) {
+      return (type == TokenType.PUNCT || type == TokenType.IDENT) &&
+              text.equals(s);
+    }
+
+    Token withSpace(boolean newSpace) {
+      return new Token(type, text, line, col, newSpace, hideSet, fromMacro);
+    }
+
+    /**
+     * @return copy of token from expansion of macro at position of token
+     */
+    Token expandedAt(Token at, Set<String> addHideSet) {
+      Set<String> newHideSet;
+      if (addHideSet.isEmpty()) {
+        newHideSet = hideSet;
+      } else if (hideSet.isEmpty()) {
+        newHideSet = addHideSet;
+      } else {
+        newHideSet = new HashSet<String>(hideSet);
+        newHideSet.addAll(addHideSet);
+      }
+      return new Token(type, text, at.line, at.col, space, newHideSet, true);
+    }
+
+    @Override
+    public String toString() {
+      return text;
+    }
+  }
+
+  private static class Macro {
+    final String name;
+    /** Parameter names, or null if object-like */
+    final List<String> params;
+    final boolean variadic;
+    final List<Token> body;
+
+    Macro(String name, List<String> params, boolean variadic,
+          List<Token> body) {
+      this.name = name;
+      this.params = params;
+      this.variadic = variadic;
+      this.body = body;
+    }
+
+    boolean functionLike() {
+      return params != null;
+    }
+
+    int paramIndex(Token tok) {
+      if (params == null || tok.type != TokenType.IDENT) {
+        return -1;
+      }
+      return params.indexOf(tok.text);
+    }
+  }
+
+  private static class SourceFile {
+    final long lastModified;
+    final long length;
+    final List<Token> tokens;
+    /** Include guard macro, or null if none */
+    final String guard;
+
+    SourceFile(long lastModified, long length, List<Token> tokens,
+               String guard) {
+      this.lastModified = lastModified;
+      this.length = length;
+      this.tokens = tokens;
+      this.guard = guard;
+    }
+  }
+
+  /**
+   * State of a conditional directive
+   */
+  private static class Conditional {
+    final boolean parentActive;
+    boolean taken;
+    boolean active;
+    boolean sawElse = false;
+
+    Conditional(boolean parentActive, boolean active) {
+      this.parentActive = parentActive;
+      this.taken = active;
+      this.active = active;
+    }
+  }
+
+  private void defineBuiltin(String name, String value) {
+    macros.put(name, new Macro(name, null, false,
+          Collections.singletonList(
+              new Token(TokenType.NUMBER, value, 0, 0, false))));
+  }
+
+  private void defineFromCommandLine(String macroDef)
+                                  throws PreprocessorException {
+    String def;
+    int eq = macroDef.indexOf('=');
+    if (eq < 0) {
+      def = macroDef + " 1";
+    } else {
+      def = macroDef.substring(0, eq) + " " + macroDef.substring(eq + 1);
+    }
+    currFile = "<command-line>";
+    List<Token> tokens = tokenize(currFile, def);
+    if (!tokens.isEmpty() &&
+        tokens.get(tokens.size() - 1).type == TokenType.NEWLINE) {
+      throw new PreprocessorException("Invalid macro definition " +
+                                      macroDef);
+    }
+    define(tokens, new Token(TokenType.OTHER, "", 1, 0, false));
+  }
+
+  /**
+   * Split source into preprocessing tokens, with newlines as tokens.
+   * Comments are replaced by whitespace and lines ending in backslash
+   * are joined.
+   * @throws PreprocessorException if a comment is unterminated
+   */
+  private static List<Token> tokenize(String path, String source)
+                                          throws PreprocessorException {
+    // Join continued lines, recording original position of characters
+    int n = source.length();
+    StringBuilder sb = new StringBuilder(n);
+    int lines[] = new int[n];
+    int cols[] = new int[n];
+    int line = 1, col = 0;
+    for (int i = 0; i < n; i++) {
+      char c = source.charAt(i);
+      if (c == '\\' && i + 1 < n && source.charAt(i + 1) == '\n') {
+        i++;
+        line++;
+        col = 0;
+        continue;
+      } else if (c == '\\' && i + 2 < n && source.charAt(i + 1) == '\r' &&
+                 source.charAt(i + 2) == '\n') {
+        i += 2;
+        line++;
+        col = 0;
+        continue;
+      }
+      lines[sb.length()] = line;
+      cols[sb.length()] = col;
+      sb.append(c);
+      if (c == '\n') {
+        line++;
+        col = 0;
+      } else {
+        col++;
+      }
+    }
+    String s = sb.toString();
+    n = s.length();
+
+    List<Token> tokens = new ArrayList<Token>();
+    boolean space = false;
+    int i = 0;
+    while (i < n) {
+      char c = s.charAt(i);
+      char next = i + 1 < n ? s.charAt(i + 1) : 0;
+      int start = i;
+      if (c == '\n') {
+        tokens.add(new Token(TokenType.NEWLINE, "\n", lines[i], cols[i],
+                             space));
+        // Newline separates tokens like other whitespace
+        space = true;
+        i++;
+        continue;
+      } else if (c == ' ' || c == '\t' || c == '\r' || c == '\f' ||
+                 c == '\u000b') {
+        space = true;
+        i++;
+        continue;
+      } else if (c == '/' && next == '*') {
+        int end = s.indexOf("*/", i + 2);
+        if (end < 0) {
+          throw new PreprocessorException(path + ":" + lines[i] +
+                                          ": unterminated comment");
+        }
+        space = true;
+        i = end + 2;
+        continue;
+      } else if (c == '/' && next == '/') {
+        while (i < n && s.charAt(i) != '\n') {
+          i++;
+        }
+        space = true;
+        continue;
+      }
+
+      TokenType type;
+      if (isIdentStart(c)) {
+        while (i < n && isIdentChar(s.charAt(i))) {
+          i++;
+        }
+        type = TokenType.IDENT;
+      } else if (isDigit(c) || (c == '.' && isDigit(next))) {
+        i++;
+        while (i < n) {
+          char d = s.charAt(i);
+          if ((d == '+' || d == '-') && "eEpP".indexOf(s.charAt(i - 1)) >= 0) {
+            i++;
+          } else if (isIdentChar(d) || d == '.') {
+            i++;
+          } else {
+            break;
+          }
+        }
+        type = TokenType.NUMBER;
+      } else if (c == '"' || c == '\'') {
+        i++;
+        boolean terminated = false;
+        while (i < n && s.charAt(i) != '\n') {
+          char d = s.charAt(i);
+          i++;
+          if (d == '\\' && i < n && s.charAt(i) != '\n') {
+            i++;
+          } else if (d == c) {
+            terminated = true;
+            break;
+          }
+        }
+        if (terminated) {
+          type = c == '"' ? TokenType.STRING : TokenType.CHAR;
+        } else {
+          // Pass through rest of line unchanged, like cpp
+          type = TokenType.OTHER;
+        }
+      } else {
+        type = TokenType.PUNCT;
+        i++;
+        for (String punct: PUNCTUATORS) {
+          if (s.startsWith(punct, start)) {
+            i = start + punct.length();
+            break;
+          }
+        }
+      }
+      tokens.add(new Token(type, s.substring(start, i), lines[start],
+                           cols[start], space));
+      space = false;
+    }
+    return tokens;
+  }
+
+  private static boolean isDigit(char c) {
+    return c >= '0' && c <= '9';
+  }
+
+  private static boolean isIdentStart(char c) {
+    return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') ||
+            c == '_' || c == '$';
+  }
+
+  private static boolean isIdentChar(char c) {
+    return isIdentStart(c) || isDigit(c);
+  }
+
+  /**
+   * @return index of newline ending line starting at i, or size of list
+   */
+  private static int lineEnd(List<Token> tokens, int i) {
+    while (i < tokens.size() && tokens.get(i).type != TokenType.NEWLINE) {
+      i++;
+    }
+    return i;
+  }
+
+  private static boolean isDirective(List<Token> tokens, int lineStart) {
+    return lineStart < tokens.size() && tokens.get(lineStart).is("#");
+  }
+
+  private static String directiveName(List<Token> tokens, int lineStart) {
+    if (lineStart + 1 < tokens.size() &&
+        tokens.get(lineStart + 1).type == TokenType.IDENT) {
+      return tokens.get(lineStart + 1).text;
+    }
+    return null;
+  }
+
+  /**
+   * Find include guard: a file where all tokens are inside #ifndef X
+   * @return name of guard macro, or null if none
+   */
+  private static String findGuard(List<Token> tokens) {
+    int i = 0;
+    while (i < tokens.size() && tokens.get(i).type == TokenType.NEWLINE) {
+      i++;
+    }
+    if (!isDirective(tokens, i) || !"ifndef".equals(directiveName(tokens, i))
+        || lineEnd(tokens, i) != i + 3 ||
+        tokens.get(i + 2).type != TokenType.IDENT) {
+      return null;
+    }
+    String guard = tokens.get(i + 2).text;
+
+    int depth = 0;
+    i = lineEnd(tokens, i) + 1;
+    while (i < tokens.size()) {
+      if (isDirective(tokens, i)) {
+        String name = directiveName(tokens, i);
+        if ("if".equals(name) || "ifdef".equals(name) ||
+            "ifndef".equals(name)) {
+          depth++;
+        } else if ("endif".equals(name)) {
+          if (depth == 0) {
+            // Must be nothing after matching #endif
+            for (int j = lineEnd(tokens, i); j < tokens.size(); j++) {
+              if (tokens.get(j).type != TokenType.NEWLINE) {
+                return null;
+              }
+            }
+            return guard;
+          }
+          depth--;
+        } else if (depth == 0 &&
+                   ("else".equals(name) || "elif".equals(name))) {
+          return null;
+        }
+      }
+      i = lineEnd(tokens, i) + 1;
+    }
+    return null;
+  }
+
+  /**
+   * Load tokens for included file, using cache if up to date
+   */
+  private static SourceFile loadHeader(File file, String canonicalPath)
+                             throws IOException, PreprocessorException {
+    long lastModified = file.lastModified();
+    long length = file.length();
+    SourceFile cached = headerCache.get(canonicalPath);
+    if (cached != null && cached.lastModified == lastModified &&
+        cached.length == length) {
+      return cached;
+    }
+
+    List<Token> tokens = tokenize(file.getPath(),
+          FileUtils.readFileToString(file, StandardCharsets.ISO_8859_1));
+    SourceFile loaded = new SourceFile(lastModified, length,
+        Collections.unmodifiableList(tokens), findGuard(tokens));
+    headerCache.put(canonicalPath, loaded);
+    return loaded;
+  }
+
+  private void processFile(String path, String canonicalPath,
+          List<Token> tokens) throws PreprocessorException, IOException {
+    String prevFile = currFile;
+    currFile = path;
+    List<Conditional> conds = new ArrayList<Conditional>();
+
+    int i = 0;
+    while (i < tokens.size()) {
+      // i is at start of line
+      boolean active = conds.isEmpty() || conds.get(conds.size() - 1).active;
+      if (isDirective(tokens, i)) {
+        int end = lineEnd(tokens, i);
+        directive(path, canonicalPath, tokens.subList(i, end), conds,
+                  active);
+        i = end + 1;
+      } else if (!active) {
+        i = lineEnd(tokens, i) + 1;
+      } else {
+        // Expand all lines up to next directive together, since macro
+        // arguments can span lines
+        int end = lineEnd(tokens, i);
+        while (end + 1 < tokens.size() && !isDirective(tokens, end + 1)) {
+          end = lineEnd(tokens, end + 1);
+        }
+        for (Token tok: expand(tokens.subList(i, end))) {
+          emit(tok);
+        }
+        i = end + 1;
+      }
+    }
+
+    if (!conds.isEmpty()) {
+      throw new PreprocessorException(path + ": unterminated conditional " +
+                                      "directive");
+    }
+    currFile = prevFile;
+  }
+
+  /**
+   * Handle directive
+   * @param line tokens of directive, starting with #
+   * @param conds conditional directives in file
+   * @param active whether current conditional branch is active
+   */
+  private void directive(String path, String canonicalPath, List<Token> line,
+                         List<Conditional> conds, boolean active)
+                             throws PreprocessorException, IOException {
+    Token hash = line.get(0);
+    if (line.size() == 1) {
+      // Null directive
+      return;
+    }
+    Token nameTok = line.get(1);
+    String name = nameTok.type == TokenType.IDENT ? nameTok.text : null;
+    List<Token> args = line.subList(2, line.size());
+    Conditional top = conds.isEmpty() ? null : conds.get(conds.size() - 1);
+
+    if ("ifdef".equals(name) || "ifndef".equals(name)) {
+      if (!active) {
+        conds.add(new Conditional(false, false));
+      } else {
+        if (args.isEmpty() || args.get(0).type != TokenType.IDENT) {
+          throw error(hash, "no macro name given in #" + name);
+        }
+        boolean defined = macros.containsKey(args.get(0).text) ||
+                          isDynamicMacro(args.get(0).text);
+        conds.add(new Conditional(true, defined == name.equals("ifdef")));
+      }
+    } else if ("if".equals(name)) {
+      if (!active) {
+        conds.add(new Conditional(false, false));
+      } else {
+        conds.add(new Conditional(true, evalCondition(hash, args)));
+      }
+    } else if ("elif".equals(name)) {
+      if (top == null || top.sawElse) {
+        throw error(hash, "#elif without #if");
+      }
+      if (!top.parentActive || top.taken) {
+        top.active = false;
+      } else {
+        top.active = evalCondition(hash, args);
+        top.taken = top.active;
+      }
+    } else if ("else".equals(name)) {
+      if (top == null || top.sawElse) {
+        throw error(hash, "#else without #if");
+      }
+      top.sawElse = true;
+      top.active = top.parentActive && !top.taken;
+      top.taken = true;
+    } else if ("endif".equals(name)) {
+      if (top == null) {
+        throw error(hash, "#endif without #if");
+      }
+      conds.remove(conds.size() - 1);
+    } else if (!active) {
+      // Other directives are ignored in skipped sections
+    } else if ("define".equals(name)) {
+      define(args, hash);
+    } else if ("undef".equals(name)) {
+      if (args.isEmpty() || args.get(0).type != TokenType.IDENT) {
+        throw error(hash, "no macro name given in #undef");
+      }
+      macros.remove(args.get(0).text);
+    } else if ("include".equals(name)) {
+      include(canonicalPath, hash, args);
+    } else if ("error".equals(name)) {
+      throw error(hash, "#error " + joinTokens(args));
+    } else if ("warning".equals(name)) {
+      Logging.getSTCLogger().warn(path + ":" + hash.line +
+                          ": warning: #warning " + joinTokens(args));
+    } else if ("pragma".equals(name) && args.size() == 1 &&
+               args.get(0).is("once")) {
+      onceFiles.add(canonicalPath);
+    } else {
+      throw error(hash, "unsupported directive #" + nameTok.text);
+    }
+  }
+
+  private void define(List<Token> tokens, Token at)
+                          throws PreprocessorException {
+    if (tokens.isEmpty() || tokens.get(0).type != TokenType.IDENT) {
+      throw error(at, "macro names must be identifiers");
+    }
+    String name = tokens.get(0).text;
+    if (name.equals("defined") || isDynamicMacro(name)) {
+      throw error(at, "\"" + name + "\" cannot be used as a macro name");
+    }
+
+    List<String> params = null;
+    boolean variadic = false;
+    int i = 1;
+    if (i < tokens.size() && tokens.get(i).is("(") &&
+        !tokens.get(i).space) {
+      params = new ArrayList<String>();
+      i++;
+      while (true) {
+        if (i >= tokens.size()) {
+          throw error(at, "missing ')' in macro parameter list");
+        }
+        Token tok = tokens.get(i++);
+        if (tok.is(")") && params.isEmpty()) {
+          break;
+        } else if (tok.is("...")) {
+          params.add("__VA_ARGS__");
+          variadic = true;
+          if (i >= tokens.size() || !tokens.get(i++).is(")")) {
+            throw error(at, "missing ')' in macro parameter list");
+          }
+          break;
+        } else if (tok.type != TokenType.IDENT ||
+                   params.contains(tok.text)) {
+          throw error(at, "invalid macro parameter " + tok.text);
+        }
+        params.add(tok.text);
+
+        if (i >= tokens.size()) {
+          throw error(at, "missing ')' in macro parameter list");
+        }
+        Token sep = tokens.get(i++);
+        if (sep.is(")")) {
+          break;
+        } else if (!sep.is(",")) {
+          throw error(at, "expected ',' or ')' in macro parameter list");
+        }
+      }
+    }
+
+    List<Token> body = new ArrayList<Token>(tokens.subList(i, tokens.size()));
+    if (!body.isEmpty()) {
+      body.set(0, body.get(0).withSpace(false));
+      if (body.get(0).is("##") || body.get(body.size() - 1).is("##")) {
+        throw error(at, "'##' cannot appear at either end of a macro " +
+                        "expansion");
+      }
+    }
+    Macro macro = new Macro(name, params, variadic, body);
+    if (params != null) {
+      for (int j = 0; j < body.size(); j++) {
+        if (body.get(j).is("#") && (j + 1 >= body.size() ||
+                        macro.paramIndex(body.get(j + 1)) < 0)) {
+          throw error(at, "'#' is not followed by a macro parameter");
+        }
+      }
+    }
+    macros.put(name, macro);
+  }
+
+  private void include(String canonicalPath, Token at, List<Token> args)
+                          throws PreprocessorException, IOException {
+    String name;
+    boolean quoted;
+    if (args.size() == 1 && args.get(0).type == TokenType.STRING) {
+      String text = args.get(0).text;
+      name = text.substring(1, text.length() - 1);
+      quoted = true;
+    } else if (!args.isEmpty() && args.get(0).is("<") &&
+               args.get(args.size() - 1).is(">")) {
+      name = joinTokens(args.subList(1, args.size() - 1));
+      quoted = false;
+    } else {
+      throw error(at, "unsupported #include form");
+    }
+
+    if (includeDepth >= MAX_INCLUDE_DEPTH) {
+      throw error(at, "#include nested depth " + includeDepth +
+                      " exceeds maximum of " + MAX_INCLUDE_DEPTH);
+    }
+
+    // Search directory of current file first for quoted includes
+    List<String> dirs = new ArrayList<String>();
+    if (quoted) {
+      String currDir = new File(currFile).getParent();
+      dirs.add(currDir);
+    }
+    dirs.addAll(includePath);
+
+    String path = null;
+    for (String dir: dirs) {
+      String candidate = dir == null ? name : dir + File.separator + name;
+      if (new File(candidate).isFile()) {
+        path = candidate;
+        break;
+      }
+    }
+    if (path == null) {
+      throw error(at, name + ": No such file or directory");
+    }
+
+    File file = new File(path);
+    String includedCanonical = file.getCanonicalPath();
+    SourceFile source = loadHeader(file, includedCanonical);
+    if (onceFiles.contains(includedCanonical) ||
+        (source.guard != null && macros.containsKey(source.guard))) {
+      return;
+    }
+
+    String includer = currFile;
+    marker(path, 1, " 1");
+    includeDepth++;
+    processFile(path, includedCanonical, source.tokens);
+    includeDepth--;
+    marker(includer, at.line + 1, " 2");
+  }
+
+  private static boolean isDynamicMacro(String name) {
+    return name.equals("__FILE__") || name.equals("__LINE__");
+  }
+
+  /**
+   * Macro expand tokens.  Newlines in macro arguments are treated as
+   * whitespace.
+   * @param tokens tokens to expand
+   * @return expanded tokens
+   */
+  private List<Token> expand(List<Token> tokens)
+                                      throws PreprocessorException {
+    Deque<Token> in = new ArrayDeque<Token>(tokens);
+    List<Token> result = new ArrayList<Token>(tokens.size());
+    while (!in.isEmpty()) {
+      Token tok = in.pollFirst();
+      if (tok.type != TokenType.IDENT || tok.hideSet.contains(tok.text)) {
+        result.add(tok);
+        continue;
+      }
+
+      if (tok.text.equals("__LINE__") && !macros.containsKey(tok.text)) {
+        result.add(new Token(TokenType.NUMBER, Integer.toString(tok.line),
+                        tok.line, tok.col, tok.space, tok.hideSet, true));
+        continue;
+      } else if (tok.text.equals("__FILE__") &&
+                 !macros.containsKey(tok.text)) {
+        result.add(new Token(TokenType.STRING, quote(currFile),
+                        tok.line, tok.col, tok.space, tok.hideSet, true));
+        continue;
+      }
+
+      Macro macro = macros.get(tok.text);
+      if (macro == null) {
+        result.add(tok);
+        continue;
+      }
+
+      List<Token> expansion;
+      if (!macro.functionLike()) {
+        Set<String> hideSet = Collections.singleton(macro.name);
+        expansion = substitute(macro, null, hideSet, tok);
+      } else {
+        if (!nextIsOpenParen(in)) {
+          // Not an invocation
+          result.add(tok);
+          continue;
+        }
+        List<List<Token>> args = new ArrayList<List<Token>>();
+        Token rparen = collectArgs(in, tok, args);
+        checkArgCount(macro, tok, args);
+
+        Set<String> hideSet = new HashSet<String>(tok.hideSet);
+        hideSet.retainAll(rparen.hideSet);
+        hideSet.add(macro.name);
+        expansion = substitute(macro, args, hideSet, tok);
+      }
+
+      // Rescan expansion with rest of input
+      for (int i = expansion.size() - 1; i >= 0; i--) {
+        in.addFirst(expansion.get(i));
+      }
+    }
+    return result;
+  }
+
+  private static boolean nextIsOpenParen(Deque<Token> in) {
+    Iterator<Token> it = in.iterator();
+    while (it.hasNext()) {
+      Token tok = it.next();
+      if (tok.type != TokenType.NEWLINE) {
+        return tok.is("(");
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Collect arguments of macro invocation
+   * @param in input, with next non-newline token an open paren
+   * @param args list to add arguments to
+   * @return closing paren
+   */
+  private Token collectArgs(Deque<Token> in, Token macroTok,
+            List<List<Token>> args) throws PreprocessorException {
+    while (in.peekFirst().type == TokenType.NEWLINE) {
+      in.pollFirst();
+    }
+    in.pollFirst(); // (
+
+    int depth = 0;
+    boolean space = false;
+    List<Token> arg = new ArrayList<Token>();
+    while (true) {
+      Token tok = in.pollFirst();
+      if (tok == null) {
+        throw error(macroTok, "unterminated argument list invoking macro \""
+                              + macroTok.text + "\"");
+      } else if (tok.type == TokenType.NEWLINE) {
+        // Newlines in arguments are whitespace
+        space = true;
+        continue;
+      }
+
+      if (space) {
+        tok = tok.withSpace(true);
+        space = false;
+      }
+      if (tok.is(")") && depth == 0) {
+        args.add(arg);
+        return tok;
+      } else if (tok.is(",") && depth == 0) {
+        args.add(arg);
+        arg = new ArrayList<Token>();
+        continue;
+      } else if (tok.is("(")) {
+        depth++;
+      } else if (tok.is(")")) {
+        depth--;
+      }
+      arg.add(tok);
+    }
+  }
+
+  private void checkArgCount(Macro macro, Token at, List<List<Token>> args)
+                                        throws PreprocessorException {
+    int nParams = macro.params.size();
+    if (nParams == 0 && args.size() == 1 && args.get(0).isEmpty()) {
+      args.clear();
+      return;
+    }
+
+    if (macro.variadic && args.size() > nParams) {
+      // Rejoin extra arguments into variable argument
+      List<Token> varArg = args.get(nParams - 1);
+      for (List<Token> extra: args.subList(nParams, args.size())) {
+        varArg.add(new Token(TokenType.PUNCT, ",", at.line, at.col, false));
+        varArg.addAll(extra);
+      }
+      args.subList(nParams, args.size()).clear();
+    } else if (macro.variadic && args.size() == nParams - 1) {
+      args.add(new ArrayList<Token>());
+    }
+
+    if (args.size() != nParams) {
+      throw error(at, "macro \"" + macro.name + "\" requires " + nParams +
+                      " arguments, but " + args.size() + " given");
+    }
+  }
+
+  /**
+   * Substitute arguments into macro body
+   * @param args arguments, or null for object-like macro
+   * @param hideSet macros that can't be expanded in result
+   * @param at macro name token in input
+   */
+  private List<Token> substitute(Macro macro, List<List<Token>> args,
+              Set<String> hideSet, Token at) throws PreprocessorException {
+    List<Token> body = macro.body;
+    List<Token> result = new ArrayList<Token>();
+    // Whether last operand was an empty argument, for ##
+    boolean lastEmpty = false;
+    for (int i = 0; i < body.size(); i++) {
+      Token tok = body.get(i);
+      Token next = i + 1 < body.size() ? body.get(i + 1) : null;
+      int param = macro.paramIndex(tok);
+
+      if (tok.is("#") && macro.functionLike()) {
+        List<Token> arg = args.get(macro.paramIndex(next));
+        result.add(new Token(TokenType.STRING, stringify(arg), tok.line,
+                             tok.col, tok.space));
+        lastEmpty = false;
+        i++;
+      } else if (tok.is("##")) {
+        int nextParam = macro.paramIndex(next);
+        List<Token> rhs = nextParam >= 0 ? args.get(nextParam) :
+                                           Collections.singletonList(next);
+        i++;
+        if (rhs.isEmpty()) {
+          continue;
+        } else if (lastEmpty || result.isEmpty()) {
+          result.addAll(rhs);
+        } else {
+          Token lhs = result.remove(result.size() - 1);
+          List<Token> pasted = tokenize(currFile, lhs.text + rhs.get(0).text);
+          if (pasted.size() != 1) {
+            throw error(at, "pasting \"" + lhs.text + "\" and \"" +
+                rhs.get(0).text + "\" does not give a valid preprocessing " +
+                "token");
+          }
+          Token p = pasted.get(0);
+          result.add(new Token(p.type, p.text, lhs.line, lhs.col, lhs.space));
+          result.addAll(rhs.subList(1, rhs.size()));
+        }
+        lastEmpty = false;
+      } else if (param >= 0) {
+        List<Token> arg = args.get(param);
+        if (next != null && next.is("##")) {
+          // Operand of ## isn't expanded
+          addArg(result, arg, tok.space);
+        } else {
+          addArg(result, expand(arg), tok.space);
+        }
+        lastEmpty = arg.isEmpty();
+      } else {
+        result.add(tok);
+        lastEmpty = false;
+      }
+    }
+
+    List<Token> expansion = new ArrayList<Token>(result.size());
+    for (Token tok: result) {
+      expansion.add(tok.expandedAt(at, hideSet));
+    }
+    if (!expansion.isEmpty()) {
+      expansion.set(0, expansion.get(0).withSpace(at.space));
+    }
+    return expansion;
+  }
+
+  private static void addArg(List<Token> result, List<Token> arg,
+                             boolean space) {
+    for (int i = 0; i < arg.size(); i++) {
+      Token tok = arg.get(i);
+      result.add(i == 0 ? tok.withSpace(space) : tok);
+    }
+  }
+
+  private static String stringify(List<Token> arg) {
+    StringBuilder sb = new StringBuilder("\"");
+    for (int i = 0; i < arg.size(); i++) {
+      Token tok = arg.get(i);
+      if (i > 0 && tok.space) {
+        sb.append(' ');
+      }
+      if (tok.type == TokenType.STRING || tok.type == TokenType.CHAR) {
+        sb.append(tok.text.replace("\\", "\\\\").replace("\"", "\\\""));
+      } else {
+        sb.append(tok.text);
+      }
+    }
+    sb.append('"');
+    return sb.toString();
+  }
+
+  private static String quote(String s) {
+    return "\"" + s.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+  }
+
+  private static String joinTokens(List<Token> tokens) {
+    StringBuilder sb = new StringBuilder();
+    for (Token tok: tokens) {
+      if (sb.length() > 0 && tok.space) {
+        sb.append(' ');
+      }
+      sb.append(tok.text);
+    }
+    return sb.toString();
+  }
+
+  /**
+   * Evaluate #if or #elif condition
+   */
+  private boolean evalCondition(Token at, List<Token> tokens)
+                                          throws PreprocessorException {
+    // Operands of defined aren't macro expanded
+    List<Token> replaced = new ArrayList<Token>();
+    for (int i = 0; i < tokens.size(); i++) {
+      Token tok = tokens.get(i);
+      if (tok.is("defined")) {
+        String name;
+        if (i + 1 < tokens.size() &&
+            tokens.get(i + 1).type == TokenType.IDENT) {
+          name = tokens.get(i + 1).text;
+          i += 1;
+        } else if (i + 3 < tokens.size() && tokens.get(i + 1).is("(") &&
+                   tokens.get(i + 2).type == TokenType.IDENT &&
+                   tokens.get(i + 3).is(")")) {
+          name = tokens.get(i + 2).text;
+          i += 3;
+        } else {
+          throw error(at, "operator \"defined\" requires an identifier");
+        }
+        boolean defined = macros.containsKey(name) || isDynamicMacro(name);
+        replaced.add(new Token(TokenType.NUMBER, defined ? "1" : "0",
+                               tok.line, tok.col, tok.space));
+      } else {
+        replaced.add(tok);
+      }
+    }
+
+    ExprParser parser = new ExprParser(at, expand(replaced));
+    if (parser.atEnd()) {
+      throw error(at, "#if with no expression");
+    }
+    long val = parser.conditional();
+    if (!parser.atEnd()) {
+      throw error(at, "missing binary operator before token \"" +
+                      parser.peek().text + "\"");
+    }
+    return val != 0;
+  }
+
+  /**
+   * Parser for integer expressions in #if directives
+   */
+  private class ExprParser {
+    private final Token at;
+    private final List<Token> tokens;
+    private int pos = 0;
+
+    ExprParser(Token at, List<Token> tokens) {
+      this.at = at;
+      this.tokens = tokens;
+    }
+
+    boolean atEnd() {
+      return pos >= tokens.size();
+    }
+
+    Token peek() {
+      return atEnd() ? null : tokens.get(pos);
+    }
+
+    private Token next() throws PreprocessorException {
+      if (atEnd()) {
+        throw error(at, "#if expression ended unexpectedly");
+      }
+      return tokens.get(pos++);
+    }
+
+    private void expect(String punct) throws PreprocessorException {
+      Token tok = next();
+      if (!tok.is(punct)) {
+        throw error(at, "expected '" + punct + "' in #if expression");
+      }
+    }
+
+    long conditional() throws PreprocessorException {
+      long cond = binary(1);
+      if (!atEnd() && peek().is("?")) {
+        next();
+        long ifTrue = conditional();
+        expect(":");
+        long ifFalse = conditional();
+        return cond != 0 ? ifTrue : ifFalse;
+      }
+      return cond;
+    }
+
+    private long binary(int minPrec) throws PreprocessorException {
+      long left = unary();
+      while (!atEnd() && peek().type == TokenType.PUNCT &&
+             BINARY_OPS.containsKey(peek().text) &&
+             BINARY_OPS.get(peek().text) >= minPrec) {
+        String op = next().text;
+        long right = binary(BINARY_OPS.get(op) + 1);
+        left = apply(op, left, right);
+      }
+      return left;
+    }
+
+    private long apply(String op, long l, long r)
+                          throws PreprocessorException {
+      switch (op) {
+        case "||": return (l != 0 || r != 0) ? 1 : 0;
+        case "&&": return (l != 0 && r != 0) ? 1 : 0;
+        case "|": return l | r;
+        case "^": return l ^ r;
+        case "&": return l & r;
+        case "==": return l == r ? 1 : 0;
+        case "!=": return l != r ? 1 : 0;
+        case "<": return l < r ? 1 : 0;
+        case ">": return l > r ? 1 : 0;
+        case "<=": return l <= r ? 1 : 0;
+        case ">=": return l >= r ? 1 : 0;
+        case "<<": return l << r;
+        case ">>": return l >> r;
+        case "+": return l + r;
+        case "-": return l - r;
+        case "*": return l * r;
+        case "/":
+        case "%":
+          if (r == 0) {
+            throw error(at, "division by zero in #if");
+          }
+          return op.equals("/") ? l / r : l % r;
+        default:
+          throw error(at, "unexpected operator " + op);
+      }
+    }
+
+    private long unary() throws PreprocessorException {
+      Token tok = next();
+      if (tok.is("!")) {
+        return unary() == 0 ? 1 : 0;
+      } else if (tok.is("~")) {
+        return ~unary();
+      } else if (tok.is("-")) {
+        return -unary();
+      } else if (tok.is("+")) {
+        return unary();
+      } else if (tok.is("(")) {
+        long val = conditional();
+        expect(")");
+        return val;
+      } else if (tok.type == TokenType.NUMBER) {
+        return parseNumber(tok);
+      } else if (tok.type == TokenType.CHAR) {
+        return parseChar(tok);
+      } else if (tok.type == TokenType.IDENT) {
+        // Identifiers that aren't macros are zero
+        return 0;
+      } else {
+        throw error(at, "token \"" + tok.text + "\" is not valid in " +
+                        "preprocessor expressions");
+      }
+    }
+
+    private long parseNumber(Token tok) throws PreprocessorException {
+      String s = tok.text;
+      int end = s.length();
+      while (end > 0 && "uUlL".indexOf(s.charAt(end - 1)) >= 0) {
+        end--;
+      }
+      s = s.substring(0, end);
+      try {
+        if (s.startsWith("0x") || s.startsWith("0X")) {
+          return Long.parseUnsignedLong(s.substring(2), 16);
+        } else if (s.startsWith("0b") || s.startsWith("0B")) {
+          return Long.parseUnsignedLong(s.substring(2), 2);
+        } else if (s.length() > 1 && s.startsWith("0")) {
+          return Long.parseUnsignedLong(s.substring(1), 8);
+        } else {
+          return Long.parseUnsignedLong(s);
+        }
+      } catch (NumberFormatException e) {
+        throw error(at, "invalid integer \"" + tok.text + "\" in #if");
+      }
+    }
+
+    private long parseChar(Token tok) throws PreprocessorException {
+      String s = tok.text.substring(1, tok.text.length() - 1);
+      if (s.length() == 1 && s.charAt(0) != '\\') {
+        return s.charAt(0);
+      } else if (s.length() == 2 && s.charAt(0) == '\\') {
+        int i = "ntr0\\'\"".indexOf(s.charAt(1));
+        if (i >= 0) {
+          return "\n\t\r\0\\'\"".charAt(i);
+        }
+      }
+      throw error(at, "unsupported character constant " + tok.text +
+                      " in #if");
+    }
+  }
+
+  /**
+   * Emit line marker before next output line
+   * @param flags flags for marker, e.g. " 1" for entering a file
+   */
+  private void marker(String file, int line, String flags) {
+    if (!lineEmpty) {
+      out.append('\n');
+      outLine++;
+    }
+    out.append("# ").append(line).append(' ').append(quote(file))
+       .append(flags).append('\n');
+    outLine++;
+    lineMapping.addPreprocInfo(outLine, file, line);
+    srcFile = file;
+    srcLine = line;
+    lineEmpty = true;
+    lastEmitted = null;
+  }
+
+  private void emit(Token tok) {
+    if (tok.type == TokenType.NEWLINE) {
+      return;
+    }
+
+    // Only move to token's line if that doesn't join it with previous
+    // token, e.g. after a line continuation
+    if (tok.line > srcLine && (tok.space || lineEmpty)) {
+      if (tok.line - srcLine > MAX_BLANK_LINES) {
+        marker(srcFile, tok.line, "");
+      } else {
+        while (srcLine < tok.line) {
+          out.append('\n');
+          outLine++;
+          srcLine++;
+        }
+        lineEmpty = true;
+      }
+    }
+
+    if (lineEmpty) {
+      // Indent to original column
+      for (int i = 0; i < tok.col; i++) {
+        out.append(' ');
+      }
+    } else if (tok.space || avoidPaste(lastEmitted, tok)) {
+      out.append(' ');
+    }
+    out.append(tok.text);
+    lineEmpty = false;
+    lastEmitted = tok;
+  }
+
+  /**
+   * @return true if a space is needed between tokens from macro expansion
+   *         so they aren't read back as a different token
+   */
+  private static boolean avoidPaste(Token prev, Token tok) {
+    if (prev == null || !(prev.fromMacro || tok.fromMacro)) {
+      return false;
+    }
+    char last = prev.text.charAt(prev.text.length() - 1);
+    char first = tok.text.charAt(0);
+    if (isIdentChar(last) && (isIdentChar(first) || first == '.')) {
+      return true;
+    }
+    if (prev.type == TokenType.PUNCT && tok.type == TokenType.PUNCT) {
+      String joined = prev.text + first;
+      for (String punct: PUNCTUATORS) {
+        if (punct.startsWith(joined)) {
+          return true;
+        }
+      }
+      return joined.equals("//") || joined.equals("/*");
+    }
+    return false;
+  }
+
+  private void finish() {
+    if (!lineEmpty) {
+      out.append('\n');
+    }
+  }
+}
@@ -2,9 +2,9 @@ package exm.stc.frontend;
 
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
 
 import exm.stc.common.Logging;
 import exm.stc.common.exceptions.STCRuntimeError;
@@ -33,10 +33,11 @@ import exm.stc.common.lang.WaitVar;
 public class VarRepr {
 
   /**
-   * Cache results of conversions, to avoid recomputing.
+   * Cache results of conversions, to avoid recomputing.  Concurrent
+   * since compilations may run in parallel in the same JVM.
    */
-  private static HashMap<Type, Type> conversionCache
-                          = new HashMap<Type, Type>();
+  private static final ConcurrentHashMap<Type, Type> conversionCache
+                          = new ConcurrentHashMap<Type, Type>();
 
   public static Var backendVar(Var frontendVar) {
     assert(frontendVar != null);
@@ -149,14 +150,14 @@ public class VarRepr {
       Type backendElemType = backendTypeInternal(frontendElemType,
                                                  checkInstantiate);
       if (storeRefInContainer(backendElemType)) {
-        type = Types.substituteElemType(type, new RefType(backendElemType, true));
+        type = Types.substituteElemType(type, RefType.create(backendElemType, true));
       }
     } else if (Types.isRef(type)) {
       Type frontendDerefT = type.memberType();
       Type backendDerefT = backendTypeInternal(frontendDerefT,
                                                checkInstantiate);
       if (!frontendDerefT.equals(backendDerefT)) {
-        type = new RefType(backendDerefT, Types.isMutableRef(type));
+        type = RefType.create(backendDerefT, Types.isMutableRef(type));
       }
     } else if (Types.isStruct(type) || Types.isStructLocal(type)) {
       type = backendStructType((StructType)type, checkInstantiate);
@@ -186,12 +187,12 @@ public class VarRepr {
                                         checkInstantiate);
       if (storeRefInStruct(fieldT)) {
         // Need to store as ref to separate data
-        fieldT = new RefType(fieldT, true);
+        fieldT = RefType.create(fieldT, true);
       }
       backendFields.add(new StructField(fieldT, frontendF.name()));
     }
 
-    return new StructType(frontend.isLocal(), frontend.typeName(),
+    return StructType.create(frontend.isLocal(), frontend.typeName(),
                             backendFields);
   }
 
@@ -264,7 +265,7 @@ public class VarRepr {
       backendOutputs.add(backendType(out, false));
     }
 
-    FunctionType result = new FunctionType(backendInputs, backendOutputs,
+    FunctionType result = FunctionType.create(backendInputs, backendOutputs,
                frontendType.hasVarargs(), frontendType.getTypeVars());
 
     conversionCache.put(frontendType, result);
@@ -276,7 +277,7 @@ public class VarRepr {
   public static Type elemRepr(Type memberType, CompoundType c,
                               boolean mutable) {
     if (storeRefInCompound(memberType, c)) {
-      return new RefType(memberType, mutable);
+      return RefType.create(memberType, mutable);
     } else {
       return memberType;
     }
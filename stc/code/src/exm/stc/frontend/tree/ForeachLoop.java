@@ -58,6 +58,8 @@ public class ForeachLoop {
   private int unroll = 1;
   private int splitDegree = DEFAULT_SPLIT_DEGREE;
   private int leafDegree = DEFAULT_LEAF_DEGREE;
+  /** True if no annotation fixed the split or leaf degree */
+  private boolean autoDegree = true;
 
   public int getDesiredUnroll() {
     return unroll;
@@ -71,6 +73,13 @@ public class ForeachLoop {
     return leafDegree;
   }
 
+  /**
+   * @return true if the optimizer is free to choose split and leaf degrees
+   */
+  public boolean isAutoDegree() {
+    return autoDegree;
+  }
+
   public List<String> getAnnotations() {
     return Collections.unmodifiableList(annotations);
   }
@@ -139,7 +148,7 @@ public class ForeachLoop {
     int unrollFactor = 1;
     int splitDegree = DEFAULT_SPLIT_DEGREE;
     int leafDegree = DEFAULT_LEAF_DEGREE;
-
+    boolean autoDegree = true;
 
     int annotationCount = 0;
     for (int i = tree.getChildCount() - 1; i >= 0; i--) {
@@ -158,9 +167,11 @@ public class ForeachLoop {
                 unrollFactor = (int)Math.min(Integer.MAX_VALUE, val);
               } else if (key.equals(Annotations.LOOP_SPLIT_DEGREE)) {
                 splitDegree = (int)Math.min(Integer.MAX_VALUE, val);;
+                autoDegree = false;
               } else {
                 assert(key.equals(Annotations.LOOP_LEAF_DEGREE));
                 leafDegree = (int)Math.min(Integer.MAX_VALUE, val);;
+                autoDegree = false;
               }
               annotationCount++;
             }
@@ -185,6 +196,7 @@ public class ForeachLoop {
     if (annotations.contains(Annotations.LOOP_NOSPLIT)) {
       // Disable splitting
       splitDegree = -1;
+      autoDegree = false;
     }
 
     int childCount = tree.getChildCount() - annotationCount;
@@ -210,6 +222,7 @@ public class ForeachLoop {
     loop.unroll = unrollFactor;
     loop.splitDegree = splitDegree;
     loop.leafDegree = leafDegree;
+    loop.autoDegree = autoDegree;
     return loop;
   }
 
@@ -311,7 +311,7 @@ public class FunctionCall {
     }
 
     FunctionType constructorType =
-        new FunctionType(constructorInputs, type.asList(), false);
+        FunctionType.create(constructorInputs, type.asList(), false);
 
     return structConstructor(func, posArgs, fieldNames, constructorType);
   }
@@ -334,7 +334,7 @@ public class FunctionCall {
     }
 
     Type baseType = type.stripSubTypes();
-    FunctionType constructorType = new FunctionType(baseType.asList(),
+    FunctionType constructorType = FunctionType.create(baseType.asList(),
                                                 type.asList(), false);
 
     return subtypeConstructor(func, posArgs, constructorType);
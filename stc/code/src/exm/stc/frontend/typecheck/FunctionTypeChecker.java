@@ -128,7 +128,7 @@ public class FunctionTypeChecker {
         if (argExprAltNoRef.assignableTo(formalArgAlt)) {
           Type argExprResult = argExprAltNoRef.concretize(formalArgAlt);
           if (Types.isRef(argExprAlt)) {
-            argExprResult = new RefType(argExprResult,
+            argExprResult = RefType.create(argExprResult,
                 ((RefType)argExprAlt).mutable());
           }
           return Pair.create(formalArgAlt, argExprResult);
@@ -623,7 +623,7 @@ public class FunctionTypeChecker {
     List<Type> concreteInputs = bindTypeVariables(inputs, binding);
     List<Type> concreteOutputs = bindTypeVariables(
         abstractType.getOutputs(), binding);
-    return new FunctionType(concreteInputs, concreteOutputs, false);
+    return FunctionType.create(concreteInputs, concreteOutputs, false);
   }
 
   /**
@@ -253,7 +253,7 @@ public class TypeChecker {
   public static Type structLoadResultType(Type structType, Type fieldType) {
     if (VarRepr.storeRefInStruct(fieldType)) {
       // Must copy reference once available
-      return new RefType(fieldType, false);
+      return RefType.create(fieldType, false);
     } else {
       // Can subscript immediately
       return fieldType;
@@ -354,7 +354,7 @@ public class TypeChecker {
         if (rMatchT.assignableTo(lMatchT)) {
           Type rValResultT = rMatchT;
           if (rDerefed) {
-            rValResultT = new RefType(rValResultT, ((RefType)rValAltT).mutable());
+            rValResultT = RefType.create(rValResultT, ((RefType)rValAltT).mutable());
           }
           if (LogHelper.isTraceEnabled()) {
             LogHelper.trace(context, "Selected rVal type " + rValResultT +
@@ -382,7 +382,7 @@ public class TypeChecker {
     Type result = Types.containerElemType(typed);
     if (!mutable && Types.isMutableRef(result)) {
       // Should be read-only ref
-      result = new RefType(result.memberType(), false);
+      result = RefType.create(result.memberType(), false);
     } else if (mutable && Types.isConstRef(result)) {
       throw new STCRuntimeError("Wanted mutable field, got " + result);
     }
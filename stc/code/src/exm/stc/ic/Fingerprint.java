@@ -0,0 +1,112 @@
+/*
+ * Copyright 2013 University of Chicago and Argonne National Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package exm.stc.ic;
+
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.apache.commons.io.output.NullOutputStream;
+
+import exm.stc.common.exceptions.STCRuntimeError;
+import exm.stc.common.lang.FnID;
+import exm.stc.common.lang.Var;
+
+/**
+ * Digest of serialized IC, along with the functions and global variables
+ * that it refers to.  Finding references by serializing means that no
+ * part of the IC can be missed.
+ */
+class Fingerprint {
+  private final String digest;
+  private final Set<FnID> functions;
+  private final Set<Var> globals;
+
+  private Fingerprint(String digest, Set<FnID> functions, Set<Var> globals) {
+    this.digest = digest;
+    this.functions = functions;
+    this.globals = globals;
+  }
+
+  public static Fingerprint of(Serializable ic) {
+    MessageDigest md = ICPackage.newDigest();
+    Set<FnID> functions = new HashSet<FnID>();
+    Set<Var> globals = new HashSet<Var>();
+    try {
+      ReferenceStream out = new ReferenceStream(
+          new DigestOutputStream(new NullOutputStream(), md),
+          functions, globals);
+      out.writeObject(ic);
+      out.close();
+    } catch (IOException e) {
+      throw new STCRuntimeError("Could not serialize " + ic, e);
+    }
+    return new Fingerprint(ICPackage.toHex(md.digest()), functions, globals);
+  }
+
+  /**
+   * @return hex digest of serialized IC
+   */
+  public String digest() {
+    return digest;
+  }
+
+  /**
+   * @return IDs of functions referred to, including any function itself
+   */
+  public Set<FnID> functions() {
+    return Collections.unmodifiableSet(functions);
+  }
+
+  /**
+   * @return global constants and variables referred to
+   */
+  public Set<Var> globals() {
+    return Collections.unmodifiableSet(globals);
+  }
+
+  /**
+   * Stream that records references while serializing
+   */
+  private static class ReferenceStream extends ObjectOutputStream {
+    private final Set<FnID> functions;
+    private final Set<Var> globals;
+
+    public ReferenceStream(OutputStream out, Set<FnID> functions,
+                           Set<Var> globals) throws IOException {
+      super(out);
+      this.functions = functions;
+      this.globals = globals;
+      enableReplaceObject(true);
+    }
+
+    @Override
+    protected Object replaceObject(Object obj) throws IOException {
+      if (obj instanceof FnID) {
+        functions.add((FnID)obj);
+      } else if (obj instanceof Var && ((Var)obj).storage().isGlobal()) {
+        globals.add((Var)obj);
+      }
+      return obj;
+    }
+  }
+}
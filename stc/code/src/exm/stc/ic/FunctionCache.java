@@ -0,0 +1,336 @@
+/*
+ * Copyright 2013 University of Chicago and Argonne National Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package exm.stc.ic;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.ListIterator;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.log4j.Logger;
+
+import exm.stc.common.Logging;
+import exm.stc.common.Settings;
+import exm.stc.common.exceptions.UserException;
+import exm.stc.common.lang.Arg;
+import exm.stc.common.lang.ExecContext;
+import exm.stc.common.lang.ExecContext.WorkContext;
+import exm.stc.common.lang.FnID;
+import exm.stc.common.lang.ForeignFunctions;
+import exm.stc.common.lang.Types.StructType;
+import exm.stc.common.lang.Var;
+import exm.stc.common.util.StackLite;
+import exm.stc.ic.tree.ICTree.BuiltinFunction;
+import exm.stc.ic.tree.ICTree.Function;
+import exm.stc.ic.tree.ICTree.Program;
+
+/**
+ * Cache of optimized functions shared between compiler runs.
+ *
+ * Each function is keyed by a hash of its unoptimized IC, the IC of all
+ * functions it may call, the properties of foreign functions it may call,
+ * the values of global constants these refer to, and the settings and
+ * compile-time arguments that affect optimization.  Optimized functions are stored in the cache
+ * directory as single-function packages named by key.  Cached functions
+ * are linked in as precompiled functions and are not optimized again.
+ *
+ * The result must be the same as compiling without the cache, so:
+ * <ul>
+ * <li>The cache is only used if no optimizations that change functions
+ *     based on their callers are enabled, i.e. inlining, specialization
+ *     and signature changes, since these depend on the whole program.
+ *     These are enabled at the default optimization level, so a warning
+ *     is given if the cache is requested but can't be used.</li>
+ * <li>A cached function is only used if all functions it calls are also
+ *     found in the cache, since it was optimized against the optimized
+ *     versions of its callees.</li>
+ * <li>Cached functions are pruned in the same way as other functions.</li>
+ * </ul>
+ */
+public class FunctionCache {
+
+  /**
+   * Optimizations that make functions depend on their callers
+   */
+  private static final List<String> INTERPROCEDURAL_OPTS = Arrays.asList(
+      Settings.OPT_FUNCTION_INLINE, Settings.OPT_FUNCTION_SPECIALIZE,
+      Settings.OPT_FUNCTION_SIGNATURE);
+
+  private final Logger logger;
+  private final File dir;
+
+  /** Cached functions linked into program */
+  private final Map<FnID, ICPackage> hits =
+                                      new LinkedHashMap<FnID, ICPackage>();
+
+  /** Keys of functions to add to cache once optimized */
+  private final Map<FnID, String> misses = new LinkedHashMap<FnID, String>();
+
+  private FunctionCache(Logger logger, File dir) {
+    this.logger = logger;
+    this.dir = dir;
+  }
+
+  /**
+   * @return cache for directory in settings, or null if cache disabled
+   */
+  public static FunctionCache fromSettings(Logger logger) {
+    String dir = Settings.get(Settings.IC_CACHE_DIR);
+    if (dir == null || dir.length() == 0) {
+      return null;
+    }
+    for (String opt: INTERPROCEDURAL_OPTS) {
+      if (Settings.getBooleanUnchecked(opt)) {
+        Logging.uniqueWarn("Function cache " + dir + " not used since " +
+            opt + " is enabled: compile with -O1 or disable " +
+            StringUtils.join(INTERPROCEDURAL_OPTS, ", ") + " to use it");
+        return null;
+      }
+    }
+    return new FunctionCache(logger, new File(dir));
+  }
+
+  /**
+   * Replace functions in program with cached optimized versions.
+   * Should be called before the program is optimized, once any
+   * packages are loaded.
+   */
+  public void load(Program program) {
+    Map<FnID, String> keys = computeKeys(program);
+
+    List<WorkContext> workContexts = new ArrayList<WorkContext>();
+    workContexts.add(ExecContext.defaultWorker().workContext());
+    workContexts.addAll(program.workTypes());
+
+    for (Entry<FnID, String> e: keys.entrySet()) {
+      FnID id = e.getKey();
+      String key = e.getValue();
+      ICPackage cached = lookup(program, id, key, workContexts);
+      if (cached != null) {
+        hits.put(id, cached);
+      } else {
+        misses.put(id, key);
+      }
+    }
+
+    removeIncompleteHits(program);
+
+    for (Entry<FnID, ICPackage> hit: hits.entrySet()) {
+      logger.trace("Using cached " + hit.getKey());
+      program.removeFunction(hit.getKey());
+      hit.getValue().load(logger, program, false);
+    }
+    logger.debug("Function cache: " + hits.size() + " hits, " +
+                 misses.size() + " misses");
+  }
+
+  /**
+   * Don't use cached functions that call functions which will be
+   * optimized in this run, so that cached functions don't need to keep
+   * their callees from being pruned or changed.  Repeat until all cached
+   * functions only call other cached functions.
+   */
+  private void removeIncompleteHits(Program program) {
+    boolean changed;
+    do {
+      changed = false;
+      Iterator<Entry<FnID, ICPackage>> it = hits.entrySet().iterator();
+      while (it.hasNext()) {
+        Entry<FnID, ICPackage> hit = it.next();
+        for (FnID ref: hit.getValue().externalRefs()) {
+          if (program.lookupFunction(ref) != null && !hits.containsKey(ref)) {
+            logger.trace("Not using cached " + hit.getKey() + ": calls " +
+                         ref + " which isn't cached");
+            misses.put(hit.getKey(), hit.getValue().key());
+            it.remove();
+            changed = true;
+            break;
+          }
+        }
+      }
+    } while (changed);
+  }
+
+  private ICPackage lookup(Program program, FnID id, String key,
+                           Collection<WorkContext> workContexts) {
+    File file = new File(dir, key + ICPackage.SUFFIX);
+    if (!file.isFile()) {
+      return null;
+    }
+
+    ICPackage cached;
+    try {
+      cached = ICPackage.read(file, program.foreignFunctions(), workContexts);
+    } catch (IOException e) {
+      logger.debug("Could not read cached function " + file + ": " +
+                   e.getMessage());
+      return null;
+    }
+
+    if (!cached.key().equals(key) ||
+        !cached.moduleName().equals(id.uniqueName())) {
+      logger.debug("Cached function " + file + " doesn't match " + id);
+      return null;
+    }
+
+    for (FnID ref: cached.externalRefs()) {
+      if (program.lookupFunction(ref) == null &&
+          !program.foreignFunctions().isForeignFunction(ref)) {
+        logger.debug("Cached function " + file + " calls undefined " + ref);
+        return null;
+      }
+    }
+    return cached;
+  }
+
+  /**
+   * Add newly optimized functions to cache and link in constants for
+   * cached functions.  Should be called after the program is optimized.
+   */
+  public void finish(Program program) {
+    for (Entry<FnID, ICPackage> hit: hits.entrySet()) {
+      if (program.lookupFunction(hit.getKey()) != null) {
+        // Not pruned
+        hit.getValue().linkConstants(logger, program);
+      }
+    }
+
+    if (misses.isEmpty()) {
+      return;
+    }
+
+    if (!dir.isDirectory() && !dir.mkdirs()) {
+      logger.debug("Could not create function cache directory " + dir);
+      return;
+    }
+
+    for (Entry<FnID, String> e: misses.entrySet()) {
+      Function fn = program.lookupFunction(e.getKey());
+      if (fn == null) {
+        continue;
+      }
+
+      File file = new File(dir, e.getValue() + ICPackage.SUFFIX);
+      try {
+        ICPackage.forFunction(logger, program, fn, e.getValue()).write(file);
+      } catch (UserException ex) {
+        logger.debug("Not caching " + fn.id() + ": " + ex.getMessage());
+      } catch (IOException ex) {
+        logger.debug("Could not write cached function " + file + ": " +
+                     ex.getMessage());
+      }
+    }
+  }
+
+  /**
+   * Compute keys for all functions that can be cached
+   */
+  private Map<FnID, String> computeKeys(Program program) {
+    ForeignFunctions foreignFuncs = program.foreignFunctions();
+
+    Map<FnID, Fingerprint> fingerprints = new HashMap<FnID, Fingerprint>();
+    for (Function fn: program.getFunctionMap().values()) {
+      fingerprints.put(fn.id(), Fingerprint.of(fn));
+    }
+
+    Map<FnID, String> builtins = new HashMap<FnID, String>();
+    ListIterator<BuiltinFunction> it = program.builtinIterator();
+    while (it.hasNext()) {
+      BuiltinFunction builtin = it.next();
+      StringBuilder sb = new StringBuilder();
+      builtin.prettyPrint(sb);
+      builtins.put(builtin.id(), sb.toString());
+    }
+
+    // Declarations that may affect any function
+    Set<String> declarations = new TreeSet<String>();
+    for (StructType st: program.structTypes()) {
+      declarations.add("struct " + Fingerprint.of(st).digest());
+    }
+    for (WorkContext wc: program.workTypes()) {
+      declarations.add("worktype " + wc.name());
+    }
+
+    Map<FnID, String> keys = new LinkedHashMap<FnID, String>();
+    for (Function fn: program.functions()) {
+      Set<String> lines = new TreeSet<String>(declarations);
+      boolean cacheable = true;
+
+      Set<FnID> visited = new HashSet<FnID>();
+      StackLite<FnID> work = new StackLite<FnID>();
+      work.push(fn.id());
+      while (!work.isEmpty()) {
+        FnID id = work.pop();
+        if (!visited.add(id)) {
+          continue;
+        }
+
+        Fingerprint fp = fingerprints.get(id);
+        if (fp != null) {
+          lines.add("function " + id + " " + fp.digest());
+          work.addAll(fp.functions());
+          for (Var global: fp.globals()) {
+            Arg val = program.constants().lookupByVar(global);
+            if (val == null) {
+              // Value of global variable not known at compile time
+              cacheable = false;
+            } else {
+              lines.add("const " + global.name() + " " + val.type() + " " +
+                        val);
+            }
+          }
+        }
+        if (foreignFuncs.isForeignFunction(id)) {
+          lines.add("foreign " + foreignFuncs.describe(id));
+          FnID localImpl = foreignFuncs.getLocalImpl(id);
+          if (localImpl != null) {
+            work.push(localImpl);
+          }
+        }
+        String builtin = builtins.get(id);
+        if (builtin != null) {
+          lines.add("builtin " + builtin);
+        }
+      }
+
+      if (cacheable) {
+        StringBuilder sb = new StringBuilder();
+        for (String line: lines) {
+          sb.append(line);
+          sb.append('\n');
+        }
+        keys.put(fn.id(),
+                 ICPackage.key(sb.toString().getBytes(StandardCharsets.UTF_8)));
+      } else {
+        logger.debug("Function " + fn.id() + " can't be cached");
+      }
+    }
+    return keys;
+  }
+}
@@ -0,0 +1,756 @@
+/*
+ * Copyright 2013 University of Chicago and Argonne National Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package exm.stc.ic;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InvalidClassException;
+import java.io.InvalidObjectException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.ListIterator;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.TreeMap;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.log4j.Logger;
+
+import exm.stc.common.Settings;
+import exm.stc.common.exceptions.STCRuntimeError;
+import exm.stc.common.exceptions.UserException;
+import exm.stc.common.lang.Arg;
+import exm.stc.common.lang.AsyncExecutor;
+import exm.stc.common.lang.CompileTimeArgs;
+import exm.stc.common.lang.ExecContext.WorkContext;
+import exm.stc.common.lang.FnID;
+import exm.stc.common.lang.ForeignFunctions;
+import exm.stc.common.lang.Types.FunctionType;
+import exm.stc.common.lang.Var;
+import exm.stc.common.util.StackLite;
+import exm.stc.ic.opt.PruneFunctions;
+import exm.stc.ic.tree.ICContinuations.Continuation;
+import exm.stc.ic.tree.ICInstructions.FunctionCall;
+import exm.stc.ic.tree.ICTree.Block;
+import exm.stc.ic.tree.ICTree.Function;
+import exm.stc.ic.tree.ICTree.GlobalConstants;
+import exm.stc.ic.tree.ICTree.Program;
+import exm.stc.ic.tree.ICTree.RenameMode;
+import exm.stc.ic.tree.ICTree.Statement;
+import exm.stc.ic.tree.ICTree.StatementType;
+
+/**
+ * A module compiled and optimized separately from the programs that
+ * import it.
+ *
+ * A package holds the optimized IC for the functions defined in the
+ * module, along with any generated functions they call, such as wrappers
+ * for builtins.  Programs importing the module still load its definitions
+ * and compile its top-level code from source, but link in the package's
+ * functions instead of compiling and optimizing them again.  Functions
+ * are linked in before the program is optimized so that calls to them
+ * can be analyzed, but are not optimized further.  Small functions are
+ * also saved as they were before reference counting was added, so that
+ * they can be inlined into the importing program.  Code for the whole
+ * program, including precompiled functions, is generated from the linked
+ * IC, since struct type IDs and other details are assigned per program.
+ *
+ * Packages are keyed by a hash of the module source, settings that
+ * affect optimization and compile-time arguments, and record hashes of
+ * other modules they were compiled against, so stale packages are never
+ * used.
+ */
+public class ICPackage implements Serializable {
+
+  private static final long serialVersionUID = 1L;
+
+  static final int MAGIC = 0x53544350; // "STCP"
+  static final int FORMAT_VERSION = 3;
+  public static final String SUFFIX = ".icp";
+
+  private final String moduleName;
+
+  /** Hash of module source and settings */
+  private final String key;
+
+  /** Hashes of sources of other modules compiled with this module */
+  @SuppressWarnings("serial")
+  private final Map<String, String> dependencies;
+
+  /** Frontend types of functions defined in module */
+  @SuppressWarnings("serial")
+  private final Map<FnID, FunctionType> exports;
+
+  /** Functions defined in module plus generated functions they call */
+  @SuppressWarnings("serial")
+  private final List<Function> functions;
+
+  /** Copies of functions before reference counting for inlining */
+  @SuppressWarnings("serial")
+  private final List<Function> inlineBodies;
+
+  /** Global constants referenced by functions */
+  @SuppressWarnings("serial")
+  private final Map<Var, Arg> constants;
+
+  /** Functions outside package called by package functions */
+  @SuppressWarnings("serial")
+  private final Set<FnID> externalRefs;
+
+  /** Foreign function properties of package functions */
+  private final ForeignFunctions foreignFuncs;
+
+  private final boolean checkpointRequired;
+
+  private ICPackage(String moduleName, String key,
+      Map<String, String> dependencies, Map<FnID, FunctionType> exports,
+      List<Function> functions, List<Function> inlineBodies,
+      Map<Var, Arg> constants, Set<FnID> externalRefs,
+      ForeignFunctions foreignFuncs, boolean checkpointRequired) {
+    this.moduleName = moduleName;
+    this.key = key;
+    this.dependencies = dependencies;
+    this.exports = exports;
+    this.functions = functions;
+    this.inlineBodies = inlineBodies;
+    this.constants = constants;
+    this.externalRefs = externalRefs;
+    this.foreignFuncs = foreignFuncs;
+    this.checkpointRequired = checkpointRequired;
+  }
+
+  public String moduleName() {
+    return moduleName;
+  }
+
+  public String key() {
+    return key;
+  }
+
+  public Map<String, String> dependencies() {
+    return Collections.unmodifiableMap(dependencies);
+  }
+
+  public Map<FnID, FunctionType> exports() {
+    return Collections.unmodifiableMap(exports);
+  }
+
+  public Set<FnID> externalRefs() {
+    return Collections.unmodifiableSet(externalRefs);
+  }
+
+  /**
+   * Create package from optimized program.  The program should have been
+   * optimized with the exported functions and any functions from other
+   * modules marked as externally referenced, so that they keep their IDs
+   * and signatures, and with inline bodies requested.
+   * @param moduleName
+   * @param key key for module from key()
+   * @param dependencies source hashes of other modules
+   * @param exports functions defined in module
+   * @throws UserException if module can't be compiled separately
+   */
+  public static ICPackage create(Logger logger, Program program,
+      String moduleName, String key, Map<String, String> dependencies,
+      Map<FnID, FunctionType> exports) throws UserException {
+    ForeignFunctions programFuncs = program.foreignFunctions();
+    List<Function> functions = new ArrayList<Function>();
+    Set<FnID> externalRefs = new HashSet<FnID>();
+    Set<FnID> visited = new HashSet<FnID>();
+
+    StackLite<FnID> work = new StackLite<FnID>();
+    work.addAll(exports.keySet());
+    while (!work.isEmpty()) {
+      FnID id = work.pop();
+      if (!visited.add(id)) {
+        continue;
+      }
+
+      Function fn = program.lookupFunction(id);
+      if (fn == null || program.precompiledFunctions().contains(fn) ||
+          (program.isExternallyReferenced(id) && !exports.containsKey(id))) {
+        // Defined outside module
+        externalRefs.add(id);
+        continue;
+      }
+
+      if (!exports.containsKey(id)) {
+        logger.trace("Including generated function " + id + " in package");
+      }
+      functions.add(fn);
+      work.addAll(PruneFunctions.directDependencies(logger, programFuncs, fn));
+      FnID localImpl = programFuncs.getLocalImpl(id);
+      if (localImpl != null) {
+        work.push(localImpl);
+      }
+    }
+
+    for (FnID export: exports.keySet()) {
+      if (program.lookupFunction(export) == null) {
+        throw new STCRuntimeError("Exported function " + export +
+                                  " was removed by optimizer");
+      }
+    }
+
+    List<Function> inlineBodies = new ArrayList<Function>();
+    for (Function fn: functions) {
+      Function body = program.inlineBody(fn.id());
+      if (body != null) {
+        inlineBodies.add(body);
+      }
+    }
+
+    List<Function> referencing = new ArrayList<Function>(functions);
+    referencing.addAll(inlineBodies);
+    Map<Var, Arg> constants = findConstants(program,
+                                    "module " + moduleName, referencing);
+
+    ForeignFunctions packageFuncs = new ForeignFunctions();
+    for (Function fn: functions) {
+      if (programFuncs.isForeignFunction(fn.id())) {
+        packageFuncs.copyProperties(fn.id(), programFuncs, fn.id());
+      }
+    }
+
+    return new ICPackage(moduleName, key,
+        new TreeMap<String, String>(dependencies),
+        new LinkedHashMap<FnID, FunctionType>(exports), functions,
+        inlineBodies, constants, externalRefs, packageFuncs,
+        program.checkpointRequired());
+  }
+
+  /**
+   * Create package holding a single optimized function, e.g. to cache it.
+   * The program should have been optimized with the function marked as
+   * externally referenced.
+   * @param key key for function
+   * @throws UserException if function can't be compiled separately
+   */
+  public static ICPackage forFunction(Logger logger, Program program,
+                          Function fn, String key) throws UserException {
+    ForeignFunctions programFuncs = program.foreignFunctions();
+    String name = fn.id().uniqueName();
+    List<Function> functions = new ArrayList<Function>();
+    functions.add(fn);
+
+    Set<FnID> externalRefs = new HashSet<FnID>(
+            PruneFunctions.directDependencies(logger, programFuncs, fn));
+    FnID localImpl = programFuncs.getLocalImpl(fn.id());
+    if (localImpl != null) {
+      externalRefs.add(localImpl);
+    }
+
+    Map<Var, Arg> constants = findConstants(program,
+                                            "function " + name, functions);
+
+    ForeignFunctions packageFuncs = new ForeignFunctions();
+    if (programFuncs.isForeignFunction(fn.id())) {
+      packageFuncs.copyProperties(fn.id(), programFuncs, fn.id());
+    }
+
+    return new ICPackage(name, key, new TreeMap<String, String>(),
+        new LinkedHashMap<FnID, FunctionType>(), functions,
+        new ArrayList<Function>(), constants, externalRefs, packageFuncs,
+        false);
+  }
+
+  /**
+   * Find global constants referenced by functions
+   * @param what description of what is being compiled, for errors
+   * @throws UserException if global variables are referenced
+   */
+  private static Map<Var, Arg> findConstants(Program program, String what,
+          List<Function> functions) throws UserException {
+    Map<Var, Arg> constants = new TreeMap<Var, Arg>();
+    for (Function fn: functions) {
+      for (Var global: Fingerprint.of(fn).globals()) {
+        Arg val = program.constants().lookupByVar(global);
+        if (val == null) {
+          throw new UserException("Cannot compile " + what +
+              " separately: functions refer to global variable " +
+              global.name());
+        }
+        constants.put(global, val);
+      }
+    }
+    return constants;
+  }
+
+  /**
+   * Add package's functions to program.  Should be called before
+   * the program is optimized.
+   */
+  public void load(Logger logger, Program program) {
+    load(logger, program, true);
+  }
+
+  /**
+   * Add package's functions to program.  Should be called before
+   * the program is optimized.
+   * @param keep if true, keep functions and the functions they call even
+   *        if not used by the program
+   */
+  public void load(Logger logger, Program program, boolean keep) {
+    ForeignFunctions programFuncs = program.foreignFunctions();
+
+    // Choose new IDs for functions that clash with program functions
+    Map<FnID, FnID> renames = new HashMap<FnID, FnID>();
+    Set<FnID> usedIDs = new HashSet<FnID>(program.getFunctionMap().keySet());
+    ListIterator<Function> it = functions.listIterator();
+    while (it.hasNext()) {
+      Function fn = it.next();
+      if (!usedIDs.contains(fn.id())) {
+        continue;
+      }
+
+      if (foreignFuncs.isForeignFunction(fn.id())) {
+        // Program generated an identical wrapper for the builtin
+        logger.debug("Using program's copy of " + fn.id() +
+                     " instead of package " + moduleName);
+        it.remove();
+        externalRefs.add(fn.id());
+      } else {
+        FnID newID = uniqueID(fn.id(), usedIDs);
+        logger.debug("Renaming " + fn.id() + " from package " + moduleName +
+                     " to " + newID);
+        renames.put(fn.id(), newID);
+        usedIDs.add(newID);
+      }
+    }
+
+    for (int i = 0; i < functions.size(); i++) {
+      Function fn = functions.get(i);
+      FnID origID = fn.id();
+      if (!renames.isEmpty()) {
+        renameCalls(fn.mainBlock(), renames);
+        FnID newID = renames.get(origID);
+        if (newID != null) {
+          fn = fn.copyWithID(newID);
+          functions.set(i, fn);
+        }
+      }
+
+      if (foreignFuncs.isForeignFunction(origID) &&
+          !programFuncs.isForeignFunction(fn.id())) {
+        programFuncs.copyProperties(fn.id(), foreignFuncs, origID);
+      }
+    }
+
+    Set<FnID> loaded = new HashSet<FnID>();
+    Set<FnID> refs = new HashSet<FnID>();
+    for (Function fn: functions) {
+      program.addPrecompiledFunction(fn);
+      loaded.add(fn.id());
+      refs.add(fn.id());
+      refs.addAll(PruneFunctions.directDependencies(logger, programFuncs, fn));
+    }
+    if (keep) {
+      program.addExternalRefs(refs);
+    }
+
+    for (Function body: inlineBodies) {
+      FnID newID = renames.get(body.id());
+      if (!renames.isEmpty()) {
+        renameCalls(body.mainBlock(), renames);
+      }
+      if (newID != null) {
+        body = body.copyWithID(newID);
+      }
+      if (loaded.contains(body.id())) {
+        program.addInlineBody(body);
+      }
+    }
+
+    // Inlined code may refer to constants
+    linkConstants(logger, program);
+
+    if (checkpointRequired) {
+      program.requireCheckpointing();
+    }
+  }
+
+  /**
+   * Add global constants used by package functions to program.  This is
+   * done when the package is loaded, and should be done again after the
+   * program is optimized, since the optimizer doesn't know about uses of
+   * constants in precompiled functions and may have removed them.
+   */
+  public void linkConstants(Logger logger, Program program) {
+    GlobalConstants programConsts = program.constants();
+    Map<Var, Arg> renames = new HashMap<Var, Arg>();
+    for (Entry<Var, Arg> c: constants.entrySet()) {
+      Var var = c.getKey();
+      Arg val = c.getValue();
+      Arg existing = programConsts.lookupByVar(var);
+      if (existing == null) {
+        programConsts.add(var, val);
+      } else if (!existing.equals(val)) {
+        Var replacement = programConsts.getOrCreateByVal(val);
+        logger.debug("Renaming constant " + var.name() + " from package " +
+                     moduleName + " to " + replacement.name());
+        renames.put(var, replacement.asArg());
+      }
+    }
+
+    if (!renames.isEmpty()) {
+      for (Function fn: functions) {
+        fn.mainBlock().renameVars(fn.id(), renames, RenameMode.REPLACE_VAR,
+                                  true);
+      }
+      for (Function body: inlineBodies) {
+        body.mainBlock().renameVars(body.id(), renames,
+                                    RenameMode.REPLACE_VAR, true);
+      }
+    }
+  }
+
+  private static FnID uniqueID(FnID id, Set<FnID> used) {
+    int counter = 1;
+    FnID newID;
+    do {
+      newID = new FnID(id.uniqueName() + "-" + counter, id.originalName());
+      counter++;
+    } while (used.contains(newID));
+    return newID;
+  }
+
+  private static void renameCalls(Block block, Map<FnID, FnID> renames) {
+    StackLite<Block> work = new StackLite<Block>();
+    work.push(block);
+    while (!work.isEmpty()) {
+      Block curr = work.pop();
+      ListIterator<Statement> it = curr.statementIterator();
+      while (it.hasNext()) {
+        Statement stmt = it.next();
+        if (stmt.type() == StatementType.INSTRUCTION &&
+            stmt.instruction() instanceof FunctionCall) {
+          FunctionCall call = (FunctionCall)stmt.instruction();
+          FnID newID = renames.get(call.functionID());
+          if (newID != null) {
+            it.set(call.renamed(newID));
+          }
+        }
+      }
+      for (Continuation c: curr.allComplexStatements()) {
+        work.addAll(c.getBlocks());
+      }
+    }
+  }
+
+  /**
+   * Compute key for module
+   * @param source module source
+   */
+  public static String key(byte[] source) {
+    MessageDigest digest = newDigest();
+    updateDigest(digest, Settings.get(Settings.STC_VERSION));
+    updateDigest(digest, Integer.toString(FORMAT_VERSION));
+    for (String setting: Settings.getKeys()) {
+      if (affectsOutput(setting)) {
+        updateDigest(digest, setting);
+        updateDigest(digest, Settings.get(setting));
+      }
+    }
+    // argv() calls are folded to compile-time argument values
+    for (Entry<String, String> arg:
+              CompileTimeArgs.getCompileTimeArgs().entrySet()) {
+      updateDigest(digest, "-A" + arg.getKey());
+      updateDigest(digest, arg.getValue());
+    }
+    String runtimeProfile = Settings.get(Settings.OPT_RUNTIME_PROFILE);
+    if (runtimeProfile != null && runtimeProfile.length() > 0) {
+      // Output depends on profile contents, not just file name
+      try {
+        digest.update(FileUtils.readFileToByteArray(new File(runtimeProfile)));
+      } catch (IOException e) {
+        // Optimizer will report error
+      }
+    }
+    digest.update(source);
+    return toHex(digest.digest());
+  }
+
+  /**
+   * Hash of source of module
+   */
+  public static String sourceHash(byte[] source) {
+    MessageDigest digest = newDigest();
+    digest.update(source);
+    return toHex(digest.digest());
+  }
+
+  private static boolean affectsOutput(String setting) {
+    if (setting.equals(Settings.OPT_THREADS) ||
+        setting.equals(Settings.OPT_VALIDATE_PASSES) ||
+        setting.equals(Settings.IC_PACKAGE_OUTPUT) ||
+        setting.equals(Settings.IC_PACKAGE_PATH)) {
+      return false;
+    }
+    return setting.startsWith("stc.opt.") ||
+        setting.equals(Settings.ENABLE_REFCOUNTING) ||
+        setting.equals(Settings.ENABLE_CHECKPOINTING) ||
+        setting.equals(Settings.BACKEND) ||
+        setting.equals(Settings.TURBINE_VERSION) ||
+        setting.equals(Settings.DEBUG_LEVEL) ||
+        setting.equals(Settings.MUST_PASS_WAIT_VARS);
+  }
+
+  static MessageDigest newDigest() {
+    try {
+      return MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new STCRuntimeError("SHA-256 not supported by JVM", e);
+    }
+  }
+
+  private static void updateDigest(MessageDigest digest, String s) {
+    String val = s == null ? "" : s;
+    digest.update(val.getBytes(StandardCharsets.UTF_8));
+    // Separator so that fields can't run together
+    digest.update((byte)0);
+  }
+
+  static String toHex(byte[] bytes) {
+    StringBuilder sb = new StringBuilder();
+    for (byte b: bytes) {
+      sb.append(String.format("%02x", b));
+    }
+    return sb.toString();
+  }
+
+  /**
+   * Search package path for up-to-date package for module
+   * @param moduleName canonical module name
+   * @param path path of module source
+   * @param foreignFuncs foreign functions of program
+   * @param workContexts work types of program
+   * @return package, or null if not found
+   */
+  public static ICPackage find(Logger logger, String moduleName, String path,
+      ForeignFunctions foreignFuncs, Collection<WorkContext> workContexts) {
+    String packagePath = Settings.get(Settings.IC_PACKAGE_PATH);
+    if (packagePath == null || packagePath.length() == 0) {
+      return null;
+    }
+
+    String key;
+    try {
+      key = key(FileUtils.readFileToByteArray(new File(path)));
+    } catch (IOException e) {
+      logger.debug("Could not read module " + path + ": " + e.getMessage());
+      return null;
+    }
+
+    for (String dir: packagePath.split(File.pathSeparator)) {
+      if (dir.length() == 0) {
+        continue;
+      }
+      File file = new File(dir, moduleName + SUFFIX);
+      if (!file.isFile()) {
+        continue;
+      }
+
+      ICPackage pkg;
+      try {
+        pkg = read(file, foreignFuncs, workContexts);
+      } catch (IOException e) {
+        logger.debug("Could not read IC package " + file + ": " +
+                     e.getMessage());
+        continue;
+      }
+
+      if (!pkg.moduleName.equals(moduleName) || !pkg.key.equals(key)) {
+        logger.debug("IC package " + file + " is out of date");
+        continue;
+      }
+      logger.debug("Found IC package " + file + " for module " + moduleName);
+      return pkg;
+    }
+    return null;
+  }
+
+  public void write(File file) throws IOException {
+    File dir = file.getAbsoluteFile().getParentFile();
+    // Write to temporary file and rename so that concurrent compiles
+    // never see partial packages
+    File tmp = File.createTempFile("stc-package", SUFFIX + ".tmp", dir);
+    try {
+      ObjectOutputStream out = new ObjectOutputStream(
+          new BufferedOutputStream(new FileOutputStream(tmp)));
+      try {
+        out.writeInt(MAGIC);
+        out.writeInt(FORMAT_VERSION);
+        out.writeObject(this);
+      } finally {
+        out.close();
+      }
+      if (!tmp.renameTo(file)) {
+        throw new IOException("Could not rename " + tmp + " to " + file);
+      }
+    } finally {
+      if (tmp.exists()) {
+        tmp.delete();
+      }
+    }
+  }
+
+  /**
+   * Read package from file
+   * @param foreignFuncs foreign functions of program package will
+   *                     be linked into
+   * @param workContexts work types of program
+   */
+  public static ICPackage read(File file, ForeignFunctions foreignFuncs,
+            Collection<WorkContext> workContexts) throws IOException {
+    PackageInputStream in = new PackageInputStream(
+        new BufferedInputStream(new FileInputStream(file)), foreignFuncs,
+        workContexts);
+    try {
+      if (in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION) {
+        throw new IOException("Invalid header");
+      }
+      return (ICPackage)in.readObject();
+    } catch (ClassNotFoundException e) {
+      throw new IOException(e);
+    } catch (ClassCastException e) {
+      throw new IOException(e);
+    } finally {
+      in.close();
+    }
+  }
+
+  /**
+   * Find foreign functions that deserialized IC should refer to
+   * @param in stream IC is being read from
+   */
+  public static ForeignFunctions foreignFunctions(ObjectInputStream in)
+                                            throws InvalidObjectException {
+    if (!(in instanceof PackageInputStream)) {
+      throw new InvalidObjectException("IC can only be read from package");
+    }
+    return ((PackageInputStream)in).foreignFuncs;
+  }
+
+  /**
+   * Stream that binds deserialized IC to the program it is linked into.
+   * Only classes that can appear in IC are deserialized, so that a
+   * corrupt or malicious package file can't instantiate other classes.
+   */
+  private static class PackageInputStream extends ObjectInputStream {
+    private static final List<String> ALLOWED_CLASS_PREFIXES = Arrays.asList(
+        "exm.stc.", "java.lang.", "java.util.", "java.math.",
+        "com.google.common.collect.");
+
+    private final ForeignFunctions foreignFuncs;
+    private final Map<String, WorkContext> workContexts;
+    private final Map<String, AsyncExecutor> executors;
+
+    public PackageInputStream(InputStream in, ForeignFunctions foreignFuncs,
+        Collection<WorkContext> workContexts) throws IOException {
+      super(in);
+      this.foreignFuncs = foreignFuncs;
+      this.workContexts = new HashMap<String, WorkContext>();
+      this.executors = new HashMap<String, AsyncExecutor>();
+      for (WorkContext workContext: workContexts) {
+        this.workContexts.put(workContext.name(), workContext);
+        AsyncExecutor executor = workContext.asyncExecutor();
+        if (executor != null) {
+          this.executors.put(executor.name(), executor);
+        }
+      }
+      enableResolveObject(true);
+    }
+
+    @Override
+    protected Class<?> resolveClass(ObjectStreamClass desc)
+                              throws IOException, ClassNotFoundException {
+      if (!allowedClass(desc.getName())) {
+        throw new InvalidClassException(desc.getName(),
+                                        "Class not allowed in IC package");
+      }
+      return super.resolveClass(desc);
+    }
+
+    @Override
+    protected Class<?> resolveProxyClass(String[] interfaces)
+                                                    throws IOException {
+      throw new InvalidClassException("Proxy classes not allowed in " +
+                                      "IC package");
+    }
+
+    private static boolean allowedClass(String name) {
+      // Strip array dimensions
+      int dims = 0;
+      while (dims < name.length() && name.charAt(dims) == '[') {
+        dims++;
+      }
+      if (dims > 0) {
+        if (name.charAt(dims) != 'L') {
+          // Array of primitives
+          return true;
+        }
+        name = name.substring(dims + 1, name.length() - 1);
+      }
+      for (String prefix: ALLOWED_CLASS_PREFIXES) {
+        if (name.startsWith(prefix)) {
+          return true;
+        }
+      }
+      return false;
+    }
+
+    @Override
+    protected Object resolveObject(Object obj) throws IOException {
+      if (obj instanceof WorkContext) {
+        // Work contexts are compared by identity
+        String name = ((WorkContext)obj).name();
+        WorkContext workContext = workContexts.get(name);
+        if (workContext == null) {
+          throw new InvalidObjectException("Unknown work type " + name);
+        }
+        return workContext;
+      } else if (obj instanceof AsyncExecutor) {
+        // Executor templates aren't serialized
+        String name = ((AsyncExecutor)obj).name();
+        AsyncExecutor executor = executors.get(name);
+        if (executor == null) {
+          throw new InvalidObjectException("Unknown executor " + name);
+        }
+        return executor;
+      }
+      return obj;
+    }
+  }
+}
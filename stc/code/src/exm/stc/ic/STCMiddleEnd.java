@@ -15,9 +15,12 @@
  */
 package exm.stc.ic;
 
+import java.io.File;
+import java.io.IOException;
 import java.io.PrintStream;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
@@ -63,6 +66,7 @@ import exm.stc.common.util.Pair;
 import exm.stc.common.util.StackLite;
 import exm.stc.common.util.TernaryLogic.Ternary;
 import exm.stc.ic.opt.ICOptimizer;
+import exm.stc.ic.opt.OptimizerProfile;
 import exm.stc.ic.opt.OptUtil;
 import exm.stc.ic.tree.Conditionals.IfStatement;
 import exm.stc.ic.tree.Conditionals.SwitchStatement;
@@ -108,6 +112,16 @@ public class STCMiddleEnd {
 //Place to log IC to (can be null for no output)
   private PrintStream icOutput;
 
+  /** Precompiled packages to link into program */
+  private final List<ICPackage> packages = new ArrayList<ICPackage>();
+
+  /** Package to build from main module after optimization, if any */
+  private File packageOutput = null;
+  private String packageModule;
+  private String packageKey;
+  private Map<String, String> packageDependencies;
+  private Map<FnID, FunctionType> packageExports;
+
   private Block currBlock() {
     return blockStack.peek();
   }
@@ -127,10 +141,110 @@ public class STCMiddleEnd {
 
   public void optimize() throws UserException {
     logger.debug("Optimising Swift IC");
+    loadPackages();
+    FunctionCache cache = loadCachedFunctions();
     // System.out.println(program);
     program = ICOptimizer.optimize(logger, icOutput, program);
     // System.out.println(program);
     logger.debug("Optimisation done");
+    finishPackages();
+    if (cache != null) {
+      cache.finish(program);
+    }
+  }
+
+  /**
+   * Optimize, recording each pass in the profile
+   * @param profile
+   * @throws UserException
+   */
+  public void optimize(OptimizerProfile profile) throws UserException {
+    logger.debug("Optimising Swift IC");
+    loadPackages();
+    FunctionCache cache = loadCachedFunctions();
+    program = ICOptimizer.optimize(logger, icOutput, program, profile);
+    logger.debug("Optimisation done");
+    finishPackages();
+    if (cache != null) {
+      cache.finish(program);
+    }
+  }
+
+  /**
+   * Link in functions from a precompiled package when the program is
+   * optimized.
+   */
+  public void linkPackage(ICPackage pkg) {
+    packages.add(pkg);
+  }
+
+  /**
+   * Build a precompiled package from the main module once the program
+   * is optimized.
+   * @param output file to write package to
+   * @param moduleName
+   * @param key key for module source
+   * @param dependencies source hashes of other modules
+   * @param exports functions defined in module with their types
+   * @param externalFns functions defined in other modules
+   */
+  public void buildPackage(File output, String moduleName, String key,
+      Map<String, String> dependencies, Map<FnID, FunctionType> exports,
+      Collection<FnID> externalFns) {
+    this.packageOutput = output;
+    this.packageModule = moduleName;
+    this.packageKey = key;
+    this.packageDependencies = dependencies;
+    this.packageExports = exports;
+
+    // Package functions and functions they call must keep signatures
+    program.addExternalRefs(exports.keySet());
+    program.addExternalRefs(externalFns);
+
+    // Save small functions before refcounting so callers can inline them
+    program.requestInlineBodies();
+  }
+
+  private void loadPackages() {
+    for (ICPackage pkg: packages) {
+      logger.debug("Loading functions from package " + pkg.moduleName());
+      pkg.load(logger, program);
+    }
+  }
+
+  /**
+   * Replace functions with optimized versions from cache, if enabled
+   * @return the cache, or null if not enabled
+   */
+  private FunctionCache loadCachedFunctions() {
+    if (packageOutput != null) {
+      // Package must contain the module's functions
+      return null;
+    }
+    FunctionCache cache = FunctionCache.fromSettings(logger);
+    if (cache != null) {
+      cache.load(program);
+    }
+    return cache;
+  }
+
+  private void finishPackages() throws UserException {
+    for (ICPackage pkg: packages) {
+      pkg.linkConstants(logger, program);
+    }
+
+    if (packageOutput != null) {
+      ICPackage pkg = ICPackage.create(logger, program, packageModule,
+            packageKey, packageDependencies, packageExports);
+      try {
+        pkg.write(packageOutput);
+      } catch (IOException e) {
+        throw new UserException("Could not write IC package " +
+                                packageOutput + ": " + e.getMessage());
+      }
+      logger.debug("Wrote IC package for " + packageModule + " to " +
+                   packageOutput);
+    }
   }
 
   /**
@@ -307,7 +421,8 @@ public class STCMiddleEnd {
 
   public void startForeachLoop(String loopName,
           Var container, Var memberVar, Var loopCountVar,
-          int splitDegree, int leafDegree, boolean arrayClosed) {
+          int splitDegree, int leafDegree, boolean autoDegree,
+          boolean arrayClosed) {
     assert(Types.isContainer(container) || Types.isContainerLocal(container)):
           "foreach loop over bad type: " + container.toString();
 
@@ -321,7 +436,7 @@ public class STCMiddleEnd {
     }
     ForeachLoop loop = new ForeachLoop(loopName,
             container, memberVar, loopCountVar, splitDegree, leafDegree,
-            arrayClosed, PassedVar.NONE, Var.NONE,
+            autoDegree, arrayClosed, PassedVar.NONE, Var.NONE,
             RefCount.NONE, ArrayListMultimap.<Var, RefCount>create(),
             RefCount.NONE);
     currBlock().addContinuation(loop);
@@ -335,11 +450,11 @@ public class STCMiddleEnd {
 
   public void startRangeLoop(String loopName, Var loopVar, Var countVar,
       Arg start, Arg end, Arg increment, int desiredUnroll, int splitDegree,
-      int leafDegree) {
+      int leafDegree, boolean autoDegree) {
     RangeLoop loop = new RangeLoop(loopName, loopVar, countVar,
           start, end, increment,
           PassedVar.NONE, Var.NONE, desiredUnroll, false,
-          splitDegree, leafDegree, RefCount.NONE,
+          splitDegree, leafDegree, autoDegree, RefCount.NONE,
           ArrayListMultimap.<Var, RefCount>create(), RefCount.NONE);
     currBlock().addContinuation(loop);
     blockStack.push(loop.getLoopBody());
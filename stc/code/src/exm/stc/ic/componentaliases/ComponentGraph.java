@@ -16,8 +16,8 @@ import com.google.common.collect.ListMultimap;
 import exm.stc.common.Logging;
 import exm.stc.common.lang.Arg;
 import exm.stc.common.lang.Var;
-import exm.stc.common.util.HierarchicalSet;
 import exm.stc.common.util.Pair;
+import exm.stc.common.util.ScopedSet;
 import exm.stc.common.util.StackLite;
 import exm.stc.ic.ICUtil;
 
@@ -233,7 +233,7 @@ public class ComponentGraph {
       }
 
       walkUpRec(node, results, stack,
-                new HierarchicalSet<Pair<Node, Integer>>());
+                new ScopedSet<Pair<Node, Integer>>());
     }
 
     // Iteratively check all results for more aliases so we don't miss any
@@ -248,7 +248,7 @@ public class ComponentGraph {
         // Locate any additional aliases of newly added var
         walkUpRec(varNodes.get(processAlias), newResults,
                   new StackLite<Pair<Node, Arg>>(),
-                  new HierarchicalSet<Pair<Node, Integer>>());
+                  new ScopedSet<Pair<Node, Integer>>());
       }
 
       toProcess.clear();
@@ -269,7 +269,7 @@ public class ComponentGraph {
    *                 upward trip
    */
   private void walkUpRec(Node node, Set<Var> results, StackLite<Pair<Node, Arg>> pathUp,
-      HierarchicalSet<Pair<Node, Integer>> visited) {
+      ScopedSet<Pair<Node, Integer>> visited) {
     if (logger.isTraceEnabled()) {
       logger.trace("walkUpRec: visit " + node + " pathUp: " + pathUp);
     }
@@ -285,7 +285,7 @@ public class ComponentGraph {
       }
       pathUp.push(Pair.create(node, parent.label));
 
-      HierarchicalSet<Pair<Node, Integer>> visitedParent;
+      ScopedSet<Pair<Node, Integer>> visitedParent;
       if (parentEdges.size() > 1) {
         // Use map scoping to automatically invalidate alternate paths
         visitedParent = visited.makeChild();
@@ -300,7 +300,7 @@ public class ComponentGraph {
   }
 
   private void walkDownRec(Node node, StackLite<Pair<Node, Arg>> pathUp,
-      Set<Var> results, HierarchicalSet<Pair<Node, Integer>> visited) {
+      Set<Var> results, ScopedSet<Pair<Node, Integer>> visited) {
     if (logger.isTraceEnabled()) {
       logger.trace("walkDownRec: visit " + node + " pathUp " + pathUp);
     }
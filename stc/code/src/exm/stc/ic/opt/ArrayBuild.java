@@ -22,11 +22,12 @@ import exm.stc.common.lang.Types;
 import exm.stc.common.lang.Var;
 import exm.stc.common.lang.Var.Alloc;
 import exm.stc.common.lang.Var.VarCount;
-import exm.stc.common.util.HierarchicalSet;
 import exm.stc.common.util.Pair;
+import exm.stc.common.util.ScopedSet;
 import exm.stc.ic.aliases.AliasKey;
 import exm.stc.ic.aliases.AliasTracker;
 import exm.stc.ic.opt.InitVariables.InitState;
+import exm.stc.ic.opt.OptimizerPass.DeterministicPass;
 import exm.stc.ic.tree.ICContinuations.Continuation;
 import exm.stc.ic.tree.ICInstructions.Instruction;
 import exm.stc.ic.tree.ICTree.Block;
@@ -42,13 +43,18 @@ import exm.stc.ic.tree.TurbineOp;
  * Try to merge multiple array inserts into a single build instruction.
  * TODO: optimise multisets
  */
-public class ArrayBuild implements OptimizerPass {
+public class ArrayBuild implements DeterministicPass {
 
   @Override
   public String getPassName() {
     return "Array build";
   }
 
+  @Override
+  public String configKey() {
+    return getPassName();
+  }
+
   @Override
   public String getConfigEnabledKey() {
     return Settings.OPT_ARRAY_BUILD;
@@ -165,7 +171,7 @@ public class ArrayBuild implements OptimizerPass {
   private ArrayInfo buildInfo(Logger logger, Map<FnID, Function> funcMap,
                               Function f) {
     // Set to track candidates in scope
-    HierarchicalSet<Var> candidates = new HierarchicalSet<Var>();
+    ScopedSet<Var> candidates = new ScopedSet<Var>();
     ArrayInfo info = new ArrayInfo();
 
     // First build up complete alias info for each block, to avoid
@@ -244,7 +250,7 @@ public class ArrayBuild implements OptimizerPass {
 
   private void buildInfoRec(Logger logger, Map<FnID, Function> funcMap,
       Function f, Block block, ArrayInfo info,
-      HierarchicalSet<Var> candidates) {
+      ScopedSet<Var> candidates) {
     addBlockCandidates(f, block, info, candidates);
 
     for (Statement stmt: block.getStatements()) {
@@ -399,12 +405,12 @@ public class ArrayBuild implements OptimizerPass {
     InitState init = InitState.enterFunction(f);
 
     optRecurseOnBlock(logger, f, f.mainBlock(), info, init,
-                new HierarchicalSet<Var>(), new HierarchicalSet<Var>());
+                new ScopedSet<Var>(), new ScopedSet<Var>());
   }
 
   private void optRecurseOnBlock(Logger logger, Function f, Block block,
       ArrayInfo info, InitState init,
-      HierarchicalSet<Var> cands, HierarchicalSet<Var> invalid) {
+      ScopedSet<Var> cands, ScopedSet<Var> invalid) {
     addBlockCandidates(f, block, info, cands);
 
     for (Var cand: cands) {
@@ -465,7 +471,7 @@ public class ArrayBuild implements OptimizerPass {
 
   private void optRecurseOnCont(Logger logger, Function f,
       Continuation cont, ArrayInfo info, InitState init,
-      HierarchicalSet<Var> cands, HierarchicalSet<Var> invalid) {
+      ScopedSet<Var> cands, ScopedSet<Var> invalid) {
     InitState contInit = init.enterContinuation(cont);
 
     List<InitState> blockInits = new ArrayList<InitState>();
@@ -0,0 +1,238 @@
+/*
+ * Copyright 2013 University of Chicago and Argonne National Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package exm.stc.ic.opt;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.ListMultimap;
+
+import exm.stc.common.lang.FnID;
+import exm.stc.common.util.StackLite;
+import exm.stc.ic.tree.ICTree.Function;
+import exm.stc.ic.tree.ICTree.Program;
+
+/**
+ * Graph of direct calls between the functions of a program.
+ *
+ * Edges are found from the def-use index of each function, so only calls
+ * to functions defined in the program are included.  Strongly connected
+ * components are listed bottom-up, i.e. callees before callers, so that
+ * interprocedural analyses can visit each function after the functions it
+ * calls, iterating only within recursive components.
+ *
+ * Functions, callees, callers and components are all listed in program
+ * order, so anything derived from the graph is deterministic.
+ */
+public class CallGraph {
+
+  /** Functions in program order */
+  private final List<FnID> functions;
+
+  /** Position of each function in program order */
+  private final Map<FnID, Integer> order;
+
+  private final ListMultimap<FnID, FnID> callees;
+  private final ListMultimap<FnID, FnID> callers;
+
+  /** Strongly connected components, callees first */
+  private final List<List<FnID>> components;
+
+  /** Functions that may call themselves, directly or indirectly */
+  private final Set<FnID> recursive;
+
+  private CallGraph(List<FnID> functions, Map<FnID, Integer> order) {
+    this.functions = functions;
+    this.order = order;
+    this.callees = ArrayListMultimap.create();
+    this.callers = ArrayListMultimap.create();
+    this.components = new ArrayList<List<FnID>>();
+    this.recursive = new HashSet<FnID>();
+  }
+
+  public static CallGraph build(Program program) {
+    List<FnID> functions = new ArrayList<FnID>();
+    Map<FnID, Integer> order = new HashMap<FnID, Integer>();
+    for (Function f: program.functions()) {
+      order.put(f.id(), functions.size());
+      functions.add(f.id());
+    }
+
+    CallGraph graph = new CallGraph(functions, order);
+    for (Function f: program.functions()) {
+      List<FnID> called = new ArrayList<FnID>();
+      for (FnID callee: f.defUse().calledFunctions()) {
+        if (order.containsKey(callee)) {
+          called.add(callee);
+        }
+      }
+      Collections.sort(called, graph.programOrder());
+
+      graph.callees.putAll(f.id(), called);
+      for (FnID callee: called) {
+        graph.callers.put(callee, f.id());
+        if (callee.equals(f.id())) {
+          graph.recursive.add(f.id());
+        }
+      }
+    }
+
+    graph.findComponents();
+    return graph;
+  }
+
+  /**
+   * @return all functions in program order
+   */
+  public List<FnID> functions() {
+    return Collections.unmodifiableList(functions);
+  }
+
+  /**
+   * @return functions called directly by function
+   */
+  public List<FnID> callees(FnID id) {
+    return Collections.unmodifiableList(callees.get(id));
+  }
+
+  /**
+   * @return functions that call function directly
+   */
+  public List<FnID> callers(FnID id) {
+    return Collections.unmodifiableList(callers.get(id));
+  }
+
+  /**
+   * @return strongly connected components of the graph, with each
+   *      component listed after all components it calls into
+   */
+  public List<List<FnID>> components() {
+    return Collections.unmodifiableList(components);
+  }
+
+  /**
+   * @return true if function may call itself directly or indirectly
+   */
+  public boolean isRecursive(FnID id) {
+    return recursive.contains(id);
+  }
+
+  private Comparator<FnID> programOrder() {
+    return new Comparator<FnID>() {
+      @Override
+      public int compare(FnID a, FnID b) {
+        return order.get(a).compareTo(order.get(b));
+      }
+    };
+  }
+
+  /**
+   * Find strongly connected components with Tarjan's algorithm.  Tarjan's
+   * algorithm completes each component after all components reachable
+   * from it, which is the bottom-up order we want.  The depth-first
+   * search uses an explicit stack since call chains can be long.
+   */
+  private void findComponents() {
+    Map<FnID, Integer> index = new HashMap<FnID, Integer>();
+    Map<FnID, Integer> lowLink = new HashMap<FnID, Integer>();
+    StackLite<FnID> open = new StackLite<FnID>();
+    Set<FnID> onStack = new HashSet<FnID>();
+
+    for (FnID root: functions) {
+      if (index.containsKey(root)) {
+        continue;
+      }
+
+      StackLite<SearchFrame> search = new StackLite<SearchFrame>();
+      search.push(new SearchFrame(root));
+      index.put(root, index.size());
+      lowLink.put(root, index.get(root));
+      open.push(root);
+      onStack.add(root);
+
+      while (!search.isEmpty()) {
+        SearchFrame frame = search.peek();
+        List<FnID> succ = callees.get(frame.id);
+        if (frame.next < succ.size()) {
+          FnID callee = succ.get(frame.next++);
+          if (!index.containsKey(callee)) {
+            search.push(new SearchFrame(callee));
+            index.put(callee, index.size());
+            lowLink.put(callee, index.get(callee));
+            open.push(callee);
+            onStack.add(callee);
+          } else if (onStack.contains(callee)) {
+            lowLink.put(frame.id,
+                Math.min(lowLink.get(frame.id), index.get(callee)));
+          }
+          continue;
+        }
+
+        search.pop();
+        if (!search.isEmpty()) {
+          FnID caller = search.peek().id;
+          lowLink.put(caller,
+              Math.min(lowLink.get(caller), lowLink.get(frame.id)));
+        }
+
+        if (lowLink.get(frame.id).equals(index.get(frame.id))) {
+          List<FnID> component = new ArrayList<FnID>();
+          FnID member;
+          do {
+            member = open.pop();
+            onStack.remove(member);
+            component.add(member);
+          } while (!member.equals(frame.id));
+
+          Collections.sort(component, programOrder());
+          if (component.size() > 1) {
+            recursive.addAll(component);
+          }
+          components.add(component);
+        }
+      }
+    }
+  }
+
+  private static class SearchFrame {
+    final FnID id;
+    /** Index of next callee to visit */
+    int next = 0;
+
+    SearchFrame(FnID id) {
+      this.id = id;
+    }
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder sb = new StringBuilder();
+    for (FnID id: functions) {
+      sb.append(id);
+      sb.append(" -> ");
+      sb.append(callees.get(id));
+      sb.append('\n');
+    }
+    return sb.toString();
+  }
+}
@@ -30,6 +30,7 @@ import exm.stc.ic.tree.ICContinuations.Continuation;
 import exm.stc.ic.tree.ICContinuations.ContinuationType;
 import exm.stc.ic.tree.ICTree.Block;
 import exm.stc.ic.tree.ICTree.Function;
+import exm.stc.ic.tree.ICTree.Program;
 
 /**
  * Fuse together equivalent continuations e.g. if statements with
@@ -56,7 +57,7 @@ public class ContinuationFusion extends FunctionOptimizerPass {
   }
 
   @Override
-  public void optimize(Logger logger, Function f) {
+  public void optimize(Logger logger, Program program, Function f) {
     fuseRecursive(logger, f, f.mainBlock());
   }
 
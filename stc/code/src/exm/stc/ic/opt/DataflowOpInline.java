@@ -21,8 +21,8 @@ import exm.stc.common.lang.TaskProp.TaskPropKey;
 import exm.stc.common.lang.TaskProp.TaskProps;
 import exm.stc.common.lang.Var;
 import exm.stc.common.lang.WaitVar;
-import exm.stc.common.util.HierarchicalSet;
 import exm.stc.common.util.Pair;
+import exm.stc.common.util.ScopedSet;
 import exm.stc.common.util.TernaryLogic.Ternary;
 import exm.stc.ic.opt.OptUtil.OptVarCreator;
 import exm.stc.ic.opt.OptimizerPass.FunctionOptimizerPass;
@@ -36,6 +36,7 @@ import exm.stc.ic.tree.ICInstructions.Instruction.MakeImmChange;
 import exm.stc.ic.tree.ICInstructions.Instruction.MakeImmRequest;
 import exm.stc.ic.tree.ICTree.Block;
 import exm.stc.ic.tree.ICTree.Function;
+import exm.stc.ic.tree.ICTree.Program;
 import exm.stc.ic.tree.ICTree.Statement;
 import exm.stc.ic.tree.ICTree.StatementType;
 
@@ -56,8 +57,8 @@ public class DataflowOpInline extends FunctionOptimizerPass {
   }
 
   @Override
-  public void optimize(Logger logger, Function f) throws UserException {
-    HierarchicalSet<Var> waitedFor = new HierarchicalSet<Var>();
+  public void optimize(Logger logger, Program program, Function f) throws UserException {
+    ScopedSet<Var> waitedFor = new ScopedSet<Var>();
     waitedFor.addAll(WaitVar.asVarList(f.blockingInputs()));
     
     inlineOpsRec(logger, f, ExecContext.control(), f.mainBlock(), waitedFor);
@@ -65,12 +66,12 @@ public class DataflowOpInline extends FunctionOptimizerPass {
   
 
   private static boolean inlineOpsRec(Logger logger, Function fn,
-        ExecContext currExecCx, Block block, HierarchicalSet<Var> waitedFor) {
+        ExecContext currExecCx, Block block, ScopedSet<Var> waitedFor) {
     boolean changed = inlineOps(logger, fn, currExecCx, block, waitedFor);
     
     for (Continuation c: block.allComplexStatements()) {
       ExecContext newExecCx = c.childContext(currExecCx);
-      HierarchicalSet<Var> newWaitedFor = waitedFor.makeChild();
+      ScopedSet<Var> newWaitedFor = waitedFor.makeChild();
       for (BlockingVar v: c.blockingVars(true)) {
         newWaitedFor.add(v.var);
       }
@@ -92,7 +93,7 @@ public class DataflowOpInline extends FunctionOptimizerPass {
    * @return
    */
   private static boolean inlineOps(Logger logger, Function fn,
-        ExecContext execCx, Block block, HierarchicalSet<Var> waitedFor) {
+        ExecContext execCx, Block block, ScopedSet<Var> waitedFor) {
     boolean changed = false;
     ListIterator<Statement> it = block.statementIterator();
     while (it.hasNext()) {
@@ -122,7 +123,7 @@ public class DataflowOpInline extends FunctionOptimizerPass {
    */
   private static boolean tryExplode(Logger logger, Function fn,
         ExecContext execCx, Block block, ListIterator<Statement> it,
-        Instruction inst, HierarchicalSet<Var> waitedFor) {
+        Instruction inst, ScopedSet<Var> waitedFor) {
     MakeImmRequest req = inst.canMakeImmediate(waitedFor,
              Collections.<ArgCV>emptySet(), Collections.<Var>emptySet(),
              true);
@@ -38,6 +38,7 @@ import exm.stc.ic.ICUtil;
 import exm.stc.ic.componentaliases.Component;
 import exm.stc.ic.componentaliases.ComponentAlias;
 import exm.stc.ic.componentaliases.ComponentGraph;
+import exm.stc.ic.opt.OptimizerPass.FunctionOptimizerPass;
 import exm.stc.ic.tree.ICContinuations.Continuation;
 import exm.stc.ic.tree.ICInstructions.Instruction;
 import exm.stc.ic.tree.ICTree.Block;
@@ -48,7 +49,7 @@ import exm.stc.ic.tree.ICTree.Statement;
 import exm.stc.ic.tree.ICTree.StatementType;
 import exm.stc.ic.tree.Opcode;
 
-public class DeadCodeEliminator implements OptimizerPass {
+public class DeadCodeEliminator extends FunctionOptimizerPass {
 
   @Override
   public String getPassName() {
@@ -60,13 +61,33 @@ public class DeadCodeEliminator implements OptimizerPass {
     return Settings.OPT_DEAD_CODE_ELIM;
   }
 
+  /**
+   * Summaries of called functions, computed at start of pass, or null
+   * to assume that called functions have side-effects
+   */
+  private FunctionSummaries summaries = null;
+
   @Override
-  public void optimize(Logger logger, Program program) throws UserException {
-    for (Function f: program.functions()) {
-      eliminate(logger, f, program.globalVars());
+  public void optimizeFunctions(Logger logger, Program program,
+                  List<Function> functions) throws UserException {
+    summaries = FunctionSummaries.fromSettings(logger, program);
+    try {
+      super.optimizeFunctions(logger, program, functions);
+    } finally {
+      summaries = null;
     }
   }
 
+  @Override
+  public void optimize(Logger logger, Program program, Function f) {
+    eliminate(logger, f, program.globalVars(), summaries);
+  }
+
+  public static void eliminate(Logger logger, Function f,
+                               GlobalVars globalVars) {
+    eliminate(logger, f, globalVars, null);
+  }
+
   /**
    * Eliminates dead code in the current block and child blocks. Since this is a
    * data flow language, the easiest way to do this is to find variables which
@@ -74,15 +95,18 @@ public class DeadCodeEliminator implements OptimizerPass {
    * and then do that repeatedly until we don't have anything more to eliminate.
    *
    * We avoid eliminating any instructions with side-effects, and anything that
-   * contributes to the return value of a function. We currently assume that all
-   * non-builtin functions have side effects, as well as any builtins operations
-   * that are not specifically marked as side-effect free.
+   * contributes to the return value of a function. We assume that all
+   * non-builtin functions have side effects unless summaries show otherwise,
+   * as well as any builtins operations that are not specifically marked as
+   * side-effect free.
    *
    * @param logger
    * @param f
    * @param globalVars
+   * @param summaries summaries of called functions, or null
    */
-  public static void eliminate(Logger logger, Function f, GlobalVars globalVars) {
+  public static void eliminate(Logger logger, Function f,
+          GlobalVars globalVars, FunctionSummaries summaries) {
     boolean converged = false;
     boolean changed = false;
     while (!converged) {
@@ -91,7 +115,8 @@ public class DeadCodeEliminator implements OptimizerPass {
        * which can allow more variables to be removed.  So we should just
        * iterate until no more changes were made
        */
-      boolean changeThisIter = eliminateIter(logger, f, globalVars);
+      boolean changeThisIter = eliminateIter(logger, f, globalVars,
+                                             summaries);
       converged = !changeThisIter;
       changed = changed || changeThisIter;
     }
@@ -106,10 +131,11 @@ public class DeadCodeEliminator implements OptimizerPass {
    * @param logger
    * @param f
    * @param globalVars
+   * @param summaries
    * @return true if changes made
    */
   private static boolean eliminateIter(Logger logger, Function f,
-                                        GlobalVars globalVars) {
+          GlobalVars globalVars, FunctionSummaries summaries) {
     /* All vars defined in function blocks that could possibly be eliminated */
     HashSet<Var> removeCandidates = new HashSet<Var>();
 
@@ -129,8 +155,8 @@ public class DeadCodeEliminator implements OptimizerPass {
     /* Track components so that we know if a write from A may flow to B*/
     ComponentGraph components = new ComponentGraph();
 
-    walkFunction(logger, f, removeCandidates, needed, dependencyGraph,
-                 modifiedComponents, components);
+    walkFunction(logger, f, summaries, removeCandidates, needed,
+                 dependencyGraph, modifiedComponents, components);
 
     if (logger.isTraceEnabled()) {
       logger.trace("Dead code elimination in function " + f.id() + "\n" +
@@ -200,6 +226,7 @@ public class DeadCodeEliminator implements OptimizerPass {
    *
    * @param logger
    * @param f
+   * @param summaries
    * @param removeCandidates list of vars declared in function that
    *                           could be removed
    * @param needed
@@ -208,6 +235,7 @@ public class DeadCodeEliminator implements OptimizerPass {
    * @param components
    */
   private static void walkFunction(Logger logger, Function f,
+      FunctionSummaries summaries,
       HashSet<Var> removeCandidates, HashSet<Var> needed,
       ListMultimap<Var, Var> dependencyGraph, List<Component> modifiedComponents,
       ComponentGraph components) {
@@ -221,7 +249,7 @@ public class DeadCodeEliminator implements OptimizerPass {
 
       walkBlockVars(block, removeCandidates, dependencyGraph);
 
-      walkInstructions(logger, block, needed, dependencyGraph,
+      walkInstructions(logger, block, summaries, needed, dependencyGraph,
                        modifiedComponents, components);
 
       Iterator<Continuation> it = block.allComplexStatements().iterator();
@@ -241,15 +269,16 @@ public class DeadCodeEliminator implements OptimizerPass {
     }
   }
 
-  private static void walkInstructions(Logger logger,
-      Block block, HashSet<Var> needed, ListMultimap<Var, Var> dependencyGraph,
+  private static void walkInstructions(Logger logger, Block block,
+      FunctionSummaries summaries,
+      HashSet<Var> needed, ListMultimap<Var, Var> dependencyGraph,
       List<Component> modifiedComponents, ComponentGraph components) {
     ListIterator<Statement> it = block.statementIterator();
     while (it.hasNext()) {
       Statement stmt = it.next();
       if (stmt.type() == StatementType.INSTRUCTION) {
-        walkInstruction(logger, stmt.instruction(), needed, dependencyGraph,
-                        modifiedComponents, components);
+        walkInstruction(logger, stmt.instruction(), summaries, needed,
+                        dependencyGraph, modifiedComponents, components);
       } else if (stmt.type() == StatementType.CONDITIONAL) {
         if (stmt.conditional().isNoop()) {
           it.remove();
@@ -259,10 +288,13 @@ public class DeadCodeEliminator implements OptimizerPass {
   }
 
   private static void walkInstruction(Logger logger, Instruction inst,
+      FunctionSummaries summaries,
       HashSet<Var> needed, ListMultimap<Var, Var> dependencyGraph,
       List<Component> modifiedComponents, ComponentGraph components) {
+    boolean sideEffects = summaries != null ? summaries.hasSideEffects(inst)
+                                            : inst.hasSideEffects();
     // If it has side-effects, need all inputs and outputs
-    if (inst.hasSideEffects()) {
+    if (sideEffects) {
       needed.addAll(inst.getOutputs());
       for (Arg input: inst.getInputs()) {
         if (input.isVar()) {
@@ -15,6 +15,7 @@ import exm.stc.common.lang.Var;
 import exm.stc.common.lang.Var.Alloc;
 import exm.stc.common.lang.Var.DefType;
 import exm.stc.ic.opt.TreeWalk.TreeWalker;
+import exm.stc.ic.opt.OptimizerPass.DeterministicPass;
 import exm.stc.ic.tree.ICContinuations.Continuation;
 import exm.stc.ic.tree.ICInstructions.Instruction;
 import exm.stc.ic.tree.ICTree.Block;
@@ -28,13 +29,18 @@ import exm.stc.ic.tree.ICTree.RenameMode;
  * Identify global variables that are only used in entry function and convert to locals.
  *
  */
-public class DemoteGlobals implements OptimizerPass {
+public class DemoteGlobals implements DeterministicPass {
 
   @Override
   public String getPassName() {
     return "demote globals";
   }
 
+  @Override
+  public String configKey() {
+    return getPassName();
+  }
+
   @Override
   public String getConfigEnabledKey() {
     return Settings.OPT_DEMOTE_GLOBALS;
@@ -0,0 +1,291 @@
+/*
+ * Copyright 2013 University of Chicago and Argonne National Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package exm.stc.ic.opt;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import exm.stc.common.Logging;
+import exm.stc.common.Settings;
+import exm.stc.common.exceptions.STCRuntimeError;
+import exm.stc.common.lang.FnID;
+import exm.stc.ic.opt.OptimizerPass.DeterministicPass;
+import exm.stc.ic.opt.OptimizerPass.FunctionOptimizerPass;
+import exm.stc.ic.tree.ICTree.Function;
+import exm.stc.ic.tree.ICTree.Program;
+
+/**
+ * Track programs that are fixed points of optimizer passes, i.e. where
+ * running the pass doesn't change the program.  Since deterministic passes
+ * always produce the same output for the same input, a pass can be
+ * skipped if the current program is a known fixed point for it.  This lets
+ * the iterative optimizer do little work once the program stops changing,
+ * without missing any optimizations.
+ *
+ * Per-function passes are tracked separately for each function: the
+ * output for a function depends only on the function and the program
+ * declarations, function signatures and, if interprocedural optimization
+ * is enabled, the summaries of all functions (the "context"), so a function
+ * can be skipped if it and the context are unchanged since the pass last
+ * left it unmodified.  This matters because some pass combinations never
+ * converge for the whole program, e.g. value numbering adds copies that
+ * dead code elimination removes again.
+ *
+ * Fingerprints are hashes of the textual representation of the IR.
+ * To keep checks cheap, fingerprints are cached along with the
+ * modification stamps maintained by the IR, and only recomputed if the
+ * stamps changed.  Stamps alone can't be compared, since some passes
+ * rewrite code without changing it, and the fixed point would never be
+ * reached.
+ */
+public class FixedPoints {
+
+  /** Program fingerprint of latest fixed point for each pass config */
+  private final Map<String, byte[]> programFixedPoints =
+                                      new HashMap<String, byte[]>();
+
+  /** Fingerprint of function and context at latest fixed point for each
+   *  per-function pass config */
+  private final Map<String, Map<FnID, byte[]>> functionFixedPoints =
+                                  new HashMap<String, Map<FnID, byte[]>>();
+
+  /** Cached context fingerprint, or null if unknown */
+  private byte[] context = null;
+
+  /** Declaration and signature stamp for cached context */
+  private long contextDeclStamp = -1;
+
+  /** Code stamp for cached context, if it includes summaries */
+  private long contextCodeStamp = -1;
+
+  /**
+   * Cached function fingerprints.  Functions are compared by identity, and
+   * entries are dropped once functions are no longer used.
+   */
+  private final Map<Function, StampedFingerprint> functions =
+                        new WeakHashMap<Function, StampedFingerprint>();
+
+  private static class StampedFingerprint {
+    final long stamp;
+    final byte[] fingerprint;
+
+    StampedFingerprint(long stamp, byte[] fingerprint) {
+      this.stamp = stamp;
+      this.fingerprint = fingerprint;
+    }
+  }
+
+  /** State before current pass ran */
+  private byte[] programBefore = null;
+  private byte[] contextBefore = null;
+  private List<Function> passFunctions = null;
+  private List<byte[]> passFunctionsBefore = null;
+
+  /**
+   * @param pass
+   * @param program
+   * @return true if running pass on program is known to not change it
+   */
+  public boolean atFixedPoint(OptimizerPass pass, Program program) {
+    if (pass instanceof FunctionOptimizerPass) {
+      return functionsToOptimize((FunctionOptimizerPass)pass,
+                                 program).isEmpty();
+    } else if (pass instanceof DeterministicPass) {
+      byte[] fixedPoint = programFixedPoints.get(
+                              ((DeterministicPass)pass).configKey());
+      return fixedPoint != null && Arrays.equals(fixedPoint,
+                                                 programFingerprint(program));
+    } else {
+      return false;
+    }
+  }
+
+  /**
+   * @param pass
+   * @param program
+   * @return functions that per-function pass may change, in program order
+   */
+  public List<Function> functionsToOptimize(FunctionOptimizerPass pass,
+                                            Program program) {
+    Map<FnID, byte[]> fixedPoints = functionFixedPoints.get(pass.configKey());
+    if (fixedPoints == null) {
+      return program.functions();
+    }
+
+    byte[] ctx = contextFingerprint(program);
+    List<Function> result = new ArrayList<Function>();
+    for (Function f: program.functions()) {
+      byte[] fixedPoint = fixedPoints.get(f.id());
+      if (fixedPoint == null ||
+          !Arrays.equals(fixedPoint, combine(ctx, functionFingerprint(f)))) {
+        result.add(f);
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Called before a pass is run
+   * @param pass
+   * @param program
+   * @param functions functions that a per-function pass will be run on,
+   *                  otherwise ignored
+   */
+  public void startPass(OptimizerPass pass, Program program,
+                        List<Function> functions) {
+    if (pass instanceof FunctionOptimizerPass) {
+      contextBefore = contextFingerprint(program);
+      passFunctions = functions;
+      passFunctionsBefore = new ArrayList<byte[]>(functions.size());
+      for (Function f: functions) {
+        passFunctionsBefore.add(functionFingerprint(f));
+      }
+    } else {
+      programBefore = programFingerprint(program);
+    }
+  }
+
+  /**
+   * Called after a pass has been run
+   * @param pass
+   * @param program
+   * @return true if pass modified program
+   */
+  public boolean finishPass(OptimizerPass pass, Program program) {
+    if (pass instanceof FunctionOptimizerPass) {
+      return finishFunctionPass((FunctionOptimizerPass)pass, program);
+    }
+
+    byte[] after = programFingerprint(program);
+    boolean changed = !Arrays.equals(programBefore, after);
+    if (!changed && pass instanceof DeterministicPass) {
+      programFixedPoints.put(((DeterministicPass)pass).configKey(), after);
+    }
+    programBefore = null;
+    return changed;
+  }
+
+  private boolean finishFunctionPass(FunctionOptimizerPass pass,
+                                     Program program) {
+    byte[] ctx = contextFingerprint(program);
+    boolean contextChanged = !Arrays.equals(contextBefore, ctx);
+    boolean changed = contextChanged;
+
+    Map<FnID, byte[]> fixedPoints = functionFixedPoints.get(pass.configKey());
+    if (fixedPoints == null) {
+      fixedPoints = new HashMap<FnID, byte[]>();
+      functionFixedPoints.put(pass.configKey(), fixedPoints);
+    }
+
+    for (int i = 0; i < passFunctions.size(); i++) {
+      Function f = passFunctions.get(i);
+      byte[] after = functionFingerprint(f);
+      if (!Arrays.equals(passFunctionsBefore.get(i), after)) {
+        changed = true;
+      } else if (!contextChanged) {
+        // Only a fixed point if pass saw same context throughout
+        fixedPoints.put(f.id(), combine(ctx, after));
+      }
+    }
+
+    contextBefore = null;
+    passFunctions = null;
+    passFunctionsBefore = null;
+    return changed;
+  }
+
+  private byte[] programFingerprint(Program program) {
+    MessageDigest digest = newDigest();
+    digest.update(contextFingerprint(program));
+    for (Function f: program.functions()) {
+      digest.update(functionFingerprint(f));
+    }
+    return digest.digest();
+  }
+
+  /**
+   * Fingerprint of everything that per-function passes may read apart
+   * from the function itself, including summaries of other functions
+   */
+  private byte[] contextFingerprint(Program program) {
+    boolean summariesEnabled = Settings.getBooleanUnchecked(
+                                        Settings.OPT_INTERPROCEDURAL);
+    long declStamp = program.modCount();
+    long codeStamp = -1;
+    for (Function f: program.functions()) {
+      declStamp = Math.max(declStamp, f.signatureModCount());
+      if (summariesEnabled) {
+        codeStamp = Math.max(codeStamp, f.modCount());
+      }
+    }
+
+    if (context == null || declStamp != contextDeclStamp ||
+        codeStamp != contextCodeStamp) {
+      StringBuilder sb = new StringBuilder();
+      program.prettyPrintDeclarations(sb);
+      for (Function f: program.functions()) {
+        f.prettyPrintHeader(sb);
+        sb.append("\n");
+      }
+      FunctionSummaries summaries = FunctionSummaries.fromSettings(
+                                      Logging.getSTCLogger(), program);
+      if (summaries != null) {
+        sb.append(summaries);
+      }
+      context = hash(sb);
+      contextDeclStamp = declStamp;
+      contextCodeStamp = codeStamp;
+    }
+    return context;
+  }
+
+  private byte[] functionFingerprint(Function f) {
+    StampedFingerprint cached = functions.get(f);
+    if (cached == null || cached.stamp != f.modCount()) {
+      StringBuilder sb = new StringBuilder();
+      f.prettyPrint(sb);
+      cached = new StampedFingerprint(f.modCount(), hash(sb));
+      functions.put(f, cached);
+    }
+    return cached.fingerprint;
+  }
+
+  private static byte[] combine(byte[] context, byte[] function) {
+    MessageDigest digest = newDigest();
+    digest.update(context);
+    digest.update(function);
+    return digest.digest();
+  }
+
+  private static byte[] hash(StringBuilder sb) {
+    return newDigest().digest(sb.toString().getBytes(StandardCharsets.UTF_8));
+  }
+
+  private static MessageDigest newDigest() {
+    try {
+      return MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new STCRuntimeError("SHA-256 not supported by JVM", e);
+    }
+  }
+}
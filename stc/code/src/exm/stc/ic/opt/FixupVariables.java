@@ -32,8 +32,8 @@ import exm.stc.common.lang.RefCounting;
 import exm.stc.common.lang.Types;
 import exm.stc.common.lang.Var;
 import exm.stc.common.lang.Var.Alloc;
-import exm.stc.common.util.HierarchicalSet;
 import exm.stc.common.util.Pair;
+import exm.stc.common.util.ScopedSet;
 import exm.stc.common.util.Sets;
 import exm.stc.ic.ICUtil;
 import exm.stc.ic.aliases.AliasKey;
@@ -92,18 +92,20 @@ public class FixupVariables implements OptimizerPass {
                                   boolean updateLists) {
     Set<Var> referencedGlobals = new HashSet<Var>();
     for (Function fn : prog.functions()) {
+      // Callers outside program assume outputs are not write-only
+      boolean markWriteOnly = !prog.isExternallyReferenced(fn.id());
 
       if (updateLists) {
         fixupFunction(logger, prog.allGlobals(), fn,
-                      referencedGlobals, FixupVarMode.REBUILD);
+                      referencedGlobals, FixupVarMode.REBUILD, markWriteOnly);
         // Need to do a second pass to resolve recursive dependencies,
         // e.g. loop_continue instructions that pass things back to
         // the top of the loop
         fixupFunction(logger, prog.allGlobals(), fn,
-                      referencedGlobals, FixupVarMode.ADD);
+                      referencedGlobals, FixupVarMode.ADD, markWriteOnly);
       } else {
         fixupFunction(logger, prog.allGlobals(), fn,
-                      referencedGlobals, FixupVarMode.NO_UPDATE);
+                      referencedGlobals, FixupVarMode.NO_UPDATE, markWriteOnly);
       }
     }
 
@@ -114,7 +116,16 @@ public class FixupVariables implements OptimizerPass {
   public static void fixupFunction(Logger logger,
       AllGlobals globals,  Function fn, Set<Var> referencedGlobals,
       FixupVarMode fixupMode) {
-    HierarchicalSet<Var> fnargs = new HierarchicalSet<Var>();
+    fixupFunction(logger, globals, fn, referencedGlobals, fixupMode, true);
+  }
+
+  /**
+   * @param markWriteOnly if true, mark unread outputs as write-only
+   */
+  private static void fixupFunction(Logger logger,
+      AllGlobals globals,  Function fn, Set<Var> referencedGlobals,
+      FixupVarMode fixupMode, boolean markWriteOnly) {
+    ScopedSet<Var> fnargs = new ScopedSet<Var>();
     for (Var v : fn.getInputList()) {
       fnargs.add(v);
     }
@@ -128,7 +139,7 @@ public class FixupVariables implements OptimizerPass {
     Result res = fixupBlockRec(logger, fn, fn.mainBlock(),
                        ExecContext.control(), fnargs,
                        referencedGlobals, aliases, fixupMode);
-    if (fixupMode != FixupVarMode.NO_UPDATE) {
+    if (fixupMode != FixupVarMode.NO_UPDATE && markWriteOnly) {
       // Mark write-only outputs
       for (int i = 0; i < fn.getOutputList().size(); i++) {
         Var output = fn.getOutput(i);
@@ -311,7 +322,7 @@ public class FixupVariables implements OptimizerPass {
    */
   private static Result fixupBlockRec(Logger logger,
       Function function, Block block, ExecContext execCx,
-      HierarchicalSet<Var> visible, Set<Var> referencedGlobals,
+      ScopedSet<Var> visible, Set<Var> referencedGlobals,
       AliasTracker aliases, FixupVarMode fixupMode) {
 
     if (fixupMode == FixupVarMode.REBUILD) {
@@ -452,7 +463,7 @@ public class FixupVariables implements OptimizerPass {
    */
   private static void variablePassing(Logger logger, Function function,
           ExecContext outerCx,
-          Continuation continuation, HierarchicalSet<Var> visible,
+          Continuation continuation, ScopedSet<Var> visible,
           Set<Var> referencedGlobals, AliasTracker outerAliases, Set<Var> outerBlockVars,
           Result result, FixupVarMode fixupMode) {
     // First see what variables the continuation defines inside itself
@@ -461,7 +472,7 @@ public class FixupVariables implements OptimizerPass {
     AliasTracker contAliases = outerAliases.makeChild();
 
     for (Block innerBlock : continuation.getBlocks()) {
-      HierarchicalSet<Var> childVisible = visible.makeChild();
+      ScopedSet<Var> childVisible = visible.makeChild();
       for (Var v : constructVars) {
         childVisible.add(v);
       }
@@ -493,7 +504,7 @@ public class FixupVariables implements OptimizerPass {
 
   private static void rebuildContinuationPassedVars(Function function,
           Continuation continuation, ExecContext contCx,
-          HierarchicalSet<Var> visibleVars,
+          ScopedSet<Var> visibleVars,
           Set<Var> outerBlockVars, AliasTracker outerAliases,
           Result outer, Result inner, FixupVarMode fixupMode) {
     // Rebuild passed in vars
@@ -558,7 +569,7 @@ public class FixupVariables implements OptimizerPass {
   }
 
   private static void rebuildContinuationKeepOpenVars(Function function,
-      Continuation continuation, HierarchicalSet<Var> visible,
+      Continuation continuation, ScopedSet<Var> visible,
       Set<Var> outerBlockVars, AliasTracker outerAliases,
       Result outer, Result inner, FixupVarMode fixupMode) {
     List<Var> keepOpen = new ArrayList<Var>();
@@ -606,7 +617,7 @@ public class FixupVariables implements OptimizerPass {
    * @return set of global vars needed from outside
    */
   private static Set<Var> addGlobalImports(Block block,
-          ExecContext execCx, HierarchicalSet<Var> visible,
+          ExecContext execCx, ScopedSet<Var> visible,
           FixupVarMode fixupMode, Set<Var> read, Set<Var> written,
           Set<Var> aliasWritten) {
     // if global constant missing, just add it
@@ -630,7 +641,7 @@ public class FixupVariables implements OptimizerPass {
   }
 
   private static void addGlobalImports(Block block, ExecContext execCx,
-      HierarchicalSet<Var> visible, FixupVarMode fixupMode,
+      ScopedSet<Var> visible, FixupVarMode fixupMode,
       Set<Var> existingGlobals, Set<Var> neededSet, boolean written) {
     for (Var var: neededSet) {
       if (visible.contains(var) &&
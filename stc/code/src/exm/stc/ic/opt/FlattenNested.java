@@ -24,6 +24,7 @@ import exm.stc.ic.opt.OptimizerPass.FunctionOptimizerPass;
 import exm.stc.ic.tree.ICContinuations.Continuation;
 import exm.stc.ic.tree.ICTree.Block;
 import exm.stc.ic.tree.ICTree.Function;
+import exm.stc.ic.tree.ICTree.Program;
 
 public class FlattenNested extends FunctionOptimizerPass {
   @Override
@@ -42,7 +43,7 @@ public class FlattenNested extends FunctionOptimizerPass {
    * @param f
    */
   @Override
-  public void optimize(Logger logger, Function f) {
+  public void optimize(Logger logger, Program program, Function f) {
     flattenNestedBlocks(f.mainBlock());
   }
   
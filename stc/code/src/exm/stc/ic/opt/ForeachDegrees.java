@@ -0,0 +1,304 @@
+/*
+ * Copyright 2013 University of Chicago and Argonne National Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package exm.stc.ic.opt;
+
+import org.apache.log4j.Logger;
+
+import exm.stc.common.Settings;
+import exm.stc.common.lang.ExecTarget;
+import exm.stc.common.lang.TaskProp.TaskPropKey;
+import exm.stc.common.lang.TaskProp.TaskProps;
+import exm.stc.ic.opt.OptimizerPass.FunctionOptimizerPass;
+import exm.stc.ic.opt.RuntimeProfile.ProcStats;
+import exm.stc.ic.tree.ForeachLoops.AbstractForeachLoop;
+import exm.stc.ic.tree.ICContinuations.AsyncExec;
+import exm.stc.ic.tree.ICContinuations.Continuation;
+import exm.stc.ic.tree.ICContinuations.WaitStatement;
+import exm.stc.ic.tree.ICInstructions.ExecExternal;
+import exm.stc.ic.tree.ICInstructions.FunctionCall;
+import exm.stc.ic.tree.ICInstructions.Instruction;
+import exm.stc.ic.tree.ICInstructions.LocalFunctionCall;
+import exm.stc.ic.tree.ICTree.Block;
+import exm.stc.ic.tree.ICTree.Function;
+import exm.stc.ic.tree.ICTree.Program;
+import exm.stc.ic.tree.ICTree.Statement;
+import exm.stc.ic.tree.ICTree.StatementType;
+
+/**
+ * Choose split and leaf degree for foreach loops where the user didn't
+ * specify them with annotations.
+ *
+ * We estimate the serial cost of running the loop body once in the leaf task
+ * in rough units of a cheap local instruction.  Leaf degree is chosen so that
+ * each leaf task does a roughly constant amount of serial work, and split
+ * degree so that the tree of splitter tasks is shallow for the iteration
+ * count, if known.  If the body launches long-running work (app, foreign
+ * or parallel tasks), we use smaller leaves so that the work is released
+ * to workers sooner.
+ *
+ * If a runtime profile is provided, the measured run time of leaf tasks
+ * is used instead of the estimate.  If the profiled program was compiled
+ * with {@link Settings#TASK_PROFILE}, the profile records the leaf degree
+ * it used, so we can work out the time per iteration
+ * and choose the leaf degree so that leaf tasks run for about
+ * {@link #TARGET_LEAF_SECONDS}.  This doesn't depend on the degree used
+ * before, so repeated profiling converges.
+ *
+ * This runs at the end of optimization so that the loop bodies are in
+ * their final form.
+ */
+public class ForeachDegrees extends FunctionOptimizerPass {
+
+  /** Cost of a cheap local instruction */
+  private static final double CHEAP_INST_COST = 1.0;
+
+  /** Cost of a local instruction not marked as cheap */
+  private static final double INST_COST = 4.0;
+
+  /** Cost of spawning a task or registering a rule */
+  private static final double SPAWN_COST = 8.0;
+
+  /** Cost of a synchronous function call or app execution */
+  private static final double SYNC_CALL_COST = 64.0;
+
+  /** Iteration count assumed for nested sync loops of unknown size */
+  private static final long UNKNOWN_ITERS = 16;
+
+  /** Target serial cost of a leaf task */
+  private static final double TARGET_LEAF_COST = 256.0;
+
+  private static final int MIN_LEAF_DEGREE = 1;
+  private static final int MAX_LEAF_DEGREE = 4096;
+
+  /** Max leaf degree if loop body launches long-running work */
+  private static final int HEAVY_MAX_LEAF_DEGREE = 16;
+
+  private static final int MIN_SPLIT_DEGREE = 4;
+  private static final int MAX_SPLIT_DEGREE = 64;
+
+  /** Split degree if iteration count unknown */
+  private static final int DEFAULT_SPLIT_DEGREE = 16;
+  private static final int HEAVY_DEFAULT_SPLIT_DEGREE = 32;
+
+  /** Target run time of leaf task if profile available */
+  private static final double TARGET_LEAF_SECONDS = 0.01;
+
+  /** Profile of previous run, or null */
+  private final RuntimeProfile runtimeProfile;
+
+  public ForeachDegrees(RuntimeProfile runtimeProfile) {
+    this.runtimeProfile = runtimeProfile;
+  }
+
+  @Override
+  public String getPassName() {
+    return "Foreach split degrees";
+  }
+
+  @Override
+  public String getConfigEnabledKey() {
+    return Settings.OPT_AUTO_SPLIT_DEGREE;
+  }
+
+  @Override
+  public void optimize(Logger logger, Program program, Function f) {
+    findLoops(logger, f, f.mainBlock());
+  }
+
+  private void findLoops(Logger logger, Function f, Block block) {
+    for (Statement stmt: block.getStatements()) {
+      if (stmt.type() == StatementType.CONDITIONAL) {
+        for (Block inner: stmt.conditional().getBlocks()) {
+          findLoops(logger, f, inner);
+        }
+      }
+    }
+
+    for (Continuation cont: block.getContinuations()) {
+      if (cont instanceof AbstractForeachLoop) {
+        AbstractForeachLoop loop = (AbstractForeachLoop)cont;
+        if (loop.isAutoDegree() && loop.getSplitDegree() > 0) {
+          chooseDegrees(logger, f, loop);
+        }
+      }
+      for (Block inner: cont.getBlocks()) {
+        findLoops(logger, f, inner);
+      }
+    }
+  }
+
+  private void chooseDegrees(Logger logger, Function f,
+                             AbstractForeachLoop loop) {
+    BodyCost cost = new BodyCost();
+    addBlockCost(loop.getLoopBody(), 1.0, cost);
+
+    // Account for loop overhead, which is at least one instruction
+    double iterCost = Math.max(CHEAP_INST_COST, cost.serial);
+
+    int maxLeaf = cost.heavy ? HEAVY_MAX_LEAF_DEGREE : MAX_LEAF_DEGREE;
+    int leafDegree = (int)clamp(Math.round(TARGET_LEAF_COST / iterCost),
+                                MIN_LEAF_DEGREE, maxLeaf);
+
+    ProcStats leafStats = null;
+    if (runtimeProfile != null) {
+      leafStats = runtimeProfile.loopLeaf(loop.getLoopName());
+    }
+    if (leafStats != null && leafStats.leafDegree > 0 &&
+        leafStats.meanSeconds() > 0.0) {
+      // Leaves may be smaller than the degree, so this may underestimate
+      double iterSeconds = leafStats.meanSeconds() / leafStats.leafDegree;
+      leafDegree = (int)clamp(Math.round(TARGET_LEAF_SECONDS / iterSeconds),
+                              MIN_LEAF_DEGREE, maxLeaf);
+    }
+
+    long iters = loop.constIterCount();
+    int splitDegree;
+    if (iters >= 0) {
+      // Split so that iterations are spread over leaves within two levels
+      long leaves = (iters + leafDegree - 1) / leafDegree;
+      splitDegree = (int)clamp((long)Math.ceil(Math.sqrt(leaves)),
+                          MIN_SPLIT_DEGREE, MAX_SPLIT_DEGREE);
+    } else {
+      splitDegree = cost.heavy ? HEAVY_DEFAULT_SPLIT_DEGREE
+                               : DEFAULT_SPLIT_DEGREE;
+    }
+
+    logger.debug("Loop " + loop.getLoopName() + " in " + f.id() +
+        ": estimated cost/iteration " + iterCost +
+        (cost.heavy ? " (launches long-running tasks)" : "") +
+        ", iterations " + (iters >= 0 ? iters : "unknown") +
+        (leafStats != null ? ", profiled leaf tasks " + leafStats : "") +
+        ": split degree " + splitDegree + " leaf degree " + leafDegree);
+
+    if (splitDegree != loop.getSplitDegree() ||
+        leafDegree != loop.getLeafDegree()) {
+      loop.setDegrees(splitDegree, leafDegree);
+    }
+  }
+
+  private static long clamp(long val, long min, long max) {
+    return Math.max(min, Math.min(max, val));
+  }
+
+  /**
+   * Estimated cost of executing loop body
+   */
+  private static class BodyCost {
+    /** Serial cost of executing body in leaf task */
+    double serial = 0.0;
+
+    /** Whether body launches long-running tasks */
+    boolean heavy = false;
+  }
+
+  /**
+   * Add cost of executing block synchronously
+   * @param block
+   * @param mult number of times block is executed
+   * @param cost accumulate cost here
+   */
+  private static void addBlockCost(Block block, double mult, BodyCost cost) {
+    for (Statement stmt: block.getStatements()) {
+      if (stmt.type() == StatementType.INSTRUCTION) {
+        addInstructionCost(stmt.instruction(), mult, cost);
+      } else {
+        assert(stmt.type() == StatementType.CONDITIONAL);
+        // Assume most expensive branch is taken
+        double maxBranch = 0.0;
+        for (Block inner: stmt.conditional().getBlocks()) {
+          BodyCost branchCost = new BodyCost();
+          addBlockCost(inner, mult, branchCost);
+          maxBranch = Math.max(maxBranch, branchCost.serial);
+          cost.heavy = cost.heavy || branchCost.heavy;
+        }
+        cost.serial += CHEAP_INST_COST * mult + maxBranch;
+      }
+    }
+
+    for (Continuation cont: block.getContinuations()) {
+      addContinuationCost(cont, mult, cost);
+    }
+  }
+
+  private static void addContinuationCost(Continuation cont, double mult,
+                                          BodyCost cost) {
+    if (cont instanceof AsyncExec) {
+      cost.serial += SPAWN_COST * mult;
+      cost.heavy = true;
+    } else if (cont.isAsync()) {
+      cost.serial += SPAWN_COST * mult;
+      if (isHeavyTarget(cont.target())) {
+        cost.heavy = true;
+      } else if (cont instanceof WaitStatement &&
+                 ((WaitStatement)cont).parallelism() != null) {
+        cost.heavy = true;
+      }
+
+      // Body runs in separate task: only check for long-running work
+      for (Block inner: cont.getBlocks()) {
+        BodyCost innerCost = new BodyCost();
+        addBlockCost(inner, 1.0, innerCost);
+        cost.heavy = cost.heavy || innerCost.heavy;
+      }
+    } else {
+      double innerMult = mult;
+      if (cont instanceof AbstractForeachLoop) {
+        long iters = ((AbstractForeachLoop)cont).constIterCount();
+        innerMult *= (iters >= 0 ? iters : UNKNOWN_ITERS);
+      }
+      // Assume worst case of executing all blocks
+      for (Block inner: cont.getBlocks()) {
+        addBlockCost(inner, innerMult, cost);
+      }
+    }
+  }
+
+  private static void addInstructionCost(Instruction inst, double mult,
+                                         BodyCost cost) {
+    ExecTarget mode = inst.execMode();
+    TaskProps props = inst.getTaskProps();
+    if (props != null && props.containsKey(TaskPropKey.PARALLELISM)) {
+      cost.heavy = true;
+    }
+
+    if (mode.isAsync()) {
+      cost.serial += SPAWN_COST * mult;
+      if (isHeavyTarget(mode) &&
+          (inst instanceof FunctionCall || inst instanceof ExecExternal)) {
+        cost.heavy = true;
+      }
+    } else if (inst instanceof LocalFunctionCall ||
+               inst instanceof FunctionCall) {
+      cost.serial += SYNC_CALL_COST * mult;
+    } else if (inst instanceof ExecExternal) {
+      cost.serial += SYNC_CALL_COST * mult;
+      cost.heavy = true;
+    } else if (inst.isCheap()) {
+      cost.serial += CHEAP_INST_COST * mult;
+    } else {
+      cost.serial += INST_COST * mult;
+    }
+  }
+
+  /**
+   * @return true if work is dispatched to worker, where long-running
+   *         tasks execute
+   */
+  private static boolean isHeavyTarget(ExecTarget target) {
+    return target.isDispatched() &&
+           target.targetContext().isAnyWorkContext();
+  }
+}
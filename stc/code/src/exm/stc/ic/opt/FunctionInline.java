@@ -47,8 +47,9 @@ import exm.stc.common.lang.WaitVar;
 import exm.stc.common.util.Counters;
 import exm.stc.common.util.Pair;
 import exm.stc.common.util.StackLite;
-import exm.stc.ic.opt.TreeWalk.TreeWalker;
+import exm.stc.ic.opt.RuntimeProfile.ProcStats;
 import exm.stc.ic.tree.Conditionals.Conditional;
+import exm.stc.ic.tree.DefUseIndex;
 import exm.stc.ic.tree.ICContinuations.Continuation;
 import exm.stc.ic.tree.ICContinuations.WaitStatement;
 import exm.stc.ic.tree.ICInstructions.FunctionCall;
@@ -67,6 +68,12 @@ public class FunctionInline implements OptimizerPass {
 
   private static int MAX_ITERS_PER_PASS = 10;
 
+  /**
+   * Factor to raise thresholds by for functions that ran as many short
+   * tasks in profiled run, since inlining removes task overhead
+   */
+  private static final long HOT_FUNCTION_THRESHOLD_FACTOR = 4;
+
   /**
    * List of (caller, callee) pairs already inlined.
    */
@@ -89,11 +96,30 @@ public class FunctionInline implements OptimizerPass {
    */
   private final long alwaysInlineThreshold;
 
-  public FunctionInline() {
+  /**
+   * Profile of previous run, or null
+   */
+  private final RuntimeProfile runtimeProfile;
+
+  public FunctionInline(RuntimeProfile runtimeProfile) {
     inlineThreshold = Settings.getLongUnchecked(
         Settings.OPT_FUNCTION_INLINE_THRESHOLD);
     alwaysInlineThreshold = Settings.getLongUnchecked(
         Settings.OPT_FUNCTION_ALWAYS_INLINE_THRESHOLD);
+    this.runtimeProfile = runtimeProfile;
+  }
+
+  /**
+   * @return upper bound on size of functions that will be inlined with
+   *         current settings, or -1 if inlining is disabled
+   */
+  public static long maxInlineSize() {
+    if (!Settings.getBooleanUnchecked(Settings.OPT_FUNCTION_INLINE)) {
+      return -1;
+    }
+    return Settings.getLongUnchecked(
+        Settings.OPT_FUNCTION_ALWAYS_INLINE_THRESHOLD) *
+        HOT_FUNCTION_THRESHOLD_FACTOR;
   }
 
   private static boolean isFunctionCall(Instruction inst) {
@@ -123,8 +149,7 @@ public class FunctionInline implements OptimizerPass {
     boolean changed;
     int i = 0;
     do {
-      FuncCallFinder finder = new FuncCallFinder();
-      TreeWalk.walk(logger, program, finder);
+      FuncCallFinder finder = new FuncCallFinder(program);
 
       pruneBuiltins(logger, program, finder);
 
@@ -150,7 +175,8 @@ public class FunctionInline implements OptimizerPass {
       BuiltinFunction f = it.next();
       List<FnID> usages = finder.functionUsages.get(f.id());
       if (usages.size() == 0 && !foreignFuncs.hasOpEquiv(f.id()) &&
-          !foreignFuncs.isLocalImpl(f.id())) {
+          !foreignFuncs.isLocalImpl(f.id()) &&
+          !program.isExternallyReferenced(f.id())) {
         logger.debug("Prune builtin: " + f.id());
         it.remove();
       }
@@ -187,13 +213,15 @@ public class FunctionInline implements OptimizerPass {
         // Do nothing
       } else if (callLocs == null || callLocs.size() == 0) {
         // Function not referenced - prune it!
-        toRemove.add(f.id());
-      } else if (callLocs.size() == 1 && !callLocs.get(0).equals(f.id())) {
+        if (!program.isExternallyReferenced(f.id())) {
+          toRemove.add(f.id());
+        }
+      } else if (callLocs.size() == 1 && !callLocs.get(0).equals(f.id()) &&
+                 !program.isExternallyReferenced(f.id())) {
         // Always inline functions that were only called once
         alwaysInline.add(f.id());
         inlineCandidates.putAll(f.id(), callLocs);
-      } else if (functionSize <= alwaysInlineThreshold &&
-          callLocs.size() * functionSize  <= inlineThreshold) {
+      } else if (withinThresholds(f, callLocs.size(), functionSize)) {
         inlineCandidates.putAll(f.id(), callLocs);
         if (!functionCalls.containsKey(f.id())) {
           // Doesn't call other functions, safe to inline always
@@ -202,11 +230,46 @@ public class FunctionInline implements OptimizerPass {
       }
     }
 
+    // Precompiled functions can be inlined if the package included a
+    // body for inlining.  They are kept since they may be called from
+    // other precompiled functions, but are otherwise treated the same as
+    // program functions.
+    for (Function body: program.precompiledInlineBodies()) {
+      List<FnID> callLocs = finder.functionUsages.get(body.id());
+      if (callLocs.size() == 1) {
+        alwaysInline.add(body.id());
+        inlineCandidates.putAll(body.id(), callLocs);
+      } else if (!callLocs.isEmpty() &&
+          withinThresholds(body, callLocs.size(),
+                           finder.getFunctionSize(body))) {
+        inlineCandidates.putAll(body.id(), callLocs);
+        if (body.defUse().calledFunctions().isEmpty()) {
+          alwaysInline.add(body.id());
+        }
+      }
+    }
+
     inlineCandidates = findCycleFree(inlineCandidates, toRemove);
 
     return Pair.create(inlineCandidates, toRemove);
   }
 
+  /**
+   * Check if function is small enough to inline at all call sites
+   */
+  private boolean withinThresholds(Function f, int callSites,
+                                   long functionSize) {
+    long factor = 1;
+    if (runtimeProfile != null) {
+      ProcStats stats = runtimeProfile.function(f.id());
+      if (stats != null && stats.isHot() && stats.isShort()) {
+        factor = HOT_FUNCTION_THRESHOLD_FACTOR;
+      }
+    }
+    return functionSize <= alwaysInlineThreshold * factor &&
+           callSites * functionSize <= inlineThreshold * factor;
+  }
+
   private ListMultimap<FnID, FnID> findCycleFree(
       ListMultimap<FnID, FnID> inlineCandidates,
           Set<FnID> toRemove) {
@@ -288,6 +351,15 @@ public class FunctionInline implements OptimizerPass {
       }
     }
 
+    for (Function body: program.precompiledInlineBodies()) {
+      List<FnID> occurrences = inlineLocations.get(body.id());
+      if (occurrences != null && occurrences.size() > 0) {
+        changed = true;
+        toInline.put(body.id(), body);
+        callSiteFunctions.addAll(occurrences);
+      }
+    }
+
     // Now do the inlining
     if (!callSiteFunctions.isEmpty()) {
       doInlining(logger, program, callSiteFunctions, inlineLocations, toInline);
@@ -579,7 +651,11 @@ public class FunctionInline implements OptimizerPass {
             + " for inline into function " + targetFunction.id());
   }
 
-  private static class FuncCallFinder extends TreeWalker {
+  /**
+   * Find calls between functions and function sizes from the def-use
+   * indices of the functions
+   */
+  private static class FuncCallFinder {
 
     /**
      * Map of called function -> name of function in which call occurred.
@@ -592,16 +668,23 @@ public class FunctionInline implements OptimizerPass {
      */
     private Counters<FnID> functionSizes = new Counters<FnID>();
 
-    @Override
-    public void visit(Logger logger, Function functionContext,
-                                      Instruction inst) {
-      if (isFunctionCall(inst)) {
-        FnID calledFunction = ((FunctionCall)inst).functionID();
-        functionUsages.put(calledFunction, functionContext.id());
+    public FuncCallFinder(Program program) {
+      for (Function function: program.functions()) {
+        DefUseIndex defUse = function.defUse();
+        for (FnID calledFunction: defUse.calledFunctions()) {
+          int calls = defUse.calls(calledFunction).size();
+          for (int i = 0; i < calls; i++) {
+            functionUsages.put(calledFunction, function.id());
+          }
+        }
+
+        // Count number of instructions
+        functionSizes.add(function.id(), defUse.instructionCount());
       }
 
-      // Count number of instructions
-      functionSizes.increment(functionContext.id());
+      for (Function body: program.precompiledInlineBodies()) {
+        functionSizes.add(body.id(), body.defUse().instructionCount());
+      }
     }
 
     public long getFunctionSize(Function function) {
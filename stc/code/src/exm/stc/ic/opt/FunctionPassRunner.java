@@ -0,0 +1,180 @@
+/*
+ * Copyright 2013 University of Chicago and Argonne National Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package exm.stc.ic.opt;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import org.apache.log4j.Logger;
+
+import exm.stc.common.Settings;
+import exm.stc.common.exceptions.STCRuntimeError;
+import exm.stc.common.exceptions.UserException;
+import exm.stc.ic.opt.OptimizerPass.FunctionOptimizerPass;
+import exm.stc.ic.tree.ICTree.Function;
+import exm.stc.ic.tree.ICTree.Program;
+
+/**
+ * Runs per-function optimizer passes over a program, either serially or,
+ * if {@link Settings#OPT_THREADS} is greater than one, on a shared
+ * fork-join pool.
+ *
+ * Each function is optimized by exactly one task and functions don't
+ * share mutable IR, so the result doesn't depend on scheduling order.
+ * If any functions fail, the error for the first failing function in
+ * program order is rethrown, so error reporting is also deterministic.
+ */
+public class FunctionPassRunner {
+
+  /**
+   * Pools by parallelism.  Pools are shared between compilations, which
+   * may run concurrently with different numbers of threads.
+   */
+  private static final Map<Integer, ForkJoinPool> pools =
+                            new HashMap<Integer, ForkJoinPool>();
+
+  /**
+   * @return number of threads to use for per-function passes
+   */
+  public static int threads() {
+    return Math.max(1, Settings.getIntUnchecked(Settings.OPT_THREADS));
+  }
+
+  /**
+   * @param program
+   * @return true if per-function passes over this program will be run
+   *        in parallel
+   */
+  public static boolean parallel(Program program) {
+    return parallel(program.functions());
+  }
+
+  /**
+   * @param functions
+   * @return true if per-function passes over these functions will be run
+   *        in parallel
+   */
+  public static boolean parallel(List<Function> functions) {
+    return threads() > 1 && functions.size() > 1;
+  }
+
+  public static void run(Logger logger, Program program,
+                  FunctionOptimizerPass pass) throws UserException {
+    run(logger, program, program.functions(), pass);
+  }
+
+  public static void run(Logger logger, Program program,
+      List<Function> functions, FunctionOptimizerPass pass)
+                                              throws UserException {
+    if (!parallel(functions)) {
+      for (Function f: functions) {
+        pass.optimize(logger, program, f);
+      }
+      return;
+    }
+
+    if (logger.isTraceEnabled()) {
+      logger.trace("Running " + pass.getPassName() + " on " +
+                   functions.size() + " functions with " +
+                   threads() + " threads");
+    }
+
+    Settings.Scope scope = Settings.getScope();
+    List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+    for (Function f: functions) {
+      tasks.add(new FunctionTask(logger, scope, program, pass, f));
+    }
+
+    List<Future<Void>> results = getPool(threads()).invokeAll(tasks);
+    for (Future<Void> result: results) {
+      waitForTask(result);
+    }
+  }
+
+  /**
+   * Get the result of a task, rethrowing any exception
+   * @param result
+   * @throws UserException
+   */
+  private static void waitForTask(Future<Void> result) throws UserException {
+    boolean done = false;
+    while (!done) {
+      try {
+        result.get();
+        done = true;
+      } catch (InterruptedException e) {
+        // Continue on after spurious interrupt
+      } catch (ExecutionException e) {
+        Throwable cause = e.getCause();
+        if (cause instanceof UserException) {
+          throw (UserException)cause;
+        } else if (cause instanceof RuntimeException) {
+          throw (RuntimeException)cause;
+        } else if (cause instanceof Error) {
+          throw (Error)cause;
+        } else {
+          throw new STCRuntimeError("Unexpected exception in optimizer", cause);
+        }
+      }
+    }
+  }
+
+  private static synchronized ForkJoinPool getPool(int threads) {
+    ForkJoinPool pool = pools.get(threads);
+    if (pool == null) {
+      pool = new ForkJoinPool(threads);
+      pools.put(threads, pool);
+    }
+    return pool;
+  }
+
+  private static class FunctionTask implements Callable<Void> {
+    private final Logger logger;
+    private final Settings.Scope scope;
+    private final Program program;
+    private final FunctionOptimizerPass pass;
+    private final Function function;
+
+    public FunctionTask(Logger logger, Settings.Scope scope, Program program,
+                 FunctionOptimizerPass pass, Function function) {
+      this.logger = logger;
+      this.scope = scope;
+      this.program = program;
+      this.pass = pass;
+      this.function = function;
+    }
+
+    @Override
+    public Void call() throws UserException {
+      // Run in settings scope of compilation.  The task may be run in
+      // the submitting thread, so restore the previous scope after.
+      Settings.Scope prevScope = Settings.getScope();
+      Settings.setScope(scope);
+      try {
+        pass.optimize(logger, program, function);
+      } finally {
+        Settings.setScope(prevScope);
+      }
+      return null;
+    }
+  }
+}
@@ -0,0 +1,352 @@
+/*
+ * Copyright 2013 University of Chicago and Argonne National Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package exm.stc.ic.opt;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.ListIterator;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.log4j.Logger;
+
+import exm.stc.common.Settings;
+import exm.stc.common.exceptions.UserException;
+import exm.stc.common.lang.Arg;
+import exm.stc.common.lang.FnID;
+import exm.stc.common.lang.Var;
+import exm.stc.common.lang.Var.Alloc;
+import exm.stc.common.lang.WaitVar;
+import exm.stc.common.util.Counters;
+import exm.stc.common.util.StackLite;
+import exm.stc.ic.tree.ICContinuations.Continuation;
+import exm.stc.ic.tree.ICInstructions.FunctionCall;
+import exm.stc.ic.tree.ICTree.Block;
+import exm.stc.ic.tree.ICTree.Function;
+import exm.stc.ic.tree.ICTree.Program;
+import exm.stc.ic.tree.ICTree.RenameMode;
+import exm.stc.ic.tree.ICTree.Statement;
+import exm.stc.ic.tree.ICTree.StatementType;
+import exm.stc.ic.tree.Opcode;
+
+/**
+ * Create specialized copies of functions for calls with constant
+ * arguments.  Each distinct combination of constant arguments to a
+ * function gets one copy with the constant parameters removed from the
+ * signature and replaced by the constants in the body.  Other passes,
+ * e.g. constant folding and loop expansion, can then optimize the copy
+ * without the whole function having to be inlined at each call site.
+ *
+ * Functions that the inliner would inline anyway are left alone.  The
+ * total size of copies made is limited over the whole compilation, so
+ * the pass is stateful and should only be created once.  Copies made
+ * earlier are reused by later calls with the same constants, including
+ * recursive calls within the copies.
+ */
+public class FunctionSpecialize implements OptimizerPass {
+
+  /**
+   * Copies already created, which may since have been removed
+   */
+  private final Map<Specialization, FnID> specialized =
+                              new HashMap<Specialization, FnID>();
+
+  /**
+   * Remaining number of instructions that can be added in copies
+   */
+  private long budget;
+
+  private final boolean inlining;
+  private final long inlineThreshold;
+  private final long alwaysInlineThreshold;
+
+  public FunctionSpecialize() {
+    budget = Settings.getLongUnchecked(
+        Settings.OPT_FUNCTION_SPECIALIZE_THRESHOLD);
+    inlining = Settings.getBooleanUnchecked(Settings.OPT_FUNCTION_INLINE);
+    inlineThreshold = Settings.getLongUnchecked(
+        Settings.OPT_FUNCTION_INLINE_THRESHOLD);
+    alwaysInlineThreshold = Settings.getLongUnchecked(
+        Settings.OPT_FUNCTION_ALWAYS_INLINE_THRESHOLD);
+  }
+
+  @Override
+  public String getPassName() {
+    return "Function specialization";
+  }
+
+  @Override
+  public String getConfigEnabledKey() {
+    return Settings.OPT_FUNCTION_SPECIALIZE;
+  }
+
+  @Override
+  public void optimize(Logger logger, Program program) throws UserException {
+    Map<FnID, Function> candidates = findCandidates(program);
+    if (candidates.isEmpty()) {
+      return;
+    }
+
+    // Function index may still list removed functions
+    Set<FnID> usedIDs = new HashSet<FnID>();
+    for (Function f: program.functions()) {
+      usedIDs.add(f.id());
+    }
+    for (Function f: program.precompiledFunctions()) {
+      usedIDs.add(f.id());
+    }
+    List<Function> newFunctions = new ArrayList<Function>();
+    for (Function f: program.functions()) {
+      StackLite<Block> blocks = new StackLite<Block>();
+      blocks.push(f.mainBlock());
+      while (!blocks.isEmpty()) {
+        Block block = blocks.pop();
+        specializeCalls(logger, program, block, candidates, usedIDs,
+                        newFunctions);
+        for (Continuation c: block.allComplexStatements()) {
+          blocks.addAll(c.getBlocks());
+        }
+      }
+    }
+
+    for (Function newFn: newFunctions) {
+      program.addFunction(newFn);
+    }
+  }
+
+  /**
+   * Find functions worth specializing: functions that are called but
+   * won't be inlined
+   * @return map of candidate functions by ID
+   */
+  private Map<FnID, Function> findCandidates(Program program) {
+    Counters<FnID> callCounts = new Counters<FnID>();
+    Map<FnID, FnID> lastCaller = new HashMap<FnID, FnID>();
+    for (Function f: program.functions()) {
+      for (FnID callee: f.defUse().calledFunctions()) {
+        callCounts.add(callee, f.defUse().calls(callee).size());
+        lastCaller.put(callee, f.id());
+      }
+    }
+
+    Map<FnID, Function> candidates = new HashMap<FnID, Function>();
+    for (Function f: program.functions()) {
+      long calls = callCounts.getCount(f.id());
+      long size = f.defUse().instructionCount();
+      if (f.id().equals(FnID.ENTRY_FUNCTION) || calls == 0) {
+        continue;
+      }
+      if (inlining) {
+        // Mirror choices made by FunctionInline
+        if (calls == 1 && !lastCaller.get(f.id()).equals(f.id()) &&
+            !program.isExternallyReferenced(f.id())) {
+          continue;
+        }
+        if (size <= alwaysInlineThreshold &&
+            calls * size <= inlineThreshold) {
+          continue;
+        }
+      }
+      candidates.put(f.id(), f);
+    }
+    return candidates;
+  }
+
+  private void specializeCalls(Logger logger, Program program, Block block,
+      Map<FnID, Function> candidates, Set<FnID> usedIDs,
+      List<Function> newFunctions) {
+    ListIterator<Statement> it = block.statementIterator();
+    while (it.hasNext()) {
+      Statement stmt = it.next();
+      if (stmt.type() != StatementType.INSTRUCTION ||
+          !(stmt.instruction() instanceof FunctionCall) ||
+          stmt.instruction().op == Opcode.CALL_FOREIGN) {
+        continue;
+      }
+
+      FunctionCall call = (FunctionCall)stmt.instruction();
+      Function callee = candidates.get(call.functionID());
+      if (callee == null) {
+        continue;
+      }
+
+      Specialization spec = findSpecialization(program, callee, call);
+      if (spec == null) {
+        continue;
+      }
+
+      // Reuse copy unless it was removed since being created.  Names of
+      // removed copies are not reused, so a stale entry can't match a
+      // different copy.
+      FnID newID = specialized.get(spec);
+      if (newID == null || !usedIDs.contains(newID)) {
+        long size = callee.defUse().instructionCount();
+        if (size > budget) {
+          logger.debug("Not specializing " + callee.id() + ": size " + size +
+                       " exceeds remaining budget " + budget);
+          continue;
+        }
+        budget -= size;
+
+        newID = uniqueID(callee.id(), usedIDs, specialized.values());
+        usedIDs.add(newID);
+        specialized.put(spec, newID);
+        newFunctions.add(specialize(callee, newID, spec, call));
+        logger.debug("Specialized " + callee.id() + " as " + newID +
+                     " for " + spec);
+      }
+
+      it.set(call.withoutInputs(newID, spec.positions));
+    }
+  }
+
+  /**
+   * @return specialization for call, or null if no inputs are constant
+   */
+  private static Specialization findSpecialization(Program program,
+                              Function callee, FunctionCall call) {
+    List<Integer> positions = new ArrayList<Integer>();
+    List<Arg> values = new ArrayList<Arg>();
+    List<Arg> inputs = call.getFunctionInputs();
+    assert(inputs.size() == callee.getInputList().size());
+    for (int i = 0; i < inputs.size(); i++) {
+      Var formal = callee.getInputList().get(i);
+      Arg value = constantValue(program, inputs.get(i));
+      if (value != null &&
+          inputs.get(i).type().getImplType().equals(
+                                formal.type().getImplType())) {
+        positions.add(i);
+        values.add(value);
+      }
+    }
+
+    if (positions.isEmpty()) {
+      return null;
+    }
+    return new Specialization(callee.id(), positions, values);
+  }
+
+  /**
+   * @return constant value of input, or null if not constant
+   */
+  private static Arg constantValue(Program program, Arg input) {
+    if (input.isConst()) {
+      return input;
+    } else if (input.getVar().storage() == Alloc.GLOBAL_CONST) {
+      return program.constants().lookupByVar(input.getVar());
+    } else {
+      return null;
+    }
+  }
+
+  /**
+   * Create specialized copy of function
+   * @param fn function to copy
+   * @param newID
+   * @param spec
+   * @param call a call matching the specialization, to take constant
+   *            inputs from
+   * @return new function
+   */
+  private static Function specialize(Function fn, FnID newID,
+                          Specialization spec, FunctionCall call) {
+    Block block = fn.mainBlock().clone();
+
+    Map<Var, Arg> renames = new HashMap<Var, Arg>();
+    for (int pos: spec.positions) {
+      Var formal = fn.getInputList().get(pos);
+      renames.put(formal, call.getFunctionInput(pos));
+      block.removeCleanups(formal);
+    }
+
+    List<Var> inputs = new ArrayList<Var>();
+    for (Var input: fn.getInputList()) {
+      if (!renames.containsKey(input)) {
+        inputs.add(input);
+      }
+    }
+
+    List<WaitVar> blockingInputs = new ArrayList<WaitVar>();
+    for (WaitVar wv: fn.blockingInputs()) {
+      if (!renames.containsKey(wv.var)) {
+        blockingInputs.add(wv);
+      }
+    }
+
+    Function newFn = new Function(newID, inputs, blockingInputs,
+                                  fn.getOutputList(), fn.mode(), block);
+    for (int i = 0; i < fn.getOutputList().size(); i++) {
+      if (fn.isOutputWriteOnly(i)) {
+        newFn.makeOutputWriteOnly(i);
+      }
+    }
+
+    block.renameVars(newID, renames, RenameMode.REPLACE_VAR, true);
+    return newFn;
+  }
+
+  private static FnID uniqueID(FnID id, Set<FnID> used,
+                               Collection<FnID> previous) {
+    int counter = 1;
+    FnID newID;
+    do {
+      newID = new FnID(id.uniqueName() + "-spec" + counter,
+                       id.originalName());
+      counter++;
+    } while (used.contains(newID) || previous.contains(newID));
+    return newID;
+  }
+
+  /**
+   * Function with constant values for some inputs
+   */
+  private static class Specialization {
+    final FnID function;
+    /** Positions of constant inputs, in ascending order */
+    final List<Integer> positions;
+    final List<Arg> values;
+
+    Specialization(FnID function, List<Integer> positions,
+                   List<Arg> values) {
+      this.function = function;
+      this.positions = positions;
+      this.values = values;
+    }
+
+    @Override
+    public int hashCode() {
+      return function.hashCode() ^ positions.hashCode() ^ values.hashCode();
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (!(obj instanceof Specialization)) {
+        return false;
+      }
+      Specialization o = (Specialization)obj;
+      return function.equals(o.function) && positions.equals(o.positions) &&
+             values.equals(o.values);
+    }
+
+    @Override
+    public String toString() {
+      return function + positions.toString() + values;
+    }
+  }
+}
@@ -0,0 +1,658 @@
+/*
+ * Copyright 2013 University of Chicago and Argonne National Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package exm.stc.ic.opt;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.log4j.Logger;
+
+import com.google.common.collect.HashMultimap;
+import com.google.common.collect.SetMultimap;
+
+import exm.stc.common.Settings;
+import exm.stc.common.lang.Arg;
+import exm.stc.common.lang.FnID;
+import exm.stc.common.lang.Types;
+import exm.stc.common.lang.Var;
+import exm.stc.common.lang.WaitVar;
+import exm.stc.common.util.StackLite;
+import exm.stc.common.util.TernaryLogic.Ternary;
+import exm.stc.ic.aliases.Alias;
+import exm.stc.ic.componentaliases.ComponentAlias;
+import exm.stc.ic.opt.valuenumber.ValLoc;
+import exm.stc.ic.tree.ICContinuations.BlockingVar;
+import exm.stc.ic.tree.ICContinuations.ContVarDefType;
+import exm.stc.ic.tree.ICContinuations.Continuation;
+import exm.stc.ic.tree.ICContinuations.ContinuationType;
+import exm.stc.ic.tree.ICContinuations.Loop;
+import exm.stc.ic.tree.ICInstructions.ExecExternal;
+import exm.stc.ic.tree.ICInstructions.FunctionCall;
+import exm.stc.ic.tree.ICInstructions.Instruction;
+import exm.stc.ic.tree.ICInstructions.LoopContinue;
+import exm.stc.ic.tree.ICTree.Block;
+import exm.stc.ic.tree.ICTree.CleanupAction;
+import exm.stc.ic.tree.ICTree.Function;
+import exm.stc.ic.tree.ICTree.Program;
+import exm.stc.ic.tree.ICTree.Statement;
+import exm.stc.ic.tree.ICTree.StatementType;
+import exm.stc.ic.tree.Opcode;
+
+/**
+ * Interprocedural analysis that summarizes the effects of each function
+ * in the program on its arguments: see {@link FunctionSummary}.
+ *
+ * Functions are analysed bottom-up over the strongly connected components
+ * of the {@link CallGraph}, so that calls to other functions can be
+ * analysed with the callee's summary rather than assuming the worst.
+ * Recursive components start from the summary where nothing happens and
+ * are reanalysed until the summaries stop changing.
+ *
+ * Summaries describe the functions at the time they were computed.  The
+ * facts in them are preserved by the optimizer's transformations, so a
+ * pass can use summaries computed at its start even after modifying the
+ * functions, but summaries should be recomputed for each pass to pick up
+ * new or renamed functions.
+ */
+public class FunctionSummaries {
+
+  private final CallGraph callGraph;
+  private final Map<FnID, FunctionSummary> summaries;
+
+  private FunctionSummaries(CallGraph callGraph) {
+    this.callGraph = callGraph;
+    this.summaries = new HashMap<FnID, FunctionSummary>();
+  }
+
+  /**
+   * @return summaries for program, or null if interprocedural analysis
+   *         is disabled
+   */
+  public static FunctionSummaries fromSettings(Logger logger,
+                                               Program program) {
+    if (!Settings.getBooleanUnchecked(Settings.OPT_INTERPROCEDURAL)) {
+      return null;
+    }
+    return compute(logger, program);
+  }
+
+  public static FunctionSummaries compute(Logger logger, Program program) {
+    FunctionSummaries result = new FunctionSummaries(CallGraph.build(program));
+
+    for (List<FnID> component: result.callGraph.components()) {
+      List<Function> functions = new ArrayList<Function>(component.size());
+      for (FnID id: component) {
+        Function fn = program.lookupFunction(id);
+        functions.add(fn);
+        result.summaries.put(id, FunctionSummary.initial(id,
+                fn.getInputList().size(), fn.getOutputList().size()));
+      }
+
+      boolean recursive = result.callGraph.isRecursive(component.get(0));
+      boolean changed;
+      do {
+        changed = false;
+        for (Function fn: functions) {
+          FunctionSummary summary = new Analysis(program, result, fn).run();
+          if (!summary.equals(result.summaries.put(fn.id(), summary))) {
+            changed = true;
+          }
+        }
+      } while (recursive && changed);
+    }
+
+    if (logger.isTraceEnabled()) {
+      logger.trace("Function summaries:\n" + result);
+    }
+    return result;
+  }
+
+  public CallGraph callGraph() {
+    return callGraph;
+  }
+
+  /**
+   * @return summary for function, or null if function not in program
+   */
+  public FunctionSummary get(FnID id) {
+    return summaries.get(id);
+  }
+
+  /**
+   * @return summary of function called by instruction, or null if the
+   *         instruction isn't a call to a function in the program
+   */
+  public FunctionSummary calleeSummary(Instruction inst) {
+    if (!(inst instanceof FunctionCall) || inst.op == Opcode.CALL_FOREIGN) {
+      return null;
+    }
+    return summaries.get(((FunctionCall)inst).functionID());
+  }
+
+  /**
+   * Version of {@link Instruction#hasSideEffects()} that uses summaries
+   * for calls to functions in the program.
+   */
+  public boolean hasSideEffects(Instruction inst) {
+    FunctionSummary callee = calleeSummary(inst);
+    if (callee != null) {
+      return callee.hasSideEffects();
+    }
+    return inst.hasSideEffects();
+  }
+
+  /**
+   * Version of {@link Instruction#getBlockingInputs(Program)} that also
+   * includes inputs that a called function waits for before doing
+   * anything else, even if they aren't declared as blocking inputs.
+   * @return blocking inputs, or null if not known
+   */
+  public List<Var> getBlockingInputs(Program program, Instruction inst) {
+    List<Var> blocking = inst.getBlockingInputs(program);
+    FunctionSummary callee = calleeSummary(inst);
+    if (callee == null || inst.op != Opcode.CALL_CONTROL) {
+      // Other kinds of call are entered without waiting
+      return blocking;
+    }
+
+    List<Var> result = new ArrayList<Var>();
+    if (blocking != null) {
+      result.addAll(blocking);
+    }
+    List<Arg> args = ((FunctionCall)inst).getFunctionInputs();
+    for (int i = 0; i < args.size(); i++) {
+      Arg arg = args.get(i);
+      if (callee.blocksOnInput(i) && arg.isVar() &&
+          !result.contains(arg.getVar())) {
+        result.add(arg.getVar());
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Version of {@link Instruction#getClosedOutputs()} that also includes
+   * outputs closed by synchronous calls to functions in the program.
+   */
+  public List<Var> getClosedOutputs(Instruction inst) {
+    List<Var> closed = inst.getClosedOutputs();
+    FunctionSummary callee = calleeSummary(inst);
+    if (callee == null || inst.op != Opcode.CALL_SYNC) {
+      return closed;
+    }
+
+    List<Var> result = new ArrayList<Var>(closed);
+    List<Var> outputs = ((FunctionCall)inst).getFunctionOutputs();
+    for (int i = 0; i < outputs.size(); i++) {
+      if (callee.closesOutputAtReturn(i) &&
+          !result.contains(outputs.get(i))) {
+        result.add(outputs.get(i));
+      }
+    }
+    return result;
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder sb = new StringBuilder();
+    for (FnID id: callGraph.functions()) {
+      sb.append(summaries.get(id));
+      sb.append('\n');
+    }
+    return sb.toString();
+  }
+
+  /**
+   * Analysis of a single function, using current summaries for callees.
+   *
+   * Writes through a variable affect any variable it is part of, so
+   * writes are tracked up a graph from parts to enclosing variables.
+   * Aliasing and escapes are tracked with the undirected version of the
+   * same graph.
+   */
+  private static class Analysis {
+    private final Program program;
+    private final FunctionSummaries summaries;
+    private final Function fn;
+
+    /** Edges from variables to variables they are part of */
+    private final SetMultimap<Var, Var> enclosing = HashMultimap.create();
+
+    /** Union-find forest for undirected alias graph */
+    private final Map<Var, Var> aliasParent = new HashMap<Var, Var>();
+
+    private boolean sideEffects = false;
+    private boolean deterministic = true;
+    private final BitSet read = new BitSet();
+    private final BitSet written = new BitSet();
+    private final BitSet aliased = new BitSet();
+
+    Analysis(Program program, FunctionSummaries summaries, Function fn) {
+      this.program = program;
+      this.summaries = summaries;
+      this.fn = fn;
+    }
+
+    FunctionSummary run() {
+      findAliases(fn.mainBlock(), null);
+      findEffects(fn.mainBlock());
+
+      BitSet escaped = new BitSet();
+      List<Var> inputs = fn.getInputList();
+      Map<Var, Integer> aliasCount = new HashMap<Var, Integer>();
+      Set<Var> escapeRoots = new HashSet<Var>();
+      for (Var v: aliasParent.keySet()) {
+        Var root = findRoot(v);
+        Integer count = aliasCount.get(root);
+        aliasCount.put(root, count == null ? 1 : count + 1);
+        if (fn.getOutputList().contains(v) || v.storage().isGlobal()) {
+          escapeRoots.add(root);
+        }
+      }
+      for (int i = 0; i < inputs.size(); i++) {
+        Var root = findRoot(inputs.get(i));
+        Integer count = aliasCount.get(root);
+        if (count != null && count > 1) {
+          aliased.set(i);
+        }
+        if (escapeRoots.contains(root)) {
+          escaped.set(i);
+        }
+      }
+
+      return new FunctionSummary(fn.id(), inputs.size(),
+          fn.getOutputList().size(), sideEffects, deterministic, read,
+          written, findBlockedOn(), aliased, escaped, findClosedAtReturn());
+    }
+
+    private void addEnclosing(Var part, Var whole) {
+      if (!part.equals(whole)) {
+        enclosing.put(part, whole);
+        union(part, whole);
+      }
+    }
+
+    private Var findRoot(Var v) {
+      Var parent = aliasParent.get(v);
+      if (parent == null) {
+        return v;
+      }
+      Var root = findRoot(parent);
+      if (root != parent) {
+        aliasParent.put(v, root);
+      }
+      return root;
+    }
+
+    private void union(Var v1, Var v2) {
+      if (!aliasParent.containsKey(v1)) {
+        aliasParent.put(v1, null);
+      }
+      if (!aliasParent.containsKey(v2)) {
+        aliasParent.put(v2, null);
+      }
+      Var r1 = findRoot(v1), r2 = findRoot(v2);
+      if (!r1.equals(r2)) {
+        aliasParent.put(r1, r2);
+      }
+    }
+
+    /**
+     * @return input positions of variables that v is a part of
+     */
+    private BitSet enclosingInputs(Var v) {
+      BitSet result = new BitSet();
+      for (Var whole: enclosingVars(v)) {
+        int i = fn.getInputList().indexOf(whole);
+        if (i >= 0) {
+          result.set(i);
+        }
+      }
+      return result;
+    }
+
+    /**
+     * @return v and all variables it is part of
+     */
+    private Set<Var> enclosingVars(Var v) {
+      Set<Var> result = new HashSet<Var>();
+      StackLite<Var> work = new StackLite<Var>();
+      work.push(v);
+      while (!work.isEmpty()) {
+        Var curr = work.pop();
+        if (result.add(curr)) {
+          work.addAll(enclosing.get(curr));
+        }
+      }
+      return result;
+    }
+
+    /**
+     * @return input positions of variables aliased with v
+     */
+    private BitSet aliasedInputs(Var v) {
+      BitSet result = new BitSet();
+      Var root = findRoot(v);
+      List<Var> inputs = fn.getInputList();
+      for (int i = 0; i < inputs.size(); i++) {
+        if (findRoot(inputs.get(i)).equals(root)) {
+          result.set(i);
+        }
+      }
+      return result;
+    }
+
+    private void findAliases(Block block, Loop loop) {
+      for (Statement stmt: block.getStatements()) {
+        if (stmt.type() == StatementType.INSTRUCTION) {
+          findAliases(stmt.instruction(), loop);
+        } else {
+          findAliases(stmt.conditional(), loop);
+        }
+      }
+      for (Continuation c: block.getContinuations()) {
+        findAliases(c, loop);
+      }
+    }
+
+    private void findAliases(Continuation c, Loop loop) {
+      // Variables defined by construct may refer to parts of its inputs,
+      // e.g. foreach loop members or loop variables
+      for (Var defined: c.constructDefinedVars(ContVarDefType.ANY_DEF)) {
+        if (!Types.isPrimValue(defined)) {
+          for (Var required: c.requiredVars(false)) {
+            addEnclosing(defined, required);
+          }
+        }
+      }
+
+      Loop innerLoop = loop;
+      if (c.getType() == ContinuationType.LOOP) {
+        innerLoop = (Loop)c;
+      }
+      for (Block inner: c.getBlocks()) {
+        findAliases(inner, innerLoop);
+      }
+    }
+
+    private void findAliases(Instruction inst, Loop loop) {
+      for (Alias alias: inst.getAliases()) {
+        addEnclosing(alias.child, alias.parent);
+      }
+      for (ComponentAlias alias: inst.getComponentAliases()) {
+        addEnclosing(alias.alias, alias.component.var);
+        if (alias.component.key.isEmpty()) {
+          // Direct alias
+          addEnclosing(alias.component.var, alias.alias);
+        }
+      }
+
+      if (inst.op == Opcode.LOOP_CONTINUE && loop != null) {
+        // Loop variables in next iteration are the new values
+        LoopContinue cont = (LoopContinue)inst;
+        List<Var> loopVars = loop.getLoopVars();
+        for (int i = 0; i < loopVars.size(); i++) {
+          Arg newVal = cont.getNewLoopVar(i);
+          if (newVal.isVar()) {
+            addEnclosing(loopVars.get(i), newVal.getVar());
+          }
+        }
+      }
+
+      FunctionSummary callee = summaries.calleeSummary(inst);
+      if (callee != null) {
+        // Outputs may contain inputs that escape callee
+        FunctionCall call = (FunctionCall)inst;
+        List<Arg> args = call.getFunctionInputs();
+        for (int i = 0; i < args.size(); i++) {
+          if (callee.escapesInput(i) && args.get(i).isVar()) {
+            for (Var out: call.getFunctionOutputs()) {
+              addEnclosing(args.get(i).getVar(), out);
+            }
+          }
+        }
+      }
+    }
+
+    private void findEffects(Block block) {
+      for (Statement stmt: block.getStatements()) {
+        if (stmt.type() == StatementType.INSTRUCTION) {
+          findEffects(stmt.instruction());
+        } else {
+          findEffects(stmt.conditional());
+        }
+      }
+      for (Continuation c: block.getContinuations()) {
+        findEffects(c);
+      }
+      for (CleanupAction cleanup: block.getCleanups()) {
+        findEffects(cleanup.action());
+      }
+    }
+
+    private void findEffects(Continuation c) {
+      if (c.getType() == ContinuationType.ASYNC_EXEC) {
+        // Executes external code
+        sideEffects = true;
+        deterministic = false;
+      }
+      for (Var v: c.requiredVars(false)) {
+        addRead(v);
+      }
+      for (Block inner: c.getBlocks()) {
+        findEffects(inner);
+      }
+    }
+
+    private void findEffects(Instruction inst) {
+      FunctionSummary callee = summaries.calleeSummary(inst);
+      if (callee != null) {
+        sideEffects = sideEffects || callee.hasSideEffects();
+        deterministic = deterministic && callee.isDeterministic();
+
+        FunctionCall call = (FunctionCall)inst;
+        List<Arg> args = call.getFunctionInputs();
+        for (int i = 0; i < args.size(); i++) {
+          Arg arg = args.get(i);
+          if (!arg.isVar()) {
+            continue;
+          }
+          if (callee.readsInput(i)) {
+            addRead(arg.getVar());
+          }
+          if (callee.writesInput(i)) {
+            addWrite(inst, arg.getVar());
+          }
+          if (callee.aliasesInput(i)) {
+            aliased.or(aliasedInputs(arg.getVar()));
+          }
+        }
+        if (call.getTaskProps() != null) {
+          for (Arg prop: call.getTaskProps().values()) {
+            if (prop.isVar()) {
+              addRead(prop.getVar());
+            }
+          }
+        }
+      } else {
+        if (inst.op != Opcode.LOOP_CONTINUE && inst.op != Opcode.LOOP_BREAK) {
+          // Loop control only affects this function
+          if (inst.hasSideEffects()) {
+            sideEffects = true;
+          }
+          if (!inst.canChangeTiming() || (inst.op == Opcode.EXEC &&
+                          !((ExecExternal)inst).isDeterministic())) {
+            deterministic = false;
+          }
+        }
+        for (Arg in: inst.getInputs()) {
+          if (in.isVar()) {
+            addRead(in.getVar());
+          }
+        }
+      }
+
+      for (Var out: inst.getReadOutputs(program.getFunctionMap())) {
+        addRead(out);
+      }
+      for (Var out: inst.getOutputs()) {
+        addWrite(inst, out);
+      }
+    }
+
+    private void addRead(Var v) {
+      read.or(aliasedInputs(v));
+    }
+
+    private void addWrite(Instruction inst, Var v) {
+      Set<Var> affected = enclosingVars(v);
+      BitSet inputs = enclosingInputs(v);
+      if (!inputs.isEmpty()) {
+        // Modifying data that caller passed in
+        written.or(inputs);
+        sideEffects = true;
+      }
+
+      boolean isOutput = false;
+      for (Var var: affected) {
+        if (var.storage().isGlobal()) {
+          sideEffects = true;
+        }
+        if (fn.getOutputList().contains(var)) {
+          isOutput = true;
+        }
+      }
+
+      // Writing a mapped file that isn't returned to caller, same as
+      // in dead code elimination
+      if (!isOutput && v.isMapped() != Ternary.FALSE &&
+          inst.op != Opcode.STORE_FILE) {
+        sideEffects = true;
+      }
+    }
+
+    /**
+     * Find inputs that must be closed before the function makes any
+     * progress, extending {@link Function#blockingInputs()} with waits
+     * in the function body, including those in called functions.
+     */
+    private BitSet findBlockedOn() {
+      BitSet result = new BitSet();
+      List<Var> inputs = fn.getInputList();
+      for (WaitVar wv: fn.blockingInputs()) {
+        int i = inputs.indexOf(wv.var);
+        if (i >= 0) {
+          result.set(i);
+        }
+      }
+
+      if (!fn.isAsync()) {
+        return result;
+      }
+
+      Set<Var> blocking = null;
+      for (Block block: TreeWalk.syncBlocks(fn.mainBlock())) {
+        for (Statement stmt: block.getStatements()) {
+          if (stmt.type() != StatementType.INSTRUCTION) {
+            continue;
+          }
+          Instruction inst = stmt.instruction();
+          if (inst.op != Opcode.CALL_CONTROL ||
+              summaries.calleeSummary(inst) == null) {
+            if (inst.isProgressEnabling() || !inst.isCheap()) {
+              return result;
+            }
+          }
+          List<Var> waitVars = summaries.getBlockingInputs(program, inst);
+          blocking = intersect(blocking, waitVars);
+        }
+
+        for (Continuation c: block.allComplexStatements()) {
+          if (c.isAsync()) {
+            List<Var> waitVars = new ArrayList<Var>();
+            List<BlockingVar> blockingVars = c.blockingVars(false);
+            if (blockingVars != null) {
+              for (BlockingVar bv: blockingVars) {
+                waitVars.add(bv.var);
+              }
+            }
+            blocking = intersect(blocking, waitVars);
+          }
+        }
+      }
+
+      if (blocking != null) {
+        for (int i = 0; i < inputs.size(); i++) {
+          if (blocking.contains(inputs.get(i))) {
+            result.set(i);
+          }
+        }
+      }
+      return result;
+    }
+
+    private static Set<Var> intersect(Set<Var> blocking, List<Var> waitVars) {
+      if (waitVars == null) {
+        waitVars = Collections.emptyList();
+      }
+      if (blocking == null) {
+        return new HashSet<Var>(waitVars);
+      }
+      blocking.retainAll(waitVars);
+      return blocking;
+    }
+
+    /**
+     * Find outputs closed by instructions that run before a synchronous
+     * call to the function returns
+     */
+    private BitSet findClosedAtReturn() {
+      BitSet result = new BitSet();
+      List<Var> outputs = fn.getOutputList();
+      for (Statement stmt: fn.mainBlock().getStatements()) {
+        if (stmt.type() != StatementType.INSTRUCTION) {
+          continue;
+        }
+        Instruction inst = stmt.instruction();
+        for (Var closed: summaries.getClosedOutputs(inst)) {
+          int i = outputs.indexOf(closed);
+          if (i >= 0) {
+            result.set(i);
+          }
+        }
+
+        List<ValLoc> results = inst.getResults();
+        if (results != null) {
+          for (ValLoc res: results) {
+            if (res.locClosed().isClosed() && res.location().isVar()) {
+              int i = outputs.indexOf(res.location().getVar());
+              if (i >= 0) {
+                result.set(i);
+              }
+            }
+          }
+        }
+      }
+      return result;
+    }
+  }
+}
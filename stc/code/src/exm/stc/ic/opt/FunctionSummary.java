@@ -0,0 +1,165 @@
+/*
+ * Copyright 2013 University of Chicago and Argonne National Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package exm.stc.ic.opt;
+
+import java.util.BitSet;
+
+import exm.stc.common.lang.FnID;
+
+/**
+ * Summary of the effects of calling a function, in terms of its argument
+ * positions so that it can be applied at any call site.  Computed by
+ * {@link FunctionSummaries}.
+ *
+ * "May" facts (side effects, reads, writes, aliasing, escapes) are
+ * conservative over-approximations.  "Must" facts (blocking, closing)
+ * are under-approximations.
+ */
+public class FunctionSummary {
+
+  private final FnID id;
+  private final int inputCount;
+  private final int outputCount;
+
+  /** If function may have effects other than writing its outputs */
+  private final boolean sideEffects;
+
+  /** If function always produces the same outputs for the same inputs */
+  private final boolean deterministic;
+
+  /** Inputs that may be read */
+  private final BitSet read;
+
+  /** Inputs that may be modified */
+  private final BitSet written;
+
+  /** Inputs that must be closed before the function does anything */
+  private final BitSet blockedOn;
+
+  /** Inputs that other variables may refer to during the call */
+  private final BitSet aliased;
+
+  /** Inputs that may be referred to by outputs or globals after the call */
+  private final BitSet escaped;
+
+  /** Outputs that are closed by the time a synchronous call returns */
+  private final BitSet closedAtReturn;
+
+  FunctionSummary(FnID id, int inputCount, int outputCount,
+      boolean sideEffects, boolean deterministic, BitSet read,
+      BitSet written, BitSet blockedOn, BitSet aliased, BitSet escaped,
+      BitSet closedAtReturn) {
+    this.id = id;
+    this.inputCount = inputCount;
+    this.outputCount = outputCount;
+    this.sideEffects = sideEffects;
+    this.deterministic = deterministic;
+    this.read = (BitSet)read.clone();
+    this.written = (BitSet)written.clone();
+    this.blockedOn = (BitSet)blockedOn.clone();
+    this.aliased = (BitSet)aliased.clone();
+    this.escaped = (BitSet)escaped.clone();
+    this.closedAtReturn = (BitSet)closedAtReturn.clone();
+  }
+
+  /**
+   * Starting point for analysis of recursive functions: assume nothing
+   * happens, then add effects until a fixed point is reached.
+   */
+  static FunctionSummary initial(FnID id, int inputCount, int outputCount) {
+    BitSet none = new BitSet();
+    return new FunctionSummary(id, inputCount, outputCount, false, true,
+                           none, none, none, none, none, none);
+  }
+
+  public FnID id() {
+    return id;
+  }
+
+  public boolean hasSideEffects() {
+    return sideEffects;
+  }
+
+  public boolean isDeterministic() {
+    return deterministic;
+  }
+
+  /**
+   * @return true if calls with the same inputs are interchangeable
+   */
+  public boolean isPure() {
+    return !sideEffects && deterministic;
+  }
+
+  public boolean readsInput(int i) {
+    return read.get(i);
+  }
+
+  public boolean writesInput(int i) {
+    return written.get(i);
+  }
+
+  public boolean blocksOnInput(int i) {
+    return blockedOn.get(i);
+  }
+
+  public boolean aliasesInput(int i) {
+    return aliased.get(i);
+  }
+
+  public boolean escapesInput(int i) {
+    return escaped.get(i);
+  }
+
+  public boolean closesOutputAtReturn(int i) {
+    return closedAtReturn.get(i);
+  }
+
+  @Override
+  public int hashCode() {
+    return id.hashCode() ^ read.hashCode() ^ written.hashCode() ^
+           blockedOn.hashCode() ^ closedAtReturn.hashCode();
+  }
+
+  @Override
+  public boolean equals(Object obj) {
+    if (!(obj instanceof FunctionSummary)) {
+      return false;
+    }
+    FunctionSummary o = (FunctionSummary)obj;
+    return id.equals(o.id) &&
+        inputCount == o.inputCount && outputCount == o.outputCount &&
+        sideEffects == o.sideEffects && deterministic == o.deterministic &&
+        read.equals(o.read) && written.equals(o.written) &&
+        blockedOn.equals(o.blockedOn) && aliased.equals(o.aliased) &&
+        escaped.equals(o.escaped) && closedAtReturn.equals(o.closedAtReturn);
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder sb = new StringBuilder();
+    sb.append(id);
+    sb.append(sideEffects ? " side-effects" :
+              (deterministic ? " pure" : " non-deterministic"));
+    sb.append(" read=").append(read);
+    sb.append(" written=").append(written);
+    sb.append(" blocked-on=").append(blockedOn);
+    sb.append(" aliased=").append(aliased);
+    sb.append(" escaped=").append(escaped);
+    sb.append(" closed-at-return=").append(closedAtReturn);
+    return sb.toString();
+  }
+}
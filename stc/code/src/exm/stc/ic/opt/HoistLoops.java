@@ -31,7 +31,8 @@ import exm.stc.common.lang.Semantics;
 import exm.stc.common.lang.Types;
 import exm.stc.common.lang.Var;
 import exm.stc.common.lang.WaitVar;
-import exm.stc.common.util.HierarchicalMap;
+import exm.stc.common.util.ScopedMap;
+import exm.stc.ic.opt.OptimizerPass.FunctionOptimizerPass;
 import exm.stc.ic.tree.ICContinuations.Continuation;
 import exm.stc.ic.tree.ICContinuations.ContinuationType;
 import exm.stc.ic.tree.ICContinuations.WaitStatement;
@@ -54,7 +55,7 @@ import exm.stc.ic.tree.ICTree.Statement;
  *                                            output
  *
  */
-public class HoistLoops implements OptimizerPass {
+public class HoistLoops extends FunctionOptimizerPass {
 
   /**
    * If true, hoist array reads in such a way that could prevent
@@ -71,39 +72,42 @@ public class HoistLoops implements OptimizerPass {
     return "Loop hoisting";
   }
 
+  @Override
+  public String configKey() {
+    return getPassName() + " aggressive=" + aggressive;
+  }
+
   @Override
   public String getConfigEnabledKey() {
     return Settings.OPT_HOIST;
   }
 
   @Override
-  public void optimize(Logger logger, Program prog) {
-    for (Function f: prog.functions()) {
-      HoistTracking global = new HoistTracking();
-      // Global constants already written
-      for (Var gv: prog.allGlobals()) {
-        if (gv.storage().isConst()) {
-          // Constants are pre-written
-          global.write(gv, false);
-        }
-        global.declare(gv);
+  public void optimize(Logger logger, Program prog, Function f) {
+    HoistTracking global = new HoistTracking();
+    // Global constants already written
+    for (Var gv: prog.allGlobals()) {
+      if (gv.storage().isConst()) {
+        // Constants are pre-written
+        global.write(gv, false);
       }
+      global.declare(gv);
+    }
 
-      // Set up map for top block of function
-      HoistTracking mainBlockState =
-          global.makeChild(f.mainBlock(), true, true,
-                           ExecContext.control(), 0, 0);
+    // Set up map for top block of function
+    HoistTracking mainBlockState =
+        global.makeChild(f.mainBlock(), true, true,
+                         ExecContext.control(), 0, 0);
 
-      // Inputs are written elsewhere
-      for (Var in: f.getInputList()) {
-        mainBlockState.write(in, false);
-        mainBlockState.declare(in);
-      }
-      for (Var out: f.getOutputList()) {
-        mainBlockState.declare(out);
-      }
-      hoistRec(logger, mainBlockState);
+    // Inputs are written elsewhere
+    for (Var in: f.getInputList()) {
+      mainBlockState.write(in, false);
+      mainBlockState.declare(in);
+    }
+    for (Var out: f.getOutputList()) {
+      mainBlockState.declare(out);
     }
+    hoistRec(logger, mainBlockState);
   }
 
   /**
@@ -165,14 +169,17 @@ public class HoistLoops implements OptimizerPass {
   private boolean hoistRecCont(Logger logger, HoistTracking state,
                               ListIterator<Statement> insertPos, Continuation cont) {
     state.currPos = insertPos;
+    boolean changed = false;
     for (Block childBlock: cont.getBlocks()) {
       HoistTracking childState = state.makeChild(cont, childBlock);
       if (hoistRec(logger, childState)) {
-        return true;
+        changed = true;
+        break;
       }
     }
     state.currPos = null; // Now invalid
-    return false;
+    state.activeChild = null;
+    return changed;
   }
 
   private static class HoistTracking {
@@ -182,10 +189,10 @@ public class HoistLoops implements OptimizerPass {
      */
     public HoistTracking() {
       this(null, null, false, true, ExecContext.control(), 0, 0,
-           new HierarchicalMap<Var, Block>(),
-           new HierarchicalMap<Var, Block>(),
-           new HierarchicalMap<Var, Block>(),
-           new HierarchicalMap<Var, Block>());
+           new ScopedMap<Var, HoistTracking>(),
+           new ScopedMap<Var, HoistTracking>(),
+           new ScopedMap<Var, HoistTracking>(),
+           new ScopedMap<Var, HoistTracking>());
     }
 
     /**
@@ -220,12 +227,13 @@ public class HoistLoops implements OptimizerPass {
     private HoistTracking(HoistTracking parent,
         Block block, boolean async, boolean dispatched, ExecContext execCx,
         int maxHoist, int maxLoopHoist,
-        HierarchicalMap<Var, Block> writeMap,
-        HierarchicalMap<Var, Block> piecewiseWriteMap,
-        HierarchicalMap<Var, Block> declareMap,
-        HierarchicalMap<Var, Block> initializedMap) {
+        ScopedMap<Var, HoistTracking> writeMap,
+        ScopedMap<Var, HoistTracking> piecewiseWriteMap,
+        ScopedMap<Var, HoistTracking> declareMap,
+        ScopedMap<Var, HoistTracking> initializedMap) {
       super();
       this.parent = parent;
+      this.depth = parent == null ? 0 : parent.depth + 1;
       this.block = block;
       this.async = async;
       this.dispatched = dispatched;
@@ -241,6 +249,16 @@ public class HoistLoops implements OptimizerPass {
     /** Tracking for parent block */
     public final HoistTracking parent;
 
+    /** Number of ancestors */
+    public final int depth;
+
+    /**
+     * Child currently being processed, if any.  The child's maps are
+     * snapshots taken when it was created, so any updates to this
+     * block's maps must also be applied to active descendants.
+     */
+    public HoistTracking activeChild = null;
+
     /** Current block */
     public final Block block;
 
@@ -266,23 +284,93 @@ public class HoistLoops implements OptimizerPass {
     public final int maxLoopHoist;
 
     /**
-     * Track writes (non-piecewise only) to variables
+     * Track writes (non-piecewise only) to variables.  Maps to
+     * innermost state where written.
      */
-    public final HierarchicalMap<Var, Block> writeMap;
+    private final ScopedMap<Var, HoistTracking> writeMap;
 
     /**
      * Track piecewise writes to variables
      */
-    public final HierarchicalMap<Var, Block> piecewiseWriteMap;
+    private final ScopedMap<Var, HoistTracking> piecewiseWriteMap;
 
     /**
      * Track variable declarations
      */
-    public final HierarchicalMap<Var, Block> declareMap;
+    private final ScopedMap<Var, HoistTracking> declareMap;
     /**
      * Track variables that need to be initialized
      */
-    public final HierarchicalMap<Var, Block> initializedMap;
+    private final ScopedMap<Var, HoistTracking> initializedMap;
+
+    private static enum Tracked {
+      WRITE, PIECEWISE_WRITE, DECLARE, INITIALIZED;
+    }
+
+    private ScopedMap<Var, HoistTracking> map(Tracked kind) {
+      switch (kind) {
+        case WRITE:
+          return writeMap;
+        case PIECEWISE_WRITE:
+          return piecewiseWriteMap;
+        case DECLARE:
+          return declareMap;
+        case INITIALIZED:
+          return initializedMap;
+        default:
+          throw new STCRuntimeError("Unknown " + kind);
+      }
+    }
+
+    /**
+     * @return number of blocks up where var was recorded, -1 if not present
+     */
+    private int getDepth(Tracked kind, Var v) {
+      HoistTracking where = map(kind).get(v);
+      return where == null ? -1 : depth - where.depth;
+    }
+
+    public int writeDepth(Var v) {
+      return getDepth(Tracked.WRITE, v);
+    }
+
+    public int piecewiseWriteDepth(Var v) {
+      return getDepth(Tracked.PIECEWISE_WRITE, v);
+    }
+
+    public int declareDepth(Var v) {
+      return getDepth(Tracked.DECLARE, v);
+    }
+
+    public int initializedDepth(Var v) {
+      return getDepth(Tracked.INITIALIZED, v);
+    }
+
+    /**
+     * Record var for this block, and in any active descendants that don't
+     * have a more recent record for it
+     */
+    private void record(Tracked kind, Var v) {
+      for (HoistTracking s = this; s != null; s = s.activeChild) {
+        ScopedMap<Var, HoistTracking> m = s.map(kind);
+        HoistTracking prev = m.get(v);
+        if (prev == null || prev.depth <= depth) {
+          m.put(v, this);
+        }
+      }
+    }
+
+    /**
+     * Remove record of var for this block from it and active descendants
+     */
+    private void unrecord(Tracked kind, Var v) {
+      for (HoistTracking s = this; s != null; s = s.activeChild) {
+        ScopedMap<Var, HoistTracking> m = s.map(kind);
+        if (m.get(v) == this) {
+          m.remove(v);
+        }
+      }
+    }
 
     public HoistTracking getAncestor(int links) {
       Logger logger = Logging.getSTCLogger();
@@ -301,12 +389,14 @@ public class HoistLoops implements OptimizerPass {
     public HoistTracking makeChild(Block childBlock, boolean async,
                         boolean dispatched, ExecContext newExecCx,
                        int maxHoist, int maxLoopHoist) {
-      return new HoistTracking(this, childBlock, async, dispatched, execCx,
-                              maxHoist, maxLoopHoist,
-                              writeMap.makeChildMap(),
-                              piecewiseWriteMap.makeChildMap(),
-                              declareMap.makeChildMap(),
-                              initializedMap.makeChildMap());
+      HoistTracking child = new HoistTracking(this, childBlock, async,
+                              dispatched, execCx, maxHoist, maxLoopHoist,
+                              writeMap.makeChild(),
+                              piecewiseWriteMap.makeChild(),
+                              declareMap.makeChild(),
+                              initializedMap.makeChild());
+      activeChild = child;
+      return child;
     }
 
     public void updateState(Instruction inst) {
@@ -323,15 +413,11 @@ public class HoistLoops implements OptimizerPass {
       assert(Types.outputRequiresInitialization(v) ||
              Types.inputRequiresInitialization(v));
       // Track partial or full initialization
-      initializedMap.put(v, this.block);
+      record(Tracked.INITIALIZED, v);
     }
 
     public void write(Var v, boolean piecewise) {
-      if (piecewise) {
-        this.piecewiseWriteMap.put(v, this.block);
-      } else {
-        this.writeMap.put(v, this.block);
-      }
+      record(piecewise ? Tracked.PIECEWISE_WRITE : Tracked.WRITE, v);
 
       /*
        * Also mark as written in parent continuation if synchronous -
@@ -352,10 +438,17 @@ public class HoistLoops implements OptimizerPass {
     public void declare(Var v) {
       Logging.getSTCLogger().trace("declared " + v);
       if (trackDeclares(v)) {
-        declareMap.put(v, this.block);
+        record(Tracked.DECLARE, v);
       }
     }
 
+    /**
+     * Remove declaration, e.g. if moved to another block
+     */
+    public void undeclare(Var v) {
+      unrecord(Tracked.DECLARE, v);
+    }
+
     /**
      * Add instruction at insert point
      * @param inst
@@ -453,7 +546,7 @@ public class HoistLoops implements OptimizerPass {
         return false;
       }
       if (trackDeclares(out)) {
-        int declareDepth = state.declareMap.getDepth(out);
+        int declareDepth = state.declareDepth(out);
         if (logger.isTraceEnabled())
           logger.trace("DeclareDepth of " + out + " is " + declareDepth);
         assert(declareDepth >= 0) : declareDepth + " " + out;
@@ -484,7 +577,7 @@ public class HoistLoops implements OptimizerPass {
     for (Var out: inst.getOutputs()) {
       if (Types.outputRequiresInitialization(out)) {
         if (!inst.isInitialized(out)) {
-          int initDepth = state.initializedMap.getDepth(out);
+          int initDepth = state.initializedDepth(out);
           if (logger.isTraceEnabled())
             logger.trace("hoist limited to " + initDepth + " because of "
                 + " initialization for var " + out);
@@ -557,7 +650,7 @@ public class HoistLoops implements OptimizerPass {
 
   private int maxInputHoist(Logger logger, HoistTracking state,
                                    Var inVar) {
-    int depth = state.writeMap.getDepth(inVar);
+    int depth = state.writeDepth(inVar);
     if (logger.isTraceEnabled()) {
       logger.trace("Write depth of " + inVar.name() + ": " + depth);
     }
@@ -565,7 +658,7 @@ public class HoistLoops implements OptimizerPass {
     if (Types.isPiecewiseAssigned(inVar) && !aggressive) {
       // We might want to avoid moving before a piecewise write since it could
       // hurt future optimization opportunities
-      int pwDepth = state.piecewiseWriteMap.getDepth(inVar);
+      int pwDepth = state.piecewiseWriteDepth(inVar);
       if (pwDepth >= 0) {
         depth = Math.min(pwDepth, depth);
       }
@@ -585,7 +678,7 @@ public class HoistLoops implements OptimizerPass {
       // Maybe there was a declaration of the variable that we
       // shouldn't hoist past.  This works for, e.g. an unwritten
       //  future that is is assigned by a concurrent task
-      int declareDepth = state.declareMap.getDepth(inVar);
+      int declareDepth = state.declareDepth(inVar);
       if (logger.isTraceEnabled())
         logger.trace("Hoist constrained by " + inVar + ": "
                                            + declareDepth);
@@ -655,7 +748,7 @@ public class HoistLoops implements OptimizerPass {
           moveVarCleanupAction(out, source.block, target.block);
           // Update map
           if (trackDeclares(out)) {
-            source.declareMap.remove(out);
+            source.undeclare(out);
           }
           target.declare(out);
           break;
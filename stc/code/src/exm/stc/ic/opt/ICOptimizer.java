@@ -16,6 +16,7 @@
 package exm.stc.ic.opt;
 
 import java.io.PrintStream;
+import java.util.EnumSet;
 
 import org.apache.log4j.Logger;
 
@@ -28,11 +29,6 @@ import exm.stc.ic.tree.ICTree.Program;
 
 public class ICOptimizer {
 
-  /**
-   * If true, validate as frequently as possible
-   */
-  public static final boolean SUPER_DEBUG = true;
-
   /**
    * Optimize the program and return a new one
    *
@@ -44,6 +40,26 @@ public class ICOptimizer {
    */
   public static Program optimize(Logger logger, PrintStream icOutput,
                                  Program prog) throws UserException {
+    OptimizerProfile profile = OptimizerProfile.fromSettings();
+    optimize(logger, icOutput, prog, profile);
+    if (profile != null) {
+      profile.write(logger);
+    }
+    return prog;
+  }
+
+  /**
+   * Optimize program, recording passes in the provided profile
+   * @param logger
+   * @param icOutput where to log IC between optimiation steps.  Null for
+   *              no output
+   * @param prog
+   * @param profile profile to record passes in, or null
+   * @return
+   * @throws UserException
+   */
+  public static Program optimize(Logger logger, PrintStream icOutput,
+          Program prog, OptimizerProfile profile) throws UserException {
     boolean logIC = icOutput != null;
     if (logIC) {
       prog.log(icOutput, "Initial IC before optimization");
@@ -53,9 +69,21 @@ public class ICOptimizer {
 
     boolean debug = Settings.getBooleanUnchecked(Settings.COMPILER_DEBUG);
 
-    preprocess(icOutput, logger, debug, prog);
-    iterate(icOutput, logger, prog, debug, nIterations);
-    postprocess(icOutput, logger, debug, prog, nIterations);
+    // Names of new constants must not depend on order functions are
+    // optimized in if running passes in parallel
+    prog.constants().setStableNames(FunctionPassRunner.parallel(prog));
+
+    RuntimeProfile runtimeProfile = RuntimeProfile.fromSettings();
+
+    preprocess(icOutput, logger, debug, prog, profile);
+    // Save bodies before optimization so that callers inlining them can
+    // optimize them as if they were compiled from source
+    prog.saveInlineBodies();
+    iterate(icOutput, logger, prog, debug, nIterations, profile,
+            runtimeProfile);
+    prog.selectInlineBodies(FunctionInline.maxInlineSize());
+    postprocess(icOutput, logger, debug, prog, nIterations, profile,
+                runtimeProfile);
 
     if (logIC) {
       prog.log(icOutput, "Final optimized IC");
@@ -69,11 +97,14 @@ public class ICOptimizer {
    * @param logger
    * @param debug
    * @param program
+   * @param profile profile to record passes in, or null
    * @throws Exception
    */
   private static void preprocess(PrintStream icOutput, Logger logger,
-                         boolean debug, Program program) throws UserException {
-    OptimizerPipeline preprocess = new OptimizerPipeline(icOutput);
+                         boolean debug, Program program,
+                         OptimizerProfile profile) throws UserException {
+    OptimizerPipeline preprocess = new OptimizerPipeline(icOutput,
+                                              "preprocess", profile);
 
     // Cut down size of IR right away
     preprocess.addPass(new PruneFunctions());
@@ -96,32 +127,55 @@ public class ICOptimizer {
    * @param debug
    * @param iteration
    * @param nIterations
+   * @param profile profile to record passes in, or null
+   * @param runtimeProfile profile of previous run of program, or null
    * @throws Exception
    */
   private static void iterate(PrintStream icOutput, Logger logger,
-      Program prog, boolean debug, long nIterations) throws UserException {
+      Program prog, boolean debug, long nIterations,
+      OptimizerProfile profile, RuntimeProfile runtimeProfile)
+          throws UserException {
 
-    // FunctionInline is stateful
-    FunctionInline inliner = new FunctionInline();
+    // FunctionInline and FunctionSpecialize are stateful
+    FunctionInline inliner = new FunctionInline(runtimeProfile);
+    FunctionSpecialize specializer = new FunctionSpecialize();
     boolean canReorder = true;
 
+    // Track fixed points across iterations to skip redundant passes
+    FixedPoints fixedPoints = null;
+    if (Settings.getBooleanUnchecked(Settings.OPT_FIXED_POINT)) {
+      fixedPoints = new FixedPoints();
+    }
+
+    // Validate after each pass, tracking which functions were checked
+    // across iterations.  Otherwise only validate at pipeline boundaries
+    Validate validator = null;
+    if (Settings.getBooleanUnchecked(Settings.OPT_VALIDATE_PASSES)) {
+      validator = Validate.incrementalValidator();
+    }
+
     for (long iteration = 0; iteration < nIterations; iteration++) {
-      OptimizerPipeline pipe = new OptimizerPipeline(icOutput);
-      if (SUPER_DEBUG) {
-        pipe.setValidator(Validate.standardValidator());
-      }
+      OptimizerPipeline pipe = new OptimizerPipeline(icOutput, "iterate",
+                                                     profile);
+      pipe.setValidator(validator);
+      pipe.setFixedPoints(fixedPoints);
 
       // First prune and inline any functions
-      if (iteration == nIterations / 2) {
+      if (isMidpoint(iteration, nIterations)) {
         // Only makes sense to do periodically
         pipe.addPass(new PruneFunctions());
       }
-      if (iteration == 0 || iteration == 3 || iteration == nIterations - 2) {
+      if (isInlineIteration(iteration, nIterations)) {
         pipe.addPass(inliner);
       }
+      if (isSpecializeIteration(iteration)) {
+        // Specialize once constants have been propagated to call sites,
+        // in time for loop unrolling in the following iteration
+        pipe.addPass(specializer);
+      }
 
 
-      if ((iteration % 3) == 2) {
+      if (isBuildIteration(iteration)) {
         // Try to merge instructions into array build
         pipe.addPass(new ArrayBuild());
         pipe.addPass(new StructBuild());
@@ -132,7 +186,7 @@ public class ICOptimizer {
         pipe.addPass(Validate.standardValidator());
       }
 
-      boolean lastHalf = iteration > nIterations * 2;
+      boolean lastHalf = isLastHalf(iteration, nIterations);
 
       // Try to hoist variables out of loops, etc
       // Do before forward dataflow since it may open up new opportunites
@@ -145,15 +199,15 @@ public class ICOptimizer {
       // Try to reorder instructions for benefit of forward dataflow
       // Don't do every iteration, instructions are first
       // in original order, then in a different but valid order
-      if (canReorder && (iteration % 2 == 1)) {
+      if (canReorder && isReorderIteration(iteration)) {
         pipe.addPass(new ReorderInstructions());
       }
 
-      if (iteration % 3 == 0) {
+      if (isAliasIteration(iteration)) {
         pipe.addPass(new PropagateAliases());
       }
 
-      if (iteration == nIterations - 2) {
+      if (isFinalReorderIteration(iteration, nIterations)) {
         // Towards end, inline explicit waits and disallow reordering
         canReorder = false;
       }
@@ -167,7 +221,7 @@ public class ICOptimizer {
       // ValueNumber tends to generate most dead code
       pipe.addPass(new DeadCodeEliminator());
 
-      if (iteration % 3 == 0) {
+      if (isAliasIteration(iteration)) {
         // Dead code eliminator will have just eliminated references
         pipe.addPass(new DemoteGlobals());
       }
@@ -181,36 +235,172 @@ public class ICOptimizer {
 
       // Can only run this pass once. Do it near end so that
       // results can be cleaned up by forward dataflow
-      if (iteration == nIterations - (nIterations / 4) - 1) {
-        pipe.addPass(new Pipeline());
+      if (isPipelineIteration(iteration, nIterations)) {
+        pipe.addPass(new Pipeline(runtimeProfile));
         if (debug)
           pipe.addPass(Validate.standardValidator());
       }
 
       // Expand ops about halfway through
-      boolean doInlineOps = iteration == nIterations / 2;
-      if (doInlineOps) {
+      if (isMidpoint(iteration, nIterations)) {
         pipe.addPass(new DataflowOpInline());
       }
 
       // Do merges near end since it can be detrimental to other optimizations
-      boolean doWaitMerges = (iteration >= nIterations - (nIterations / 4) - 2)
-                              && iteration % 2 == 0;
-      pipe.addPass(new WaitCoalescer(doWaitMerges, canReorder));
+      boolean doWaitMerges = isWaitMergeIteration(iteration, nIterations);
+      pipe.addPass(new WaitCoalescer(doWaitMerges, canReorder,
+                                     runtimeProfile));
 
       if (debug)
         pipe.addPass(Validate.standardValidator());
 
-      pipe.runPipeline(logger, prog, iteration);
+      boolean changed = pipe.runPipeline(logger, prog, iteration);
 
       // Cleanup internal indices, etc.
       prog.cleanup();
+
+      if (!changed) {
+        // Skip iterations that would only rerun passes from this iteration
+        long next = nextScheduledIteration(iteration, nIterations);
+        if (next < 0) {
+          logger.debug("Iteration: " + iteration + " made no changes, " +
+                       "stopping");
+          break;
+        }
+        logger.debug("Iteration: " + iteration + " made no changes, " +
+                     "skipping to iteration " + next);
+        iteration = next - 1;
+      }
     }
   }
 
+  private static boolean isBuildIteration(long iteration) {
+    return iteration % 3 == 2;
+  }
+
+  private static boolean isLastHalf(long iteration, long nIterations) {
+    return iteration > nIterations * 2;
+  }
+
+  private static boolean isReorderIteration(long iteration) {
+    return iteration % 2 == 1;
+  }
+
+  private static boolean isAliasIteration(long iteration) {
+    return iteration % 3 == 0;
+  }
+
+  private static boolean isMidpoint(long iteration, long nIterations) {
+    return iteration == nIterations / 2;
+  }
+
+  private static boolean isInlineIteration(long iteration, long nIterations) {
+    return iteration == 0 || iteration == 3 || iteration == nIterations - 2;
+  }
+
+  private static boolean isSpecializeIteration(long iteration) {
+    return iteration == 1 || iteration == 4;
+  }
+
+  private static boolean isFinalReorderIteration(long iteration,
+                                                 long nIterations) {
+    return iteration == nIterations - 2;
+  }
+
+  private static boolean isPipelineIteration(long iteration,
+                                             long nIterations) {
+    return iteration == nIterations - (nIterations / 4) - 1;
+  }
+
+  private static boolean isWaitMergeIteration(long iteration,
+                                              long nIterations) {
+    return iteration >= nIterations - (nIterations / 4) - 2 &&
+           iteration % 2 == 0;
+  }
+
+  /**
+   * Passes and pass modes that are only used in some iterations
+   */
+  private static enum Scheduled {
+    PRUNE_FUNCTIONS,
+    INLINE,
+    SPECIALIZE,
+    BUILD_AND_UNROLL,
+    HOIST_LOOPS,
+    HOIST_LOOPS_AGGRESSIVE,
+    REORDER_INSTRUCTIONS,
+    PROPAGATE_ALIASES_AND_DEMOTE_GLOBALS,
+    CAN_REORDER,
+    CANNOT_REORDER,
+    PIPELINE,
+    DATAFLOW_OP_INLINE,
+    WAIT_MERGE
+  }
+
+  /**
+   * Describe what varies between iterations.  Must match the passes added
+   * in {@link #iterate}.
+   */
+  private static EnumSet<Scheduled> schedule(long iteration, long nIterations) {
+    EnumSet<Scheduled> schedule = EnumSet.noneOf(Scheduled.class);
+    if (isMidpoint(iteration, nIterations)) {
+      schedule.add(Scheduled.PRUNE_FUNCTIONS);
+      schedule.add(Scheduled.DATAFLOW_OP_INLINE);
+    }
+    if (isInlineIteration(iteration, nIterations)) {
+      schedule.add(Scheduled.INLINE);
+    }
+    if (isSpecializeIteration(iteration)) {
+      schedule.add(Scheduled.SPECIALIZE);
+    }
+    if (isBuildIteration(iteration)) {
+      schedule.add(Scheduled.BUILD_AND_UNROLL);
+    }
+    // Reordering is disabled part way through final reorder iteration,
+    // after hoisting and reordering but before value numbering
+    if (iteration <= nIterations - 2) {
+      schedule.add(isLastHalf(iteration, nIterations) ?
+                   Scheduled.HOIST_LOOPS_AGGRESSIVE : Scheduled.HOIST_LOOPS);
+      if (isReorderIteration(iteration)) {
+        schedule.add(Scheduled.REORDER_INSTRUCTIONS);
+      }
+    }
+    if (isAliasIteration(iteration)) {
+      schedule.add(Scheduled.PROPAGATE_ALIASES_AND_DEMOTE_GLOBALS);
+    }
+    schedule.add(iteration < nIterations - 2 ? Scheduled.CAN_REORDER :
+                                               Scheduled.CANNOT_REORDER);
+    if (isPipelineIteration(iteration, nIterations)) {
+      schedule.add(Scheduled.PIPELINE);
+    }
+    if (isWaitMergeIteration(iteration, nIterations)) {
+      schedule.add(Scheduled.WAIT_MERGE);
+    }
+    return schedule;
+  }
+
+  /**
+   * Find next iteration that would do anything after an iteration made no
+   * changes.  Passes are deterministic, so iterations that only run passes
+   * in the same modes as that iteration would make no changes either.
+   * @return the iteration, or -1 if none
+   */
+  private static long nextScheduledIteration(long iteration, long nIterations) {
+    EnumSet<Scheduled> current = schedule(iteration, nIterations);
+    for (long i = iteration + 1; i < nIterations; i++) {
+      if (!current.containsAll(schedule(i, nIterations))) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
   private static void postprocess(PrintStream icOutput, Logger logger,
-      boolean debug, Program prog, long nIterations) throws UserException {
-    OptimizerPipeline postprocess = new OptimizerPipeline(icOutput);
+      boolean debug, Program prog, long nIterations,
+      OptimizerProfile profile, RuntimeProfile runtimeProfile)
+          throws UserException {
+    OptimizerPipeline postprocess = new OptimizerPipeline(icOutput,
+                                              "postprocess", profile);
 
     // Final dead code elimination to clean up any remaining dead code
     // (from last iteration or constant sharing)
@@ -219,6 +409,9 @@ public class ICOptimizer {
     // Final pruning to remove unused functions
     postprocess.addPass(new PruneFunctions());
 
+    // Choose foreach loop split degrees based on final loop bodies
+    postprocess.addPass(new ForeachDegrees(runtimeProfile));
+
     // Add in all the variable passing annotations now that instructions,
     // continuations and variables are fixed
     postprocess.addPass(new FixupVariables());
@@ -11,7 +11,7 @@ import exm.stc.common.lang.Arg;
 import exm.stc.common.lang.PassedVar;
 import exm.stc.common.lang.Types;
 import exm.stc.common.lang.Var;
-import exm.stc.common.util.HierarchicalSet;
+import exm.stc.common.util.ScopedSet;
 import exm.stc.common.util.Sets;
 import exm.stc.ic.tree.ICContinuations.ContVarDefType;
 import exm.stc.ic.tree.ICContinuations.Continuation;
@@ -26,17 +26,17 @@ import exm.stc.ic.tree.Opcode;
  */
 public class InitVariables {
   public static class InitState {
-    public final HierarchicalSet<Var> initVars;
-    public final HierarchicalSet<Var> assignedVals;
+    public final ScopedSet<Var> initVars;
+    public final ScopedSet<Var> assignedVals;
 
-    private InitState(HierarchicalSet<Var> initVars,
-        HierarchicalSet<Var> assignedVals) {
+    private InitState(ScopedSet<Var> initVars,
+        ScopedSet<Var> assignedVals) {
       this.initVars = initVars;
       this.assignedVals = assignedVals;
     }
 
     private InitState() {
-      this(new HierarchicalSet<Var>(), new HierarchicalSet<Var>());
+      this(new ScopedSet<Var>(), new ScopedSet<Var>());
     }
 
     private InitState makeChild() {
@@ -22,17 +22,23 @@ import org.apache.log4j.Logger;
 
 import exm.stc.common.Settings;
 import exm.stc.common.util.Pair;
+import exm.stc.ic.opt.OptimizerPass.DeterministicPass;
 import exm.stc.ic.tree.ICContinuations.Continuation;
 import exm.stc.ic.tree.ICTree.Block;
 import exm.stc.ic.tree.ICTree.Function;
 import exm.stc.ic.tree.ICTree.Program;
 
-public class LoopUnroller implements OptimizerPass {
+public class LoopUnroller implements DeterministicPass {
   @Override
   public String getPassName() {
     return "Unroll loops";
   }
 
+  @Override
+  public String configKey() {
+    return getPassName();
+  }
+
   @Override
   public String getConfigEnabledKey() {
     return Settings.OPT_UNROLL_LOOPS;
@@ -15,6 +15,8 @@
  */
 package exm.stc.ic.opt;
 
+import java.util.List;
+
 import org.apache.log4j.Logger;
 
 import exm.stc.common.exceptions.UserException;
@@ -32,16 +34,56 @@ public interface OptimizerPass {
   public abstract String getConfigEnabledKey();
   public abstract void optimize(Logger logger, Program program)
                                               throws UserException;
-  
-  public static abstract class FunctionOptimizerPass implements OptimizerPass {
+
+  /**
+   * A pass where the output program depends only on the input program and
+   * the configuration of the pass, not on any state carried over from
+   * previous runs.  The optimizer can skip these passes if the program
+   * is already known to be a fixed point: see {@link FixedPoints}.
+   */
+  public static interface DeterministicPass extends OptimizerPass {
+    /**
+     * @return key identifying pass and any configuration that affects its
+     *         output
+     */
+    public abstract String configKey();
+  }
+
+  /**
+   * A pass that optimizes each function independently.  Implementations
+   * must not modify any function other than the one passed in, or any
+   * program-wide state that isn't safe for concurrent access, since
+   * functions may be optimized in parallel: see {@link FunctionPassRunner}.
+   *
+   * Per-function passes must also be deterministic.  Subclasses with
+   * configuration must override {@link #configKey()}.
+   */
+  public static abstract class FunctionOptimizerPass
+                                    implements DeterministicPass {
 
     @Override
     public void optimize(Logger logger, Program program) throws UserException {
-      for (Function f: program.functions()) {
-        optimize(logger, f);
-      }
+      optimizeFunctions(logger, program, program.functions());
+    }
+
+    /**
+     * Optimize a subset of the program's functions
+     * @param logger
+     * @param program
+     * @param functions
+     * @throws UserException
+     */
+    public void optimizeFunctions(Logger logger, Program program,
+                  List<Function> functions) throws UserException {
+      FunctionPassRunner.run(logger, program, functions, this);
     }
-    
-    public abstract void optimize(Logger logger, Function f) throws UserException;
+
+    @Override
+    public String configKey() {
+      return getPassName();
+    }
+
+    public abstract void optimize(Logger logger, Program program, Function f)
+                                                    throws UserException;
   }
 }
@@ -23,18 +23,36 @@ import org.apache.log4j.Logger;
 
 import exm.stc.common.Settings;
 import exm.stc.common.exceptions.UserException;
+import exm.stc.ic.opt.OptimizerPass.FunctionOptimizerPass;
+import exm.stc.ic.opt.OptimizerProfile.PassRecord;
+import exm.stc.ic.tree.ICTree.Function;
 import exm.stc.ic.tree.ICTree.Program;
 
 
 public class OptimizerPipeline {
 
   public OptimizerPipeline(PrintStream icOutput) {
+    this(icOutput, null, null);
+  }
+
+  /**
+   * @param icOutput
+   * @param stage name of optimizer stage, for profiling
+   * @param profile profile to record passes in, or null if not profiling
+   */
+  public OptimizerPipeline(PrintStream icOutput, String stage,
+                           OptimizerProfile profile) {
     this.icOutput = icOutput;
+    this.stage = stage;
+    this.profile = profile;
   }
 
   private final List<OptimizerPass> passes = new ArrayList<OptimizerPass>();
   private final PrintStream icOutput;
+  private final String stage;
+  private final OptimizerProfile profile;
   private Validate validator = null;
+  private FixedPoints fixedPoints = null;
 
   public void addPass(OptimizerPass pass) {
     passes.add(pass);
@@ -44,21 +62,74 @@ public class OptimizerPipeline {
     this.validator = validator;
   }
 
-  public void runPipeline(Logger logger, Program program, long iteration) throws UserException {
+  /**
+   * @param fixedPoints if not null, used to skip passes if program is
+   *                    at a fixed point for them
+   */
+  public void setFixedPoints(FixedPoints fixedPoints) {
+    this.fixedPoints = fixedPoints;
+  }
+
+  /**
+   * Run all enabled passes
+   * @return true if any pass changed the program, or if not tracked
+   */
+  public boolean runPipeline(Logger logger, Program program, long iteration)
+                                                    throws UserException {
+    boolean changed = false;
     for (OptimizerPass pass: passes) {
       if (passEnabled(pass)) {
+        // Functions to run per-function pass on, if not all
+        List<Function> functions = null;
+        if (fixedPoints != null) {
+          if (pass instanceof FunctionOptimizerPass) {
+            functions = fixedPoints.functionsToOptimize(
+                              (FunctionOptimizerPass)pass, program);
+            if (functions.isEmpty()) {
+              logger.debug("Iteration: " + iteration + " Skip pass at " +
+                           "fixed point: " + pass.getPassName());
+              continue;
+            }
+          } else if (fixedPoints.atFixedPoint(pass, program)) {
+            logger.debug("Iteration: " + iteration + " Skip pass at " +
+                         "fixed point: " + pass.getPassName());
+            continue;
+          }
+          fixedPoints.startPass(pass, program, functions);
+        }
+
         logger.debug("Iteration: " + iteration + " Pass: "
                    + pass.getPassName());
-        pass.optimize(logger, program);
+        PassRecord rec = null;
+        if (profile != null) {
+          rec = profile.startPass(stage, iteration, pass, program);
+        }
+        if (functions != null) {
+          ((FunctionOptimizerPass)pass).optimizeFunctions(logger, program,
+                                                          functions);
+        } else {
+          pass.optimize(logger, program);
+        }
+        if (profile != null) {
+          profile.endPass(rec, program);
+        }
+        if (fixedPoints == null || fixedPoints.finishPass(pass, program)) {
+          changed = true;
+        }
         if (icOutput != null) {
           program.log(icOutput, "Iteration " + iteration + " IC after " +
                                  pass.getPassName());
         }
         if (validator != null) {
+          long validateStart = System.nanoTime();
           validator.optimize(logger, program);
+          if (profile != null) {
+            profile.addValidation(rec, System.nanoTime() - validateStart);
+          }
         }
       }
     }
+    return changed;
   }
 
   public boolean passEnabled(OptimizerPass pass) {
@@ -0,0 +1,353 @@
+/*
+ * Copyright 2013 University of Chicago and Argonne National Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package exm.stc.ic.opt;
+
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import org.apache.log4j.Logger;
+
+import exm.stc.common.Settings;
+import exm.stc.common.util.StackLite;
+import exm.stc.ic.tree.ICContinuations.Continuation;
+import exm.stc.ic.tree.ICTree.Block;
+import exm.stc.ic.tree.ICTree.Function;
+import exm.stc.ic.tree.ICTree.Program;
+import exm.stc.ic.tree.ICTree.Statement;
+import exm.stc.ic.tree.ICTree.StatementType;
+
+/**
+ * Records time, allocation and IR size for each optimizer pass, so that
+ * expensive passes can be identified.  Enabled by setting
+ * {@link Settings#OPT_PROFILE_FILE}: the profile is written as CSV if the
+ * file name ends in .csv, or as JSON otherwise.
+ *
+ * Allocation is measured across all threads in the JVM, so includes
+ * allocation by passes running in parallel, but also by any other
+ * compilations running concurrently in the same JVM.
+ */
+public class OptimizerProfile {
+
+  /** Null if profile is only kept in memory */
+  private final String outputFile;
+  private final List<PassRecord> records = new ArrayList<PassRecord>();
+  private final ThreadMXBean threads;
+
+  /**
+   * @param outputFile file to write profile to, or null if the profile
+   *                   is only accessed through {@link #records()}
+   */
+  public OptimizerProfile(String outputFile) {
+    this.outputFile = outputFile;
+    ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+    if (bean instanceof com.sun.management.ThreadMXBean &&
+        ((com.sun.management.ThreadMXBean)bean)
+                              .isThreadAllocatedMemorySupported()) {
+      this.threads = bean;
+    } else {
+      this.threads = null;
+    }
+  }
+
+  /**
+   * @return profile configured in settings, or null if not enabled
+   */
+  public static OptimizerProfile fromSettings() {
+    String file = Settings.get(Settings.OPT_PROFILE_FILE);
+    if (file == null || file.length() == 0) {
+      return null;
+    }
+    return new OptimizerProfile(file);
+  }
+
+  /**
+   * Start recording a pass.  Must be followed by a call to
+   * {@link #endPass(PassRecord, Program)}.
+   * @param stage stage of optimizer that pass is run in
+   * @param iteration
+   * @param pass
+   * @param program program before pass is run
+   * @return
+   */
+  public PassRecord startPass(String stage, long iteration,
+                              OptimizerPass pass, Program program) {
+    PassRecord rec = new PassRecord(stage, iteration, pass.getPassName(),
+                                    IRSize.measure(program));
+    rec.startAllocated = allocatedBytes();
+    rec.startTime = System.nanoTime();
+    return rec;
+  }
+
+  public void endPass(PassRecord rec, Program program) {
+    rec.timeNanos = System.nanoTime() - rec.startTime;
+    long allocated = allocatedBytes();
+    if (allocated >= 0 && rec.startAllocated >= 0) {
+      rec.allocatedBytes = allocated - rec.startAllocated;
+    }
+    rec.after = IRSize.measure(program);
+    synchronized (records) {
+      records.add(rec);
+    }
+  }
+
+  /**
+   * Record time spent validating IR after pass
+   * @param rec
+   * @param nanos
+   */
+  public void addValidation(PassRecord rec, long nanos) {
+    rec.validateNanos += nanos;
+  }
+
+  /**
+   * @return total bytes allocated by all live threads, or -1 if not
+   *         supported by JVM
+   */
+  private long allocatedBytes() {
+    if (threads == null) {
+      return -1;
+    }
+    long[] ids = threads.getAllThreadIds();
+    long total = 0;
+    for (long bytes: ((com.sun.management.ThreadMXBean)threads)
+                                    .getThreadAllocatedBytes(ids)) {
+      if (bytes > 0) {
+        total += bytes;
+      }
+    }
+    return total;
+  }
+
+  /**
+   * @return records for passes completed so far, in order of completion
+   */
+  public List<PassRecord> records() {
+    synchronized (records) {
+      return new ArrayList<PassRecord>(records);
+    }
+  }
+
+  /**
+   * Write profile to output file.  Failure to write the profile is
+   * reported, but doesn't stop compilation.
+   * @param logger
+   */
+  public void write(Logger logger) {
+    if (outputFile == null) {
+      return;
+    }
+    try {
+      PrintWriter out = new PrintWriter(new BufferedWriter(
+                                        new FileWriter(outputFile)));
+      try {
+        if (outputFile.endsWith(".csv")) {
+          writeCSV(out);
+        } else {
+          writeJSON(out);
+        }
+      } finally {
+        out.close();
+      }
+    } catch (IOException e) {
+      logger.warn("Could not write optimizer profile to " + outputFile +
+                  ": " + e.getMessage());
+    }
+  }
+
+  private void writeCSV(PrintWriter out) {
+    out.println("stage,iteration,pass,time_ms,validate_ms,allocated_bytes," +
+                "functions_before,instructions_before," +
+                "continuations_before,variables_before," +
+                "functions_after,instructions_after," +
+                "continuations_after,variables_after");
+    for (PassRecord rec: records) {
+      out.print(rec.stage);
+      out.print(',');
+      out.print(rec.iteration);
+      out.print(',');
+      out.print(csvString(rec.passName));
+      out.print(',');
+      out.print(millis(rec.timeNanos));
+      out.print(',');
+      out.print(millis(rec.validateNanos));
+      out.print(',');
+      out.print(rec.allocatedBytes);
+      for (IRSize size: new IRSize[] {rec.before, rec.after}) {
+        out.print(',');
+        out.print(size.functions);
+        out.print(',');
+        out.print(size.instructions);
+        out.print(',');
+        out.print(size.continuations);
+        out.print(',');
+        out.print(size.variables);
+      }
+      out.println();
+    }
+  }
+
+  private void writeJSON(PrintWriter out) {
+    out.println("{");
+    out.println("  \"passes\": [");
+    for (int i = 0; i < records.size(); i++) {
+      PassRecord rec = records.get(i);
+      out.print("    {\"stage\": " + jsonString(rec.stage) +
+                ", \"iteration\": " + rec.iteration +
+                ", \"pass\": " + jsonString(rec.passName) +
+                ", \"time_ms\": " + millis(rec.timeNanos) +
+                ", \"validate_ms\": " + millis(rec.validateNanos) +
+                ", \"allocated_bytes\": " + rec.allocatedBytes +
+                ", \"before\": " + rec.before.toJSON() +
+                ", \"after\": " + rec.after.toJSON() + "}");
+      out.println(i < records.size() - 1 ? "," : "");
+    }
+    out.println("  ]");
+    out.println("}");
+  }
+
+  private static String millis(long nanos) {
+    // Always use '.' as decimal separator
+    return String.format(Locale.ROOT, "%.3f", nanos / 1e6);
+  }
+
+  private static String csvString(String s) {
+    if (s.indexOf(',') < 0 && s.indexOf('"') < 0) {
+      return s;
+    }
+    return "\"" + s.replace("\"", "\"\"") + "\"";
+  }
+
+  private static String jsonString(String s) {
+    StringBuilder sb = new StringBuilder("\"");
+    for (int i = 0; i < s.length(); i++) {
+      char c = s.charAt(i);
+      if (c == '"' || c == '\\') {
+        sb.append('\\').append(c);
+      } else if (c < 0x20) {
+        sb.append(String.format("\\u%04x", (int)c));
+      } else {
+        sb.append(c);
+      }
+    }
+    return sb.append('"').toString();
+  }
+
+  public static class PassRecord {
+    public final String stage;
+    public final long iteration;
+    public final String passName;
+    public final IRSize before;
+    private IRSize after;
+    private long startTime;
+    private long startAllocated;
+    private long timeNanos;
+    private long validateNanos = 0;
+    /** -1 if unknown */
+    private long allocatedBytes = -1;
+
+    private PassRecord(String stage, long iteration, String passName,
+                       IRSize before) {
+      this.stage = stage;
+      this.iteration = iteration;
+      this.passName = passName;
+      this.before = before;
+    }
+
+    public IRSize after() {
+      return after;
+    }
+
+    /**
+     * @return time spent running pass, excluding validation
+     */
+    public long timeNanos() {
+      return timeNanos;
+    }
+
+    public long validateNanos() {
+      return validateNanos;
+    }
+
+    /**
+     * @return bytes allocated, or -1 if unknown
+     */
+    public long allocatedBytes() {
+      return allocatedBytes;
+    }
+  }
+
+  /**
+   * Size of IR for program
+   */
+  public static class IRSize {
+    public final int functions;
+    public final int instructions;
+    public final int continuations;
+    public final int variables;
+
+    private IRSize(int functions, int instructions, int continuations,
+                   int variables) {
+      this.functions = functions;
+      this.instructions = instructions;
+      this.continuations = continuations;
+      this.variables = variables;
+    }
+
+    public static IRSize measure(Program program) {
+      int instructions = 0;
+      int continuations = 0;
+      int variables = 0;
+      StackLite<Block> blocks = new StackLite<Block>();
+      for (Function f: program.functions()) {
+        variables += f.getInputList().size() + f.getOutputList().size();
+        blocks.push(f.mainBlock());
+      }
+
+      while (!blocks.isEmpty()) {
+        Block block = blocks.pop();
+        variables += block.variables().size();
+        instructions += block.getCleanups().size();
+        for (Statement stmt: block.getStatements()) {
+          if (stmt.type() == StatementType.INSTRUCTION) {
+            instructions++;
+          }
+        }
+        for (Continuation c: block.allComplexStatements()) {
+          continuations++;
+          for (Block inner: c.getBlocks()) {
+            blocks.push(inner);
+          }
+        }
+      }
+      return new IRSize(program.functions().size(), instructions,
+                        continuations, variables);
+    }
+
+    private String toJSON() {
+      return "{\"functions\": " + functions +
+             ", \"instructions\": " + instructions +
+             ", \"continuations\": " + continuations +
+             ", \"variables\": " + variables + "}";
+    }
+  }
+}
@@ -23,7 +23,6 @@ import java.util.Set;
 import org.apache.log4j.Logger;
 
 import exm.stc.common.Settings;
-import exm.stc.common.lang.Arg;
 import exm.stc.common.lang.ExecContext;
 import exm.stc.common.lang.Location;
 import exm.stc.common.lang.TaskProp.TaskPropKey;
@@ -33,14 +32,14 @@ import exm.stc.common.lang.Types.StructType.StructField;
 import exm.stc.common.lang.Types.Type;
 import exm.stc.common.lang.Var;
 import exm.stc.ic.opt.OptimizerPass.FunctionOptimizerPass;
-import exm.stc.ic.opt.TreeWalk.TreeWalker;
+import exm.stc.ic.opt.RuntimeProfile.ProcStats;
 import exm.stc.ic.tree.ICContinuations.Continuation;
 import exm.stc.ic.tree.ICContinuations.ContinuationType;
 import exm.stc.ic.tree.ICContinuations.NestedBlock;
 import exm.stc.ic.tree.ICContinuations.WaitStatement;
-import exm.stc.ic.tree.ICInstructions.Instruction;
 import exm.stc.ic.tree.ICTree.Block;
 import exm.stc.ic.tree.ICTree.Function;
+import exm.stc.ic.tree.ICTree.Program;
 
 /**
  * Compile-time pipelining optimization where we merge sequentially dependent
@@ -52,6 +51,20 @@ import exm.stc.ic.tree.ICTree.Function;
  * Running it multiple times can result in reduction in parallelism
  */
 public class Pipeline extends FunctionOptimizerPass {
+
+  /**
+   * Measured run time of task equivalent to one unit of passing cost
+   */
+  private static final double PROFILE_SECONDS_PER_COST = 0.001;
+  private static final int MAX_PROFILE_COST = 1000;
+
+  /** Profile of previous run, or null */
+  private final RuntimeProfile runtimeProfile;
+
+  public Pipeline(RuntimeProfile runtimeProfile) {
+    this.runtimeProfile = runtimeProfile;
+  }
+
   @Override
   public String getPassName() {
     return "Compile time pipelining";
@@ -63,7 +76,7 @@ public class Pipeline extends FunctionOptimizerPass {
   }
 
   @Override
-  public void optimize(Logger logger, Function f) {
+  public void optimize(Logger logger, Program program, Function f) {
     boolean maybeInLoop = f.isAsync() ? false : true;
     pipelineTasks(logger, f, f.mainBlock(), ExecContext.control(), maybeInLoop);
   }
@@ -77,7 +90,7 @@ public class Pipeline extends FunctionOptimizerPass {
    * @param maybeInLoop if there's maybe a loop between the current
    *                    context and the root of the task we're in
    */
-  private static void pipelineTasks(Logger logger, Function f, Block curr,
+  private void pipelineTasks(Logger logger, Function f, Block curr,
       ExecContext cx, boolean maybeInLoop) {
     // Do a bottom-up tree walk
     for (Continuation cont: curr.allComplexStatements()) {
@@ -169,36 +182,33 @@ public class Pipeline extends FunctionOptimizerPass {
   }
 
 
-  private static int heuristicCost(Logger logger, Function f,
+  private int heuristicCost(Logger logger, Function f,
                       Block curr, WaitStatement cand) {
 
-    final Set<Var> varsReadByChildTask = new HashSet<Var>();
-    final Set<Var> varsDeclaredWithinChildTask = new HashSet<Var>();
-    TreeWalker walker = new TreeWalker() {
-            @Override
-            protected void visit(Instruction inst) {
-              for (Arg in: inst.getInputs()) {
-                if (in.isVar()) {
-                  varsReadByChildTask.add(in.getVar());
-                }
-              }
-            }
-
-            @Override
-            protected void visit(Block block) {
-              varsDeclaredWithinChildTask.addAll(block.variables());
-            }};
-
     // Find variables used in child task
-    TreeWalk.walkSyncChildren(logger, f, cand.getBlock(), true, walker);
-
-    // Only count variables that were passed in
-    varsReadByChildTask.removeAll(varsDeclaredWithinChildTask);
+    Set<Var> varsReadByChildTask = new HashSet<Var>();
+    for (Block block: TreeWalk.syncBlocks(cand.getBlock())) {
+      varsReadByChildTask.addAll(block.defUse().readVars());
+    }
 
     int cost = 0;
     for (Var passed: varsReadByChildTask) {
       cost += costOfPassing(logger, passed.type());
     }
+
+    if (runtimeProfile != null) {
+      // Prefer to pipeline tasks that were short in profiled run: task
+      // overhead is a larger fraction of their run time, and long tasks
+      // benefit more from load balancing
+      ProcStats stats = runtimeProfile.waitStatement(cand);
+      if (stats != null) {
+        long profileCost = Math.round(stats.meanSeconds() /
+                                      PROFILE_SECONDS_PER_COST);
+        cost += (int)Math.min(MAX_PROFILE_COST, profileCost);
+        logger.debug("Pipeline candidate " + cand.getProcName() +
+                     ": profiled " + stats + ", cost " + cost);
+      }
+    }
     return cost;
   }
 
@@ -13,7 +13,7 @@ import exm.stc.common.lang.Arg;
 import exm.stc.common.lang.Unimplemented;
 import exm.stc.common.lang.Var;
 import exm.stc.common.lang.WaitVar;
-import exm.stc.common.util.HierarchicalSet;
+import exm.stc.common.util.ScopedSet;
 import exm.stc.ic.aliases.AliasKey;
 import exm.stc.ic.aliases.AliasTracker;
 import exm.stc.ic.opt.OptimizerPass.FunctionOptimizerPass;
@@ -23,6 +23,7 @@ import exm.stc.ic.tree.ICContinuations.WaitStatement;
 import exm.stc.ic.tree.ICInstructions.Instruction;
 import exm.stc.ic.tree.ICTree.Block;
 import exm.stc.ic.tree.ICTree.Function;
+import exm.stc.ic.tree.ICTree.Program;
 import exm.stc.ic.tree.ICTree.Statement;
 import exm.stc.ic.tree.Opcode;
 import exm.stc.ic.tree.TurbineOp;
@@ -46,9 +47,9 @@ public class PropagateAliases extends FunctionOptimizerPass {
   }
 
   @Override
-  public void optimize(Logger logger, Function f) throws UserException {
+  public void optimize(Logger logger, Program program, Function f) throws UserException {
     propAliasesRec(logger, f.mainBlock(), new AliasTracker(),
-                   new HierarchicalSet<Var>());
+                   new ScopedSet<Var>());
   }
   
   /**
@@ -59,7 +60,7 @@ public class PropagateAliases extends FunctionOptimizerPass {
    * @param waitedForAliases alias variables that have been waited for
    */
   public static void propAliasesRec(Logger logger, Block b, AliasTracker aliases,
-                   HierarchicalSet<Var> waitedForAliases) {
+                   ScopedSet<Var> waitedForAliases) {
     
     ListIterator<Statement> stmtIt = b.statementIterator();
     while (stmtIt.hasNext()) {
@@ -138,8 +139,8 @@ public class PropagateAliases extends FunctionOptimizerPass {
   }
 
   private static void propAliasRecOnCont(Logger logger, AliasTracker aliases,
-      HierarchicalSet<Var> waitedForAliases, Continuation cont) {
-    HierarchicalSet<Var> contwaitedForAliases;
+      ScopedSet<Var> waitedForAliases, Continuation cont) {
+    ScopedSet<Var> contwaitedForAliases;
     if (cont.getType() == ContinuationType.WAIT_STATEMENT) {
       WaitStatement w = (WaitStatement)cont;
       
@@ -1,5 +1,6 @@
 package exm.stc.ic.opt;
 
+import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
@@ -15,6 +16,7 @@ import exm.stc.common.lang.FnID;
 import exm.stc.common.lang.ForeignFunctions;
 import exm.stc.common.util.StackLite;
 import exm.stc.ic.opt.TreeWalk.TreeWalker;
+import exm.stc.ic.opt.OptimizerPass.DeterministicPass;
 import exm.stc.ic.tree.ICInstructions.Builtin;
 import exm.stc.ic.tree.ICInstructions.CommonFunctionCall;
 import exm.stc.ic.tree.ICInstructions.Instruction;
@@ -24,15 +26,22 @@ import exm.stc.ic.tree.ICTree.Program;
 import exm.stc.ic.tree.Opcode;
 
 /**
- * Remove unused functions to shrink IR tree
+ * Remove unused functions to shrink IR tree.  Precompiled functions are
+ * pruned in the same way as other functions, and calls from them keep
+ * their callees alive.
  */
-public class PruneFunctions implements OptimizerPass {
+public class PruneFunctions implements DeterministicPass {
 
   @Override
   public String getPassName() {
     return "Prune unused functions";
   }
 
+  @Override
+  public String configKey() {
+    return getPassName();
+  }
+
   @Override
   public String getConfigEnabledKey() {
     return null;
@@ -45,16 +54,30 @@ public class PruneFunctions implements OptimizerPass {
     // Function a depends on function b
     DepFinder deps = new DepFinder(foreignFuncs);
     TreeWalk.walk(logger, program, deps);
+    for (Function f: program.precompiledFunctions()) {
+      TreeWalk.walk(logger, f, deps);
+    }
 
     addLocalImpls(foreignFuncs, deps);
 
-    Set<FnID> needed = findNeeded(deps);
+    Set<FnID> needed = findNeeded(deps, program.externalRefs());
 
     pruneFunctions(program, needed);
 
     pruneBuiltins(program, needed);
   }
 
+  /**
+   * Find functions that a function directly depends on
+   * @return IDs of called functions and builtins implementing async ops
+   */
+  public static Set<FnID> directDependencies(Logger logger,
+                ForeignFunctions foreignFuncs, Function fn) {
+    DepFinder deps = new DepFinder(foreignFuncs);
+    TreeWalk.walk(logger, fn, deps);
+    return new HashSet<FnID>(deps.depGraph.get(fn.id()));
+  }
+
   /**
    * Fill in dependency graph.
    */
@@ -87,15 +110,21 @@ public class PruneFunctions implements OptimizerPass {
   /**
    * Find the set of needed functions given dependencies between functions
    * @param deps
+   * @param externalRefs functions referenced from outside program
    * @return
    */
-  private Set<FnID> findNeeded(DepFinder deps) {
+  private Set<FnID> findNeeded(DepFinder deps, Set<FnID> externalRefs) {
     Set<FnID> needed = new HashSet<FnID>();
     StackLite<FnID> workQueue = new StackLite<FnID>();
 
     // Entry point is always needed
     addFunction(needed, workQueue, FnID.ENTRY_FUNCTION);
 
+    // Functions used from outside program are needed
+    for (FnID externalRef: externalRefs) {
+      addFunction(needed, workQueue, externalRef);
+    }
+
     while (!workQueue.isEmpty()) {
       FnID curr = workQueue.pop();
       List<FnID> fnIDs = deps.depGraph.removeAll(curr);
@@ -148,6 +177,16 @@ public class PruneFunctions implements OptimizerPass {
         fIt.remove();
       }
     }
+
+    List<FnID> unusedPrecompiled = new ArrayList<FnID>();
+    for (Function f: program.precompiledFunctions()) {
+      if (!needed.contains(f.id())) {
+        unusedPrecompiled.add(f.id());
+      }
+    }
+    for (FnID id: unusedPrecompiled) {
+      program.removeFunction(id);
+    }
   }
 
 }
@@ -0,0 +1,246 @@
+/*
+ * Copyright 2013 University of Chicago and Argonne National Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package exm.stc.ic.opt;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.HashMap;
+import java.util.Map;
+
+import exm.stc.common.Settings;
+import exm.stc.common.exceptions.InvalidOptionException;
+import exm.stc.common.lang.FnID;
+import exm.stc.ic.tree.ICContinuations.WaitStatement;
+import exm.stc.tclbackend.TclNamer;
+
+/**
+ * Task counts and run times from a previous run of the program, used to
+ * guide optimization.  Enabled by setting
+ * {@link Settings#OPT_RUNTIME_PROFILE}.
+ *
+ * The profile has one line per generated Tcl proc, as written by Turbine
+ * workers when TURBINE_PROFILE_FILE is set:
+ * <pre>
+ *   &lt;proc name&gt; &lt;task count&gt; &lt;total seconds&gt; [&lt;leaf degree&gt;]
+ * </pre>
+ * The leaf degree is only present for foreach loop splitter procs if the
+ * profiled program was compiled with {@link Settings#TASK_PROFILE}, and
+ * is the degree the profiled program was compiled with.
+ * Blank lines and lines starting with # are ignored.  Lines for the same
+ * proc, e.g. from different workers, are added together.
+ *
+ * Procs are matched with the functions, wait statements and loops they
+ * were generated from by name, using {@link TclNamer}, so the profile is
+ * only useful for the same program compiled with similar settings.
+ */
+public class RuntimeProfile {
+
+  /** Tasks shorter than this on average are dominated by overhead */
+  public static final double SHORT_TASK_SECONDS = 0.001;
+
+  /** Tasks longer than this on average are worth running in parallel */
+  public static final double LONG_TASK_SECONDS = 0.1;
+
+  /** Procs run at least this many times as tasks are hot */
+  public static final long HOT_TASK_COUNT = 1000;
+
+  /**
+   * Task counts and run time for a proc
+   */
+  public static class ProcStats {
+    public final long count;
+    public final double seconds;
+
+    /** Leaf degree of foreach loop splitter proc, or 0 if unknown */
+    public final int leafDegree;
+
+    public ProcStats(long count, double seconds) {
+      this(count, seconds, 0);
+    }
+
+    public ProcStats(long count, double seconds, int leafDegree) {
+      this.count = count;
+      this.seconds = seconds;
+      this.leafDegree = leafDegree;
+    }
+
+    /**
+     * @return mean run time of task in seconds
+     */
+    public double meanSeconds() {
+      return count == 0 ? 0.0 : seconds / count;
+    }
+
+    public boolean isHot() {
+      return count >= HOT_TASK_COUNT;
+    }
+
+    public boolean isShort() {
+      return meanSeconds() < SHORT_TASK_SECONDS;
+    }
+
+    public boolean isLong() {
+      return meanSeconds() > LONG_TASK_SECONDS;
+    }
+
+    public ProcStats add(ProcStats other) {
+      // Degree is unknown if procs with different degrees are combined
+      int degree = leafDegree == other.leafDegree ? leafDegree : 0;
+      return new ProcStats(count + other.count, seconds + other.seconds,
+                           degree);
+    }
+
+    @Override
+    public String toString() {
+      return count + " tasks, " + seconds + "s" +
+          (leafDegree > 0 ? ", leaf degree " + leafDegree : "");
+    }
+  }
+
+  /**
+   * Stats for each proc name.  Also includes totals for all procs
+   * generated with same name before it was made unique.
+   */
+  private final Map<String, ProcStats> procs;
+
+  private RuntimeProfile(Map<String, ProcStats> procs) {
+    this.procs = procs;
+  }
+
+  /**
+   * @return profile from file in settings, or null if not enabled
+   * @throws InvalidOptionException if profile couldn't be read
+   */
+  public static RuntimeProfile fromSettings() throws InvalidOptionException {
+    String file = Settings.get(Settings.OPT_RUNTIME_PROFILE);
+    if (file == null || file.length() == 0) {
+      return null;
+    }
+    try {
+      Reader reader = new FileReader(file);
+      try {
+        return read(reader, file);
+      } finally {
+        reader.close();
+      }
+    } catch (IOException e) {
+      throw new InvalidOptionException("Could not read runtime profile "
+                                       + file + ": " + e.getMessage());
+    }
+  }
+
+  /**
+   * Parse profile
+   * @param input
+   * @param fileName name for error messages
+   * @return
+   * @throws IOException
+   * @throws InvalidOptionException if profile is malformed
+   */
+  public static RuntimeProfile read(Reader input, String fileName)
+      throws IOException, InvalidOptionException {
+    Map<String, ProcStats> procs = new HashMap<String, ProcStats>();
+    BufferedReader r = new BufferedReader(input);
+    String line;
+    int lineNum = 0;
+    while ((line = r.readLine()) != null) {
+      lineNum++;
+      line = line.trim();
+      if (line.length() == 0 || line.startsWith("#")) {
+        continue;
+      }
+
+      String toks[] = line.split("\\s+");
+      ProcStats stats;
+      try {
+        if (toks.length != 3 && toks.length != 4) {
+          throw new NumberFormatException("expected 3 or 4 fields");
+        }
+        int leafDegree = 0;
+        if (toks.length == 4) {
+          leafDegree = Integer.parseInt(toks[3]);
+          if (leafDegree <= 0) {
+            throw new NumberFormatException("invalid leaf degree");
+          }
+        }
+        stats = new ProcStats(Long.parseLong(toks[1]),
+                              Double.parseDouble(toks[2]), leafDegree);
+      } catch (NumberFormatException e) {
+        throw new InvalidOptionException("Invalid line " + lineNum +
+            " in runtime profile " + fileName + ": \"" + line + "\"");
+      }
+
+      String procName = toks[0];
+      addStats(procs, procName, stats);
+      String baseName = TclNamer.baseProcName(procName);
+      if (!baseName.equals(procName)) {
+        addStats(procs, baseName, stats);
+      }
+    }
+    return new RuntimeProfile(procs);
+  }
+
+  private static void addStats(Map<String, ProcStats> procs,
+                               String procName, ProcStats stats) {
+    ProcStats prev = procs.get(procName);
+    procs.put(procName, prev == null ? stats : prev.add(stats));
+  }
+
+  /**
+   * @param procName name of proc before it was made unique
+   * @return stats, or null if not run
+   */
+  public ProcStats proc(String procName) {
+    return procs.get(procName);
+  }
+
+  /**
+   * @param id
+   * @return stats for function run as task, or null if not run
+   */
+  public ProcStats function(FnID id) {
+    return proc(TclNamer.swiftFuncName(id));
+  }
+
+  /**
+   * @param wait
+   * @return stats for wait statement, or null if not run
+   */
+  public ProcStats waitStatement(WaitStatement wait) {
+    return proc(wait.getProcName());
+  }
+
+  /**
+   * @param fn
+   * @return stats for waits merged by {@link WaitCoalescer} in function,
+   *          or null if not run
+   */
+  public ProcStats mergedWaits(FnID fn) {
+    return proc(WaitCoalescer.mergedWaitName(fn));
+  }
+
+  /**
+   * Leaf chunks of foreach loop iterations are run directly by the
+   * splitter tasks, each of which runs one leaf.
+   * @param loopName
+   * @return stats for splitter tasks of foreach loop, or null if not run
+   */
+  public ProcStats loopLeaf(String loopName) {
+    return proc(TclNamer.loopOuterProcName(loopName));
+  }
+}
@@ -15,6 +15,9 @@
  */
 package exm.stc.ic.opt;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import org.apache.log4j.Logger;
 
 import exm.stc.common.exceptions.STCRuntimeError;
@@ -144,6 +147,25 @@ public class TreeWalk {
     }
   }
 
+  /**
+   * @return block and any descendant blocks that execute synchronously
+   */
+  public static List<Block> syncBlocks(Block block) {
+    List<Block> result = new ArrayList<Block>();
+    StackLite<Block> stack = new StackLite<Block>();
+    stack.push(block);
+    while (!stack.isEmpty()) {
+      Block curr = stack.pop();
+      result.add(curr);
+      for (Continuation c: curr.allComplexStatements()) {
+        if (!c.isAsync()) {
+          stack.addAll(c.getBlocks());
+        }
+      }
+    }
+    return result;
+  }
+
   private static void walkSyncChildren(Logger logger, Function fn,
       TreeWalker walker, StackLite<Block> stack, Continuation cont) {
     walker.visit(logger, fn, cont);
@@ -30,7 +30,7 @@ import exm.stc.common.lang.Arg;
 import exm.stc.common.lang.Var;
 import exm.stc.common.lang.Var.Alloc;
 import exm.stc.common.lang.Var.DefType;
-import exm.stc.common.util.HierarchicalMap;
+import exm.stc.common.util.ScopedMap;
 import exm.stc.ic.tree.ICContinuations.ContVarDefType;
 import exm.stc.ic.tree.ICContinuations.Continuation;
 import exm.stc.ic.tree.ICTree.Block;
@@ -71,7 +71,7 @@ public class UniqueVarNames implements OptimizerPass {
    * @param existing existing variables
    */
   private static void makeVarNamesUnique(Function fn,
-      Block block, Vars existing, HierarchicalMap<Var, Arg> renames) {
+      Block block, Vars existing, ScopedMap<Var, Arg> renames) {
     for (Var v: block.variables()) {
       if (!v.defType().isGlobal()) {
         updateName(fn, block, existing, renames, v);
@@ -86,7 +86,7 @@ public class UniqueVarNames implements OptimizerPass {
     // Recurse through nested blocks, making sure that all used variable
     // names are added to the usedNames
     for (Continuation c: block.allComplexStatements()) {
-      makeVarNamesUnique(fn, existing, c, renames.makeChildMap());
+      makeVarNamesUnique(fn, existing, c, renames.makeChild());
     }
   }
 
@@ -102,7 +102,7 @@ public class UniqueVarNames implements OptimizerPass {
   }
 
   private static void makeVarNamesUnique(Function fn, Vars existing,
-                 Continuation cont, HierarchicalMap<Var, Arg> renames) {
+                 Continuation cont, ScopedMap<Var, Arg> renames) {
     // Update any continuation-defined vars
     List<Var> constructNewDefinedVars =
                       cont.constructDefinedVars(ContVarDefType.NEW_DEF);
@@ -122,7 +122,7 @@ public class UniqueVarNames implements OptimizerPass {
     fixupVarRedefines(fn, existing, cont, renames);
 
     for (Block b: cont.getBlocks()) {
-      makeVarNamesUnique(fn, b, existing, renames.makeChildMap());
+      makeVarNamesUnique(fn, b, existing, renames.makeChild());
     }
   }
 
@@ -135,7 +135,7 @@ public class UniqueVarNames implements OptimizerPass {
    * @param renames
    */
   private static void fixupVarRedefines(Function fn, Vars existing,
-        Continuation cont, HierarchicalMap<Var, Arg> renames) {
+        Continuation cont, ScopedMap<Var, Arg> renames) {
     for (Var redef: cont.constructDefinedVars(ContVarDefType.REDEF)) {
       HashMap<Var, Arg> contVarRenames = new HashMap<Var, Arg>();
       updateName(fn, cont.getBlocks().get(0), existing, contVarRenames, redef);
@@ -187,7 +187,7 @@ public class UniqueVarNames implements OptimizerPass {
     Vars declarations = new Vars();
     declarations.addDeclarations(globals);
 
-    HierarchicalMap<Var, Arg> renames = new HierarchicalMap<Var, Arg>();
+    ScopedMap<Var, Arg> renames = new ScopedMap<Var, Arg>();
     for (Var v: fn.getInputList()) {
       updateName(fn, fn.mainBlock(), declarations, renames, v);
     }
@@ -15,6 +15,7 @@
  */
 package exm.stc.ic.opt;
 
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.IdentityHashMap;
@@ -31,8 +32,11 @@ import exm.stc.common.lang.ExecContext;
 import exm.stc.common.lang.ExecTarget;
 import exm.stc.common.lang.Semantics;
 import exm.stc.common.lang.Var;
-import exm.stc.common.util.HierarchicalSet;
+import exm.stc.common.util.ScopedSet;
+import exm.stc.common.util.StackLite;
+import exm.stc.ic.opt.FixupVariables.FixupVarMode;
 import exm.stc.ic.opt.TreeWalk.TreeWalker;
+import exm.stc.ic.tree.DefUseIndex;
 import exm.stc.ic.tree.ICContinuations.ContVarDefType;
 import exm.stc.ic.tree.ICContinuations.Continuation;
 import exm.stc.ic.tree.ICContinuations.ContinuationType;
@@ -51,26 +55,53 @@ import exm.stc.ic.tree.TurbineOp.RefCountOp;
  * - Check variable names in block unique
  * - Check cleanups are in right place with block variables
  * - Check parent links are valid
+ *
+ * An incremental validator only rechecks functions that were modified
+ * since it last checked them, using the modification counts maintained
+ * by the IR.
  */
 public class Validate implements OptimizerPass {
   private final boolean checkVarPassing;
   private final boolean checkCleanups;
   private final boolean noNestedBlocks;
   private final boolean checkExecContext;
+  private final boolean incremental;
 
+  /**
+   * Modification count of functions when last validated.
+   * Only used if incremental.
+   */
+  private final Map<Function, Long> validated =
+                              new IdentityHashMap<Function, Long>();
+
+  /**
+   * Globals when last validated: all functions must be rechecked if
+   * globals change. Only used if incremental.
+   */
+  private List<Var> validatedGlobals = null;
 
   private Validate(boolean checkVarPassing,
                    boolean checkCleanups,
                    boolean noNestedBlocks,
-                   boolean checkExecContext) {
+                   boolean checkExecContext,
+                   boolean incremental) {
     this.checkVarPassing = checkVarPassing;
     this.checkCleanups = checkCleanups;
     this.noNestedBlocks = noNestedBlocks;
     this.checkExecContext = checkExecContext;
+    this.incremental = incremental;
   }
 
   public static Validate standardValidator() {
-    return new Validate(true, true, false, true);
+    return new Validate(true, true, false, true, false);
+  }
+
+  /**
+   * @return validator doing same checks as standard validator, but
+   *          only on functions modified since its last run
+   */
+  public static Validate incrementalValidator() {
+    return new Validate(true, true, false, true, true);
   }
 
   /**
@@ -79,7 +110,7 @@ public class Validate implements OptimizerPass {
    *                    variable passing check
    */
   public static Validate finalValidator() {
-    return new Validate(false, false, false, true);
+    return new Validate(false, false, false, true, false);
   }
 
   @Override
@@ -94,12 +125,19 @@ public class Validate implements OptimizerPass {
 
   @Override
   public void optimize(Logger logger, Program program) throws UserException {
+    List<Function> functions = incremental ? modifiedFunctions(program)
+                                           : program.functions();
+
     if (checkVarPassing) {
       // Check visibility of vars without modifying IC
-      FixupVariables.fixupProgram(logger, program, false);
+      Set<Var> referencedGlobals = new HashSet<Var>();
+      for (Function fn : functions) {
+        FixupVariables.fixupFunction(logger, program.allGlobals(), fn,
+                            referencedGlobals, FixupVarMode.NO_UPDATE);
+      }
     }
 
-    for (Function fn : program.functions()) {
+    for (Function fn : functions) {
       checkParentLinks(logger, program, fn);
       checkUniqueVarNames(logger, program.allGlobals(), fn);
       InitVariables.checkVarInit(logger, fn);
@@ -107,8 +145,41 @@ public class Validate implements OptimizerPass {
         checkExecCx(logger, program, fn);
       }
       checkDuplicateRefs(logger, fn);
+      checkDefUse(logger, fn);
+    }
+
+    if (incremental) {
+      for (Function fn : functions) {
+        validated.put(fn, fn.modCount());
+      }
     }
   }
+
+  /**
+   * @return functions modified since last validated
+   */
+  private List<Function> modifiedFunctions(Program program) {
+    List<Var> globals = new ArrayList<Var>();
+    for (Var global: program.allGlobals()) {
+      globals.add(global);
+    }
+    if (!globals.equals(validatedGlobals)) {
+      validated.clear();
+      validatedGlobals = globals;
+    }
+
+    // Forget functions no longer in program
+    validated.keySet().retainAll(program.functions());
+
+    List<Function> modified = new ArrayList<Function>();
+    for (Function fn : program.functions()) {
+      Long modCount = validated.get(fn);
+      if (modCount == null || modCount != fn.modCount()) {
+        modified.add(fn);
+      }
+    }
+    return modified;
+  }
   /**
    * Check that var names are unique within each function, and
    * that all references to variable have same attributes
@@ -134,12 +205,12 @@ public class Validate implements OptimizerPass {
       checkVarUnique(logger, fn, declared, out);
     }
 
-    checkUniqueVarNames(logger, fn, fn.mainBlock(), declared, new HierarchicalSet<Var>());
+    checkUniqueVarNames(logger, fn, fn.mainBlock(), declared, new ScopedSet<Var>());
   }
 
   private void checkUniqueVarNames(Logger logger,
       Function fn, Block block, Map<String, Var> declared,
-      HierarchicalSet<Var> unavailable) {
+      ScopedSet<Var> unavailable) {
     for (Var v: block.variables()) {
       checkVarUnique(logger, fn, declared, v);
     }
@@ -155,14 +226,14 @@ public class Validate implements OptimizerPass {
   }
 
   private void checkUniqueVarNamesContRec(Logger logger, Function fn,
-      Map<String, Var> declared, HierarchicalSet<Var> unavailable,
+      Map<String, Var> declared, ScopedSet<Var> unavailable,
       Continuation c) {
 
     for (Var v: c.constructDefinedVars(ContVarDefType.NEW_DEF)) {
       checkVarUnique(logger, fn, declared, v);
     }
 
-    HierarchicalSet<Var> unavailChild = unavailable.makeChild();
+    ScopedSet<Var> unavailChild = unavailable.makeChild();
     if (!c.variablePassing().isLocal()) {
       // Remove non-passable
       for (Var v: declared.values()) {
@@ -355,6 +426,37 @@ public class Validate implements OptimizerPass {
 
 
 
+  /**
+   * Check that cached def-use indices are consistent with code.  If not,
+   * code was modified without calling markModified().
+   * @param logger
+   * @param fn
+   */
+  private void checkDefUse(Logger logger, Function fn) {
+    StackLite<Block> stack = new StackLite<Block>();
+    stack.push(fn.mainBlock());
+    while (!stack.isEmpty()) {
+      Block block = stack.pop();
+      DefUseIndex cached = block.cachedDefUse();
+      if (cached != null) {
+        DefUseIndex actual = DefUseIndex.build(block);
+        if (!cached.sameAs(actual)) {
+          throw new STCRuntimeError("Stale def-use index for block in "
+              + fn.id() + "\n\ncached:\n" + cached + "\n\nactual:\n"
+              + actual + "\n\nblock:\n" + block);
+        }
+      }
+      for (Continuation c: block.allComplexStatements()) {
+        stack.addAll(c.getBlocks());
+      }
+    }
+
+    DefUseIndex cached = fn.cachedDefUse();
+    if (cached != null && !cached.sameAs(DefUseIndex.build(fn))) {
+      throw new STCRuntimeError("Stale def-use index for " + fn.id());
+    }
+  }
+
   private void checkExecCx(Logger logger, Program program, Function fn) {
     checkExecCx(logger, program, fn.mainBlock(), ExecContext.control());
   }
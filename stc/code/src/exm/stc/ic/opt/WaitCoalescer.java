@@ -28,7 +28,7 @@ import java.util.Set;
 import org.apache.log4j.Logger;
 
 import com.google.common.collect.ArrayListMultimap;
-import com.google.common.collect.HashMultimap;
+import com.google.common.collect.LinkedHashMultimap;
 import com.google.common.collect.ListMultimap;
 import com.google.common.collect.SetMultimap;
 
@@ -38,6 +38,7 @@ import exm.stc.common.exceptions.STCRuntimeError;
 import exm.stc.common.lang.Arg;
 import exm.stc.common.lang.ExecContext;
 import exm.stc.common.lang.ExecTarget;
+import exm.stc.common.lang.FnID;
 import exm.stc.common.lang.Location;
 import exm.stc.common.lang.PassedVar;
 import exm.stc.common.lang.TaskProp.TaskPropKey;
@@ -53,6 +54,8 @@ import exm.stc.common.util.StackLite;
 import exm.stc.ic.ICUtil;
 import exm.stc.ic.opt.OptUtil.InstOrCont;
 import exm.stc.ic.opt.TreeWalk.TreeWalker;
+import exm.stc.ic.opt.OptimizerPass.DeterministicPass;
+import exm.stc.ic.opt.RuntimeProfile.ProcStats;
 import exm.stc.ic.tree.Conditionals.Conditional;
 import exm.stc.ic.tree.ICContinuations.BlockingVar;
 import exm.stc.ic.tree.ICContinuations.Continuation;
@@ -174,15 +177,29 @@ import exm.stc.ic.tree.ICTree.StatementType;
  * Go to all subblocks and do the same
  *
  */
-public class WaitCoalescer implements OptimizerPass {
+public class WaitCoalescer implements DeterministicPass {
   // If true, merge continuations
   private final boolean doMerges;
   // If true, retain explicit waits even if removing them is valid
   private final boolean retainExplicit;
+  // Summaries of functions at start of pass, or null
+  private FunctionSummaries summaries = null;
+  // Profile of previous run, or null
+  private final RuntimeProfile runtimeProfile;
 
-  public WaitCoalescer(boolean doMerges, boolean retainExplicit) {
+  public WaitCoalescer(boolean doMerges, boolean retainExplicit,
+                       RuntimeProfile runtimeProfile) {
     this.doMerges = doMerges;
     this.retainExplicit = retainExplicit;
+    this.runtimeProfile = runtimeProfile;
+  }
+
+  /**
+   * @param fn
+   * @return name of wait statements created by merging waits in function
+   */
+  public static String mergedWaitName(FnID fn) {
+    return fn + "-optmerged";
   }
 
   @Override
@@ -190,6 +207,12 @@ public class WaitCoalescer implements OptimizerPass {
     return "Wait coalescing";
   }
 
+  @Override
+  public String configKey() {
+    return getPassName() + " merges=" + doMerges +
+           " retainExplicit=" + retainExplicit;
+  }
+
   @Override
   public String getConfigEnabledKey() {
     return Settings.OPT_WAIT_COALESCE;
@@ -197,10 +220,12 @@ public class WaitCoalescer implements OptimizerPass {
 
   @Override
   public void optimize(Logger logger, Program prog) {
+    summaries = FunctionSummaries.fromSettings(logger, prog);
     for (Function f: prog.functions()) {
       logger.trace("Wait coalescer entering function " + f.id());
       rearrangeWaits(logger, prog, f, f.mainBlock(), ExecContext.control());
     }
+    summaries = null;
   }
 
   public boolean rearrangeWaits(Logger logger, Program prog, Function fn,
@@ -617,7 +642,11 @@ public class WaitCoalescer implements OptimizerPass {
         }
         // Create a new wait statement waiting on the intersection
         // of the above.
-        WaitStatement newWait = new WaitStatement(fn.id() + "-optmerged",
+        // If merged waits took a long time in previous run, run the
+        // waits as separate tasks instead of in sequence
+        boolean serialize = !isLongRunning(logger, fn);
+
+        WaitStatement newWait = new WaitStatement(mergedWaitName(fn.id()),
             mergedWaitVars, PassedVar.NONE, Var.NONE,
             WaitMode.WAIT_ONLY, allRecursive, ExecTarget.nonDispatchedAny(),
             new TaskProps());
@@ -630,9 +659,10 @@ public class WaitCoalescer implements OptimizerPass {
           boolean compatible = compatibleContexts(execCx,
               wait.childContext(execCx), TargetLocation.ANY, wait.targetLocation(),
               null, wait.parallelism());
-          if (compatible &&
+          if (compatible && serialize &&
               wait.getWaitVars().isEmpty() &&
-              wait.getMode() != WaitMode.TASK_DISPATCH) {
+              wait.getMode() != WaitMode.TASK_DISPATCH &&
+              !isLongRunning(logger, wait)) {
             newWait.getBlock().insertInline(wait.getBlock());
           } else {
             wait.setParent(newWait.getBlock());
@@ -648,6 +678,39 @@ public class WaitCoalescer implements OptimizerPass {
     return changed;
   }
 
+  /**
+   * @return true if merged waits in function ran for a long time in
+   *        profiled run
+   */
+  private boolean isLongRunning(Logger logger, Function fn) {
+    if (runtimeProfile == null) {
+      return false;
+    }
+    ProcStats stats = runtimeProfile.mergedWaits(fn.id());
+    if (stats != null && stats.isLong()) {
+      logger.debug("Not serializing merged waits in " + fn.id() +
+                   ": profiled " + stats);
+      return true;
+    }
+    return false;
+  }
+
+  /**
+   * @return true if wait ran for a long time in profiled run
+   */
+  private boolean isLongRunning(Logger logger, WaitStatement wait) {
+    if (runtimeProfile == null) {
+      return false;
+    }
+    ProcStats stats = runtimeProfile.waitStatement(wait);
+    if (stats != null && stats.isLong()) {
+      logger.debug("Not serializing wait " + wait.getProcName() +
+                   ": profiled " + stats);
+      return true;
+    }
+    return false;
+  }
+
   /**
    * Build a map of <variable> --> wait statements blocking on that value
    * @param block
@@ -712,7 +775,8 @@ public class WaitCoalescer implements OptimizerPass {
    */
   private boolean pushDownWaits(Logger logger, Program prog, Function fn,
                                 Block block, ExecContext currContext) {
-    SetMultimap<Var, InstOrCont> waitMap = buildWaiterMap(prog, block);
+    SetMultimap<Var, InstOrCont> waitMap = buildWaiterMap(prog, summaries,
+                                                          block);
 
     if (logger.isTraceEnabled()) {
       logger.trace("waitMap keys: " + waitMap.keySet());
@@ -1109,10 +1173,11 @@ public class WaitCoalescer implements OptimizerPass {
   }
 
   private static SetMultimap<Var, InstOrCont> buildWaiterMap(Program prog,
-                                                          Block block) {
-    // Use linked list to support more efficient removal in middle of list
-    SetMultimap<Var, InstOrCont> waitMap = HashMultimap.create();
-    findRelocatableBlockingInstructions(prog, block, waitMap);
+                              FunctionSummaries summaries, Block block) {
+    // Keep waiters in block order so that they are relocated in the same
+    // order every time, regardless of identity hash codes
+    SetMultimap<Var, InstOrCont> waitMap = LinkedHashMultimap.create();
+    findRelocatableBlockingInstructions(prog, summaries, block, waitMap);
     findBlockingContinuations(block, waitMap);
     return waitMap;
   }
@@ -1130,7 +1195,8 @@ public class WaitCoalescer implements OptimizerPass {
   }
 
   private static void findRelocatableBlockingInstructions(Program prog,
-          Block block, SetMultimap<Var, InstOrCont> waitMap) {
+          FunctionSummaries summaries, Block block,
+          SetMultimap<Var, InstOrCont> waitMap) {
     for (Statement stmt: block.getStatements()) {
       if (stmt.type() != StatementType.INSTRUCTION) {
         continue; // Only interested in instructions
@@ -1147,7 +1213,9 @@ public class WaitCoalescer implements OptimizerPass {
       }
       if (canMove) {
         // Put in map based on which inputs will block execution of task
-        List<Var> bi = inst.getBlockingInputs(prog);
+        List<Var> bi = summaries != null ?
+                    summaries.getBlockingInputs(prog, inst) :
+                    inst.getBlockingInputs(prog);
         if (bi != null) {
           for (Var in: bi) {
             if (trackForPushdown(in)) {
@@ -19,8 +19,8 @@ import exm.stc.common.lang.Arg;
 import exm.stc.common.lang.ForeignFunctions;
 import exm.stc.common.lang.Var;
 import exm.stc.common.lang.Var.Alloc;
-import exm.stc.common.util.HierarchicalSet;
 import exm.stc.common.util.Pair;
+import exm.stc.common.util.ScopedSet;
 import exm.stc.common.util.TernaryLogic.Ternary;
 import exm.stc.ic.aliases.Alias;
 import exm.stc.ic.aliases.AliasKey;
@@ -74,7 +74,7 @@ public class Congruences implements AliasFinder {
   private final CongruentSets byValue;
   private final CongruentSets byAlias;
   private final AliasTracker aliasTracker;
-  private final HierarchicalSet<List<Arg>> maybeAssigned;
+  private final ScopedSet<List<Arg>> maybeAssigned;
   private final boolean reorderingAllowed;
 
   private Congruences(Logger logger,
@@ -84,7 +84,7 @@ public class Congruences implements AliasFinder {
                         CongruentSets byValue,
                         CongruentSets byAlias,
                         AliasTracker aliasTracker,
-                        HierarchicalSet<List<Arg>> maybeAssigned,
+                        ScopedSet<List<Arg>> maybeAssigned,
                         boolean reorderingAllowed) {
     this.logger = logger;
     this.consts = consts;
@@ -104,7 +104,7 @@ public class Congruences implements AliasFinder {
         CongruentSets.makeRoot(foreignFuncs, CongruenceType.VALUE),
          CongruentSets.makeRoot(foreignFuncs, CongruenceType.ALIAS),
          new AliasTracker(),
-         new HierarchicalSet<List<Arg>>(),
+         new ScopedSet<List<Arg>>(),
          reorderingAllowed);
   }
 
@@ -47,17 +47,20 @@ import exm.stc.common.util.TernaryLogic.Ternary;
 import exm.stc.ic.ICUtil;
 import exm.stc.ic.WrapUtil;
 import exm.stc.ic.aliases.Alias;
-import exm.stc.ic.opt.ICOptimizer;
 import exm.stc.ic.opt.InitVariables;
 import exm.stc.ic.opt.InitVariables.InitState;
 import exm.stc.ic.opt.OptUtil;
 import exm.stc.ic.opt.OptUtil.OptVarCreator;
-import exm.stc.ic.opt.OptimizerPass;
+import exm.stc.ic.opt.FunctionPassRunner;
+import exm.stc.ic.opt.FunctionSummaries;
+import exm.stc.ic.opt.FunctionSummary;
+import exm.stc.ic.opt.OptimizerPass.FunctionOptimizerPass;
 import exm.stc.ic.opt.ProgressOpcodes;
 import exm.stc.ic.opt.ProgressOpcodes.Category;
 import exm.stc.ic.opt.TreeWalk;
 import exm.stc.ic.opt.TreeWalk.TreeWalker;
 import exm.stc.ic.opt.valuenumber.Congruences.OptUnsafeError;
+import exm.stc.ic.opt.valuenumber.ValLoc.Closed;
 import exm.stc.ic.opt.valuenumber.ValLoc.IsAssign;
 import exm.stc.ic.tree.Conditionals.Conditional;
 import exm.stc.ic.tree.Conditionals.IfStatement;
@@ -68,6 +71,7 @@ import exm.stc.ic.tree.ICContinuations.ContinuationType;
 import exm.stc.ic.tree.ICContinuations.Loop;
 import exm.stc.ic.tree.ICContinuations.WaitStatement;
 import exm.stc.ic.tree.ICInstructions;
+import exm.stc.ic.tree.ICInstructions.FunctionCall;
 import exm.stc.ic.tree.ICInstructions.Instruction;
 import exm.stc.ic.tree.ICInstructions.Instruction.Fetched;
 import exm.stc.ic.tree.ICInstructions.Instruction.MakeImmChange;
@@ -103,10 +107,25 @@ import exm.stc.ic.tree.TurbineOp;
  * of dead code, which can be cleaned up in a pass of the dead code eliminator.
  *
  */
-public class ValueNumber implements OptimizerPass {
+public class ValueNumber extends FunctionOptimizerPass {
 
   private Logger logger;
 
+  /**
+   * Global constants at start of pass if functions are processed in
+   * parallel, or null to use current constants.  Any constants created
+   * during the pass can only be referenced by the function that created
+   * them, so it's sufficient to seed the analysis of each function with
+   * these.
+   */
+  private Map<Var, Arg> initConstants;
+
+  /**
+   * Summaries of functions in program at start of pass, or null if not
+   * using interprocedural information
+   */
+  private FunctionSummaries summaries;
+
   /**
    * True if this pass is allowed to reorder instructions. If false, guarantees
    * that future passes won't try reordering.
@@ -118,10 +137,16 @@ public class ValueNumber implements OptimizerPass {
    */
   private boolean finalizedVarEnabled;
 
+  /**
+   * True if we should check internal state for consistency
+   */
+  private boolean validateEnabled;
+
   public ValueNumber(boolean reorderingAllowed) {
     this.reorderingAllowed = reorderingAllowed;
 
     finalizedVarEnabled = Settings.getBooleanUnchecked(Settings.OPT_FINALIZED_VAR);
+    validateEnabled = Settings.getBooleanUnchecked(Settings.OPT_VALIDATE_PASSES);
   }
 
   @Override
@@ -129,20 +154,46 @@ public class ValueNumber implements OptimizerPass {
     return "Value numbering";
   }
 
+  @Override
+  public String configKey() {
+    return getPassName() + " reorderingAllowed=" + reorderingAllowed;
+  }
+
   @Override
   public String getConfigEnabledKey() {
     return Settings.OPT_VALUE_NUMBER;
   }
 
   @Override
-  public void optimize(Logger logger, Program prog) throws UserException {
+  public void optimizeFunctions(Logger logger, Program prog,
+                  List<Function> functions) throws UserException {
     this.logger = logger;
-    for (Function f: prog.functions()) {
-      runPass(prog, f);
-      liftWaitRec(logger, prog, f, f.mainBlock());
+    this.summaries = FunctionSummaries.fromSettings(logger, prog);
+    if (FunctionPassRunner.parallel(functions)) {
+      this.initConstants = prog.constants().map();
+      /*
+       * Lifting waits modifies the blocking inputs of functions, which
+       * are read when analysing their callers, so must be done after
+       * all functions are analysed to avoid races.
+       */
+      super.optimizeFunctions(logger, prog, functions);
+      for (Function f: functions) {
+        liftWaitRec(logger, prog, f, f.mainBlock());
+      }
+    } else {
+      this.initConstants = null;
+      for (Function f: functions) {
+        runPass(prog, f);
+        liftWaitRec(logger, prog, f, f.mainBlock());
+      }
     }
   }
 
+  @Override
+  public void optimize(Logger logger, Program prog, Function f) {
+    runPass(prog, f);
+  }
+
   private void runPass(Program prog, Function f) {
     logger.trace("Optimizing function @" + f.id());
     try {
@@ -166,10 +217,13 @@ public class ValueNumber implements OptimizerPass {
       Function f) throws OptUnsafeError {
     Congruences congruent = new Congruences(logger, foreignFuncs, constants,
                                             reorderingAllowed);
-    for (Var v: constants.vars()) {
+    Map<Var, Arg> initConsts = initConstants != null ? initConstants
+                                                     : constants.map();
+    for (Map.Entry<Var, Arg> c: initConsts.entrySet()) {
       // First, all constants can be treated as being set
+      Var v = c.getKey();
       assert(v.storage() == Alloc.GLOBAL_CONST);
-      Arg val = constants.lookupByVar(v);
+      Arg val = c.getValue();
       assert (val != null) : v.name();
 
       ValLoc assign = ComputedValue.assignValLoc(v, val,
@@ -441,13 +495,15 @@ public class ValueNumber implements OptimizerPass {
      * NOTE: we don't delete any instructions on this pass, but rather rely on
      * dead code elim to later clean up unneeded instructions instead.
      */
-    updateCongruent(logger, prog.constants(), f, inst, stmtIndex, state);
+    updateCongruent(prog.constants(), f, inst, stmtIndex, state);
 
 
     if (finalizedVarEnabled) {
       updateTransitiveDeps(prog, inst, state);
 
-      for (Var out: inst.getClosedOutputs()) {
+      List<Var> closedOutputs = summaries != null ?
+          summaries.getClosedOutputs(inst) : inst.getClosedOutputs();
+      for (Var out: closedOutputs) {
         if (logger.isTraceEnabled()) {
           logger.trace("Output " + out.name() + " is closed");
         }
@@ -828,10 +884,13 @@ public class ValueNumber implements OptimizerPass {
     }
   }
 
-  private static void updateCongruent(Logger logger, GlobalConstants consts,
+  private void updateCongruent(GlobalConstants consts,
             Function function, Instruction inst, int stmtIndex,
             Congruences state) throws OptUnsafeError {
     List<ValLoc> resVals = inst.getResults();
+    if (resVals == null) {
+      resVals = pureCallResults(inst);
+    }
     List<Alias> aliases = inst.getAliases();
 
     if (logger.isTraceEnabled()) {
@@ -842,6 +901,43 @@ public class ValueNumber implements OptimizerPass {
                  stmtIndex);
   }
 
+  /**
+   * Calls to pure functions in the program give the same outputs for the
+   * same inputs, the same as calls to pure foreign functions.
+   * @param inst
+   * @return results of call, or null if not a call to a pure function
+   */
+  private List<ValLoc> pureCallResults(Instruction inst) {
+    if (summaries == null) {
+      return null;
+    }
+    FunctionSummary callee = summaries.calleeSummary(inst);
+    if (callee == null || !callee.isPure()) {
+      return null;
+    }
+
+    FunctionCall call = (FunctionCall)inst;
+    List<Var> outputs = call.getFunctionOutputs();
+    if (!call.getOutputs().equals(outputs)) {
+      // Updateable inputs are modified
+      return null;
+    }
+
+    List<ValLoc> res = new ArrayList<ValLoc>(outputs.size());
+    for (int i = 0; i < outputs.size(); i++) {
+      Var out = outputs.get(i);
+      if (Types.isFile(out)) {
+        // Filename of output matters
+        return null;
+      }
+      List<Arg> cvArgs = new ArrayList<Arg>(call.getInputs());
+      cvArgs.add(Arg.newInt(i)); // Disambiguate outputs
+      res.add(ValLoc.buildResult(inst.op, call.functionID(), cvArgs,
+              out.asArg(), Closed.MAYBE_NOT, IsAssign.TO_LOCATION));
+    }
+    return res;
+  }
+
   /**
    *
    * @param logger
@@ -1027,7 +1123,7 @@ public class ValueNumber implements OptimizerPass {
    * Do any validations of the state of things
    */
   private void validateState(GlobalConstants consts, Congruences state) {
-    if (ICOptimizer.SUPER_DEBUG) {
+    if (validateEnabled) {
       state.validate(consts);
     }
   }
@@ -30,12 +30,12 @@ import exm.stc.common.lang.Var.VarCount;
 import exm.stc.common.util.Counters;
 import exm.stc.common.util.Pair;
 import exm.stc.common.util.Sets;
+import exm.stc.common.util.StackLite;
 import exm.stc.ic.aliases.AliasKey;
 import exm.stc.ic.opt.OptUtil;
-import exm.stc.ic.opt.TreeWalk;
-import exm.stc.ic.opt.TreeWalk.TreeWalker;
 import exm.stc.ic.refcount.RCTracker.RefCountCandidates;
 import exm.stc.ic.tree.Conditionals.Conditional;
+import exm.stc.ic.tree.DefUseIndex;
 import exm.stc.ic.tree.ForeachLoops.AbstractForeachLoop;
 import exm.stc.ic.tree.ICContinuations.Continuation;
 import exm.stc.ic.tree.ICInstructions.Instruction;
@@ -292,7 +292,7 @@ public class RCPlacer {
       Continuation cont = cit.previous();
 
       useFinder.reset();
-      TreeWalk.walkSyncChildren(logger, fn, cont, useFinder);
+      useFinder.findUses(cont);
       updateCancelCont(tracker, cont, useFinder.getUsedVars(), rcType,
                        cancelCandidates, consumedAfter);
     }
@@ -307,7 +307,7 @@ public class RCPlacer {
         assert(stmt.type() == StatementType.CONDITIONAL);
         Conditional cond = stmt.conditional();
         useFinder.reset();
-        TreeWalk.walkSyncChildren(logger, fn, cond, useFinder);
+        useFinder.findUses(cond);
         updateCancelCont(tracker, cond, useFinder.getUsedVars(), rcType,
                      cancelCandidates, consumedAfter);
       }
@@ -522,7 +522,7 @@ public class RCPlacer {
     // pass the var
     UseFinder useFinder = new UseFinder(tracker, rcType, immDecrCandidates);
     useFinder.reset();
-    TreeWalk.walkSyncChildren(logger, fn, block, true, useFinder);
+    useFinder.findUses(block);
     immDecrCandidates.removeAll(useFinder.getUsedVars());
 
     for (Var immDecrVar: immDecrCandidates) {
@@ -647,7 +647,7 @@ public class RCPlacer {
         case CONDITIONAL:
           // Walk continuation to find usages
           subblockWalker.reset();
-          TreeWalk.walkSyncChildren(logger, fn, stmt.conditional(), subblockWalker);
+          subblockWalker.findUses(stmt.conditional());
           removeCandidates(subblockWalker.getUsedVars(), tracker, candidates);
           break;
         default:
@@ -703,7 +703,7 @@ public class RCPlacer {
 
       // Walk continuation to find usages
       subblockWalker.reset();
-      TreeWalk.walkSyncChildren(logger, fn, cont, subblockWalker);
+      subblockWalker.findUses(cont);
       removeCandidates(subblockWalker.getUsedVars(), tracker, candidates);
     }
   }
@@ -711,9 +711,10 @@ public class RCPlacer {
   /**
    * Find uses of refcounted variables in continuations.
    * Note that we only count root variables i.e. returned by getRefcountVar()
-   * in RCTracker
+   * in RCTracker.  Instructions in blocks are found through the def-use
+   * index of each block.
    */
-  private final class UseFinder extends TreeWalker {
+  private final class UseFinder {
     private final RCTracker tracker;
     private final RefCountType rcType;
     private final Set<Var> varCandidates;
@@ -724,26 +725,91 @@ public class RCPlacer {
      */
     private final ArrayList<Var> varAccum;
 
+    private final StackLite<Block> stack;
+
     private UseFinder(RCTracker tracker, RefCountType rcType,
             Set<Var> varCandidates) {
       this.tracker = tracker;
       this.rcType = rcType;
       this.varCandidates = varCandidates;
       this.varAccum = new ArrayList<Var>();
+      this.stack = new StackLite<Block>();
     }
 
     public void reset() {
       this.varAccum.clear();
     }
 
-    @Override
-    public void visit(Continuation cont) {
+    /**
+     * Find uses in continuation and any descendants that execute
+     * synchronously
+     */
+    public void findUses(Continuation cont) {
+      visit(cont);
+      findUsesStack();
+    }
+
+    /**
+     * Find uses in block and any descendants that execute synchronously
+     */
+    public void findUses(Block block) {
+      stack.push(block);
+      findUsesStack();
+    }
+
+    private void findUsesStack() {
+      while (!stack.isEmpty()) {
+        Block curr = stack.pop();
+        findUses(curr.defUse());
+        for (Continuation c: curr.allComplexStatements()) {
+          visit(c);
+        }
+      }
+    }
+
+    private void visit(Continuation cont) {
       findUsesNonRec(cont, tracker, rcType, varCandidates, varAccum);
+      if (!cont.isAsync()) {
+        stack.addAll(cont.getBlocks());
+      }
     }
 
-    @Override
-    public void visit(Instruction inst) {
-      findUses(inst, tracker, rcType, varCandidates, varAccum);
+    private void findUses(DefUseIndex defUse) {
+      if (rcType == RefCountType.READERS) {
+        Set<Var> read = defUse.readVars();
+        Set<Var> written = defUse.writtenVars();
+        if (varCandidates.size() <= read.size() + written.size()) {
+          for (Var v: varCandidates) {
+            if (defUse.isRead(v, functionMap)) {
+              varAccum.add(tracker.getRefCountVar(v));
+            }
+          }
+        } else {
+          for (Var v: read) {
+            updateUses(v, tracker, varCandidates, varAccum);
+          }
+          for (Var v: written) {
+            if (!read.contains(v) && varCandidates.contains(v) &&
+                defUse.isRead(v, functionMap)) {
+              varAccum.add(tracker.getRefCountVar(v));
+            }
+          }
+        }
+      } else {
+        assert (rcType == RefCountType.WRITERS);
+        Set<Var> written = defUse.writtenVars();
+        if (varCandidates.size() <= written.size()) {
+          for (Var v: varCandidates) {
+            if (defUse.isWritten(v)) {
+              varAccum.add(tracker.getRefCountVar(v));
+            }
+          }
+        } else {
+          for (Var v: written) {
+            updateUses(v, tracker, varCandidates, varAccum);
+          }
+        }
+      }
     }
 
     public List<Var> getUsedVars() {
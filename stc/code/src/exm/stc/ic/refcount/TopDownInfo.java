@@ -2,7 +2,7 @@ package exm.stc.ic.refcount;
 
 import exm.stc.common.lang.Var;
 import exm.stc.common.lang.Var.Alloc;
-import exm.stc.common.util.HierarchicalSet;
+import exm.stc.common.util.ScopedSet;
 import exm.stc.ic.aliases.AliasTracker;
 import exm.stc.ic.tree.ICContinuations.Continuation;
 import exm.stc.ic.tree.ICInstructions.Instruction;
@@ -11,13 +11,13 @@ import exm.stc.ic.tree.ICInstructions.Instruction;
  * State about variables, etc that gets propagated down from parents
  */
 class TopDownInfo {
-  final HierarchicalSet<Var> initAliasVars;
+  final ScopedSet<Var> initAliasVars;
   final AliasTracker aliases;
   public TopDownInfo() {
-    this(new HierarchicalSet<Var>(), new AliasTracker());
+    this(new ScopedSet<Var>(), new AliasTracker());
   }
 
-  private TopDownInfo(HierarchicalSet<Var> initAliasVars,
+  private TopDownInfo(ScopedSet<Var> initAliasVars,
                        AliasTracker aliases) {
     this.initAliasVars = initAliasVars;
     this.aliases = aliases;
@@ -35,7 +35,7 @@ class TopDownInfo {
     TopDownInfo child = makeChild();
     for (Var v : cont.constructDefinedVars()) {
       if (v.storage() == Alloc.ALIAS) {
-        initAliasVars.add(v);
+        child.initAliasVars.add(v);
       }
     }
     return child;
@@ -31,6 +31,7 @@ public class Conditionals {
 
   public static abstract class Conditional extends Continuation
       implements Statement {
+    private static final long serialVersionUID = 1L;
     @Override
     public StatementType type() {
       return StatementType.CONDITIONAL;
@@ -112,6 +113,7 @@ public class Conditionals {
   }
 
   public static class IfStatement extends Conditional {
+    private static final long serialVersionUID = 1L;
     private final Block thenBlock;
     private final Block elseBlock;
     private Arg condition;
@@ -252,6 +254,7 @@ public class Conditionals {
   }
 
   public static class SwitchStatement extends Conditional {
+    private static final long serialVersionUID = 1L;
     private final ArrayList<Integer> caseLabels;
     private final ArrayList<Block> caseBlocks;
     private final Block defaultBlock;
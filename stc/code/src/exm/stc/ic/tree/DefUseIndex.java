@@ -0,0 +1,207 @@
+/*
+ * Copyright 2013 University of Chicago and Argonne National Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package exm.stc.ic.tree;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.ListMultimap;
+
+import exm.stc.common.lang.Arg;
+import exm.stc.common.lang.FnID;
+import exm.stc.common.lang.Var;
+import exm.stc.common.util.StackLite;
+import exm.stc.ic.tree.ICContinuations.Continuation;
+import exm.stc.ic.tree.ICInstructions.FunctionCall;
+import exm.stc.ic.tree.ICInstructions.Instruction;
+import exm.stc.ic.tree.ICTree.Block;
+import exm.stc.ic.tree.ICTree.Function;
+import exm.stc.ic.tree.ICTree.Statement;
+import exm.stc.ic.tree.ICTree.StatementType;
+
+/**
+ * Index from variables to the instructions that read and write them, and
+ * from functions to the calls to them.
+ *
+ * The index for a block only covers the instructions directly in the
+ * block, not instructions in nested blocks or cleanup actions.  Blocks
+ * cache their index and drop it in Block.markModified(), so after a pass
+ * only the blocks it changed need to be reindexed.  The index for a
+ * function covers all of its blocks and is cached until the function's
+ * modification count changes.
+ *
+ * Reads are variables in instruction inputs.  Instructions may also read
+ * some of their outputs: these are found among the writers of the variable
+ * with Instruction.getReadOutputs().
+ */
+public class DefUseIndex {
+  private final ListMultimap<Var, Instruction> readers;
+  private final ListMultimap<Var, Instruction> writers;
+  private final ListMultimap<FnID, FunctionCall> calls;
+  private int instructionCount;
+
+  private DefUseIndex() {
+    this.readers = ArrayListMultimap.create();
+    this.writers = ArrayListMultimap.create();
+    this.calls = ArrayListMultimap.create();
+    this.instructionCount = 0;
+  }
+
+  /**
+   * Build index for instructions directly in block.  Normally the cached
+   * index from Block.defUse() should be used instead.
+   */
+  public static DefUseIndex build(Block block) {
+    DefUseIndex index = new DefUseIndex();
+    for (Statement stmt: block.getStatements()) {
+      if (stmt.type() == StatementType.INSTRUCTION) {
+        index.add(stmt.instruction());
+      }
+    }
+    return index;
+  }
+
+  /**
+   * Build index for all blocks in function from the blocks' indices
+   */
+  public static DefUseIndex build(Function function) {
+    DefUseIndex index = new DefUseIndex();
+    StackLite<Block> stack = new StackLite<Block>();
+    stack.push(function.mainBlock());
+    while (!stack.isEmpty()) {
+      Block block = stack.pop();
+      index.addAll(block.defUse());
+      for (Continuation c: block.allComplexStatements()) {
+        stack.addAll(c.getBlocks());
+      }
+    }
+    return index;
+  }
+
+  private void add(Instruction inst) {
+    for (Arg in: inst.getInputs()) {
+      if (in.isVar()) {
+        readers.put(in.getVar(), inst);
+      }
+    }
+    for (Var out: inst.getOutputs()) {
+      writers.put(out, inst);
+    }
+    if (inst instanceof FunctionCall) {
+      FunctionCall call = (FunctionCall)inst;
+      calls.put(call.functionID(), call);
+    }
+    instructionCount++;
+  }
+
+  private void addAll(DefUseIndex other) {
+    readers.putAll(other.readers);
+    writers.putAll(other.writers);
+    calls.putAll(other.calls);
+    instructionCount += other.instructionCount;
+  }
+
+  /**
+   * @return instructions with var as an input, in order
+   */
+  public List<Instruction> readers(Var var) {
+    return Collections.unmodifiableList(readers.get(var));
+  }
+
+  /**
+   * @return instructions with var as an output, in order
+   */
+  public List<Instruction> writers(Var var) {
+    return Collections.unmodifiableList(writers.get(var));
+  }
+
+  /**
+   * @return all variables that are inputs to an instruction
+   */
+  public Set<Var> readVars() {
+    return Collections.unmodifiableSet(readers.keySet());
+  }
+
+  /**
+   * @return all variables that are outputs of an instruction
+   */
+  public Set<Var> writtenVars() {
+    return Collections.unmodifiableSet(writers.keySet());
+  }
+
+  /**
+   * @return calls to function, in order
+   */
+  public List<FunctionCall> calls(FnID id) {
+    return Collections.unmodifiableList(calls.get(id));
+  }
+
+  /**
+   * @return all called functions
+   */
+  public Set<FnID> calledFunctions() {
+    return Collections.unmodifiableSet(calls.keySet());
+  }
+
+  /**
+   * @return number of instructions indexed
+   */
+  public int instructionCount() {
+    return instructionCount;
+  }
+
+  /**
+   * Check if var is read by instructions in index
+   * @param fns map of functions for getReadOutputs(), can be null
+   */
+  public boolean isRead(Var var, Map<FnID, Function> fns) {
+    if (readers.containsKey(var)) {
+      return true;
+    }
+    for (Instruction writer: writers.get(var)) {
+      if (writer.getReadOutputs(fns).contains(var)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Check if var is written by instructions in index
+   */
+  public boolean isWritten(Var var) {
+    return writers.containsKey(var);
+  }
+
+  /**
+   * @return true if index has same contents as other, for validation
+   */
+  public boolean sameAs(DefUseIndex other) {
+    return instructionCount == other.instructionCount &&
+        readers.equals(other.readers) &&
+        writers.equals(other.writers) &&
+        calls.equals(other.calls);
+  }
+
+  @Override
+  public String toString() {
+    return "readers: " + readers + "\nwriters: " + writers +
+           "\ncalls: " + calls;
+  }
+}
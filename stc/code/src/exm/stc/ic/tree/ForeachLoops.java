@@ -55,6 +55,7 @@ public class ForeachLoops {
   public static final String indent = ICUtil.indent;
 
   public abstract static class AbstractForeachLoop extends AbstractLoop {
+    private static final long serialVersionUID = 1L;
     protected final String loopName;
     protected Var loopVar;
     protected Var loopCounterVar;
@@ -62,9 +63,12 @@ public class ForeachLoops {
     protected boolean unrolled;
     protected int splitDegree;
     protected int leafDegree;
+    /** True if split and leaf degree weren't fixed by user */
+    protected final boolean autoDegree;
 
     /** Increments that should happen before loop spawn.  Each
      * increment is multiplied by the number of loop iterations */
+    @SuppressWarnings("serial")
     protected final List<RefCount> startIncrements;
 
     /**
@@ -72,15 +76,17 @@ public class ForeachLoops {
      * Each increment is a constant amount independent of iterations.
      * This is useful because we can piggyback ops on the normal start increments
      */
+    @SuppressWarnings("serial")
     protected final ListMultimap<Var, RefCount> constStartIncrements;
 
 
     /** Decrements that should happen at end of loop body (once per iteration) */
+    @SuppressWarnings("serial")
     protected final List<RefCount> endDecrements;
 
     public AbstractForeachLoop(Block loopBody, String loopName, Var loopVar,
-        Var loopCounterVar, int splitDegree, int leafDegree, int desiredUnroll,
-        boolean unrolled,
+        Var loopCounterVar, int splitDegree, int leafDegree,
+        boolean autoDegree, int desiredUnroll, boolean unrolled,
         List<PassedVar> passedVars, List<Var> keepOpenVars,
         List<RefCount> startIncrements,
         ListMultimap<Var, RefCount> constStartIncrements,
@@ -91,6 +97,7 @@ public class ForeachLoops {
       this.loopCounterVar = loopCounterVar;
       this.splitDegree = splitDegree;
       this.leafDegree = leafDegree;
+      this.autoDegree = autoDegree;
       this.desiredUnroll = desiredUnroll;
       this.unrolled = unrolled;
       this.startIncrements = new ArrayList<RefCount>(startIncrements);
@@ -107,10 +114,12 @@ public class ForeachLoops {
     }
 
     public void addStartIncrement(RefCount incr) {
+      markModified();
       startIncrements.add(incr);
     }
 
     public void addConstantStartIncrement(Var v, RefCountType t, Arg amount) {
+      markModified();
       // Check to see if already present
       List<RefCount> prev = constStartIncrements.get(v);
       ListIterator<RefCount> it = prev.listIterator();
@@ -133,6 +142,7 @@ public class ForeachLoops {
     }
 
     public void addEndDecrement(RefCount decr) {
+      markModified();
       endDecrements.add(decr);
     }
 
@@ -193,6 +203,39 @@ public class ForeachLoops {
       return -1;
     }
 
+    public String getLoopName() {
+      return loopName;
+    }
+
+    public int getSplitDegree() {
+      return splitDegree;
+    }
+
+    public int getLeafDegree() {
+      return leafDegree;
+    }
+
+    /**
+     * @return true if the optimizer may change split and leaf degree
+     */
+    public boolean isAutoDegree() {
+      return autoDegree;
+    }
+
+    /**
+     * Change split and leaf degree.  Only valid for loops that are
+     * already split: changing whether loop spawns tasks would change
+     * the execution context of the loop body.
+     * @param splitDegree
+     * @param leafDegree
+     */
+    public void setDegrees(int splitDegree, int leafDegree) {
+      assert(this.splitDegree > 0 && splitDegree > 0 && leafDegree > 0);
+      markModified();
+      this.splitDegree = splitDegree;
+      this.leafDegree = leafDegree;
+    }
+
 
     protected Collection<Var> abstractForeachRequiredVars(boolean forDeadCodeElim) {
       Collection<Var> res = new ArrayList<Var>();
@@ -216,6 +259,7 @@ public class ForeachLoops {
   }
 
   public static class ForeachLoop extends AbstractForeachLoop {
+    private static final long serialVersionUID = 1L;
     private Var container;
     private boolean containerClosed;
     public Var getArrayVar() {
@@ -225,13 +269,13 @@ public class ForeachLoops {
     private ForeachLoop(Block block,
         String loopName, Var container, Var loopVar,
         Var loopCounterVar, int splitDegree, int leafDegree,
-        boolean arrayClosed,
+        boolean autoDegree, boolean arrayClosed,
         List<PassedVar> passedVars, List<Var> keepOpenVars,
         List<RefCount> startIncrements,
         ListMultimap<Var, RefCount> constStartIncrements,
         List<RefCount> endDecrements, boolean emptyBody) {
       super(block, loopName, loopVar, loopCounterVar, splitDegree, leafDegree,
-          -1, false, passedVars, keepOpenVars, startIncrements, constStartIncrements,
+          autoDegree, -1, false, passedVars, keepOpenVars, startIncrements, constStartIncrements,
           endDecrements, emptyBody);
       this.container = container;
       this.containerClosed = arrayClosed;
@@ -239,13 +283,13 @@ public class ForeachLoops {
 
     public ForeachLoop(String loopName, Var container,
         Var loopVar, Var loopCounterVar, int splitDegree, int leafDegree,
-        boolean containerClosed, List<PassedVar> passedVars,
+        boolean autoDegree, boolean containerClosed, List<PassedVar> passedVars,
         List<Var> keepOpenVars, List<RefCount> startIncrements,
         ListMultimap<Var, RefCount> constStartIncrements,
         List<RefCount> endDecrements) {
       this(new Block(BlockType.FOREACH_BODY, null), loopName,
           container, loopVar, loopCounterVar,
-          splitDegree, leafDegree, containerClosed,
+          splitDegree, leafDegree, autoDegree, containerClosed,
           passedVars, keepOpenVars, startIncrements,
           constStartIncrements, endDecrements, true);
     }
@@ -254,7 +298,7 @@ public class ForeachLoops {
     public ForeachLoop clone() {
       return new ForeachLoop(this.loopBody.clone(), loopName,
         container, loopVar, loopCounterVar, splitDegree, leafDegree,
-        containerClosed, passedVars, keepOpenVars, startIncrements,
+        autoDegree, containerClosed, passedVars, keepOpenVars, startIncrements,
         constStartIncrements, endDecrements, false);
     }
 
@@ -412,6 +456,7 @@ public class ForeachLoops {
     }
 
     public void fuseInto(FnID function, ForeachLoop o, boolean insertAtTop) {
+      markModified();
       Map<Var, Arg> renames = new HashMap<Var, Arg>();
       renames.put(o.loopVar, Arg.newVar(this.loopVar));
       // Handle optional loop counter var
@@ -441,6 +486,7 @@ public class ForeachLoops {
      * @param var
      */
     public void switchToLocalForeach(Var localContainer) {
+      markModified();
       assert(localContainer.type().assignableTo(
           Types.retrievedType(this.container, false)));
       this.container = localContainer;
@@ -450,6 +496,7 @@ public class ForeachLoops {
   }
 
   public static class RangeLoop extends AbstractForeachLoop {
+    private static final long serialVersionUID = 1L;
     // arguments can be either value variable or integer literal
     private Arg start;
     private Arg end;
@@ -459,13 +506,13 @@ public class ForeachLoops {
         Arg start, Arg end, Arg increment,
         List<PassedVar> passedVars, List<Var> keepOpenVars,
         int desiredUnroll, boolean unrolled, int splitDegree, int leafDegree,
-        List<RefCount> startIncrements,
+        boolean autoDegree, List<RefCount> startIncrements,
         ListMultimap<Var, RefCount> constStartIncrements,
         List<RefCount> endDecrements) {
       this(new Block(BlockType.RANGELOOP_BODY, null), loopName,
           loopVar, countVar,
           start, end, increment, passedVars, keepOpenVars,
-          desiredUnroll, unrolled, splitDegree, leafDegree,
+          desiredUnroll, unrolled, splitDegree, leafDegree, autoDegree,
           startIncrements, constStartIncrements, endDecrements,
           true);
     }
@@ -475,10 +522,11 @@ public class ForeachLoops {
         Arg start, Arg end, Arg increment,
         List<PassedVar> passedVars, List<Var> keepOpenVars,
         int desiredUnroll, boolean unrolled, int splitDegree, int leafDegree,
-        List<RefCount> startIncrements, ListMultimap<Var, RefCount> constStartIncrements,
+        boolean autoDegree, List<RefCount> startIncrements,
+        ListMultimap<Var, RefCount> constStartIncrements,
         List<RefCount> endDecrements, boolean emptyBody) {
       super(block, loopName, loopVar, loopCounterVar, splitDegree, leafDegree,
-          desiredUnroll, unrolled,
+          autoDegree, desiredUnroll, unrolled,
           passedVars, keepOpenVars, startIncrements,
           constStartIncrements, endDecrements, emptyBody);
 
@@ -512,8 +560,8 @@ public class ForeachLoops {
       return new RangeLoop(newLoopBody, loopName, loopVar, loopCounterVar,
           start, end, increment,
           passedVars, keepOpenVars, desiredUnroll, unrolled,
-          splitDegree, leafDegree, startIncrements, constStartIncrements,
-          endDecrements, !cloneLoopBody);
+          splitDegree, leafDegree, autoDegree, startIncrements,
+          constStartIncrements, endDecrements, !cloneLoopBody);
     }
 
     @Override
@@ -700,6 +748,7 @@ public class ForeachLoops {
 
     @Override
     public boolean constantReplace(Map<Var, Arg> knownConstants) {
+      markModified();
       boolean anyChanged = false;
       Arg oldVals[] = new Arg[] {start, end, increment };
       Arg newVals[] = new Arg[3];
@@ -974,6 +1023,7 @@ public class ForeachLoops {
      * Fuse the other loop into this loop
      */
     public void fuseInto(FnID function, RangeLoop o, boolean insertAtTop) {
+      markModified();
       Map<Var, Arg> renames = new HashMap<Var, Arg>();
       // Update loop var in other loop
       renames.put(o.loopVar, Arg.newVar(this.loopVar));
@@ -15,6 +15,7 @@
  */
 package exm.stc.ic.tree;
 
+import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
@@ -73,7 +74,9 @@ import exm.stc.ic.tree.ICTree.StatementType;
 public class ICContinuations {
   public static final String indent = ICUtil.indent;
 
-  public static abstract class Continuation {
+  public static abstract class Continuation implements Serializable {
+    private static final long serialVersionUID = 1L;
+
     private Block parent;
 
     protected Continuation() {
@@ -86,6 +89,15 @@ public class ICContinuations {
       return this.parent;
     }
 
+    /**
+     * Record that continuation was modified in place
+     */
+    protected void markModified() {
+      if (parent != null) {
+        parent.markModified();
+      }
+    }
+
 
     public void setParent(Block parent) {
       assert(parent != null);
@@ -128,6 +140,7 @@ public class ICContinuations {
      */
     public void renameVars(FnID function, Map<Var, Arg> renames,
                            RenameMode mode, boolean recursive) {
+      markModified();
       if (renames.isEmpty())
         return;
       if (recursive) {
@@ -366,6 +379,7 @@ public class ICContinuations {
      */
     private boolean runLast = false;
     public void setRunLast(boolean val) {
+      markModified();
       runLast = val;
     }
     public boolean runLast() {
@@ -489,7 +503,10 @@ public class ICContinuations {
   }
 
   public static abstract class AsyncContinuation extends Continuation {
+    private static final long serialVersionUID = 1L;
+    @SuppressWarnings("serial")
     protected final List<PassedVar> passedVars;
+    @SuppressWarnings("serial")
     protected final List<Var> keepOpenVars;
 
 
@@ -511,12 +528,14 @@ public class ICContinuations {
 
     @Override
     public void setPassedVars(Collection<PassedVar> passedVars) {
+      markModified();
       this.passedVars.clear();
       this.passedVars.addAll(passedVars);
     }
 
     @Override
     public void setKeepOpenVars(Collection<Var> keepOpenVars) {
+      markModified();
       this.keepOpenVars.clear();
       this.keepOpenVars.addAll(keepOpenVars);
     }
@@ -547,6 +566,7 @@ public class ICContinuations {
 
     @Override
     public final void removeVars(Set<Var> removeVars) {
+      markModified();
       removeVars_(removeVars);
       removeVarsInBlocks(removeVars);
     }
@@ -557,6 +577,7 @@ public class ICContinuations {
   }
 
   public static abstract class AbstractLoop extends AsyncContinuation {
+    private static final long serialVersionUID = 1L;
     protected Block loopBody;
 
     public AbstractLoop(Block loopBody, List<PassedVar> passedVars,
@@ -618,11 +639,15 @@ public class ICContinuations {
   }
 
   public static class Loop extends AbstractLoop {
+    private static final long serialVersionUID = 1L;
     private final String loopName;
     private final Var condVar;
+    @SuppressWarnings("serial")
     private final List<Var> loopVars;
     // Whether loop var is defined here (instead of defined outside loop)
+    @SuppressWarnings("serial")
     private final List<Boolean> definedHere;
+    @SuppressWarnings("serial")
     private final List<Arg> initVals;
 
     /*
@@ -633,9 +658,11 @@ public class ICContinuations {
     private LoopContinue loopContinue;
 
     /** Which vars must be closed before executing loop body */
+    @SuppressWarnings("serial")
     private final List<Boolean> blockingVars;
 
     /** Which initial vals are closed */
+    @SuppressWarnings("serial")
     private final List<Boolean> closedInitVals;
 
     public Loop(String loopName, List<Var> loopVars,
@@ -766,6 +793,7 @@ public class ICContinuations {
     }
 
     public void setBlockingInput(Var var) {
+      markModified();
       for (int i = 0; i < loopVars.size(); i++) {
         if (loopVars.get(i).equals(var)) {
           blockingVars.set(i, true);
@@ -778,10 +806,12 @@ public class ICContinuations {
     }
 
     public void setLoopBreak(LoopBreak loopBreak) {
+      markModified();
       this.loopBreak = loopBreak;
     }
 
     public void setLoopContinue(LoopContinue loopContinue) {
+      markModified();
       this.loopContinue = loopContinue;
     }
 
@@ -886,6 +916,7 @@ public class ICContinuations {
 
     @Override
     public void removeRedef(Var oldV, Var newV) {
+      markModified();
       for (int i = 0; i < loopVars.size(); i++) {
         Var loopVar = loopVars.get(i);
         if (loopVar.equals(oldV)) {
@@ -1078,6 +1109,7 @@ public class ICContinuations {
     }
 
     public void setInitClosed(Arg initVal, boolean recursive) {
+      markModified();
       // TODO: ignores recursive
       int index = initVals.indexOf(initVal);
       assert(index >= 0) : initVal;
@@ -1145,6 +1177,7 @@ public class ICContinuations {
 
     public void replaceLoopVar(Var oldLoopVar, Var newLoopVar, Arg initVal,
                    Arg updateVal, boolean blocking) {
+      markModified();
       int index = loopVars.indexOf(oldLoopVar);
       assert(index >= 0) : oldLoopVar + " " + loopVars;
       assert(initVal.type().assignableTo(newLoopVar.type()));
@@ -1177,6 +1210,7 @@ public class ICContinuations {
 
 
   public static class NestedBlock extends Continuation {
+    private static final long serialVersionUID = 1L;
     private final Block block;
 
     public NestedBlock() {
@@ -1302,9 +1336,11 @@ public class ICContinuations {
    * and only runs the contents once all of those variables are closed
    */
   public static class WaitStatement extends AsyncContinuation {
+    private static final long serialVersionUID = 1L;
     /** Label name to use in final generated code */
     private final String procName;
     private final Block block;
+    @SuppressWarnings("serial")
     private final List<WaitVar> waitVars;
 
     /* True if this wait was compiler-generated so can be removed if needed
@@ -1360,6 +1396,10 @@ public class ICContinuations {
       return block;
     }
 
+    public String getProcName() {
+      return procName;
+    }
+
     @Override
     public void generate(Logger logger, CompilerBackend gen, GenInfo info) {
       gen.startWaitStatement(procName, WaitVar.asVarList(waitVars),
@@ -1422,11 +1462,13 @@ public class ICContinuations {
     }
 
     public void setTarget(ExecTarget target) {
+      markModified();
       assert(target.isAsync());
       this.target = target;
     }
 
     public void setMode(WaitMode mode) {
+      markModified();
       this.mode = mode;
     }
 
@@ -1507,6 +1549,7 @@ public class ICContinuations {
     }
 
     public void addWaitVars(Collection<WaitVar> vars) {
+      markModified();
       this.waitVars.addAll(vars);
       WaitVar.removeDuplicates(this.waitVars);
     }
@@ -1559,6 +1602,7 @@ public class ICContinuations {
 
     public void removeWaitVars(List<WaitVar> toRemove,
         boolean allRecursive, boolean retainExplicit) {
+      markModified();
       ListIterator<WaitVar> it = waitVars.listIterator();
       while (it.hasNext()) {
         WaitVar wv = it.next();
@@ -1644,6 +1688,7 @@ public class ICContinuations {
    * which runs the provided block once execution is finished.
    */
   public static class AsyncExec extends AsyncContinuation {
+    private static final long serialVersionUID = 1L;
     /** Label name to use in final generated code */
     private final String procName;
     private final Block block;
@@ -1662,16 +1707,19 @@ public class ICContinuations {
      * Output variables assigned by task, generally
      * local values
      */
+    @SuppressWarnings("serial")
     private final List<Var> taskOutputs;
 
     /**
      * Arguments that describe task
      */
+    @SuppressWarnings("serial")
     private final List<Arg> taskArgs;
 
     /**
      * Key-value properties to pass to executor
      */
+    @SuppressWarnings("serial")
     private final Map<String, Arg> taskProps;
 
     /**
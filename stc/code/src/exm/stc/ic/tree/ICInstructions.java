@@ -15,6 +15,9 @@
  */
 package exm.stc.ic.tree;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
@@ -52,6 +55,7 @@ import exm.stc.common.lang.Var.Alloc;
 import exm.stc.common.lang.Var.VarCount;
 import exm.stc.common.util.Pair;
 import exm.stc.common.util.TernaryLogic.Ternary;
+import exm.stc.ic.ICPackage;
 import exm.stc.ic.ICUtil;
 import exm.stc.ic.aliases.Alias;
 import exm.stc.ic.componentaliases.Component;
@@ -81,7 +85,9 @@ import exm.stc.ic.tree.ICTree.StatementType;
  */
 public class ICInstructions {
 
-  public static abstract class Instruction implements Statement {
+  public static abstract class Instruction implements Statement, Serializable {
+    private static final long serialVersionUID = 1L;
+
     public final Opcode op;
 
     public Instruction(Opcode op) {
@@ -110,9 +116,22 @@ public class ICInstructions {
       return op.toString().toLowerCase();
     }
 
+    /** Block containing instruction, used to record modifications */
+    private Block parent = null;
+
     @Override
     public void setParent(Block parent) {
-      // Do nothing
+      this.parent = parent;
+    }
+
+    /**
+     * Record that instruction was modified.  Should be called by methods
+     * that modify the instruction in place.
+     */
+    protected void markModified() {
+      if (parent != null) {
+        parent.markModified();
+      }
     }
 
     public void removeVars(Set<Var> removeVars) {
@@ -683,6 +702,7 @@ public class ICInstructions {
   }
 
   public static class Comment extends Instruction {
+    private static final long serialVersionUID = 1L;
     private final String text;
     public Comment(String text) {
       super(Opcode.COMMENT);
@@ -762,14 +782,24 @@ public class ICInstructions {
   public static final long MAX_ARRAY_ELEM_CVS = 128L;
 
   public static abstract class CommonFunctionCall extends Instruction {
+    private static final long serialVersionUID = 1L;
     protected final FnID id;
+    @SuppressWarnings("serial")
     protected final List<Var> outputs;
+    @SuppressWarnings("serial")
     protected final List<Arg> inputs;
     protected final TaskProps props;
-    protected final ForeignFunctions foreignFuncs; // Metadata about foreign funcs
+    // Metadata about foreign funcs, rebound when read from package
+    protected transient ForeignFunctions foreignFuncs;
 
     private final boolean hasUpdateableInputs;
 
+    private void readObject(ObjectInputStream in)
+                      throws IOException, ClassNotFoundException {
+      in.defaultReadObject();
+      this.foreignFuncs = ICPackage.foreignFunctions(in);
+    }
+
     public CommonFunctionCall(Opcode op, FnID id,
         List<Var> outputs, List<Arg> inputs,
         TaskProps props, ForeignFunctions foreignFunctions) {
@@ -1149,6 +1179,7 @@ public class ICInstructions {
     @Override
     public void renameVars(FnID function, Map<Var, Arg> renames,
                            RenameMode mode) {
+      markModified();
       if (mode == RenameMode.REPLACE_VAR || mode == RenameMode.REFERENCE) {
         ICUtil.replaceVarsInList(renames, outputs, false);
       }
@@ -1217,6 +1248,8 @@ public class ICInstructions {
   }
 
   public static class FunctionCall extends CommonFunctionCall {
+    private static final long serialVersionUID = 1L;
+    @SuppressWarnings("serial")
     private final List<Boolean> closedInputs; // which inputs are closed
 
     private FunctionCall(Opcode op, FnID id,
@@ -1573,9 +1606,46 @@ public class ICInstructions {
           new ArrayList<Var>(outputs), new ArrayList<Arg>(inputs),
           props.clone(), foreignFuncs);
     }
+
+    /**
+     * @return copy of this call that calls a different function
+     */
+    public FunctionCall renamed(FnID newID) {
+      FunctionCall call = new FunctionCall(op, newID,
+          new ArrayList<Var>(outputs), new ArrayList<Arg>(inputs),
+          props.clone(), foreignFuncs);
+      for (int i = 0; i < closedInputs.size(); i++) {
+        call.closedInputs.set(i, closedInputs.get(i));
+      }
+      return call;
+    }
+
+    /**
+     * @param newID
+     * @param removed positions of inputs to omit, in ascending order
+     * @return copy of this call that calls a different function with
+     *         some inputs omitted
+     */
+    public FunctionCall withoutInputs(FnID newID, List<Integer> removed) {
+      List<Arg> newInputs = new ArrayList<Arg>();
+      List<Boolean> newClosed = new ArrayList<Boolean>();
+      for (int i = 0; i < inputs.size(); i++) {
+        if (!removed.contains(i)) {
+          newInputs.add(inputs.get(i));
+          newClosed.add(closedInputs.get(i));
+        }
+      }
+      FunctionCall call = new FunctionCall(op, newID,
+          new ArrayList<Var>(outputs), newInputs, props.clone(), foreignFuncs);
+      for (int i = 0; i < newClosed.size(); i++) {
+        call.closedInputs.set(i, newClosed.get(i));
+      }
+      return call;
+    }
   }
 
   public static class LocalFunctionCall extends CommonFunctionCall {
+    private static final long serialVersionUID = 1L;
 
     public LocalFunctionCall(FnID id,
         List<Arg> inputs, List<Var> outputs, ForeignFunctions foreignFuncs) {
@@ -1658,6 +1728,7 @@ public class ICInstructions {
   }
 
   public static class ExecExternal extends Instruction {
+    private static final long serialVersionUID = 1L;
     private Arg cmd;
     private final ArrayList<Arg> inFiles;
     private final ArrayList<Var> outFiles;
@@ -1682,6 +1753,7 @@ public class ICInstructions {
     @Override
     public void renameVars(FnID function, Map<Var, Arg> renames,
                            RenameMode mode) {
+      markModified();
       cmd = ICUtil.replaceArg(renames, cmd, false);
       ICUtil.replaceArgsInList(renames, args);
       ICUtil.replaceArgsInList(renames, inFiles);
@@ -1741,6 +1813,13 @@ public class ICInstructions {
       return hasSideEffects;
     }
 
+    /**
+     * @return true if same command and arguments always give same outputs
+     */
+    public boolean isDeterministic() {
+      return deterministic;
+    }
+
     @Override
     public MakeImmRequest canMakeImmediate(Set<Var> closedVars,
         Set<ArgCV> closedLocations, Set<Var> valueAvail, boolean waitForClose) {
@@ -1815,6 +1894,7 @@ public class ICInstructions {
   }
 
   public static class LoopContinue extends Instruction {
+    private static final long serialVersionUID = 1L;
     private final ArrayList<Arg> newLoopVars;
     private final ArrayList<Var> loopUsedVars;
     private final ArrayList<Boolean> blockingVars;
@@ -1848,17 +1928,20 @@ public class ICInstructions {
     }
 
     public void setNewLoopVar(int index, Arg newVal) {
+      markModified();
       this.newLoopVars.set(index, newVal);
     }
 
 
     public void setBlocking(int i, boolean b) {
+      markModified();
       this.blockingVars.set(i, b);
     }
 
     @Override
     public void renameVars(FnID function, Map<Var, Arg> renames,
                            RenameMode mode) {
+      markModified();
       ICUtil.replaceArgsInList(renames, newLoopVars, false);
       if (mode == RenameMode.REFERENCE || mode == RenameMode.REPLACE_VAR) {
         ICUtil.replaceVarsInList(renames, loopUsedVars, true);
@@ -1868,6 +1951,7 @@ public class ICInstructions {
     @SuppressWarnings("unlikely-arg-type")
     @Override
     public void removeVars(Set<Var> removeVars) {
+      markModified();
       assert(!removeVars.contains(newLoopVars.get(0)));
       loopUsedVars.removeAll(removeVars);
       newLoopVars.removeAll(removeVars);
@@ -2013,6 +2097,7 @@ public class ICInstructions {
 
 
     public void setLoopVarClosed(int i, boolean value) {
+      markModified();
       closedVars.set(i, value);
     }
 
@@ -2033,6 +2118,7 @@ public class ICInstructions {
     }
 
     public void setLoopUsedVars(Collection<Var> variables) {
+      markModified();
       loopUsedVars.clear();
       loopUsedVars.addAll(variables);
     }
@@ -2052,6 +2138,7 @@ public class ICInstructions {
   }
 
   public static class LoopBreak extends Instruction {
+    private static final long serialVersionUID = 1L;
     /**
      * Variables where refcount should be decremented upon loop termination
      */
@@ -2083,11 +2170,13 @@ public class ICInstructions {
     }
 
     public void setLoopUsedVars(Collection<PassedVar> passedVars) {
+      markModified();
       this.loopUsedVars.clear();
       this.loopUsedVars.addAll(passedVars);
     }
 
     public void setKeepOpenVars(Collection<Var> keepOpen) {
+      markModified();
       this.keepOpenVars.clear();
       this.keepOpenVars.addAll(keepOpen);
     }
@@ -2192,9 +2281,11 @@ public class ICInstructions {
    * Constructors are private, use factory methods to create.
    */
   public static class Builtin extends Instruction {
+    private static final long serialVersionUID = 1L;
     public final BuiltinOpcode subop;
 
     private Var output; // null if no output
+    @SuppressWarnings("serial")
     private List<Arg> inputs;
     private final TaskProps props; // only defined for async
 
@@ -2244,6 +2335,7 @@ public class ICInstructions {
     @Override
     public void renameVars(FnID function, Map<Var, Arg> renames,
                            RenameMode mode) {
+      markModified();
       if (mode == RenameMode.REFERENCE || mode == RenameMode.REPLACE_VAR) {
         if (output != null && renames.containsKey(this.output)) {
           this.output = renames.get(this.output).getVar();
@@ -15,7 +15,10 @@
  */
 package exm.stc.ic.tree;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.io.PrintStream;
+import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
@@ -30,6 +33,7 @@ import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
 import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.log4j.Logger;
 
@@ -37,7 +41,10 @@ import com.google.common.collect.ArrayListMultimap;
 import com.google.common.collect.Iterables;
 
 import exm.stc.common.CompilerBackend;
+import exm.stc.common.CompilerBackend.Assignment;
 import exm.stc.common.CompilerBackend.CodeGenOptions;
+import exm.stc.common.CompilerBackend.DirRefCount;
+import exm.stc.common.CompilerBackend.Retrieval;
 import exm.stc.common.CompilerBackend.VarDecl;
 import exm.stc.common.Logging;
 import exm.stc.common.exceptions.STCRuntimeError;
@@ -69,6 +76,7 @@ import exm.stc.ic.ICUtil;
 import exm.stc.ic.tree.Conditionals.Conditional;
 import exm.stc.ic.tree.ICContinuations.Continuation;
 import exm.stc.ic.tree.ICInstructions.Instruction;
+import exm.stc.ic.tree.TurbineOp.RefCountOp;
 
 /**
  * This has the definitions for the top-level constructs in the intermediate
@@ -92,6 +100,17 @@ import exm.stc.ic.tree.ICInstructions.Instruction;
  */
 public class ICTree {
 
+  /**
+   * Source of modification stamps for IR objects.  Stamps are unique and
+   * increasing, so the latest stamp of a group of objects changes whenever
+   * any of them is modified.
+   */
+  private static final AtomicLong modStamps = new AtomicLong(0);
+
+  private static long nextModStamp() {
+    return modStamps.incrementAndGet();
+  }
+
   public static final String indent = ICUtil.indent;
 
   public static class Program {
@@ -109,6 +128,29 @@ public class ICTree {
     private final ArrayList<BuiltinFunction> builtinFuns =
                                             new ArrayList<BuiltinFunction>();
 
+    /**
+     * Already-optimized functions linked in from precompiled packages.
+     * These can be looked up by ID but are not optimized again.
+     */
+    private final ArrayList<Function> precompiled = new ArrayList<Function>();
+
+    /**
+     * Copies of functions from before reference counting was added, which
+     * can be inlined into callers.  For precompiled functions these are
+     * loaded from the package.  For program functions they are only
+     * saved if requested with saveInlineBodies().
+     */
+    private final Map<FnID, Function> inlineBodies =
+                                        new HashMap<FnID, Function>();
+
+    private boolean saveInlineBodies = false;
+
+    /**
+     * Functions referenced from outside the program, e.g. by precompiled
+     * functions.  These must be kept with the same ID and signature.
+     */
+    private final Set<FnID> externalRefs = new HashSet<FnID>();
+
     private final Set<RequiredPackage> required = new HashSet<RequiredPackage>();
 
     private final List<StructType> structTypes = new ArrayList<StructType>();
@@ -120,6 +162,13 @@ public class ICTree {
      */
     private boolean checkpointRequired = false;
 
+    /**
+     * Stamp of last modification to program-wide declarations or the list
+     * of functions.  Modifications to code in functions are tracked by
+     * the functions.
+     */
+    private long modCount = nextModStamp();
+
     public Program(ForeignFunctions foreignFunctions) {
       this.foreignFunctions = foreignFunctions;
     }
@@ -131,6 +180,9 @@ public class ICTree {
       for (Function f: functions) {
         blockVectors.put(f.id(), f.getBlockingInputVector());
       }
+      for (Function f: precompiled) {
+        blockVectors.put(f.id(), f.getBlockingInputVector());
+      }
       if (logger.isTraceEnabled())
         logger.trace("blocking inputs: " + blockVectors);
 
@@ -181,30 +233,59 @@ public class ICTree {
       for (Function f: functions) {
         f.generate(logger, gen, info);
       }
+      for (Function f: precompiled) {
+        f.generate(logger, gen, info);
+      }
       logger.debug("Done generating functions");
 
       gen.finish();
     }
 
+    /**
+     * @return stamp that changes whenever declarations or the list of
+     *         functions are modified
+     */
+    public long modCount() {
+      return Math.max(modCount,
+              Math.max(constants.modCount(), globalVars.modCount()));
+    }
+
+    private void markModified() {
+      modCount = nextModStamp();
+    }
+
     public void addRequiredPackage(RequiredPackage pkg) {
       required.add(pkg);
+      markModified();
     }
 
     public void addStructType(StructType newType) {
       structTypes.add(newType);
+      markModified();
     }
 
     public void addWorkType(WorkContext workType) {
       workTypes.add(workType);
+      markModified();
+    }
+
+    public List<StructType> structTypes() {
+      return Collections.unmodifiableList(structTypes);
+    }
+
+    public List<WorkContext> workTypes() {
+      return Collections.unmodifiableList(workTypes);
     }
 
     public void addBuiltin(BuiltinFunction fn) {
       this.builtinFuns.add(fn);
+      markModified();
     }
 
     public void addFunction(Function fn) {
       this.functions.add(fn);
       this.functionsByID.put(fn.id(), fn);
+      markModified();
     }
 
     public void addFunctions(Collection<Function> c) {
@@ -217,6 +298,118 @@ public class ICTree {
       return Collections.unmodifiableList(this.functions);
     }
 
+    /**
+     * Add a precompiled function.  It will be visible to lookups and
+     * generated along with the rest of the program, but is not included
+     * in functions() so won't be modified by the optimizer.
+     */
+    public void addPrecompiledFunction(Function fn) {
+      assert(!functionsByID.containsKey(fn.id())) : fn.id();
+      this.precompiled.add(fn);
+      this.functionsByID.put(fn.id(), fn);
+      markModified();
+    }
+
+    public List<Function> precompiledFunctions() {
+      return Collections.unmodifiableList(this.precompiled);
+    }
+
+    /**
+     * Remove a function or precompiled function from the program
+     * @return the removed function, or null if not present
+     */
+    public Function removeFunction(FnID id) {
+      Function fn = functionsByID.remove(id);
+      if (fn != null) {
+        functions.remove(fn);
+        precompiled.remove(fn);
+        inlineBodies.remove(id);
+        markModified();
+      }
+      return fn;
+    }
+
+    /**
+     * Add body of precompiled function that can be inlined into callers
+     * @param body copy of function before reference counting was added
+     */
+    public void addInlineBody(Function body) {
+      assert(precompiled.contains(functionsByID.get(body.id()))) : body.id();
+      inlineBodies.put(body.id(), body);
+    }
+
+    /**
+     * @return body of precompiled function that can be inlined, or null
+     */
+    public Function inlineBody(FnID id) {
+      return inlineBodies.get(id);
+    }
+
+    /**
+     * @return bodies of precompiled functions that can be inlined
+     */
+    public List<Function> precompiledInlineBodies() {
+      List<Function> result = new ArrayList<Function>();
+      for (Function fn: precompiled) {
+        Function body = inlineBodies.get(fn.id());
+        if (body != null) {
+          result.add(body);
+        }
+      }
+      return result;
+    }
+
+    /**
+     * Request that copies of small functions are saved before reference
+     * counting, so that they can be inlined into other programs
+     */
+    public void requestInlineBodies() {
+      this.saveInlineBodies = true;
+    }
+
+    /**
+     * Save copies of program functions for inlining, if requested.
+     * Should be followed by {@link #selectInlineBodies(long)} once the
+     * functions are optimized.
+     */
+    public void saveInlineBodies() {
+      if (!saveInlineBodies) {
+        return;
+      }
+      for (Function fn: functions) {
+        inlineBodies.put(fn.id(), fn.copyForInlining());
+      }
+    }
+
+    /**
+     * Discard saved copies of program functions that are too large to
+     * inline once optimized.
+     * @param maxSize max number of instructions in optimized function
+     */
+    public void selectInlineBodies(long maxSize) {
+      for (Function fn: functions) {
+        if (fn.defUse().instructionCount() > maxSize) {
+          inlineBodies.remove(fn.id());
+        }
+      }
+    }
+
+    public void addExternalRefs(Collection<FnID> ids) {
+      externalRefs.addAll(ids);
+      markModified();
+    }
+
+    public Set<FnID> externalRefs() {
+      return Collections.unmodifiableSet(externalRefs);
+    }
+
+    /**
+     * @return true if function must keep same ID and signature
+     */
+    public boolean isExternallyReferenced(FnID id) {
+      return externalRefs.contains(id);
+    }
+
     public Set<FnID> getFunctionIDs() {
       return Collections.unmodifiableSet(functionsByID.keySet());
     }
@@ -242,6 +435,7 @@ public class ICTree {
           internal.set(e);
           functionsByID.remove(lastReturned.id());
           functionsByID.put(e.id(), e);
+          markModified();
         }
 
         @SuppressWarnings("unlikely-arg-type")
@@ -249,6 +443,7 @@ public class ICTree {
         public void remove() {
           internal.remove();
           functionsByID.remove(lastReturned);
+          markModified();
         }
 
         @Override
@@ -289,12 +484,65 @@ public class ICTree {
         public void add(Function e) {
           internal.add(e);
           functionsByID.put(e.id(), e);
+          markModified();
         }
       };
     }
 
     public ListIterator<BuiltinFunction> builtinIterator() {
-      return builtinFuns.listIterator();
+      // Use custom iterator to intercept modifications
+      return new ListIterator<BuiltinFunction>() {
+        private final ListIterator<BuiltinFunction> internal =
+                              builtinFuns.listIterator();
+
+        @Override
+        public void set(BuiltinFunction e) {
+          internal.set(e);
+          markModified();
+        }
+
+        @Override
+        public void remove() {
+          internal.remove();
+          markModified();
+        }
+
+        @Override
+        public int previousIndex() {
+          return internal.previousIndex();
+        }
+
+        @Override
+        public BuiltinFunction previous() {
+          return internal.previous();
+        }
+
+        @Override
+        public int nextIndex() {
+          return internal.nextIndex();
+        }
+
+        @Override
+        public BuiltinFunction next() {
+          return internal.next();
+        }
+
+        @Override
+        public boolean hasPrevious() {
+          return internal.hasPrevious();
+        }
+
+        @Override
+        public boolean hasNext() {
+          return internal.hasNext();
+        }
+
+        @Override
+        public void add(BuiltinFunction e) {
+          internal.add(e);
+          markModified();
+        }
+      };
     }
 
     public GlobalConstants constants() {
@@ -325,6 +573,11 @@ public class ICTree {
      */
     public void requireCheckpointing() {
       this.checkpointRequired = true;
+      markModified();
+    }
+
+    public boolean checkpointRequired() {
+      return checkpointRequired;
     }
 
     @Override
@@ -335,6 +588,26 @@ public class ICTree {
     }
 
     public void prettyPrint(StringBuilder out) {
+      prettyPrintDeclarations(out);
+
+      for (Function f: functions) {
+        f.prettyPrint(out);
+        out.append("\n");
+      }
+
+      for (Function f: precompiled) {
+        out.append("// precompiled\n");
+        f.prettyPrint(out);
+        out.append("\n");
+      }
+    }
+
+    /**
+     * Print program-wide declarations, i.e. everything apart from
+     * functions.
+     * @param out
+     */
+    public void prettyPrintDeclarations(StringBuilder out) {
       for (RequiredPackage rp: required) {
         out.append("require " + rp.toString() + "\n");
       }
@@ -357,11 +630,6 @@ public class ICTree {
 
       globalVars.prettyPrint(out);
       out.append("\n");
-
-      for (Function f: functions) {
-        f.prettyPrint(out);
-        out.append("\n");
-      }
     }
 
 
@@ -391,6 +659,11 @@ public class ICTree {
 
   }
 
+  /**
+   * Global constants for program.  Methods are synchronized since
+   * constants may be created by optimizer passes running in parallel
+   * on different functions.
+   */
   public static class GlobalConstants {
     /**
      * Use treemap to keep them in alpha order
@@ -399,7 +672,26 @@ public class ICTree {
                     new TreeMap<Var, Arg>(), ArrayListMultimap.<Arg, Var>create());
     private final HashSet<String> usedNames = new HashSet<String>();
 
-    public void add(Var var, Arg val) {
+    /**
+     * If true, names of automatically created constants depend only on
+     * their values, not on the order in which they were created.
+     */
+    private boolean stableNames = false;
+
+    private long modCount = nextModStamp();
+
+    /**
+     * @return stamp that changes whenever constants are added or removed
+     */
+    public synchronized long modCount() {
+      return modCount;
+    }
+
+    public synchronized void setStableNames(boolean stableNames) {
+      this.stableNames = stableNames;
+    }
+
+    public synchronized void add(Var var, Arg val) {
       assert(var.storage() == Alloc.GLOBAL_CONST);
       assert(var.defType() == DefType.GLOBAL_CONST);
       assert(var.type().getImplType().equals(val.futureType().getImplType()));
@@ -409,6 +701,7 @@ public class ICTree {
           new STCRuntimeError("Overwriting global constant " + var.name());
 
       usedNames.add(var.name());
+      modCount = nextModStamp();
     }
 
     /**
@@ -416,7 +709,7 @@ public class ICTree {
      * @param val
      * @return global constant for given value
      */
-    public Var getOrCreateByVal(Arg val) {
+    public synchronized Var getOrCreateByVal(Arg val) {
       Collection<Var> existing = lookupByValue(val);
       if (!existing.isEmpty()) {
         return Iterables.get(existing, 0);
@@ -427,6 +720,9 @@ public class ICTree {
 
     private Var autoCreate(Arg val) {
       String origname = Var.generateGlobalConstName(val);
+      if (stableNames) {
+        origname = stableName(origname, val);
+      }
       String name = origname;
       int seq = 0;
       while (usedNames.contains(name)) {
@@ -439,28 +735,51 @@ public class ICTree {
       return var;
     }
 
-    public void remove(Var unused) {
+    /**
+     * Generated names for float and string constants are truncated, so
+     * disambiguate with a hash of the full value.
+     */
+    private static String stableName(String name, Arg val) {
+      switch (val.kind) {
+        case FLOATVAL:
+          return name + "-" + Integer.toHexString(
+                          Double.valueOf(val.getFloat()).hashCode());
+        case STRINGVAL:
+          return name + "-" + Integer.toHexString(val.getString().hashCode());
+        default:
+          return name;
+      }
+    }
+
+    public synchronized void remove(Var unused) {
       globalConsts.remove(unused);
+      modCount = nextModStamp();
     }
 
-    public Collection<Var> lookupByValue(Arg val) {
-      return this.globalConsts.getByValue(val);
+    public synchronized Collection<Var> lookupByValue(Arg val) {
+      return new ArrayList<Var>(this.globalConsts.getByValue(val));
     }
 
-    public Arg lookupByVar(Var var) {
+    public synchronized Arg lookupByVar(Var var) {
       return this.globalConsts.get(var);
 
     }
 
-    public Map<Var, Arg> map() {
-      return Collections.unmodifiableMap(globalConsts);
+    /**
+     * @return snapshot of current constants
+     */
+    public synchronized Map<Var, Arg> map() {
+      return Collections.unmodifiableMap(new TreeMap<Var, Arg>(globalConsts));
     }
 
-    public Collection<Var> vars() {
-      return globalConsts.keySet();
+    /**
+     * @return snapshot of current constants
+     */
+    public synchronized Collection<Var> vars() {
+      return new ArrayList<Var>(globalConsts.keySet());
     }
 
-    public void generate(Logger logger, CompilerBackend gen) {
+    public synchronized void generate(Logger logger, CompilerBackend gen) {
       for (Entry<Var, Arg> c: globalConsts.entrySet()) {
         Var var = c.getKey();
         Arg val = c.getValue();
@@ -468,7 +787,7 @@ public class ICTree {
       }
     }
 
-    public void prettyPrint(StringBuilder out) {
+    public synchronized void prettyPrint(StringBuilder out) {
       for (Entry<Var, Arg> constE: globalConsts.entrySet()) {
         Arg val = constE.getValue();
         out.append("const " +   constE.getKey().name() + " = ");
@@ -482,7 +801,9 @@ public class ICTree {
   /**
    * Variables defined in a context
    */
-  public static class Variables {
+  public static class Variables implements Serializable {
+    private static final long serialVersionUID = 1L;
+
     protected final ArrayList<Var> variables;
 
     /** Initial reference counts for vars defined in block */
@@ -640,6 +961,16 @@ public class ICTree {
   }
 
   public static class GlobalVars extends Variables {
+    private static final long serialVersionUID = 1L;
+
+    private transient long modCount = nextModStamp();
+
+    /**
+     * @return stamp that changes whenever variables are added or removed
+     */
+    public long modCount() {
+      return modCount;
+    }
 
     @Override
     public void addVariable(Var var) {
@@ -647,6 +978,13 @@ public class ICTree {
       assert(var.defType() == DefType.GLOBAL_USER);
 
       super.addVariable(var);
+      modCount = nextModStamp();
+    }
+
+    @Override
+    public void removeVariable(Var var) {
+      super.removeVariable(var);
+      modCount = nextModStamp();
     }
 
     public void generate(Logger logger, CompilerBackend gen) {
@@ -726,21 +1064,40 @@ public class ICTree {
     }
   }
 
-  public static class Function {
+  public static class Function implements Serializable {
+    private static final long serialVersionUID = 1L;
+
     private Block mainBlock;
     private final FnID id;
+    @SuppressWarnings("serial")
     private final List<Var> iList;
+    @SuppressWarnings("serial")
     private final List<Var> oList;
     /** List of which outputs are write-only */
+    @SuppressWarnings("serial")
     private final List<Var> oListWriteOnly;
 
     /** Wait until the below inputs are available before running function. */
+    @SuppressWarnings("serial")
     private final List<WaitVar> blockingInputs;
 
     private ExecTarget mode;
 
     private final HashSet<String> usedVarNames;
 
+    /**
+     * Modification stamp, updated by IR mutators, so that checks can tell
+     * whether the function changed since they last looked at it.
+     */
+    private transient long modCount = nextModStamp();
+
+    /** Stamp of last modification to function signature */
+    private transient long signatureModCount = modCount;
+
+    /** Cached index of function, valid if modCount unchanged */
+    private transient DefUseIndex defUse = null;
+    private transient long defUseModCount = -1;
+
     public Function(FnID id, List<Var> iList,
         List<Var> oList, ExecTarget mode) {
       this(id, iList, Collections.<WaitVar>emptyList(), oList,
@@ -779,6 +1136,59 @@ public class ICTree {
       return id;
     }
 
+    /**
+     * @return stamp that changes whenever function is modified
+     */
+    public long modCount() {
+      return modCount;
+    }
+
+    /**
+     * @return stamp that changes whenever function signature is modified
+     */
+    public long signatureModCount() {
+      return signatureModCount;
+    }
+
+    /**
+     * Record that function or code in it was modified
+     */
+    public void markModified() {
+      modCount = nextModStamp();
+    }
+
+    private void markSignatureModified() {
+      markModified();
+      signatureModCount = modCount;
+    }
+
+    private void readObject(ObjectInputStream in)
+        throws IOException, ClassNotFoundException {
+      in.defaultReadObject();
+      // Stamps from other runs are meaningless
+      markSignatureModified();
+      defUseModCount = -1;
+    }
+
+    /**
+     * @return index of reads, writes and calls in all blocks of function.
+     *        Only valid until function is next modified.
+     */
+    public DefUseIndex defUse() {
+      if (defUse == null || defUseModCount != modCount) {
+        defUse = DefUseIndex.build(this);
+        defUseModCount = modCount;
+      }
+      return defUse;
+    }
+
+    /**
+     * @return cached index, or null if function modified since built
+     */
+    public DefUseIndex cachedDefUse() {
+      return defUseModCount == modCount ? defUse : null;
+    }
+
 
     public List<Var> getInputList() {
       return Collections.unmodifiableList(this.iList);
@@ -813,6 +1223,7 @@ public class ICTree {
       Var output = oList.get(i);
       if (!oListWriteOnly.contains(output)) {
         oListWriteOnly.add(output);
+        markSignatureModified();
       }
     }
 
@@ -834,10 +1245,31 @@ public class ICTree {
       return mainBlock;
     }
 
+    /**
+     * Create a copy of this function with a different ID.  This function's
+     * blocks are moved to the new function.
+     */
+    public Function copyWithID(FnID newID) {
+      Function fn = new Function(newID, iList, blockingInputs, oList, mode,
+                                 mainBlock);
+      fn.oListWriteOnly.addAll(oListWriteOnly);
+      return fn;
+    }
+
+    /**
+     * @return deep copy of function that can be inlined into callers
+     *         after this function is modified further
+     */
+    public Function copyForInlining() {
+      return new Function(id, iList, blockingInputs, oList, mode,
+                          mainBlock.clone(BlockType.MAIN_BLOCK, null, null));
+    }
+
     public Block swapBlock(Block newBlock) {
       Block old = this.mainBlock;
       this.mainBlock = newBlock;
       this.mainBlock.setParent(this, false);
+      markModified();
       return old;
     }
 
@@ -852,6 +1284,17 @@ public class ICTree {
     }
 
     public void prettyPrint(StringBuilder sb) {
+      prettyPrintHeader(sb);
+      sb.append(" {\n");
+      mainBlock.prettyPrint(sb, indent);
+      sb.append("}\n");
+    }
+
+    /**
+     * Print function signature and properties visible to callers
+     * @param sb
+     */
+    public void prettyPrintHeader(StringBuilder sb) {
       ICUtil.prettyPrintFormalArgs(sb, this.oList);
       sb.append(" @" + id + " ");
       ICUtil.prettyPrintFormalArgs(sb, this.iList);
@@ -867,9 +1310,6 @@ public class ICTree {
         ICUtil.prettyPrintVarList(sb, this.oListWriteOnly);
         sb.append("]");
       }
-      sb.append(" {\n");
-      mainBlock.prettyPrint(sb, indent);
-      sb.append("}\n");
     }
 
     @Override
@@ -880,7 +1320,7 @@ public class ICTree {
     }
 
     public List<WaitVar> blockingInputs() {
-      return blockingInputs;
+      return Collections.unmodifiableList(blockingInputs);
     }
 
     public void addBlockingInput(WaitVar newWaitVar) {
@@ -888,6 +1328,7 @@ public class ICTree {
         throw new STCRuntimeError(newWaitVar.var + " is not the name of " +
         " an input argument to function " + id + ":\n" + this);
       }
+      markSignatureModified();
       // Check to see if already present
       ListIterator<WaitVar> it = blockingInputs.listIterator();
       while (it.hasNext()) {
@@ -974,9 +1415,11 @@ public class ICTree {
 
     public void renameVars(Map<Var, Arg> renames, RenameMode mode,
                            boolean recursive) {
+      markModified();
 
       // Only rename if we're fully replacing
       if (mode == RenameMode.REPLACE_VAR) {
+        markSignatureModified();
         for (List<Var> varList: Arrays.asList(iList, oList, oListWriteOnly)) {
           ICUtil.replaceVarsInList(renames, varList, false);
         }
@@ -1005,7 +1448,9 @@ public class ICTree {
     ASYNC_EXEC_CONTINUATION,
   }
 
-  public static class CleanupAction {
+  public static class CleanupAction implements Serializable {
+    private static final long serialVersionUID = 1L;
+
     public CleanupAction(Var var, Instruction action) {
       super();
       this.var = var;
@@ -1054,7 +1499,8 @@ public class ICTree {
     }
   }
 
-  public static class Block {
+  public static class Block implements Serializable {
+    private static final long serialVersionUID = 1L;
 
     private final BlockType type;
     private Continuation parentCont;
@@ -1152,10 +1598,41 @@ public class ICTree {
 
     public void setParent(Continuation parent, boolean newBlock) {
       setParent(type, parent, null, newBlock);
+      markModified();
     }
 
     public void setParent(Function parent, boolean newBlock) {
       setParent(BlockType.MAIN_BLOCK, null, parent, newBlock);
+      markModified();
+    }
+
+    /**
+     * Record that block was modified.  Must be called by all operations
+     * that modify the block or statements and continuations in it.
+     */
+    public void markModified() {
+      defUse = null;
+      if (parentFunction != null) {
+        parentFunction.markModified();
+      }
+    }
+
+    /**
+     * @return index of reads, writes and calls by instructions directly
+     *        in this block.  Only valid until block is next modified.
+     */
+    public DefUseIndex defUse() {
+      if (defUse == null) {
+        defUse = DefUseIndex.build(this);
+      }
+      return defUse;
+    }
+
+    /**
+     * @return cached index, or null if not built since last modification
+     */
+    public DefUseIndex cachedDefUse() {
+      return defUse;
     }
 
     /**
@@ -1204,9 +1681,13 @@ public class ICTree {
     /** conditional statements for block */
     private final ArrayList<Continuation> continuations;
 
+    /** Cached index of statements, discarded when block is modified */
+    private transient DefUseIndex defUse = null;
+
     public void addStatement(Statement st) {
       st.setParent(this);
       statements.add(st);
+      markModified();
     }
 
     public void addInstruction(Instruction e) {
@@ -1214,7 +1695,9 @@ public class ICTree {
     }
 
     public void addInstructionFront(Instruction e) {
+      e.setParent(this);
       statements.addFirst(e);
+      markModified();
     }
 
     public void addInstructions(List<Instruction> instructions) {
@@ -1226,11 +1709,13 @@ public class ICTree {
         stmt.setParent(this);
       }
       this.statements.addAll(stmts);
+      markModified();
     }
 
     public void addContinuation(Continuation c) {
       c.setParent(this);
       this.continuations.add(c);
+      markModified();
     }
 
     public List<Continuation> getContinuations() {
@@ -1243,6 +1728,7 @@ public class ICTree {
 
     public void removeContinuation(int i) {
       continuations.remove(i);
+      markModified();
     }
 
     public List<Var> variables() {
@@ -1271,9 +1757,18 @@ public class ICTree {
 
       generateBlockVariables(gen);
 
+      // Pass runs of refcount operations, retrievals and stores to backend
+      // together so that it can combine them
+      GenBatch batch = new GenBatch(logger, gen, info);
       for (Statement stmt: statements) {
-        stmt.generate(logger, gen, info);
+        if (stmt.type() == StatementType.INSTRUCTION) {
+          batch.generate(stmt.instruction());
+        } else {
+          batch.flush();
+          stmt.generate(logger, gen, info);
+        }
       }
+      batch.flush();
 
       // Can put conditional statements at end of block, making sure
       // Ones which are marked as runLast occur after those not
@@ -1287,12 +1782,87 @@ public class ICTree {
       }
 
       for (CleanupAction cleanup: cleanupActions) {
-        cleanup.action().generate(logger, gen, info);
+        batch.generate(cleanup.action());
       }
+      batch.flush();
       logger.trace("Done with code for block of type " + this.type.toString());
 
     }
 
+    /**
+     * Accumulates a run of consecutive instructions of the same kind that
+     * the backend can generate code for as a batch.
+     */
+    private static class GenBatch {
+      private final Logger logger;
+      private final CompilerBackend gen;
+      private final GenInfo info;
+      private List<DirRefCount> refcounts = new ArrayList<DirRefCount>();
+      private List<Retrieval> retrievals = new ArrayList<Retrieval>();
+      private List<Assignment> assignments = new ArrayList<Assignment>();
+
+      GenBatch(Logger logger, CompilerBackend gen, GenInfo info) {
+        this.logger = logger;
+        this.gen = gen;
+        this.info = info;
+      }
+
+      /**
+       * Generate code for instruction, or add it to batch
+       */
+      void generate(Instruction inst) {
+        if (add(inst)) {
+          return;
+        }
+
+        if (!assignments.isEmpty() && inst.op == Opcode.LOCAL_OP) {
+          // Local builtins only touch local values, so pending stores
+          // can be moved after them to batch with any following stores
+          inst.generate(logger, gen, info);
+        } else {
+          flush();
+          inst.generate(logger, gen, info);
+        }
+      }
+
+      private boolean add(Instruction inst) {
+        if (RefCountOp.isRefcountOp(inst.op)) {
+          if (refcounts.isEmpty()) {
+            flush();
+          }
+          refcounts.add(RefCountOp.getDirRefCount(inst));
+        } else if (TurbineOp.isBatchableRetrieval(inst)) {
+          if (retrievals.isEmpty()) {
+            flush();
+          }
+          retrievals.add(TurbineOp.getRetrieval(inst));
+        } else if (TurbineOp.isBatchableStore(inst)) {
+          if (assignments.isEmpty()) {
+            flush();
+          }
+          assignments.add(TurbineOp.getAssignment(inst));
+        } else {
+          return false;
+        }
+        return true;
+      }
+
+      void flush() {
+        if (!refcounts.isEmpty()) {
+          gen.modifyRefCounts(refcounts);
+          refcounts = new ArrayList<DirRefCount>();
+        }
+        if (!retrievals.isEmpty()) {
+          gen.retrieveMulti(retrievals);
+          retrievals = new ArrayList<Retrieval>();
+        }
+        if (!assignments.isEmpty()) {
+          gen.assignMulti(assignments);
+          assignments = new ArrayList<Assignment>();
+        }
+      }
+    }
+
     private void generateBlockVariables(CompilerBackend gen) {
       // Pass variable declarations as batch
       gen.declare(variables.getDeclarations());
@@ -1365,11 +1935,13 @@ public class ICTree {
       public void set(Continuation e) {
         e.setParent(Block.this);
         it.set(e);
+        markModified();
       }
 
       @Override
       public void remove() {
         it.remove();
+        markModified();
       }
 
       @Override
@@ -1406,6 +1978,126 @@ public class ICTree {
       public void add(Continuation e) {
         it.add(e);
         e.setParent(Block.this);
+        markModified();
+      }
+    }
+
+    /**
+     * Wrapper around statement ListIterator to keep parent links up to
+     * date and record modifications.
+     */
+    private final class StmtIt implements ListIterator<Statement> {
+      private StmtIt(ListIterator<Statement> it) {
+        this.it = it;
+      }
+
+      final ListIterator<Statement> it;
+      @Override
+      public void set(Statement e) {
+        e.setParent(Block.this);
+        it.set(e);
+        markModified();
+      }
+
+      @Override
+      public void remove() {
+        it.remove();
+        markModified();
+      }
+
+      @Override
+      public int previousIndex() {
+        return it.previousIndex();
+      }
+
+      @Override
+      public Statement previous() {
+        return it.previous();
+      }
+
+      @Override
+      public int nextIndex() {
+        return it.nextIndex();
+      }
+
+      @Override
+      public Statement next() {
+        return it.next();
+      }
+
+      @Override
+      public boolean hasPrevious() {
+        return it.hasPrevious();
+      }
+
+      @Override
+      public boolean hasNext() {
+        return it.hasNext();
+      }
+
+      @Override
+      public void add(Statement e) {
+        it.add(e);
+        e.setParent(Block.this);
+        markModified();
+      }
+    }
+
+    /**
+     * Wrapper around ListIterator to record modifications.
+     */
+    private final class ModIt<T> implements ListIterator<T> {
+      private ModIt(ListIterator<T> it) {
+        this.it = it;
+      }
+
+      final ListIterator<T> it;
+      @Override
+      public void set(T e) {
+        it.set(e);
+        markModified();
+      }
+
+      @Override
+      public void remove() {
+        it.remove();
+        markModified();
+      }
+
+      @Override
+      public int previousIndex() {
+        return it.previousIndex();
+      }
+
+      @Override
+      public T previous() {
+        return it.previous();
+      }
+
+      @Override
+      public int nextIndex() {
+        return it.nextIndex();
+      }
+
+      @Override
+      public T next() {
+        return it.next();
+      }
+
+      @Override
+      public boolean hasPrevious() {
+        return it.hasPrevious();
+      }
+
+      @Override
+      public boolean hasNext() {
+        return it.hasNext();
+      }
+
+      @Override
+      public void add(T e) {
+        it.add(e);
+        markModified();
       }
     }
 
@@ -1486,7 +2178,7 @@ public class ICTree {
     }
 
     public ListIterator<Var> variableIterator() {
-      return variables.variableIterator();
+      return new ModIt<Var>(variables.variableIterator());
     }
 
     public List<Statement> getStatements() {
@@ -1494,19 +2186,19 @@ public class ICTree {
     }
 
     public ListIterator<Statement> statementIterator() {
-      return statements.listIterator();
+      return new StmtIt(statements.listIterator());
     }
 
     public ListIterator<Statement> statementIterator(int i) {
-      return statements.listIterator(i);
+      return new StmtIt(statements.listIterator(i));
     }
 
     public ListIterator<Statement> statementEndIterator() {
-      return statements.listIterator(statements.size());
+      return statementIterator(statements.size());
     }
 
     public ListIterator<CleanupAction> cleanupIterator() {
-      return cleanupActions.listIterator();
+      return new ModIt<CleanupAction>(cleanupActions.listIterator());
     }
 
     public List<CleanupAction> getCleanups() {
@@ -1515,6 +2207,7 @@ public class ICTree {
 
     public void addCleanup(Var var, Instruction action) {
       this.cleanupActions.add(new CleanupAction(var, action));
+      markModified();
     }
 
     // Remove cleanup actions for variable
@@ -1528,6 +2221,7 @@ public class ICTree {
         CleanupAction ca = it.next();
         if (ca.var().equals(var)) {
           it.remove();
+          markModified();
           if (target != null) {
             target.addCleanup(ca.var, ca.action);
           }
@@ -1547,6 +2241,7 @@ public class ICTree {
                             RenameMode mode, boolean recursive) {
       if (renames.isEmpty())
         return;
+      markModified();
       renameInDefs(renames, mode);
       renameInCode(id, renames, mode, recursive);
     }
@@ -1592,6 +2287,7 @@ public class ICTree {
 
     public void renameCleanupActions(FnID id, Map<Var, Arg> renames,
                                      RenameMode mode) {
+      markModified();
       for (CleanupAction a: cleanupActions) {
         a.renameVars(id, renames, mode);
       }
@@ -1653,6 +2349,7 @@ public class ICTree {
       if (this.parentFunction != null) {
         this.parentFunction.addUsedVarNames(variables);
       }
+      markModified();
     }
 
     public void addVariable(Var variable) {
@@ -1664,6 +2361,7 @@ public class ICTree {
       if (this.parentFunction != null) {
         parentFunction.addUsedVarName(variable);
       }
+      markModified();
     }
 
     public Var declareUnmapped(Type t, String name, Alloc storage,
@@ -1692,11 +2390,13 @@ public class ICTree {
 
     public void removeContinuation(Continuation c) {
       this.continuations.remove(c);
+      markModified();
     }
 
     public void removeContinuations(
                     Collection<? extends Continuation> c) {
       this.continuations.removeAll(c);
+      markModified();
     }
 
     /**
@@ -1749,6 +2449,7 @@ public class ICTree {
         }
       }
       this.cleanupActions.addAll(b.cleanupActions);
+      markModified();
     }
 
     public void insertInline(Block b) {
@@ -1756,6 +2457,7 @@ public class ICTree {
     }
 
     public void removeVarDeclarations(Set<Var> vars) {
+      markModified();
       variables.removeAllVariables(vars);
       ListIterator<CleanupAction> it = cleanupActions.listIterator();
       while (it.hasNext()) {
@@ -1798,8 +2500,12 @@ public class ICTree {
      * @param newStatements
      */
     public void replaceStatements(List<Statement> newStatements) {
+      for (Statement stmt: newStatements) {
+        stmt.setParent(this);
+      }
       this.statements.clear();
       this.statements.addAll(newStatements);
+      markModified();
     }
 
     @Override
@@ -1883,11 +2589,13 @@ public class ICTree {
     public void modifyInitRefcount(Var blockVar, RefCountType rcType,
                                    long incr) {
       variables.modifyInitRefcount(blockVar, rcType, incr);
+      markModified();
     }
 
     public void setInitRefcount(Var blockVar, RefCountType rcType,
                                    long val) {
       variables.setInitRefcount(blockVar, rcType, val);
+      markModified();
     }
 
   }
@@ -10,7 +10,9 @@ import java.util.Set;
 import org.apache.log4j.Logger;
 
 import exm.stc.common.CompilerBackend;
+import exm.stc.common.CompilerBackend.Assignment;
 import exm.stc.common.CompilerBackend.DirRefCount;
+import exm.stc.common.CompilerBackend.Retrieval;
 import exm.stc.common.exceptions.STCRuntimeError;
 import exm.stc.common.lang.Arg;
 import exm.stc.common.lang.Arg.ArgKind;
@@ -54,6 +56,7 @@ import exm.stc.ic.tree.ICTree.Statement;
  * of arguments
  */
 public class TurbineOp extends Instruction {
+  private static final long serialVersionUID = 1L;
 
   /** Private constructor: use static methods to create */
   private TurbineOp(Opcode op, List<Var> outputs, List<Arg> inputs) {
@@ -90,7 +93,9 @@ public class TurbineOp extends Instruction {
     this(op, outputs, Arrays.asList(inputs));
   }
 
+  @SuppressWarnings("serial")
   private List<Var> outputs; /** Variables that are modified by this instruction */
+  @SuppressWarnings("serial")
   private List<Arg> inputs; /** Variables that are read-only */
 
   @Override
@@ -1144,6 +1149,42 @@ public class TurbineOp extends Instruction {
     return new TurbineOp(Opcode.LOAD_FILE, target, src.asArg());
   }
 
+  /**
+   * @return true if the instruction is a scalar or file retrieval that
+   *          can be passed to the backend in a batch
+   */
+  public static boolean isBatchableRetrieval(Instruction inst) {
+    return inst.op == Opcode.LOAD_SCALAR || inst.op == Opcode.LOAD_FILE;
+  }
+
+  /**
+   * @return retrieval done by LOAD_SCALAR or LOAD_FILE instruction, for
+   *          code generation
+   */
+  public static Retrieval getRetrieval(Instruction inst) {
+    assert(isBatchableRetrieval(inst)) : inst;
+    List<Arg> inputs = inst.getInputs();
+    return new Retrieval(inst.getOutput(0), inputs.get(0).getVar(),
+                         inputs.size() == 2 ? inputs.get(1) : Arg.ZERO);
+  }
+
+  /**
+   * @return true if the instruction is a scalar or struct store that
+   *          can be passed to the backend in a batch
+   */
+  public static boolean isBatchableStore(Instruction inst) {
+    return inst.op == Opcode.STORE_SCALAR || inst.op == Opcode.STORE_STRUCT;
+  }
+
+  /**
+   * @return assignment done by STORE_SCALAR or STORE_STRUCT instruction,
+   *          for code generation
+   */
+  public static Assignment getAssignment(Instruction inst) {
+    assert(isBatchableStore(inst)) : inst;
+    return new Assignment(inst.getOutput(0), inst.getInput(0));
+  }
+
   /**
    * Retrieve an array directly to a local array, without following
    * any references
@@ -1640,6 +1681,7 @@ public class TurbineOp extends Instruction {
   @Override
   public void renameVars(FnID function, Map<Var, Arg> renames,
                          RenameMode mode) {
+    markModified();
     if (mode == RenameMode.VALUE) {
       // Fall through
     } else if (mode == RenameMode.REPLACE_VAR) {
@@ -1671,6 +1713,7 @@ public class TurbineOp extends Instruction {
   }
 
   public void renameInputs(Map<Var, Arg> renames) {
+    markModified();
      ICUtil.replaceArgsInList(renames, inputs);
   }
 
@@ -1849,6 +1892,7 @@ public class TurbineOp extends Instruction {
   }
 
   public void setInput(int i, Arg arg) {
+    markModified();
     this.inputs.set(i, arg);
   }
 
@@ -4112,6 +4156,7 @@ public class TurbineOp extends Instruction {
    * defaults derived from TurbineOp
    */
   public static class RefCountOp extends TurbineOp {
+    private static final long serialVersionUID = 1L;
 
     /**
      * Direction of change (increment or decrement)
@@ -4220,12 +4265,19 @@ public class TurbineOp extends Instruction {
       return isIncrement(op) || isDecrement(op);
     }
 
+    /**
+     * @return change made by refcount instruction, for code generation
+     */
+    public static DirRefCount getDirRefCount(Instruction refcountOp) {
+      return new DirRefCount(getRCTarget(refcountOp),
+          getRCType(refcountOp.op), getRefcountDir(refcountOp.op),
+          getRCAmount(refcountOp));
+    }
+
     @Override
     public void generate(Logger logger, CompilerBackend gen, GenInfo info) {
-      // TODO: batching for reference counts?
-      gen.modifyRefCounts(Collections.singletonList(new DirRefCount(
-                    getRCTarget(this), getRCType(this.op),
-                    getRefcountDir(this.op), getRCAmount(this))));
+      // Consecutive refcount instructions are batched by Block.generate()
+      gen.modifyRefCounts(Collections.singletonList(getDirRefCount(this)));
     }
 
     @Override
@@ -0,0 +1,1979 @@
+/*
+ * Copyright 2013 University of Chicago and Argonne National Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package exm.stc.jvm;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.apache.log4j.Logger;
+
+import com.google.common.collect.ListMultimap;
+
+import exm.stc.common.CompilerBackend;
+import exm.stc.common.Settings;
+import exm.stc.common.exceptions.STCRuntimeError;
+import exm.stc.common.exceptions.UserException;
+import exm.stc.common.lang.Arg;
+import exm.stc.common.lang.AsyncExecutor;
+import exm.stc.common.lang.ExecContext.WorkContext;
+import exm.stc.common.lang.ExecTarget;
+import exm.stc.common.lang.FnID;
+import exm.stc.common.lang.ForeignFunctions;
+import exm.stc.common.lang.LocalForeignFunction;
+import exm.stc.common.lang.Operators;
+import exm.stc.common.lang.Operators.BuiltinOpcode;
+import exm.stc.common.lang.PassedVar;
+import exm.stc.common.lang.Redirects;
+import exm.stc.common.lang.RefCounting.RefCountType;
+import exm.stc.common.lang.RequiredPackage;
+import exm.stc.common.lang.TaskProp.TaskPropKey;
+import exm.stc.common.lang.TaskProp.TaskProps;
+import exm.stc.common.lang.Types;
+import exm.stc.common.lang.Types.FunctionType;
+import exm.stc.common.lang.Types.StructType;
+import exm.stc.common.lang.Types.Type;
+import exm.stc.common.lang.Var;
+import exm.stc.common.lang.Var.Alloc;
+import exm.stc.common.lang.WrappedForeignFunction;
+import exm.stc.ic.tree.TurbineOp.RefCountOp.RCDir;
+
+/**
+ * Backend that generates a Java class from the intermediate code.  The
+ * generated class runs on the work-stealing runtime in
+ * exm.stc.jvm.runtime instead of Turbine.
+ *
+ * Only part of the language is supported: scalar int, float, bool, string
+ * and void variables, and arrays of scalars.  Operations that aren't
+ * supported are recorded while generating and reported together by
+ * {@link #checkSupported()}, so that the user gets a compile error rather
+ * than a Java program that doesn't compile.
+ *
+ * Each Swift function becomes a static method that takes future variables
+ * as objects and local values as Java primitives.  Wait statements,
+ * asynchronous calls and loop iterations become tasks.  Local values are
+ * copied into final variables before being captured by a task, since the
+ * intermediate code may assign them after declaration.
+ */
+public class JVMGenerator implements CompilerBackend {
+
+  private static final String RUNTIME_PACKAGE = "exm.stc.jvm.runtime";
+
+  private final Logger logger;
+
+  private final String timestamp;
+
+  private ForeignFunctions foreignFuncs;
+
+  /** Name of generated class */
+  private String className;
+
+  /** Static fields for global constants and variables */
+  private final JavaCode globals = new JavaCode(1);
+
+  /** Completed methods */
+  private final List<JavaCode> methods = new ArrayList<JavaCode>();
+
+  /** Methods currently being generated: top is current method */
+  private final Deque<JavaCode> codeStack = new ArrayDeque<JavaCode>();
+
+  /** Enclosing ordered loops */
+  private final Deque<EnclosingLoop> loopStack =
+                                          new ArrayDeque<EnclosingLoop>();
+
+  /** Enclosing switch statements */
+  private final Deque<SwitchState> switchStack =
+                                          new ArrayDeque<SwitchState>();
+
+  /** Names of methods generated so far */
+  private final Set<String> usedMethodNames = new HashSet<String>();
+
+  /** Original name of function being generated, for error messages */
+  private String currentFunction;
+
+  /** Counter for unique temporary names */
+  private int nextTmp = 0;
+
+  /** Descriptions of unsupported operations encountered */
+  private final Set<String> unsupported = new TreeSet<String>();
+
+  public JVMGenerator(Logger logger, String timestamp) {
+    this.logger = logger;
+    this.timestamp = timestamp;
+  }
+
+  /**
+   * Check that the program only used supported features.  Must be called
+   * after code is generated.
+   * @throws UserException listing unsupported features
+   */
+  public void checkSupported() throws UserException {
+    if (!unsupported.isEmpty()) {
+      StringBuilder sb = new StringBuilder();
+      sb.append("JVM backend does not support features used in program: ");
+      boolean first = true;
+      for (String feature: unsupported) {
+        if (!first) {
+          sb.append(", ");
+        }
+        first = false;
+        sb.append(feature);
+      }
+      throw new UserException(sb.toString());
+    }
+  }
+
+  private void unsupported(String feature) {
+    logger.debug("JVM backend: unsupported " + feature);
+    unsupported.add(feature);
+    if (!codeStack.isEmpty()) {
+      code().line("// UNSUPPORTED: " + feature);
+    }
+  }
+
+  @Override
+  public void initialize(CodeGenOptions options,
+                         ForeignFunctions foreignFuncs) {
+    this.foreignFuncs = foreignFuncs;
+    String outputFile = Settings.get(Settings.OUTPUT_FILENAME);
+    if (outputFile == null) {
+      // Output file will be named after input file
+      outputFile = Settings.get(Settings.INPUT_FILENAME);
+    }
+    this.className = classNameFor(outputFile);
+  }
+
+  /**
+   * Derive class name from base name of output file
+   */
+  static String classNameFor(String outputFile) {
+    String base = outputFile == null ? "" : new File(outputFile).getName();
+    int dot = base.indexOf('.');
+    if (dot >= 0) {
+      base = base.substring(0, dot);
+    }
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < base.length(); i++) {
+      char c = base.charAt(i);
+      if (Character.isJavaIdentifierPart(c) && c != '$') {
+        sb.append(c);
+      } else {
+        sb.append('_');
+      }
+    }
+    if (sb.length() == 0 || !Character.isJavaIdentifierStart(sb.charAt(0))) {
+      sb.insert(0, "Swift_");
+    }
+    return sb.toString();
+  }
+
+  @Override
+  public void finish() {
+    assert(codeStack.isEmpty());
+    assert(loopStack.isEmpty());
+  }
+
+  @Override
+  public void generate(OutputStream output) throws IOException {
+    StringBuilder sb = new StringBuilder(10 * 1024);
+    sb.append("// Generated by stc version " +
+              Settings.get(Settings.STC_VERSION) + "\n");
+    sb.append("// date: " + timestamp + "\n");
+    sb.append("import java.util.Map;\n");
+    sb.append("\n");
+    sb.append("import " + RUNTIME_PACKAGE + ".*;\n");
+    sb.append("import " + RUNTIME_PACKAGE + ".Vars.*;\n");
+    sb.append("\n");
+    sb.append("public class " + className + " {\n");
+    sb.append("  private static TaskQueue queue;\n");
+    sb.append("\n");
+    sb.append(globals.sb);
+    sb.append("\n");
+    sb.append("  public static void main(String[] args) {\n");
+    sb.append("    WorkStealingExecutor executor = " +
+                                    "JVMRuntime.createExecutor();\n");
+    sb.append("    queue = executor.queue();\n");
+    sb.append("    JVMRuntime.runMain(executor, new LogicTask() {\n");
+    sb.append("      @Override\n");
+    sb.append("      protected void runLogic() throws LogicException {\n");
+    sb.append("        " + methodName(FnID.ENTRY_FUNCTION) + "();\n");
+    sb.append("      }\n");
+    sb.append("    });\n");
+    sb.append("  }\n");
+    for (JavaCode method: methods) {
+      sb.append("\n");
+      sb.append(method.sb);
+    }
+    sb.append("}\n");
+    output.write(sb.toString().getBytes(StandardCharsets.UTF_8));
+  }
+
+  @Override
+  public void requirePackage(RequiredPackage pkg) {
+    // Runtime is always available
+  }
+
+  @Override
+  public void addGlobalConst(Var var, Arg val) {
+    String type = javaType(var.type());
+    if (type == null) {
+      unsupported("global constant of type " + var.type().typeName());
+      return;
+    }
+    globals.line("private static final " + type + " " + varName(var) +
+                 " = new " + type + "(0, " + valueExpr(val) + ");");
+  }
+
+  @Override
+  public void declareGlobalVars(List<VarDecl> vars) {
+    for (VarDecl decl: vars) {
+      Var var = decl.var;
+      String type = javaType(var.type());
+      if (type == null) {
+        unsupported("global variable of type " + var.type().typeName());
+        continue;
+      }
+      globals.line("private static final " + type + " " + varName(var) +
+                   " = new " + type + "(" + writers(decl.initWriters) + ");");
+    }
+  }
+
+  @Override
+  public void declareStructType(StructType structType) {
+    // Struct variables are rejected when declared
+  }
+
+  @Override
+  public void declareWorkType(WorkContext workType) {
+    // All work runs in the same pool of threads
+  }
+
+  @Override
+  public void defineForeignFunction(FnID name, FunctionType type,
+      LocalForeignFunction localImpl, WrappedForeignFunction wrappedImpl)
+          throws UserException {
+    // Foreign functions are translated when called
+  }
+
+  @Override
+  public void startFunction(FnID id, List<Var> outArgs, List<Var> inArgs,
+                            ExecTarget mode) throws UserException {
+    assert(codeStack.isEmpty());
+    currentFunction = id.originalName();
+    JavaCode method = new JavaCode(1);
+    codeStack.push(method);
+
+    List<Var> params = new ArrayList<Var>(outArgs);
+    params.addAll(inArgs);
+    for (Var out: outArgs) {
+      if (!isFutureVar(out)) {
+        unsupported("function output of type " + out.type().typeName());
+      }
+    }
+    String name = methodName(id);
+    usedMethodNames.add(name);
+    method.open("private static void " + name + "(" + formalArgs(params) +
+                ") throws LogicException {");
+  }
+
+  @Override
+  public void endFunction() {
+    JavaCode method = codeStack.pop();
+    method.close("}");
+    methods.add(method);
+    assert(codeStack.isEmpty());
+    currentFunction = null;
+  }
+
+  @Override
+  public void declare(List<VarDecl> decls) {
+    for (VarDecl decl: decls) {
+      declareVar(decl.var, decl.initWriters);
+    }
+  }
+
+  private void declareVar(Var var, Arg initWriters) {
+    if (var.storage().isGlobal()) {
+      // Global variables are static fields
+      return;
+    }
+    String type = javaType(var.type());
+    if (type == null) {
+      unsupported("variable of type " + var.type().typeName());
+      return;
+    }
+
+    String name = varName(var);
+    if (var.storage() == Alloc.LOCAL) {
+      code().line(type + " " + name + " = " +
+                  defaultValue(var.type()) + ";");
+    } else if (var.storage() == Alloc.ALIAS) {
+      code().line(type + " " + name + " = null;");
+    } else {
+      code().line("final " + type + " " + name + " = new " + type + "(" +
+                  writers(initWriters) + ");");
+    }
+  }
+
+  @Override
+  public void startNestedBlock() {
+    code().open("{");
+  }
+
+  @Override
+  public void endNestedBlock() {
+    code().close("}");
+  }
+
+  @Override
+  public void startIfStatement(Arg condition, boolean hasElse) {
+    String cond = valueExpr(condition);
+    if (!Types.isBoolVal(condition.type())) {
+      // Integer conditions are true if non-zero
+      cond = cond + " != 0";
+    }
+    code().open("if (" + cond + ") {");
+  }
+
+  @Override
+  public void startElseBlock() {
+    code().close("} else {");
+    code().indent++;
+  }
+
+  @Override
+  public void endIfStatement() {
+    code().close("}");
+  }
+
+  @Override
+  public void startSwitch(Arg switchVar, List<Integer> caseLabels,
+                          boolean hasDefault) {
+    String tmp = tmpName("sw");
+    code().line("final long " + tmp + " = " + valueExpr(switchVar) + ";");
+    SwitchState state = new SwitchState(tmp, caseLabels, hasDefault);
+    switchStack.push(state);
+    openCase(state);
+  }
+
+  private void openCase(SwitchState state) {
+    int cases = state.caseLabels.size() + (state.hasDefault ? 1 : 0);
+    if (state.nextCase >= cases) {
+      return;
+    }
+    String prefix = state.nextCase == 0 ? "" : "else ";
+    if (state.nextCase < state.caseLabels.size()) {
+      code().open(prefix + "if (" + state.switchVar + " == " +
+                  state.caseLabels.get(state.nextCase) + "L) {");
+    } else {
+      code().open(prefix + "{");
+    }
+    state.nextCase++;
+  }
+
+  @Override
+  public void endCase() {
+    code().close("}");
+    openCase(switchStack.peek());
+  }
+
+  @Override
+  public void endSwitch() {
+    switchStack.pop();
+  }
+
+  @Override
+  public void startForeachLoop(String loopName, Var container,
+      Var memberVar, Var loopCountVar, int splitDegree, int leafDegree,
+      boolean arrayClosed, List<PassedVar> passedVars,
+      List<RefCount> perIterIncrs, ListMultimap<Var, RefCount> constIncrs,
+      List<RefCount> perIterDecrs) {
+    if (!Types.isArray(container) && !Types.isArrayLocal(container)) {
+      unsupported("foreach over " + container.type().typeName());
+    }
+    if (!arrayClosed) {
+      unsupported("foreach over open container");
+    }
+
+    code().open("{");
+    List<Capture> captures = capture(PassedVar.extractVars(passedVars));
+    incrementWriters(constIncrs.values(), null);
+
+    String members = tmpName("members");
+    String membersExpr = Types.isArrayLocal(container) ? varName(container) :
+                                  varName(container) + ".members()";
+    code().line("final Map<Object, Object> " + members + " = " +
+                membersExpr + ";");
+    incrementWriters(perIterIncrs, members + ".size()");
+
+    String key = tmpName("key");
+    String val = tmpName("val");
+    code().open("JVMRuntime.foreachLoop(queue, " + members + ", " +
+        leafDegree(splitDegree, leafDegree) +
+        ", new JVMRuntime.ForeachBody() {");
+    code().line("@Override");
+    code().open("public void run(Object " + key + ", Object " + val +
+                ") throws LogicException {");
+    restore(captures);
+    code().line(javaType(memberVar.type()) + " " + varName(memberVar) +
+                " = (" + boxedType(memberVar.type()) + ")" + val + ";");
+    if (loopCountVar != null) {
+      code().line(javaType(loopCountVar.type()) + " " +
+          varName(loopCountVar) + " = (" +
+          boxedType(loopCountVar.type()) + ")" + key + ";");
+    }
+  }
+
+  @Override
+  public void endForeachLoop(int splitDegree, boolean arrayClosed,
+                             List<RefCount> perIterDecrs) {
+    endParallelLoop(perIterDecrs);
+  }
+
+  @Override
+  public void startRangeLoop(String loopName, Var loopVar, Var countVar,
+      Arg start, Arg end, Arg increment, int splitDegree, int leafDegree,
+      List<PassedVar> passedVars, List<RefCount> perIterIncrs,
+      ListMultimap<Var, RefCount> constIncrs, List<RefCount> perIterDecrs) {
+    if (countVar != null) {
+      unsupported("range loop counter variable");
+    }
+    if (!Types.isIntVal(loopVar)) {
+      unsupported("range loop over " + loopVar.type().typeName());
+    }
+
+    code().open("{");
+    List<Capture> captures = capture(PassedVar.extractVars(passedVars));
+    incrementWriters(constIncrs.values(), null);
+
+    String startTmp = tmpName("start");
+    String endTmp = tmpName("end");
+    String incrTmp = tmpName("incr");
+    code().line("final long " + startTmp + " = " + valueExpr(start) + ";");
+    code().line("final long " + endTmp + " = " + valueExpr(end) + ";");
+    code().line("final long " + incrTmp + " = " + valueExpr(increment) + ";");
+    incrementWriters(perIterIncrs, "JVMRuntime.rangeCount(" + startTmp +
+                     ", " + endTmp + ", " + incrTmp + ")");
+
+    String i = tmpName("i");
+    code().open("JVMRuntime.rangeLoop(queue, " + startTmp + ", " + endTmp +
+        ", " + incrTmp + ", " + leafDegree(splitDegree, leafDegree) +
+        ", new JVMRuntime.RangeBody() {");
+    code().line("@Override");
+    code().open("public void run(long " + i + ") throws LogicException {");
+    restore(captures);
+    code().line("long " + varName(loopVar) + " = " + i + ";");
+  }
+
+  @Override
+  public void endRangeLoop(int splitDegree, List<RefCount> perIterDecrs) {
+    endParallelLoop(perIterDecrs);
+  }
+
+  private void endParallelLoop(List<RefCount> perIterDecrs) {
+    for (RefCount rc: perIterDecrs) {
+      if (rc.type == RefCountType.WRITERS) {
+        code().line(varName(rc.var) + ".incrWriters(" +
+            fnLiteral() + ", " + nameLiteral(rc.var) + ", -1 * (int)(" +
+            valueExpr(rc.amount) + "));");
+      }
+    }
+    code().close("}");
+    code().close("});");
+    code().close("}");
+  }
+
+  /**
+   * Leaf degree to pass to runtime: loops that aren't split run all
+   * iterations in one task
+   */
+  private static String leafDegree(int splitDegree, int leafDegree) {
+    if (splitDegree <= 0) {
+      return "Integer.MAX_VALUE";
+    }
+    return Integer.toString(Math.max(1, leafDegree));
+  }
+
+  /**
+   * Increment writers for refcounts before loop starts
+   * @param rcs
+   * @param multiplier expression for number of iterations, or null for
+   *        one increment
+   */
+  private void incrementWriters(Iterable<RefCount> rcs, String multiplier) {
+    for (RefCount rc: rcs) {
+      if (rc.type != RefCountType.WRITERS) {
+        // Read refcounts aren't needed: Java garbage collects data
+        continue;
+      }
+      String amount = valueExpr(rc.amount);
+      if (multiplier != null) {
+        amount = multiplier + " * " + amount;
+      }
+      code().line(varName(rc.var) + ".incrWriters(" + fnLiteral() + ", " +
+                  nameLiteral(rc.var) + ", (int)(" + amount + "));");
+    }
+  }
+
+  @Override
+  public void startWaitStatement(String procName, List<Var> waitVars,
+      List<Var> usedVars, boolean recursive, ExecTarget target,
+      TaskProps props) {
+    // Arrays of scalars are closed recursively once closed
+    startTask(waitVars, usedVars, priority(props));
+  }
+
+  @Override
+  public void endWaitStatement() {
+    endTask();
+  }
+
+  /**
+   * Start a task that runs once all wait vars are closed.  Code generated
+   * until endTask() is the task body.
+   * @param waitVars
+   * @param usedVars variables used in the task body
+   * @param priority expression for priority, or null
+   */
+  private void startTask(List<Var> waitVars, List<Var> usedVars,
+                         String priority) {
+    code().open("{");
+    List<Capture> captures = capture(usedVars);
+    code().open("JVMRuntime.waitAll(queue, " + varArray(waitVars) + ", " +
+          (priority == null ? "" : priority + ", ") + "new LogicTask() {");
+    code().line("@Override");
+    code().open("protected void runLogic() throws LogicException {");
+    restore(captures);
+  }
+
+  /**
+   * Start a task that runs once a member of a container is inserted, or
+   * the container is closed without it.  Code generated until endTask()
+   * is the task body.
+   * @param container
+   * @param key key, which must be closed
+   * @param usedVars variables used in the task body
+   */
+  private void startMemberTask(Var container, Arg key, List<Var> usedVars) {
+    code().open("{");
+    List<Capture> captures = capture(usedVars);
+    code().open("JVMRuntime.waitMember(queue, " + varName(container) + ", " +
+          keyExpr(key) + ", new LogicTask() {");
+    code().line("@Override");
+    code().open("protected void runLogic() throws LogicException {");
+    restore(captures);
+  }
+
+  private void endTask() {
+    code().close("}");
+    code().close("});");
+    code().close("}");
+  }
+
+  private String priority(TaskProps props) {
+    if (props == null) {
+      return null;
+    }
+    Arg prio = props.get(TaskPropKey.PRIORITY);
+    if (prio == null) {
+      return null;
+    }
+    if (prio.isVar() && !isValueVar(prio.getVar())) {
+      unsupported("future priority");
+      return null;
+    }
+    return "(int)(" + valueExpr(prio) + ")";
+  }
+
+  @Override
+  public void startAsyncExec(String procName, List<Var> passIn,
+      AsyncExecutor executor, Arg cmdName, List<Var> taskOutputs,
+      List<Arg> taskArgs, Map<String, Arg> taskProps,
+      boolean hasContinuation) {
+    unsupported("async executor " + executor);
+    if (hasContinuation) {
+      code().open("{");
+    }
+  }
+
+  @Override
+  public void endAsyncExec(boolean hasContinuation) {
+    if (hasContinuation) {
+      code().close("}");
+    }
+  }
+
+  @Override
+  public void startLoop(String loopName, List<Var> loopVars,
+      List<Arg> initVals, List<Var> usedVariables, List<Var> initWaitVars,
+      boolean simpleLoop) {
+    List<Var> usedOnly = new ArrayList<Var>();
+    for (Var v: usedVariables) {
+      if (!loopVars.contains(v) && !usedOnly.contains(v)) {
+        usedOnly.add(v);
+      }
+    }
+
+    String name = uniqueMethodName("loop_" + sanitize(loopName));
+    EnclosingLoop loop = new EnclosingLoop(name, simpleLoop, loopVars,
+                                           usedOnly);
+
+    // Call first iteration from current code
+    List<String> firstArgs = new ArrayList<String>();
+    List<Var> passed = new ArrayList<Var>(usedOnly);
+    for (Arg init: initVals) {
+      firstArgs.add(argExpr(init));
+      if (init.isVar()) {
+        passed.add(init.getVar());
+      }
+    }
+    for (Var v: usedOnly) {
+      firstArgs.add(varName(v));
+    }
+    if (initWaitVars.isEmpty()) {
+      code().line(loop.callExpr(firstArgs) + ";");
+    } else {
+      startTask(initWaitVars, passed, null);
+      code().line(loop.callExpr(firstArgs) + ";");
+      endTask();
+    }
+
+    // Generate loop body as separate method
+    JavaCode method = new JavaCode(1);
+    codeStack.push(method);
+    loopStack.push(loop);
+    List<Var> params = new ArrayList<Var>(loopVars);
+    params.addAll(usedOnly);
+    method.open("private static void " + name + "(" + formalArgs(params) +
+                ") throws LogicException {");
+    if (simpleLoop) {
+      method.line("boolean " + loop.condVar + " = true;");
+      for (Var lv: loopVars) {
+        method.line(javaType(lv.type()) + " " + loop.nextName(lv) + " = " +
+                    varName(lv) + ";");
+      }
+      method.open("while (" + loop.condVar + ") {");
+    }
+  }
+
+  @Override
+  public void loopContinue(List<Arg> newVals, List<Var> usedVariables,
+                           List<Boolean> blockingVars) {
+    EnclosingLoop loop = loopStack.peek();
+    assert(newVals.size() == loop.loopVars.size());
+    if (loop.simpleLoop) {
+      for (int i = 0; i < newVals.size(); i++) {
+        code().line(loop.nextName(loop.loopVars.get(i)) + " = " +
+                    argExpr(newVals.get(i)) + ";");
+      }
+      return;
+    }
+
+    List<Var> waitVars = new ArrayList<Var>();
+    List<Var> passed = new ArrayList<Var>(loop.usedVars);
+    List<String> nextArgs = new ArrayList<String>();
+    for (int i = 0; i < newVals.size(); i++) {
+      Arg newVal = newVals.get(i);
+      nextArgs.add(argExpr(newVal));
+      if (newVal.isVar()) {
+        passed.add(newVal.getVar());
+        if (blockingVars.get(i)) {
+          waitVars.add(newVal.getVar());
+        }
+      }
+    }
+    for (Var v: loop.usedVars) {
+      nextArgs.add(varName(v));
+    }
+    startTask(waitVars, passed, null);
+    code().line(loop.callExpr(nextArgs) + ";");
+    endTask();
+  }
+
+  @Override
+  public void loopBreak(List<Var> loopUsedVars, List<Var> keepOpenVars) {
+    EnclosingLoop loop = loopStack.peek();
+    if (loop.simpleLoop) {
+      // Exit while loop after cleanups
+      code().line(loop.condVar + " = false;");
+    }
+    // Otherwise return from method without spawning next iteration
+  }
+
+  @Override
+  public void endLoop() {
+    EnclosingLoop loop = loopStack.pop();
+    JavaCode method = codeStack.pop();
+    if (loop.simpleLoop) {
+      method.open("if (" + loop.condVar + ") {");
+      for (Var lv: loop.loopVars) {
+        method.line(varName(lv) + " = " + loop.nextName(lv) + ";");
+      }
+      method.close("}");
+      method.close("}");
+    }
+    method.close("}");
+    methods.add(method);
+  }
+
+  @Override
+  public void addComment(String comment) {
+    for (String line: comment.split("\n")) {
+      code().line("// " + line);
+    }
+  }
+
+  @Override
+  public void modifyRefCounts(List<DirRefCount> refcounts) {
+    for (DirRefCount rc: refcounts) {
+      if (rc.type != RefCountType.WRITERS) {
+        // Read refcounts aren't needed: Java garbage collects data
+        continue;
+      }
+      String sign = rc.dir == RCDir.DECR ? "-1 * " : "";
+      code().line(varName(rc.var) + ".incrWriters(" + fnLiteral() + ", " +
+          nameLiteral(rc.var) + ", " + sign + "(int)(" +
+          valueExpr(rc.amount) + "));");
+    }
+  }
+
+  @Override
+  public void localOp(BuiltinOpcode op, Var out, List<Arg> in) {
+    List<String> args = new ArrayList<String>();
+    for (Arg a: in) {
+      args.add(valueExpr(a));
+    }
+    emitResult(out, opExpr(op, args), isVoidOp(op), false);
+  }
+
+  @Override
+  public void asyncOp(BuiltinOpcode op, Var out, List<Arg> in,
+                      TaskProps props) {
+    List<Var> waitVars = new ArrayList<Var>();
+    List<Var> used = new ArrayList<Var>();
+    for (Arg a: in) {
+      if (a.isVar()) {
+        used.add(a.getVar());
+        if (!isValueVar(a.getVar())) {
+          waitVars.add(a.getVar());
+        }
+      }
+    }
+    if (out != null) {
+      used.add(out);
+    }
+
+    startTask(waitVars, used, priority(props));
+    List<String> args = new ArrayList<String>();
+    for (Arg a: in) {
+      args.add(readExpr(a));
+    }
+    emitResult(out, opExpr(op, args), isVoidOp(op), true);
+    endTask();
+  }
+
+  @Override
+  public void callForeignFunctionLocal(FnID id, List<Var> outputs,
+                                       List<Arg> inputs) {
+    List<String> args = new ArrayList<String>();
+    for (Arg a: inputs) {
+      args.add(valueExpr(a));
+    }
+    emitResult(outputs.isEmpty() ? null : outputs.get(0),
+        foreignCallExpr(id, args, outputs), isVoidForeign(id), false);
+  }
+
+  @Override
+  public void callForeignFunctionWrapped(FnID id, List<Var> outputs,
+                                         List<Arg> inputs, TaskProps props) {
+    List<Var> waitVars = new ArrayList<Var>();
+    List<Var> used = new ArrayList<Var>(outputs);
+    for (Arg a: inputs) {
+      if (a.isVar()) {
+        used.add(a.getVar());
+        if (!isValueVar(a.getVar())) {
+          waitVars.add(a.getVar());
+        }
+      }
+    }
+
+    startTask(waitVars, used, priority(props));
+    List<String> args = new ArrayList<String>();
+    for (Arg a: inputs) {
+      args.add(readExpr(a));
+    }
+    emitResult(outputs.isEmpty() ? null : outputs.get(0),
+        foreignCallExpr(id, args, outputs), isVoidForeign(id), true);
+    endTask();
+  }
+
+  /**
+   * Emit code to store result of operation
+   * @param out output variable, or null if none
+   * @param expr Java expression for result
+   * @param isVoid if the expression is a call to a void method, in
+   *        which case any output is a void variable
+   * @param future if output is a future rather than a local value
+   */
+  private void emitResult(Var out, String expr, boolean isVoid,
+                          boolean future) {
+    if (expr == null) {
+      // Not supported
+      return;
+    }
+    if (isVoid || out == null) {
+      code().line(expr + ";");
+      if (out == null) {
+        return;
+      }
+      assert(Types.isVoid(out) || Types.isVoidVal(out)) : out;
+      expr = "0L";
+    }
+    if (future) {
+      setFuture(out, expr, null);
+    } else {
+      assignValue(out, expr);
+    }
+  }
+
+  private static boolean isVoidOp(BuiltinOpcode op) {
+    return op == BuiltinOpcode.ASSERT || op == BuiltinOpcode.ASSERT_EQ;
+  }
+
+  private boolean isVoidForeign(FnID id) {
+    return !foreignFuncs.hasOpEquiv(id) ||
+            isVoidOp(foreignFuncs.getOpEquiv(id));
+  }
+
+  /**
+   * Translate call to foreign function with input values
+   * @return Java expression for result, or null if not supported
+   */
+  private String foreignCallExpr(FnID id, List<String> args,
+                                 List<Var> outputs) {
+    if (foreignFuncs.hasOpEquiv(id)) {
+      return opExpr(foreignFuncs.getOpEquiv(id), args);
+    }
+
+    if (outputs.size() > 1) {
+      unsupported("foreign function " + id.originalName());
+      return null;
+    }
+    String name = id.originalName();
+    if (name.equals("trace")) {
+      return "JVMRuntime.trace(" + joinArgs(args) + ")";
+    } else if (name.equals("assert") && args.size() == 2) {
+      return "JVMRuntime.assertTrue(" + joinArgs(args) + ")";
+    } else if (name.equals("assertEqual") && args.size() == 3) {
+      return "JVMRuntime.assertEqual(" + joinArgs(args) + ")";
+    } else {
+      unsupported("foreign function " + name);
+      return null;
+    }
+  }
+
+  @Override
+  public void functionCall(FnID id, List<Var> outputs, List<Arg> inputs,
+      List<Boolean> blockOn, ExecTarget mode, TaskProps props) {
+    if (foreignFuncs.isForeignFunction(id)) {
+      callForeignFunctionWrapped(id, outputs, inputs, props);
+      return;
+    }
+
+    List<String> args = new ArrayList<String>();
+    List<Var> used = new ArrayList<Var>(outputs);
+    List<Var> waitVars = new ArrayList<Var>();
+    for (Var out: outputs) {
+      args.add(varName(out));
+    }
+    for (int i = 0; i < inputs.size(); i++) {
+      Arg in = inputs.get(i);
+      args.add(argExpr(in));
+      if (in.isVar()) {
+        used.add(in.getVar());
+        if (blockOn != null && i < blockOn.size() && blockOn.get(i)) {
+          waitVars.add(in.getVar());
+        }
+      }
+    }
+
+    String call = methodName(id) + "(" + joinArgs(args) + ");";
+    if (mode.isAsync()) {
+      startTask(waitVars, used, priority(props));
+      code().line(call);
+      endTask();
+    } else {
+      code().line(call);
+    }
+  }
+
+  @Override
+  public void execExternal(Arg cmd, List<Arg> args, List<Var> outFiles,
+      List<Arg> inFiles, Redirects<Arg> redirects, boolean hasSideEffects,
+      boolean deterministic) {
+    unsupported("app functions");
+  }
+
+  @Override
+  public void assignScalar(Var dst, Arg src) {
+    setFuture(dst, valueExpr(src), null);
+  }
+
+  @Override
+  public void retrieveScalar(Var dst, Var src, Arg decr) {
+    assignValue(dst, readExpr(src.asArg()));
+  }
+
+  @Override
+  public void assignFile(Var dst, Arg src, Arg setFilename) {
+    unsupported("files");
+  }
+
+  @Override
+  public void retrieveFile(Var dst, Var src, Arg decr) {
+    unsupported("files");
+  }
+
+  @Override
+  public void assignMulti(List<Assignment> assignments) {
+    for (Assignment a: assignments) {
+      if (Types.isStruct(a.dst)) {
+        assignStruct(a.dst, a.src);
+      } else {
+        assignScalar(a.dst, a.src);
+      }
+    }
+  }
+
+  @Override
+  public void retrieveMulti(List<Retrieval> retrievals) {
+    for (Retrieval r: retrievals) {
+      if (Types.isFile(r.src)) {
+        retrieveFile(r.dst, r.src, r.decr);
+      } else {
+        retrieveScalar(r.dst, r.src, r.decr);
+      }
+    }
+  }
+
+  @Override
+  public void assignReference(Var dst, Var src, long readRefs,
+                              long writeRefs) {
+    unsupported("references");
+  }
+
+  @Override
+  public void retrieveReference(Var dst, Var src, Arg acquireRead,
+                                Arg acquireWrite, Arg decr) {
+    unsupported("references");
+  }
+
+  @Override
+  public void assignArray(Var dst, Arg src) {
+    code().line("JVMRuntime.insertAll(" + fnLiteral() + ", " +
+        nameLiteral(dst) + ", " + varName(dst) + ", " + argExpr(src) +
+        ", 1);");
+  }
+
+  @Override
+  public void retrieveArray(Var dst, Var src, Arg decr) {
+    assignValue(dst, varName(src) + ".members()");
+  }
+
+  @Override
+  public void assignBag(Var dst, Arg src) {
+    unsupported("bags");
+  }
+
+  @Override
+  public void retrieveBag(Var dst, Var src, Arg decr) {
+    unsupported("bags");
+  }
+
+  @Override
+  public void assignStruct(Var dst, Arg src) {
+    unsupported("structs");
+  }
+
+  @Override
+  public void retrieveStruct(Var target, Var src, Arg decr) {
+    unsupported("structs");
+  }
+
+  @Override
+  public void assignArrayRecursive(Var dst, Arg src) {
+    // Only arrays of scalars are supported
+    assignArray(dst, src);
+  }
+
+  @Override
+  public void assignStructRecursive(Var dst, Arg src) {
+    unsupported("structs");
+  }
+
+  @Override
+  public void assignBagRecursive(Var dst, Arg src) {
+    unsupported("bags");
+  }
+
+  @Override
+  public void retrieveArrayRecursive(Var dst, Var src, Arg decr) {
+    retrieveArray(dst, src, decr);
+  }
+
+  @Override
+  public void retrieveStructRecursive(Var dst, Var src, Arg decr) {
+    unsupported("structs");
+  }
+
+  @Override
+  public void retrieveBagRecursive(Var dst, Var src, Arg decr) {
+    unsupported("bags");
+  }
+
+  @Override
+  public void unpackArrayToFlat(Var flatLocalArray, Arg inputArray) {
+    unsupported("unpacking nested arrays");
+  }
+
+  @Override
+  public void dereferenceScalar(Var dst, Var src) {
+    unsupported("references");
+  }
+
+  @Override
+  public void dereferenceFile(Var dst, Var src) {
+    unsupported("files");
+  }
+
+  @Override
+  public void makeAlias(Var dst, Var src) {
+    code().line(varName(dst) + " = " + varName(src) + ";");
+  }
+
+  @Override
+  public void asyncCopy(Var dst, Var src) {
+    startTask(Arrays.asList(src), Arrays.asList(dst, src), null);
+    syncCopy(dst, src);
+    endTask();
+  }
+
+  @Override
+  public void syncCopy(Var dst, Var src) {
+    if (Types.isArray(dst)) {
+      code().line("JVMRuntime.insertAll(" + fnLiteral() + ", " +
+          nameLiteral(dst) + ", " + varName(dst) + ", " + varName(src) +
+          ".members(), 1);");
+    } else {
+      setFuture(dst, readExpr(src.asArg()), null);
+    }
+  }
+
+  @Override
+  public void buildStructLocal(Var struct, List<List<String>> fieldPaths,
+                               List<Arg> fieldVals) {
+    unsupported("structs");
+  }
+
+  @Override
+  public void decrLocalFileRefCount(Var fileVal) {
+    unsupported("files");
+  }
+
+  @Override
+  public void freeBlob(Var blobval) {
+    unsupported("blobs");
+  }
+
+  @Override
+  public void getFileNameAlias(Var filename, Var file) {
+    unsupported("files");
+  }
+
+  @Override
+  public void copyInFilename(Var file, Var filename) {
+    unsupported("files");
+  }
+
+  @Override
+  public void getLocalFileName(Var filename, Var file) {
+    unsupported("files");
+  }
+
+  @Override
+  public void isMapped(Var isMapped, Var file) {
+    unsupported("files");
+  }
+
+  @Override
+  public void chooseTmpFilename(Var filenameVal) {
+    unsupported("files");
+  }
+
+  @Override
+  public void initLocalOutputFile(Var localFile, Arg filenameVal,
+                                  Arg isMapped) {
+    unsupported("files");
+  }
+
+  @Override
+  public void getFilenameVal(Var filenameVal, Var file) {
+    unsupported("files");
+  }
+
+  @Override
+  public void setFilenameVal(Var file, Arg filenameVal) {
+    unsupported("files");
+  }
+
+  @Override
+  public void copyFileContents(Var dst, Var src) {
+    unsupported("files");
+  }
+
+  @Override
+  public void structCreateAlias(Var dst, Var struct, List<String> fields) {
+    unsupported("structs");
+  }
+
+  @Override
+  public void structRetrieveSub(Var dst, Var struct, List<String> fields,
+                                Arg decr) {
+    unsupported("structs");
+  }
+
+  @Override
+  public void structCopyOut(Var dst, Var struct, List<String> fields) {
+    unsupported("structs");
+  }
+
+  @Override
+  public void structRefCopyOut(Var dst, Var struct, List<String> fields) {
+    unsupported("structs");
+  }
+
+  @Override
+  public void structStore(Var struct, List<String> fields, Arg src) {
+    unsupported("structs");
+  }
+
+  @Override
+  public void structCopyIn(Var struct, List<String> fields, Var src) {
+    unsupported("structs");
+  }
+
+  @Override
+  public void structRefStoreSub(Var structRef, List<String> fields,
+                                Arg src) {
+    unsupported("structs");
+  }
+
+  @Override
+  public void structRefCopyIn(Var structRef, List<String> fields,
+                              Var src) {
+    unsupported("structs");
+  }
+
+  @Override
+  public void structCreateNested(Var result, Var struct,
+      List<String> fields, Arg callerReadRefs, Arg callerWriteRefs,
+      Arg readDecr, Arg writeDecr) {
+    unsupported("structs");
+  }
+
+  @Override
+  public void arrayCreateAlias(Var dst, Var array, Arg key) {
+    unsupported("array member aliases");
+  }
+
+  @Override
+  public void arrayRetrieve(Var dst, Var array, Arg key, Arg decr,
+                            Arg acquire) {
+    assignValue(dst, "(" + boxedType(dst.type()) + ")JVMRuntime.lookup(" +
+        fnLiteral() + ", " + nameLiteral(array) + ", " + varName(array) +
+        ", " + keyExpr(key) + ")");
+  }
+
+  @Override
+  public void arrayCopyOutImm(Var dst, Var array, Arg key) {
+    List<Var> used = new ArrayList<Var>(Arrays.asList(dst, array));
+    if (key.isVar()) {
+      used.add(key.getVar());
+    }
+    startMemberTask(array, key, used);
+    setFuture(dst, "(" + boxedType(dst.type()) +
+        ")JVMRuntime.lookup(" + fnLiteral() + ", " + nameLiteral(array) +
+        ", " + varName(array) + ", " + keyExpr(key) + ")", null);
+    endTask();
+  }
+
+  @Override
+  public void arrayCopyOutFuture(Var dst, Var array, Var key) {
+    List<Var> used = Arrays.asList(dst, array, key);
+    startTask(Arrays.asList(key), used, null);
+    startMemberTask(array, key.asArg(), used);
+    setFuture(dst, "(" + boxedType(dst.type()) +
+        ")JVMRuntime.lookup(" + fnLiteral() + ", " + nameLiteral(array) +
+        ", " + varName(array) + ", " + keyExpr(key.asArg()) + ")", null);
+    endTask();
+    endTask();
+  }
+
+  @Override
+  public void arrayRefCopyOutImm(Var dst, Var array, Arg key) {
+    unsupported("references");
+  }
+
+  @Override
+  public void arrayRefCopyOutFuture(Var dst, Var array, Var key) {
+    unsupported("references");
+  }
+
+  @Override
+  public void arrayContains(Var dst, Var array, Arg key) {
+    assignValue(dst, "(" + varName(array) + ".lookup(" + keyExpr(key) +
+                ") != null)");
+  }
+
+  @Override
+  public void arrayLocalContains(Var dst, Var array, Arg key) {
+    assignValue(dst, varName(array) + ".containsKey(" + keyExpr(key) + ")");
+  }
+
+  @Override
+  public void containerSize(Var dst, Var container) {
+    assignValue(dst, "(long)" + varName(container) + ".size()");
+  }
+
+  @Override
+  public void containerLocalSize(Var dst, Var container) {
+    assignValue(dst, "(long)" + varName(container) + ".size()");
+  }
+
+  @Override
+  public void arrayStore(Var array, Arg key, Arg member, Arg writeDecr) {
+    code().line(varName(array) + ".insert(" + fnLiteral() + ", " +
+        nameLiteral(array) + ", " + keyExpr(key) + ", (Object)" +
+        valueExpr(member) + writersDecr(writeDecr) + ");");
+  }
+
+  @Override
+  public void arrayStoreFuture(Var array, Var key, Arg member,
+                               Arg writeDecr) {
+    List<Var> used = new ArrayList<Var>(Arrays.asList(array, key));
+    if (member.isVar()) {
+      used.add(member.getVar());
+    }
+    startTask(Arrays.asList(key), used, null);
+    code().line(varName(array) + ".insert(" + fnLiteral() + ", " +
+        nameLiteral(array) + ", " + keyExpr(key.asArg()) + ", (Object)" +
+        valueExpr(member) + writersDecr(writeDecr) + ");");
+    endTask();
+  }
+
+  @Override
+  public void arrayCopyInImm(Var array, Arg key, Var member,
+                             Arg writeDecr) {
+    List<Var> used = new ArrayList<Var>(Arrays.asList(array, member));
+    if (key.isVar()) {
+      used.add(key.getVar());
+    }
+    startTask(Arrays.asList(member), used, null);
+    code().line(varName(array) + ".insert(" + fnLiteral() + ", " +
+        nameLiteral(array) + ", " + keyExpr(key) + ", (Object)" +
+        readExpr(member.asArg()) + writersDecr(writeDecr) + ");");
+    endTask();
+  }
+
+  @Override
+  public void arrayCopyInFuture(Var array, Var key, Var member,
+                                Arg writeDecr) {
+    startTask(Arrays.asList(key, member), Arrays.asList(array, key, member),
+              null);
+    code().line(varName(array) + ".insert(" + fnLiteral() + ", " +
+        nameLiteral(array) + ", " + keyExpr(key.asArg()) + ", (Object)" +
+        readExpr(member.asArg()) + writersDecr(writeDecr) + ");");
+    endTask();
+  }
+
+  @Override
+  public void arrayRefStoreImm(Var array, Arg key, Arg member) {
+    unsupported("references");
+  }
+
+  @Override
+  public void arrayRefStoreFuture(Var array, Var key, Arg member) {
+    unsupported("references");
+  }
+
+  @Override
+  public void arrayRefCopyInImm(Var array, Arg ix, Var member) {
+    unsupported("references");
+  }
+
+  @Override
+  public void arrayRefCopyInFuture(Var array, Var ix, Var member) {
+    unsupported("references");
+  }
+
+  @Override
+  public void arrayBuild(Var array, List<Arg> keys, List<Arg> vals) {
+    assert(keys.size() == vals.size());
+    for (int i = 0; i < keys.size(); i++) {
+      code().line(varName(array) + ".insert(" + fnLiteral() + ", " +
+          nameLiteral(array) + ", " + keyExpr(keys.get(i)) + ", (Object)" +
+          valueExpr(vals.get(i)) + ");");
+    }
+    code().line(varName(array) + ".incrWriters(" + fnLiteral() + ", " +
+                nameLiteral(array) + ", -1);");
+  }
+
+  @Override
+  public void arrayCreateNestedImm(Var result, Var outerArray, Arg key,
+      Arg callerReadRefs, Arg callerWriteRefs, Arg readDecr,
+      Arg writeDecr) {
+    unsupported("nested arrays");
+  }
+
+  @Override
+  public void arrayCreateNestedFuture(Var result, Var outerArray,
+                                      Var key) {
+    unsupported("nested arrays");
+  }
+
+  @Override
+  public void arrayRefCreateNestedImm(Var result, Var array, Arg ix) {
+    unsupported("nested arrays");
+  }
+
+  @Override
+  public void arrayRefCreateNestedFuture(Var result, Var array, Var ix) {
+    unsupported("nested arrays");
+  }
+
+  @Override
+  public void bagInsert(Var bag, Arg value, Arg writeDecr) {
+    unsupported("bags");
+  }
+
+  @Override
+  public void initScalarUpdateable(Var updateable, Arg val) {
+    unsupported("updateable variables");
+  }
+
+  @Override
+  public void latestValue(Var result, Var updateable) {
+    unsupported("updateable variables");
+  }
+
+  @Override
+  public void updateScalarFuture(Var updateable,
+                      Operators.UpdateMode updateMode, Var val) {
+    unsupported("updateable variables");
+  }
+
+  @Override
+  public void updateScalarImm(Var updateable,
+                      Operators.UpdateMode updateMode, Arg val) {
+    unsupported("updateable variables");
+  }
+
+  @Override
+  public void checkpointLookupEnabled(Var out) {
+    // Checkpointing is never enabled
+    assignValue(out, "false");
+  }
+
+  @Override
+  public void checkpointWriteEnabled(Var out) {
+    assignValue(out, "false");
+  }
+
+  @Override
+  public void writeCheckpoint(Arg key, Arg val) {
+    // Checkpointing is never enabled
+  }
+
+  @Override
+  public void lookupCheckpoint(Var checkpointExists, Var val, Arg key) {
+    assignValue(checkpointExists, "false");
+  }
+
+  @Override
+  public void packValues(Var packed, List<Arg> unpacked) {
+    unsupported("checkpointing");
+  }
+
+  @Override
+  public void unpackValues(List<Var> unpacked, Arg packed) {
+    unsupported("checkpointing");
+  }
+
+  /**
+   * Java expression for builtin operation on input values
+   */
+  private String opExpr(BuiltinOpcode op, List<String> in) {
+    switch (op) {
+      case PLUS_INT:
+      case PLUS_FLOAT:
+        return binop(in, "+");
+      case MINUS_INT:
+      case MINUS_FLOAT:
+        return binop(in, "-");
+      case MULT_INT:
+      case MULT_FLOAT:
+        return binop(in, "*");
+      case DIV_INT:
+      case DIV_FLOAT:
+        return binop(in, "/");
+      case MOD_INT:
+        return binop(in, "%");
+      case NEGATE_INT:
+      case NEGATE_FLOAT:
+        return "(-(" + in.get(0) + "))";
+      case POW_INT:
+        return "JVMRuntime.powInt(" + joinArgs(in) + ")";
+      case POW_FLOAT:
+        return "Math.pow(" + joinArgs(in) + ")";
+      case MAX_INT:
+      case MAX_FLOAT:
+        return "Math.max(" + joinArgs(in) + ")";
+      case MIN_INT:
+      case MIN_FLOAT:
+        return "Math.min(" + joinArgs(in) + ")";
+      case ABS_INT:
+      case ABS_FLOAT:
+        return "Math.abs(" + in.get(0) + ")";
+      case EQ_INT:
+      case EQ_FLOAT:
+      case EQ_BOOL:
+        return binop(in, "==");
+      case NEQ_INT:
+      case NEQ_FLOAT:
+      case NEQ_BOOL:
+      case XOR:
+        return binop(in, "!=");
+      case GT_INT:
+      case GT_FLOAT:
+        return binop(in, ">");
+      case LT_INT:
+      case LT_FLOAT:
+        return binop(in, "<");
+      case GTE_INT:
+      case GTE_FLOAT:
+        return binop(in, ">=");
+      case LTE_INT:
+      case LTE_FLOAT:
+        return binop(in, "<=");
+      case EQ_STRING:
+        return "(" + in.get(0) + ").equals(" + in.get(1) + ")";
+      case NEQ_STRING:
+        return "!(" + in.get(0) + ").equals(" + in.get(1) + ")";
+      case NOT:
+        return "(!" + in.get(0) + ")";
+      case AND:
+        return binop(in, "&&");
+      case OR:
+        return binop(in, "||");
+      case STRCAT:
+        return "(\"\" + " + joinOp(in, "+") + ")";
+      case DIRCAT:
+        return "(" + in.get(0) + " + \"/\" + " + in.get(1) + ")";
+      case SUBSTRING:
+        return "JVMRuntime.substring(" + joinArgs(in) + ")";
+      case COPY_INT:
+      case COPY_FLOAT:
+      case COPY_BOOL:
+      case COPY_STRING:
+      case COPY_VOID:
+        return in.get(0);
+      case FLOOR:
+        return "Math.floor(" + in.get(0) + ")";
+      case CEIL:
+        return "Math.ceil(" + in.get(0) + ")";
+      case ROUND:
+        return "JVMRuntime.round(" + in.get(0) + ")";
+      case INTTOFLOAT:
+        return "(double)" + in.get(0);
+      case FLOATTOINT:
+        return "(long)" + in.get(0);
+      case PARSE_INT:
+        if (in.size() == 2) {
+          return "Long.parseLong(" + in.get(0) + ".trim(), (int)" + in.get(1) +
+                 ")";
+        }
+        return "Long.parseLong(" + in.get(0) + ".trim())";
+      case INTTOSTR:
+        return "Long.toString(" + in.get(0) + ")";
+      case PARSE_FLOAT:
+        return "Double.parseDouble(" + in.get(0) + ".trim())";
+      case FLOATTOSTR:
+        return "JVMRuntime.floatToString(" + in.get(0) + ")";
+      case LOG:
+        return "Math.log(" + in.get(0) + ")";
+      case EXP:
+        return "Math.exp(" + in.get(0) + ")";
+      case SQRT:
+        return "Math.sqrt(" + in.get(0) + ")";
+      case IS_NAN:
+        return "Double.isNaN(" + in.get(0) + ")";
+      case ASSERT:
+        return "JVMRuntime.assertTrue(" + joinArgs(in) + ")";
+      case ASSERT_EQ:
+        return "JVMRuntime.assertEqual(" + joinArgs(in) + ")";
+      default:
+        unsupported("operator " + op.toString().toLowerCase());
+        return null;
+    }
+  }
+
+  private static String binop(List<String> in, String op) {
+    assert(in.size() == 2) : in;
+    return "(" + joinOp(in, op) + ")";
+  }
+
+  private static String joinOp(List<String> in, String op) {
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < in.size(); i++) {
+      if (i > 0) {
+        sb.append(" " + op + " ");
+      }
+      sb.append(in.get(i));
+    }
+    return sb.toString();
+  }
+
+  private static String joinArgs(List<String> args) {
+    return joinOp(args, ",").replace(" , ", ", ");
+  }
+
+  /**
+   * Assign local value variable
+   */
+  private void assignValue(Var dst, String expr) {
+    if (dst == null) {
+      // Operation with no output, e.g. assert
+      code().line(expr + ";");
+    } else {
+      code().line(varName(dst) + " = " + expr + ";");
+    }
+  }
+
+  /**
+   * Set future variable
+   * @param decr expression for writers to decrement, or null for default
+   */
+  private void setFuture(Var dst, String expr, String decr) {
+    if (dst == null) {
+      code().line(expr + ";");
+      return;
+    }
+    code().line(varName(dst) + ".set(" + fnLiteral() + ", " +
+        nameLiteral(dst) + ", " + expr +
+        (decr == null ? "" : ", " + decr) + ");");
+  }
+
+  private String writersDecr(Arg writeDecr) {
+    if (writeDecr == null) {
+      return "";
+    }
+    return ", (int)(" + valueExpr(writeDecr) + ")";
+  }
+
+  private static String writers(Arg initWriters) {
+    if (initWriters == null) {
+      return "1";
+    }
+    return "(int)(" + valueExpr(initWriters) + ")";
+  }
+
+  /**
+   * Expression for array key, boxed as Object
+   */
+  private String keyExpr(Arg key) {
+    return "(Object)" + readExpr(key);
+  }
+
+  /**
+   * Expression for argument passed as-is, i.e. future variables as the
+   * variable object
+   */
+  private static String argExpr(Arg arg) {
+    if (arg.isVar()) {
+      return varName(arg.getVar());
+    }
+    return valueExpr(arg);
+  }
+
+  /**
+   * Expression for value of argument, reading future variables, which
+   * must already be closed
+   */
+  private String readExpr(Arg arg) {
+    if (arg.isVar() && !isValueVar(arg.getVar())) {
+      Var var = arg.getVar();
+      return varName(var) + ".get(" + fnLiteral() + ", " +
+             nameLiteral(var) + ")";
+    }
+    return valueExpr(arg);
+  }
+
+  /**
+   * Expression for value of literal or local value
+   */
+  private static String valueExpr(Arg arg) {
+    switch (arg.kind) {
+      case INTVAL:
+        return arg.getInt() + "L";
+      case FLOATVAL:
+        return doubleLiteral(arg.getFloat());
+      case STRINGVAL:
+        return stringLiteral(arg.getString());
+      case BOOLVAL:
+        return arg.getBool() ? "true" : "false";
+      case VAR:
+        return varName(arg.getVar());
+      default:
+        throw new STCRuntimeError("Unexpected arg kind " + arg.kind);
+    }
+  }
+
+  private static String doubleLiteral(double val) {
+    if (Double.isNaN(val)) {
+      return "Double.NaN";
+    } else if (Double.isInfinite(val)) {
+      return val > 0 ? "Double.POSITIVE_INFINITY" :
+                       "Double.NEGATIVE_INFINITY";
+    }
+    return Double.toString(val);
+  }
+
+  static String stringLiteral(String s) {
+    StringBuilder sb = new StringBuilder("\"");
+    for (int i = 0; i < s.length(); i++) {
+      char c = s.charAt(i);
+      switch (c) {
+        case '"':
+          sb.append("\\\"");
+          break;
+        case '\\':
+          sb.append("\\\\");
+          break;
+        case '\n':
+          sb.append("\\n");
+          break;
+        case '\r':
+          sb.append("\\r");
+          break;
+        case '\t':
+          sb.append("\\t");
+          break;
+        default:
+          if (c < 0x20 || c > 0x7e) {
+            sb.append(String.format("\\u%04x", (int)c));
+          } else {
+            sb.append(c);
+          }
+      }
+    }
+    sb.append('"');
+    return sb.toString();
+  }
+
+  private String fnLiteral() {
+    return stringLiteral(currentFunction == null ? "" : currentFunction);
+  }
+
+  private static String nameLiteral(Var var) {
+    return stringLiteral(var.name());
+  }
+
+  private static String varArray(List<Var> vars) {
+    StringBuilder sb = new StringBuilder("new BaseVar[] {");
+    for (int i = 0; i < vars.size(); i++) {
+      if (i > 0) {
+        sb.append(", ");
+      }
+      sb.append(varName(vars.get(i)));
+    }
+    sb.append("}");
+    return sb.toString();
+  }
+
+  private String formalArgs(List<Var> params) {
+    StringBuilder sb = new StringBuilder();
+    for (Var param: params) {
+      String type = javaType(param.type());
+      if (type == null) {
+        unsupported("argument of type " + param.type().typeName());
+        type = "Object";
+      }
+      if (sb.length() > 0) {
+        sb.append(", ");
+      }
+      sb.append(type + " " + varName(param));
+    }
+    return sb.toString();
+  }
+
+  /**
+   * Copy variables into final variables so they can be used in an inner
+   * class.  Global variables are static fields and don't need copying.
+   */
+  private List<Capture> capture(List<Var> vars) {
+    List<Capture> captures = new ArrayList<Capture>();
+    Set<Var> seen = new HashSet<Var>();
+    for (Var var: vars) {
+      if (var.storage().isGlobal() || !seen.add(var)) {
+        continue;
+      }
+      String type = javaType(var.type());
+      if (type == null) {
+        unsupported("variable of type " + var.type().typeName());
+        continue;
+      }
+      Capture c = new Capture(type, varName(var), tmpName("c"));
+      code().line("final " + c.type + " " + c.copy + " = " + c.name + ";");
+      captures.add(c);
+    }
+    return captures;
+  }
+
+  /**
+   * Restore captured variables under original names inside inner class
+   */
+  private void restore(List<Capture> captures) {
+    for (Capture c: captures) {
+      code().line(c.type + " " + c.name + " = " + c.copy + ";");
+    }
+  }
+
+  private JavaCode code() {
+    return codeStack.peek();
+  }
+
+  private String tmpName(String prefix) {
+    return prefix + "$" + (nextTmp++);
+  }
+
+  private String uniqueMethodName(String name) {
+    String unique = name;
+    int next = 1;
+    while (usedMethodNames.contains(unique)) {
+      unique = name + "_" + next++;
+    }
+    usedMethodNames.add(unique);
+    return unique;
+  }
+
+  private static String methodName(FnID id) {
+    return "f_" + sanitize(id.uniqueName());
+  }
+
+  static String varName(Var var) {
+    return "v_" + sanitize(var.name());
+  }
+
+  /**
+   * Convert Swift name into valid Java identifier part.  ':' is common in
+   * compiler-generated names so gets a short replacement.
+   */
+  static String sanitize(String name) {
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < name.length(); i++) {
+      char c = name.charAt(i);
+      if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') ||
+          (c >= '0' && c <= '9') || c == '_') {
+        sb.append(c);
+      } else if (c == ':') {
+        sb.append('$');
+      } else {
+        sb.append("$$" + Integer.toHexString(c));
+      }
+    }
+    return sb.toString();
+  }
+
+  private static boolean isValueVar(Var var) {
+    return Types.isPrimValue(var) || Types.isContainerLocal(var);
+  }
+
+  private static boolean isFutureVar(Var var) {
+    return Types.isPrimFuture(var) || Types.isArray(var);
+  }
+
+  /**
+   * @return Java type of variable, or null if not supported
+   */
+  static String javaType(Type t) {
+    if (Types.isIntVal(t) || Types.isVoidVal(t)) {
+      return "long";
+    } else if (Types.isFloatVal(t)) {
+      return "double";
+    } else if (Types.isBoolVal(t)) {
+      return "boolean";
+    } else if (Types.isStringVal(t)) {
+      return "String";
+    } else if (Types.isInt(t) || Types.isVoid(t)) {
+      return "IntVar";
+    } else if (Types.isFloat(t)) {
+      return "FloatVar";
+    } else if (Types.isBool(t)) {
+      return "ObjectVar<Boolean>";
+    } else if (Types.isString(t)) {
+      return "StringVar";
+    } else if (Types.isArray(t) && supportedArray(t)) {
+      return "ContainerVar<Object, Object>";
+    } else if (Types.isArrayLocal(t) && supportedArray(t)) {
+      return "Map<Object, Object>";
+    }
+    return null;
+  }
+
+  /**
+   * Arrays are supported if keys and members are scalars, which are
+   * stored as boxed values
+   */
+  private static boolean supportedArray(Type t) {
+    return boxedType(Types.arrayKeyType(t)) != null &&
+           boxedType(Types.containerElemType(t)) != null;
+  }
+
+  /**
+   * @return Java type that scalar values are boxed as, or null if not a
+   *         supported scalar
+   */
+  private static String boxedType(Type t) {
+    if (Types.isIntVal(t) || Types.isInt(t) ||
+        Types.isVoidVal(t) || Types.isVoid(t)) {
+      return "Long";
+    } else if (Types.isFloatVal(t) || Types.isFloat(t)) {
+      return "Double";
+    } else if (Types.isBoolVal(t) || Types.isBool(t)) {
+      return "Boolean";
+    } else if (Types.isStringVal(t) || Types.isString(t)) {
+      return "String";
+    }
+    return null;
+  }
+
+  private static String defaultValue(Type t) {
+    if (Types.isIntVal(t) || Types.isVoidVal(t)) {
+      return "0L";
+    } else if (Types.isFloatVal(t)) {
+      return "0.0";
+    } else if (Types.isBoolVal(t)) {
+      return "false";
+    } else {
+      return "null";
+    }
+  }
+
+  /**
+   * Indented Java source for a method or group of declarations
+   */
+  private static class JavaCode {
+    private final StringBuilder sb = new StringBuilder();
+    private int indent;
+
+    JavaCode(int indent) {
+      this.indent = indent;
+    }
+
+    void line(String s) {
+      for (int i = 0; i < indent; i++) {
+        sb.append("  ");
+      }
+      sb.append(s);
+      sb.append('\n');
+    }
+
+    void open(String s) {
+      line(s);
+      indent++;
+    }
+
+    void close(String s) {
+      indent--;
+      line(s);
+    }
+  }
+
+  /**
+   * Variable copied into final variable for use in inner class
+   */
+  private static class Capture {
+    final String type;
+    final String name;
+    final String copy;
+
+    Capture(String type, String name, String copy) {
+      this.type = type;
+      this.name = name;
+      this.copy = copy;
+    }
+  }
+
+  private static class EnclosingLoop {
+    final String methodName;
+    final boolean simpleLoop;
+    final List<Var> loopVars;
+    /** Variables passed to each iteration that aren't loop vars */
+    final List<Var> usedVars;
+    final String condVar;
+
+    EnclosingLoop(String methodName, boolean simpleLoop, List<Var> loopVars,
+                  List<Var> usedVars) {
+      this.methodName = methodName;
+      this.simpleLoop = simpleLoop;
+      this.loopVars = loopVars;
+      this.usedVars = usedVars;
+      this.condVar = "loop$cond";
+    }
+
+    String nextName(Var loopVar) {
+      return "next$" + varName(loopVar);
+    }
+
+    String callExpr(List<String> args) {
+      return methodName + "(" + joinArgs(args) + ")";
+    }
+  }
+
+  private static class SwitchState {
+    final String switchVar;
+    final List<Integer> caseLabels;
+    final boolean hasDefault;
+    int nextCase = 0;
+
+    SwitchState(String switchVar, List<Integer> caseLabels,
+                boolean hasDefault) {
+      this.switchVar = switchVar;
+      this.caseLabels = caseLabels;
+      this.hasDefault = hasDefault;
+    }
+  }
+}
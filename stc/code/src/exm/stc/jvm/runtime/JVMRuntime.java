@@ -1,10 +1,315 @@
 package exm.stc.jvm.runtime;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
 import org.apache.log4j.Logger;
 
+import exm.stc.jvm.runtime.Vars.BaseVar;
+import exm.stc.jvm.runtime.Vars.ContainerVar;
+import exm.stc.jvm.runtime.Vars.NotifyTarget;
+
+/**
+ * Support functions for programs compiled by the JVM backend
+ */
 public class JVMRuntime {
 
+  /** System property to set number of worker threads */
+  public static final String THREADS_PROPERTY = "swift.jvm.threads";
+
   public static Logger getLogger() {
     return Logger.getLogger(JVMRuntime.class);
   }
+
+  /** Number of tasks waiting for data */
+  private static final AtomicInteger blockedTasks = new AtomicInteger(0);
+
+  /**
+   * Run program entry point to completion, then exit if it failed, or if
+   * tasks were left waiting for data that was never written.
+   * @param executor
+   * @param entry
+   */
+  public static void runMain(WorkStealingExecutor executor, Task entry) {
+    try {
+      executor.run(entry);
+      int blocked = blockedTasks.get();
+      if (blocked > 0) {
+        System.err.println("swift: " + blocked + " task(s) still waiting " +
+            "for data at exit: variables were never written");
+        System.exit(1);
+      }
+    } catch (RuntimeException e) {
+      Throwable cause = e.getCause() != null ? e.getCause() : e;
+      System.err.println("swift: " + cause.getMessage());
+      System.exit(1);
+    } catch (InterruptedException e) {
+      System.err.println("swift: interrupted");
+      System.exit(1);
+    }
+  }
+
+  /**
+   * @return executor with number of threads configured by system property
+   */
+  public static WorkStealingExecutor createExecutor() {
+    int threads = Runtime.getRuntime().availableProcessors();
+    String prop = System.getProperty(THREADS_PROPERTY);
+    if (prop != null) {
+      threads = Integer.parseInt(prop);
+    }
+    return new WorkStealingExecutor(threads);
+  }
+
+  /**
+   * Add task to queue once all variables are closed
+   * @param queue
+   * @param vars
+   * @param priority
+   * @param task
+   */
+  public static void waitAll(final TaskQueue queue, BaseVar vars[],
+                             final int priority, final Task task) {
+    if (vars.length == 0) {
+      queue.addTask(task, priority);
+      return;
+    }
+
+    // Count one extra so task isn't released until all subscribed
+    final AtomicInteger remaining = new AtomicInteger(vars.length + 1);
+    blockedTasks.incrementAndGet();
+    NotifyTarget target = new NotifyTarget() {
+      @Override
+      public void notifyFinal(BaseVar var) {
+        if (remaining.decrementAndGet() == 0) {
+          release(queue, priority, task);
+        }
+      }
+    };
+
+    for (BaseVar var: vars) {
+      if (!var.subscribe(target)) {
+        remaining.decrementAndGet();
+      }
+    }
+    if (remaining.decrementAndGet() == 0) {
+      release(queue, priority, task);
+    }
+  }
+
+  public static void waitAll(TaskQueue queue, BaseVar vars[], Task task) {
+    waitAll(queue, vars, TaskQueue.DEFAULT_PRIORITY, task);
+  }
+
+  /**
+   * Add task to queue once member of container is inserted, or the
+   * container is closed without it
+   * @param queue
+   * @param container
+   * @param key
+   * @param task
+   */
+  public static void waitMember(final TaskQueue queue,
+      ContainerVar<Object, Object> container, Object key, final Task task) {
+    blockedTasks.incrementAndGet();
+    NotifyTarget target = new NotifyTarget() {
+      @Override
+      public void notifyFinal(BaseVar var) {
+        release(queue, TaskQueue.DEFAULT_PRIORITY, task);
+      }
+    };
+    if (!container.subscribeMember(key, target)) {
+      release(queue, TaskQueue.DEFAULT_PRIORITY, task);
+    }
+  }
+
+  private static void release(TaskQueue queue, int priority, Task task) {
+    blockedTasks.decrementAndGet();
+    queue.addTask(task, priority);
+  }
+
+  /**
+   * Body of parallel loop over integer range
+   */
+  public static interface RangeBody {
+    public void run(long i) throws LogicException;
+  }
+
+  /**
+   * Run loop iterations in parallel, splitting range into tasks
+   * of at most leafDegree iterations.
+   * @param start first value
+   * @param end last value (inclusive)
+   * @param incr non-zero increment
+   */
+  public static void rangeLoop(TaskQueue queue, long start, long end,
+      long incr, int leafDegree, RangeBody body) throws LogicException {
+    long iters = rangeCount(start, end, incr);
+    if (iters > 0) {
+      splitLoop(queue, start, iters, incr, Math.max(1, leafDegree), body);
+    }
+  }
+
+  /**
+   * @return number of iterations in inclusive range
+   */
+  public static long rangeCount(long start, long end, long incr) {
+    if (incr > 0 && end >= start) {
+      return (end - start) / incr + 1;
+    } else if (incr < 0 && end <= start) {
+      return (start - end) / -incr + 1;
+    } else {
+      return 0;
+    }
+  }
+
+  private static void splitLoop(final TaskQueue queue, final long start,
+      long iters, final long incr, final int leafDegree,
+      final RangeBody body) throws LogicException {
+    // Spawn second half of range until small enough to run directly
+    while (iters > leafDegree) {
+      final long firstIters = iters / 2;
+      final long restIters = iters - firstIters;
+      final long restStart = start + firstIters * incr;
+      queue.addTask(new LogicTask() {
+        @Override
+        protected void runLogic() throws LogicException {
+          splitLoop(queue, restStart, restIters, incr, leafDegree, body);
+        }
+      });
+      iters = firstIters;
+    }
+
+    for (long k = 0; k < iters; k++) {
+      body.run(start + k * incr);
+    }
+  }
+
+  /**
+   * Body of parallel loop over container members
+   */
+  public static interface ForeachBody {
+    public void run(Object key, Object value) throws LogicException;
+  }
+
+  /**
+   * Run loop iterations over container members in parallel
+   */
+  public static void foreachLoop(final TaskQueue queue,
+      Map<Object, Object> members, final int leafDegree,
+      final ForeachBody body) throws LogicException {
+    final List<Map.Entry<Object, Object>> entries =
+                new ArrayList<Map.Entry<Object, Object>>(members.entrySet());
+    rangeLoop(queue, 0, entries.size() - 1, 1, leafDegree, new RangeBody() {
+      @Override
+      public void run(long i) throws LogicException {
+        Map.Entry<Object, Object> e = entries.get((int)i);
+        body.run(e.getKey(), e.getValue());
+      }
+    });
+  }
+
+  /**
+   * Look up member of container that must be present
+   * @throws InvalidReadException if not present
+   */
+  public static Object lookup(String fn, String varName,
+      ContainerVar<Object, Object> container, Object key)
+          throws InvalidReadException {
+    Object value = container.lookup(key);
+    if (value == null) {
+      throw new InvalidReadException("Key " + key + " of " + varName +
+          " was read before writing in function " + fn);
+    }
+    return value;
+  }
+
+  /**
+   * Insert all members of local container into container
+   */
+  public static void insertAll(String fn, String varName,
+      ContainerVar<Object, Object> container, Map<Object, Object> members,
+      int writersDecr) throws DoubleWriteException {
+    for (Map.Entry<Object, Object> e: members.entrySet()) {
+      container.insert(fn, varName, e.getKey(), e.getValue());
+    }
+    container.incrWriters(fn, varName, -1 * writersDecr);
+  }
+
+  /**
+   * Print values in same format as Turbine trace
+   */
+  public static void trace(Object... values) {
+    StringBuilder sb = new StringBuilder("trace: ");
+    for (int i = 0; i < values.length; i++) {
+      if (i > 0) {
+        sb.append(',');
+      }
+      sb.append(toString(values[i]));
+    }
+    System.out.println(sb.toString());
+  }
+
+  public static void assertTrue(boolean cond, String msg)
+                                                throws LogicException {
+    if (!cond) {
+      throw new LogicException("Assertion failed!: " + msg);
+    }
+  }
+
+  public static void assertEqual(Object a, Object b, String msg)
+                                                throws LogicException {
+    if (!toString(a).equals(toString(b))) {
+      throw new LogicException("Assertion failed " + toString(a) + " != " +
+                               toString(b) + ": " + msg);
+    }
+  }
+
+  /**
+   * Convert value to string in Turbine representation
+   */
+  public static String toString(Object value) {
+    if (value instanceof Boolean) {
+      return ((Boolean)value) ? "1" : "0";
+    } else if (value instanceof Double) {
+      return floatToString((Double)value);
+    } else {
+      return String.valueOf(value);
+    }
+  }
+
+  public static String floatToString(double value) {
+    if (Double.isNaN(value)) {
+      return "NaN";
+    } else if (Double.isInfinite(value)) {
+      return value > 0 ? "Inf" : "-Inf";
+    }
+    return Double.toString(value);
+  }
+
+  public static long powInt(long a, long b) {
+    long result = 1;
+    for (; b > 0; b >>= 1) {
+      if ((b & 1) != 0) {
+        result *= a;
+      }
+      a *= a;
+    }
+    return result;
+  }
+
+  /**
+   * Round half away from zero, like Tcl round()
+   */
+  public static double round(double x) {
+    return x < 0 ? -Math.floor(-x + 0.5) : Math.floor(x + 0.5);
+  }
+
+  public static String substring(String s, long start, long length) {
+    int begin = (int)Math.max(0, Math.min(start, s.length()));
+    int end = (int)Math.max(begin, Math.min(start + length, s.length()));
+    return s.substring(begin, end);
+  }
 }
@@ -0,0 +1,19 @@
+package exm.stc.jvm.runtime;
+
+/**
+ * Task whose body may fail with a logic error in the program.
+ * Logic errors are rethrown unchecked so that they terminate execution.
+ */
+public abstract class LogicTask implements Task {
+
+  @Override
+  public final void run() {
+    try {
+      runLogic();
+    } catch (LogicException e) {
+      throw new RuntimeException(e.getMessage(), e);
+    }
+  }
+
+  protected abstract void runLogic() throws LogicException;
+}
@@ -1,81 +1,355 @@
 package exm.stc.jvm.runtime;
 
-import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.Random;
 import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
- * The global task queue
- * TODO: priorities
+ * The global task queue, implemented as a set of work-stealing deques.
  *
+ * Each worker thread has its own deques, one per priority level, that it
+ * pushes spawned tasks onto and pops tasks from in LIFO order.  Idle
+ * workers steal the oldest tasks from other workers' deques.  Tasks
+ * targeted at a particular worker, and tasks added by threads that aren't
+ * workers, go on separate concurrent queues.
+ *
+ * The queue tracks the number of outstanding tasks: once all tasks have
+ * finished and no new ones have been added, the queue is terminated and
+ * all workers are released.  A queue can't be reused after termination.
  */
 public class TaskQueue {
-  
-  /**
-   * TODO: allow passing in of queues so that each thread
-   * can have in own local heap
-   * @param numThreads
-   */
+
+  public static final int MIN_PRIORITY = -2;
+  public static final int MAX_PRIORITY = 2;
+  public static final int DEFAULT_PRIORITY = 0;
+  private static final int PRIORITY_LEVELS = MAX_PRIORITY - MIN_PRIORITY + 1;
+
+  /** Number of unsuccessful sweeps over all queues before parking */
+  private static final int SPIN_SWEEPS = 16;
+
   public TaskQueue(int numThreads) {
+    if (numThreads <= 0) {
+      throw new IllegalArgumentException("Need at least one thread: " +
+                                         numThreads);
+    }
     this.numThreads = numThreads;
     this.targeted = new ArrayList<ConcurrentLinkedDeque<Task>>(numThreads);
-    this.regular = new ArrayList<ArrayDeque<Task>>(numThreads);
+    this.regular = new ArrayList<WorkDeque<Task>[]>(numThreads);
+    this.injected = new ArrayList<ConcurrentLinkedQueue<Task>>(
+                                                        PRIORITY_LEVELS);
     for (int i = 0; i < numThreads; i++) {
       this.targeted.add(new ConcurrentLinkedDeque<Task>());
-      this.regular.add(new ArrayDeque<Task>());
+      @SuppressWarnings({"unchecked", "rawtypes"})
+      WorkDeque<Task> deques[] = new WorkDeque[PRIORITY_LEVELS];
+      for (int level = 0; level < PRIORITY_LEVELS; level++) {
+        deques[level] = new WorkDeque<Task>();
+      }
+      this.regular.add(deques);
+    }
+    for (int level = 0; level < PRIORITY_LEVELS; level++) {
+      this.injected.add(new ConcurrentLinkedQueue<Task>());
     }
   }
-  
+
   private final int numThreads;
-  
+
   /**
-   * Targeted task queues (one per thread)
+   * Targeted task queues (one per thread).  Targeted tasks have the
+   * highest priority.
    */
   private final ArrayList<ConcurrentLinkedDeque<Task>> targeted;
-  
+
+  /**
+   * Personal non-targeted task deques (one per thread per priority level).
+   * Only the owning thread pushes and pops, other threads steal.
+   */
+  private final ArrayList<WorkDeque<Task>[]> regular;
+
+  /**
+   * Tasks added from outside worker threads (one per priority level)
+   */
+  private final ArrayList<ConcurrentLinkedQueue<Task>> injected;
+
+  /** Tasks added but not yet finished */
+  private final AtomicLong outstanding = new AtomicLong(0);
+
+  private volatile boolean terminated = false;
+
+  /** First exception thrown by a task, if any */
+  private volatile Throwable failure = null;
+
+  /** Lock and condition for idle workers */
+  private final Object idleLock = new Object();
+
+  /** Number of parked workers: written while holding idleLock */
+  private volatile int idleWorkers = 0;
+
+  public int numThreads() {
+    return numThreads;
+  }
+
+  /**
+   * Add task with default priority
+   * @param task
+   */
+  public void addTask(Task task) {
+    addTask(task, DEFAULT_PRIORITY);
+  }
+
+  /**
+   * Add task.  If called from a worker thread, the task is added to
+   * that worker's deque.
+   * @param task
+   * @param priority higher priority tasks run first, clamped to between
+   *        {@link #MIN_PRIORITY} and {@link #MAX_PRIORITY}
+   */
+  public void addTask(Task task, int priority) {
+    int level = Math.max(MIN_PRIORITY, Math.min(MAX_PRIORITY, priority))
+                - MIN_PRIORITY;
+    outstanding.incrementAndGet();
+    int threadNum = currentWorker();
+    if (threadNum >= 0) {
+      regular.get(threadNum)[level].push(task);
+    } else {
+      injected.get(level).add(task);
+    }
+    signalWork(false);
+  }
+
   /**
-   * Personal non-targeted task queue (one per thread) 
-   * TODO: priorities
+   * Add task that must be run by a particular worker
+   * @param threadNum
+   * @param task
    */
-  private final ArrayList<ArrayDeque<Task>> regular;
-  
-  
+  public void addTargeted(int threadNum, Task task) {
+    outstanding.incrementAndGet();
+    targeted.get(threadNum).addFirst(task);
+    // Must wake the targeted worker specifically
+    signalWork(true);
+  }
+
+  /**
+   * Must be called by worker after each task returned by
+   * {@link #getTask(int)} finishes.
+   */
+  public void taskFinished() {
+    if (outstanding.decrementAndGet() == 0) {
+      terminate();
+    }
+  }
+
   /**
-   * TODO: each thread should hold local reference to own deque
-   * @return a task, or null if nothing available
+   * Release all workers, even if tasks are outstanding
+   */
+  public void terminate() {
+    terminated = true;
+    synchronized (idleLock) {
+      idleLock.notifyAll();
+    }
+  }
+
+  /**
+   * Release all workers because a task failed
+   * @param cause
+   */
+  public synchronized void fail(Throwable cause) {
+    if (failure == null) {
+      failure = cause;
+    }
+    terminate();
+  }
+
+  public boolean isTerminated() {
+    return terminated;
+  }
+
+  /**
+   * @return first exception thrown by a task, or null if none
+   */
+  public Throwable failure() {
+    return failure;
+  }
+
+  /**
+   * Get the next task for a worker, waiting until one is available.
+   * @param threadNum
+   * @return a task, or null if queue was terminated
    */
   public Task getTask(int threadNum) {
+    // Per-thread state so stealing doesn't contend on shared random
+    // number generator
+    int seed = threadNum * 0x9E3779B9 + 1;
+    while (!terminated) {
+      for (int sweep = 0; sweep < SPIN_SWEEPS; sweep++) {
+        Task res = findTask(threadNum, seed);
+        if (res != null) {
+          return res;
+        }
+        seed = nextRandom(seed);
+        if (terminated) {
+          return null;
+        }
+        Thread.yield();
+      }
+      park(threadNum);
+    }
+    return null;
+  }
+
+  /**
+   * Make one attempt to find a task
+   * @param threadNum
+   * @param seed random value for victim selection
+   * @return task or null
+   */
+  private Task findTask(int threadNum, int seed) {
     // Targeted have highest priority
-    Task res = targeted.get(threadNum).pollLast();
-    if (res != null)
+    Task res = targeted.get(threadNum).pollFirst();
+    if (res != null) {
       return res;
-    
-    // Next, try to see if something in local deque
-    ArrayDeque<Task> myDeque = regular.get(threadNum);
-    synchronized (myDeque) {
-      res = myDeque.pollLast();
     }
-    if (res != null)
-      return res;
-    
-    // Finally, search other deques to steal work
-    // TODO: exit condition - detect idle, or go to sleep
-    Random r = new Random();
-    while (true) {
-      int deque = r.nextInt(numThreads - 1);
-      if (deque >= threadNum)
-        deque++;
-      
-      ArrayDeque<Task> otherDeque = regular.get(threadNum);
-      // Task from other end
-      synchronized (otherDeque) {
-        res = otherDeque.pollFirst();
+
+    // Next, try local deques then injected tasks, highest priority first
+    WorkDeque<Task>[] myDeques = regular.get(threadNum);
+    for (int level = PRIORITY_LEVELS - 1; level >= 0; level--) {
+      res = myDeques[level].pop();
+      if (res != null) {
+        return res;
+      }
+      res = injected.get(level).poll();
+      if (res != null) {
+        return res;
+      }
+    }
+
+    // Finally, steal from other workers, starting at random victim and
+    // visiting each other worker once per priority level
+    if (numThreads > 1) {
+      int start = (seed >>> 1) % (numThreads - 1);
+      for (int level = PRIORITY_LEVELS - 1; level >= 0; level--) {
+        for (int i = 0; i < numThreads - 1; i++) {
+          int victim = (start + i) % (numThreads - 1);
+          if (victim >= threadNum) {
+            victim++;
+          }
+          res = regular.get(victim)[level].steal();
+          if (res != null) {
+            return res;
+          }
+        }
+      }
+    }
+    return null;
+  }
+
+  /**
+   * @param threadNum
+   * @return true if there may be work for worker
+   */
+  private boolean hasWork(int threadNum) {
+    if (!targeted.get(threadNum).isEmpty()) {
+      return true;
+    }
+    for (int level = 0; level < PRIORITY_LEVELS; level++) {
+      if (!injected.get(level).isEmpty()) {
+        return true;
+      }
+      for (int i = 0; i < numThreads; i++) {
+        if (!regular.get(i)[level].isEmpty()) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Wait until there is work for the worker or the queue is terminated
+   * @param threadNum
+   */
+  private void park(int threadNum) {
+    synchronized (idleLock) {
+      // Increment before checking for work: adders check for idle workers
+      // after adding work, so either we see the work or they wake us
+      idleWorkers++;
+      try {
+        while (!terminated && !hasWork(threadNum)) {
+          try {
+            idleLock.wait();
+          } catch (InterruptedException e) {
+            // Check again
+          }
+        }
+      } finally {
+        idleWorkers--;
+      }
+    }
+  }
+
+  private void signalWork(boolean all) {
+    if (idleWorkers > 0) {
+      synchronized (idleLock) {
+        if (all) {
+          idleLock.notifyAll();
+        } else {
+          idleLock.notify();
+        }
+      }
+    }
+  }
+
+  /**
+   * @return index of current thread if it is a worker for this queue,
+   *          otherwise -1
+   */
+  private int currentWorker() {
+    Thread t = Thread.currentThread();
+    if (t instanceof WorkerThread && ((WorkerThread)t).queue == this) {
+      return ((WorkerThread)t).threadNum;
+    }
+    return -1;
+  }
+
+  /**
+   * Xorshift random number generator
+   */
+  private static int nextRandom(int x) {
+    x ^= x << 13;
+    x ^= x >>> 17;
+    x ^= x << 5;
+    return x;
+  }
+
+  /**
+   * Worker thread that runs tasks from queue until terminated
+   */
+  public static class WorkerThread extends Thread {
+    private final TaskQueue queue;
+    private final int threadNum;
+
+    public WorkerThread(TaskQueue queue, int threadNum) {
+      super("worker-" + threadNum);
+      this.queue = queue;
+      this.threadNum = threadNum;
+    }
+
+    public int threadNum() {
+      return threadNum;
+    }
+
+    @Override
+    public void run() {
+      Task task;
+      while ((task = queue.getTask(threadNum)) != null) {
+        try {
+          task.run();
+        } catch (Throwable t) {
+          queue.fail(t);
+        } finally {
+          queue.taskFinished();
+        }
       }
-      if (res != null)
-        return res;      
     }
   }
-  
-  
 }
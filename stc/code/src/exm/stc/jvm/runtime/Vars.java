@@ -1,64 +1,136 @@
 package exm.stc.jvm.runtime;
 
 import java.util.ArrayList;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
 
+/**
+ * Single-assignment future variables.
+ *
+ * Variables are lock-free: the writer count is updated atomically, and
+ * waiters are kept in a stack updated with compare-and-swap.  A single
+ * waiter, the common case, is stored inline without allocating a node.
+ * Values are written before the variable is closed, and closing is a
+ * volatile write, so any thread that sees the variable closed (by
+ * failing to subscribe, or by being notified) also sees the value.
+ */
 public class Vars {
   public static abstract class BaseVar {
-    private final AtomicInteger writers;
-    
+    private static final AtomicIntegerFieldUpdater<BaseVar> WRITERS =
+        AtomicIntegerFieldUpdater.newUpdater(BaseVar.class, "writers");
+
+    private static final AtomicReferenceFieldUpdater<BaseVar, Object>
+        WAITERS = AtomicReferenceFieldUpdater.newUpdater(BaseVar.class,
+                                                  Object.class, "waiters");
+
+    /** Marker for closed variable in waiters field */
+    private static final Object CLOSED = new Object();
+
+    private volatile int writers;
+
+    /**
+     * Waiters: either null, a single NotifyTarget, a WaiterNode at the top
+     * of a stack, or CLOSED once notified.
+     */
+    private volatile Object waiters = null;
+
     public BaseVar(int writers) {
-      this.writers = new AtomicInteger(writers);
+      this.writers = writers;
+      if (writers <= 0) {
+        this.waiters = CLOSED;
+      }
     }
-    
-    public void incrWriters(String fn, String varName, int amount) 
+
+    public void incrWriters(String fn, String varName, int amount)
         throws DoubleWriteException {
       if (amount == 0)
         return;
-      long prev = writers.getAndAdd(amount);
+      int prev = WRITERS.getAndAdd(this, amount);
       if (prev <= 0) {
-        throw new DoubleWriteException("Variable " + varName + 
+        throw new DoubleWriteException("Variable " + varName +
             " written after close in function " + fn + "!");
       }
-      long curr = prev - amount;
+      int curr = prev + amount;
       if (curr < 0) {
         JVMRuntime.getLogger().warn("Decremented " + varName + " below 0 "
-                    + " in function " + fn + " " + prev + " - " + amount);
+                    + " in function " + fn + " " + prev + " + " + amount);
       }
       if (curr <= 0) {
         notifyWaiters();
+        closed();
       }
     }
 
-    // TODO: more memory-efficient way?
-    // TODO: lock-free way?  AtomicReference?
-    ArrayList<NotifyTarget> notifications = null;
     /**
-     * 
+     * Called once after variable is closed and waiters are notified
+     */
+    protected void closed() {
+      // Do nothing by default
+    }
+
+    /**
+     * @return true if all writers are finished
+     */
+    public boolean isClosed() {
+      return waiters == CLOSED;
+    }
+
+    /**
      * @param target
      * @return true if subscribed, false if closed
      */
-    public synchronized boolean subscribe(NotifyTarget target) {
-      // TODO: I think this avoids race condition with notifications
-      if (writers.get() <= 0) {
-        return false;
-      }
-      
-      if (notifications == null)
-        notifications = new ArrayList<NotifyTarget>();
-      notifications.add(target);
-      
-      return true;
-    }
-    
-    private synchronized void notifyWaiters() {
-      for (NotifyTarget t: notifications)
-        t.notifyFinal(this);
-      
-      notifications = null;
+    public boolean subscribe(NotifyTarget target) {
+      while (true) {
+        Object curr = waiters;
+        if (curr == CLOSED) {
+          return false;
+        }
+
+        Object next;
+        if (curr == null) {
+          next = target;
+        } else if (curr instanceof WaiterNode) {
+          next = new WaiterNode(target, (WaiterNode)curr);
+        } else {
+          next = new WaiterNode(target,
+                      new WaiterNode((NotifyTarget)curr, null));
+        }
+
+        if (WAITERS.compareAndSet(this, curr, next)) {
+          return true;
+        }
+      }
+    }
+
+    private void notifyWaiters() {
+      Object old = WAITERS.getAndSet(this, CLOSED);
+      if (old == null || old == CLOSED) {
+        return;
+      } else if (old instanceof WaiterNode) {
+        for (WaiterNode n = (WaiterNode)old; n != null; n = n.next) {
+          n.target.notifyFinal(this);
+        }
+      } else {
+        ((NotifyTarget)old).notifyFinal(this);
+      }
     }
   }
-  
+
+  private static class WaiterNode {
+    private final NotifyTarget target;
+    private final WaiterNode next;
+
+    private WaiterNode(NotifyTarget target, WaiterNode next) {
+      this.target = target;
+      this.next = next;
+    }
+  }
+
   public static interface NotifyTarget {
     /**
      * Notify that var has been finalized
@@ -66,47 +138,87 @@ public class Vars {
      */
     public void notifyFinal(BaseVar var);
   }
-  
+
   public abstract static class ScalarVar extends BaseVar {
+    private static final AtomicIntegerFieldUpdater<ScalarVar> STATE =
+        AtomicIntegerFieldUpdater.newUpdater(ScalarVar.class, "state");
+
+    private static final int UNSET = 0;
+    private static final int WRITING = 1;
+    private static final int SET = 2;
+
+    /**
+     * Whether value is available.  Value is written between WRITING and
+     * SET so that readers that see SET see the value.
+     */
+    private volatile int state;
+
     public ScalarVar(int writers, boolean isSet) {
       super(writers);
-      this.isSet = isSet;
+      this.state = isSet ? SET : UNSET;
+    }
+
+    public boolean isSet() {
+      return state == SET;
     }
-    
+
     /**
-     * Whether value is available
+     * Must be called before writing value
+     * @throws DoubleWriteException if already written
      */
-    protected boolean isSet = false;
+    protected void startWrite(String fn, String varName)
+                                      throws DoubleWriteException {
+      if (!STATE.compareAndSet(this, UNSET, WRITING)) {
+        throw new DoubleWriteException("Variable " + varName +
+            " assigned twice in function " + fn + "!");
+      }
+    }
+
+    /**
+     * Must be called after writing value to publish it
+     */
+    protected void finishWrite(String fn, String varName, int writersDecr)
+                                      throws DoubleWriteException {
+      state = SET;
+      this.incrWriters(fn, varName, -1 * writersDecr);
+    }
+
+    /**
+     * Must be called before reading value
+     * @throws InvalidReadException if not yet written
+     */
+    protected void checkRead(String fn, String varName)
+                                      throws InvalidReadException {
+      if (state != SET) {
+        throw new InvalidReadException(varName + " was read before writing "
+            + " in function " + fn);
+      }
+    }
   }
-  
+
   public static class IntVar extends ScalarVar {
     public IntVar(int writers) {
       super(writers, false);
     }
-    
+
     public IntVar(int writers, long value) {
       super(writers, true);
       this.value = value;
     }
 
     private long value;
-    
+
     public long get(String fn, String varName) throws InvalidReadException {
-      // Should subscribe before reading, creating memory barrier
-      if (isSet) {
-        return value;
-      } else {
-        throw new InvalidReadException(varName + " was read before writing " 
-            + " in function " + fn);
-      }
+      checkRead(fn, varName);
+      return value;
     }
-    
+
     /**
-     * 
+     *
      * @param fn
      * @param varName
      * @param value
-     * @throws DoubleWriteException 
+     * @throws DoubleWriteException
      */
     public void set(String fn, String varName, long value)
                                       throws DoubleWriteException {
@@ -115,8 +227,249 @@ public class Vars {
 
     public void set(String fn, String varName, long value,
                      int writersDecr) throws DoubleWriteException {
+      startWrite(fn, varName);
+      this.value = value;
+      finishWrite(fn, varName, writersDecr);
+    }
+  }
+
+  public static class FloatVar extends ScalarVar {
+    public FloatVar(int writers) {
+      super(writers, false);
+    }
+
+    public FloatVar(int writers, double value) {
+      super(writers, true);
+      this.value = value;
+    }
+
+    private double value;
+
+    public double get(String fn, String varName) throws InvalidReadException {
+      checkRead(fn, varName);
+      return value;
+    }
+
+    public void set(String fn, String varName, double value)
+                                      throws DoubleWriteException {
+      set(fn, varName, value, 1);
+    }
+
+    public void set(String fn, String varName, double value,
+                     int writersDecr) throws DoubleWriteException {
+      startWrite(fn, varName);
+      this.value = value;
+      finishWrite(fn, varName, writersDecr);
+    }
+  }
+
+  /**
+   * Scalar variable holding an immutable object
+   */
+  public static class ObjectVar<T> extends ScalarVar {
+    public ObjectVar(int writers) {
+      super(writers, false);
+    }
+
+    public ObjectVar(int writers, T value) {
+      super(writers, true);
+      this.value = value;
+    }
+
+    private T value;
+
+    public T get(String fn, String varName) throws InvalidReadException {
+      checkRead(fn, varName);
+      return value;
+    }
+
+    public void set(String fn, String varName, T value)
+                                      throws DoubleWriteException {
+      set(fn, varName, value, 1);
+    }
+
+    public void set(String fn, String varName, T value,
+                     int writersDecr) throws DoubleWriteException {
+      startWrite(fn, varName);
       this.value = value;
+      finishWrite(fn, varName, writersDecr);
+    }
+  }
+
+  public static class StringVar extends ObjectVar<String> {
+    public StringVar(int writers) {
+      super(writers);
+    }
+
+    public StringVar(int writers, String value) {
+      super(writers, value);
+    }
+  }
+
+  /**
+   * Blob variable.  The byte array must not be modified after the
+   * variable is set.
+   */
+  public static class BlobVar extends ObjectVar<byte[]> {
+    public BlobVar(int writers) {
+      super(writers);
+    }
+
+    public BlobVar(int writers, byte[] value) {
+      super(writers, value);
+    }
+  }
+
+  /**
+   * File variable.  The value is the file name: the variable is closed
+   * once the file is written.
+   */
+  public static class FileVar extends ObjectVar<String> {
+    public FileVar(int writers) {
+      super(writers);
+    }
+
+    public FileVar(int writers, String fileName) {
+      super(writers, fileName);
+    }
+  }
+
+  /**
+   * Container variable, e.g. an array or bag, where each key can be
+   * inserted once.  Entries can be read before the container is closed.
+   */
+  public static class ContainerVar<K, V> extends BaseVar {
+    private final ConcurrentHashMap<K, V> members =
+                                      new ConcurrentHashMap<K, V>();
+
+    /**
+     * Waiters for members not yet inserted.  Updates are rare compared to
+     * lookups, so access is synchronized on the map.
+     */
+    private final Map<K, List<NotifyTarget>> memberWaiters =
+                                  new HashMap<K, List<NotifyTarget>>();
+
+    public ContainerVar(int writers) {
+      super(writers);
+    }
+
+    public void insert(String fn, String varName, K key, V value)
+                                      throws DoubleWriteException {
+      insert(fn, varName, key, value, 0);
+    }
+
+    public void insert(String fn, String varName, K key, V value,
+                       int writersDecr) throws DoubleWriteException {
+      if (members.putIfAbsent(key, value) != null) {
+        throw new DoubleWriteException("Key " + key + " of " + varName +
+            " assigned twice in function " + fn + "!");
+      }
+      List<NotifyTarget> waiters;
+      synchronized (memberWaiters) {
+        waiters = memberWaiters.remove(key);
+      }
+      if (waiters != null) {
+        for (NotifyTarget waiter: waiters) {
+          waiter.notifyFinal(this);
+        }
+      }
+      this.incrWriters(fn, varName, -1 * writersDecr);
+    }
+
+    /**
+     * Subscribe to be notified once member is inserted, or the container
+     * is closed without it.
+     * @param key
+     * @param target
+     * @return true if subscribed, false if already present or closed
+     */
+    public boolean subscribeMember(K key, NotifyTarget target) {
+      synchronized (memberWaiters) {
+        if (members.containsKey(key) || isClosed()) {
+          return false;
+        }
+        List<NotifyTarget> waiters = memberWaiters.get(key);
+        if (waiters == null) {
+          waiters = new ArrayList<NotifyTarget>(1);
+          memberWaiters.put(key, waiters);
+        }
+        waiters.add(target);
+        return true;
+      }
+    }
+
+    @Override
+    protected void closed() {
+      // Members can no longer be inserted: notify so readers can fail
+      List<NotifyTarget> waiters = new ArrayList<NotifyTarget>();
+      synchronized (memberWaiters) {
+        for (List<NotifyTarget> keyWaiters: memberWaiters.values()) {
+          waiters.addAll(keyWaiters);
+        }
+        memberWaiters.clear();
+      }
+      for (NotifyTarget waiter: waiters) {
+        waiter.notifyFinal(this);
+      }
+    }
+
+    /**
+     * @return value, or null if not present
+     */
+    public V lookup(K key) {
+      return members.get(key);
+    }
+
+    public int size() {
+      return members.size();
+    }
+
+    /**
+     * @return snapshot of current members
+     */
+    public Map<K, V> members() {
+      return new HashMap<K, V>(members);
+    }
+  }
+
+  /**
+   * Struct variable with fixed number of fields, each assigned once
+   */
+  public static class StructVar extends BaseVar {
+    private final AtomicReferenceArray<Object> fields;
+
+    public StructVar(int writers, int numFields) {
+      super(writers);
+      this.fields = new AtomicReferenceArray<Object>(numFields);
+    }
+
+    public void setField(String fn, String varName, int field, Object value)
+                                      throws DoubleWriteException {
+      setField(fn, varName, field, value, 0);
+    }
+
+    public void setField(String fn, String varName, int field, Object value,
+                         int writersDecr) throws DoubleWriteException {
+      assert(value != null);
+      if (!fields.compareAndSet(field, null, value)) {
+        throw new DoubleWriteException("Field " + field + " of " + varName +
+            " assigned twice in function " + fn + "!");
+      }
       this.incrWriters(fn, varName, -1 * writersDecr);
     }
+
+    public Object getField(String fn, String varName, int field)
+                                      throws InvalidReadException {
+      Object value = fields.get(field);
+      if (value == null) {
+        throw new InvalidReadException("Field " + field + " of " + varName +
+            " was read before writing in function " + fn);
+      }
+      return value;
+    }
+
+    public int numFields() {
+      return fields.length();
+    }
   }
 }
@@ -0,0 +1,120 @@
+package exm.stc.jvm.runtime;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Lock-free work-stealing deque, after Chase and Lev, "Dynamic Circular
+ * Work-Stealing Deque" (SPAA 2005).
+ *
+ * The owning thread pushes and pops at the bottom, which doesn't need
+ * any atomic operations except when racing for the last element.  Other
+ * threads steal from the top with a compare-and-swap, so get the oldest
+ * tasks, which are likely to spawn the most work.
+ */
+public class WorkDeque<T> {
+  private static final int INITIAL_CAPACITY = 64;
+
+  /** Index one past bottom element: only written by owner */
+  private volatile long bottom = 0;
+
+  /** Index of top element: advanced by owner and thieves */
+  private final AtomicLong top = new AtomicLong(0);
+
+  /** Circular buffer, size is a power of two.  Replaced when grown */
+  private volatile AtomicReferenceArray<T> buffer =
+                        new AtomicReferenceArray<T>(INITIAL_CAPACITY);
+
+  /**
+   * Add element at bottom.  Must only be called by owner.
+   * @param x
+   */
+  public void push(T x) {
+    long b = bottom;
+    long t = top.get();
+    AtomicReferenceArray<T> buf = buffer;
+    if (b - t >= buf.length() - 1) {
+      buf = grow(buf, b, t);
+      buffer = buf;
+    }
+    buf.set(index(buf, b), x);
+    bottom = b + 1;
+  }
+
+  /**
+   * Remove element from bottom.  Must only be called by owner.
+   * @return the element, or null if empty
+   */
+  public T pop() {
+    long b = bottom - 1;
+    AtomicReferenceArray<T> buf = buffer;
+    // Volatile write before reading top, so that thieves see that we're
+    // taking the bottom element, or we see that they took it
+    bottom = b;
+    long t = top.get();
+    if (t > b) {
+      // Was empty
+      bottom = b + 1;
+      return null;
+    }
+
+    T x = buf.get(index(buf, b));
+    if (t == b) {
+      // Last element: race with thieves
+      if (!top.compareAndSet(t, t + 1)) {
+        x = null;
+      }
+      bottom = b + 1;
+    } else {
+      // Don't retain reference to popped element
+      buf.set(index(buf, b), null);
+    }
+    return x;
+  }
+
+  /**
+   * Remove element from top.  May be called by any thread.
+   * @return the element, or null if empty or lost race with another thread
+   */
+  public T steal() {
+    long t = top.get();
+    long b = bottom;
+    if (t >= b) {
+      return null;
+    }
+    AtomicReferenceArray<T> buf = buffer;
+    T x = buf.get(index(buf, t));
+    if (x == null || !top.compareAndSet(t, t + 1)) {
+      return null;
+    }
+    return x;
+  }
+
+  /**
+   * @return true if deque appeared empty at time of call
+   */
+  public boolean isEmpty() {
+    return top.get() >= bottom;
+  }
+
+  /**
+   * @return approximate number of elements
+   */
+  public int size() {
+    return (int)Math.max(0, bottom - top.get());
+  }
+
+  private AtomicReferenceArray<T> grow(AtomicReferenceArray<T> buf,
+                                       long b, long t) {
+    AtomicReferenceArray<T> newBuf =
+                        new AtomicReferenceArray<T>(buf.length() * 2);
+    for (long i = t; i < b; i++) {
+      newBuf.set(index(newBuf, i), buf.get(index(buf, i)));
+    }
+    return newBuf;
+  }
+
+  private static int index(AtomicReferenceArray<?> buf, long i) {
+    return (int)(i & (buf.length() - 1));
+  }
+}
@@ -0,0 +1,56 @@
+package exm.stc.jvm.runtime;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import exm.stc.jvm.runtime.TaskQueue.WorkerThread;
+
+/**
+ * Runs tasks on a fixed number of worker threads that share work through
+ * a work-stealing {@link TaskQueue}.
+ */
+public class WorkStealingExecutor {
+
+  private final TaskQueue queue;
+
+  public WorkStealingExecutor(int numThreads) {
+    this.queue = new TaskQueue(numThreads);
+  }
+
+  /**
+   * @return queue that running tasks should add new tasks to
+   */
+  public TaskQueue queue() {
+    return queue;
+  }
+
+  /**
+   * Run task and all tasks spawned by it until none are left.  Tasks
+   * waiting on data that is never written don't prevent termination.
+   * @param initial
+   * @throws InterruptedException if interrupted while waiting for workers
+   */
+  public void run(Task initial) throws InterruptedException {
+    queue.addTask(initial);
+
+    List<WorkerThread> workers = new ArrayList<WorkerThread>();
+    for (int i = 0; i < queue.numThreads(); i++) {
+      WorkerThread worker = new WorkerThread(queue, i);
+      workers.add(worker);
+      worker.start();
+    }
+
+    for (WorkerThread worker: workers) {
+      worker.join();
+    }
+
+    Throwable failure = queue.failure();
+    if (failure instanceof RuntimeException) {
+      throw (RuntimeException)failure;
+    } else if (failure instanceof Error) {
+      throw (Error)failure;
+    } else if (failure != null) {
+      throw new RuntimeException(failure);
+    }
+  }
+}
@@ -46,6 +46,11 @@ public class TclNamer {
   public static final String TCL_NEXTITER_PREFIX = "nextiter:";
   public static final String TCL_COMPILER_NO_WAIT_VAR_PREFIX = "nowait:";
 
+  /** Separator for suffix that makes generated proc names unique */
+  private static final String UNIQUE_PROC_SEPARATOR = "-";
+  private static final String LOOP_OUTER_PROC_SUFFIX = ":outer";
+  private static final String LOOP_INNER_PROC_SUFFIX = ":inner";
+
   /**
    * Replace internal names of variables with readable ones that
    * are also valid in Tcl
@@ -123,4 +128,53 @@ public class TclNamer {
   public static String swiftFuncName(FnID function) {
     return FN_PREFIX + function.uniqueName();
   }
+
+  /**
+   * @param procName
+   * @param n
+   * @return name for nth proc generated with same name
+   */
+  public static String uniqueProcName(String procName, int n) {
+    return procName + UNIQUE_PROC_SEPARATOR + n;
+  }
+
+  /**
+   * @param loopName
+   * @return name of proc that splits foreach loop iterations
+   */
+  public static String loopOuterProcName(String loopName) {
+    return loopName + LOOP_OUTER_PROC_SUFFIX;
+  }
+
+  /**
+   * @param loopName
+   * @return name of proc that runs a leaf chunk of foreach loop iterations
+   */
+  public static String loopInnerProcName(String loopName) {
+    return loopName + LOOP_INNER_PROC_SUFFIX;
+  }
+
+  /**
+   * Map name of generated proc back to the name it was generated from,
+   * before a suffix was added to make it unique.  Used to match runtime
+   * information about procs with the IC.
+   * @param procName
+   * @return procName without unique suffix
+   */
+  public static String baseProcName(String procName) {
+    if (procName.startsWith(FN_PREFIX)) {
+      // Function names are already unique
+      return procName;
+    }
+    int sep = procName.lastIndexOf(UNIQUE_PROC_SEPARATOR);
+    if (sep <= 0 || sep == procName.length() - 1) {
+      return procName;
+    }
+    for (int i = sep + 1; i < procName.length(); i++) {
+      if (!Character.isDigit(procName.charAt(i))) {
+        return procName;
+      }
+    }
+    return procName.substring(0, sep);
+  }
 }
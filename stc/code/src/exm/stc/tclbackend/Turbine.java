@@ -57,6 +57,9 @@ import exm.stc.tclbackend.tree.Value;
  * */
 class Turbine {
 
+  /** First Turbine version with batched data commands */
+  public static final String BATCH_VERSION = "1.5.3";
+
   public static class TypeName extends Token {
     public TypeName(String token) {
       super(token);
@@ -131,6 +134,7 @@ class Turbine {
   private static final Token RETRIEVE_FLOAT = turbFn("retrieve_float");
   private static final Token RETRIEVE_STRING = turbFn("retrieve_string");
   private static final Token RETRIEVE_BLOB = turbFn("retrieve_blob");
+  private static final Token RETRIEVE_MULTI = turbFn("retrieve_multi");
   private static final Token ACQUIRE_REF = adlbFn("acquire_ref");
   private static final Token ACQUIRE_WRITE_REF = adlbFn("acquire_write_ref");
   private static final Token ACQUIRE_STRUCT_REF = turbFn("acquire_struct");
@@ -154,6 +158,7 @@ class Turbine {
   private static final Token STORE_FLOAT = turbFn("store_float");
   private static final Token STORE_STRING = turbFn("store_string");
   private static final Token STORE_BLOB = turbFn("store_blob");
+  private static final Token STORE_MULTI = turbFn("store_multi");
   private static final Token STORE_REF = turbFn("store_ref");
   private static final Token STORE_FILE_REF = turbFn("store_file_ref");
   private static final Token STORE_STRUCT = turbFn("store_struct");
@@ -209,6 +214,7 @@ class Turbine {
           adlbFn("write_refcount_incr");
   private static final Token WRITE_REFCOUNT_DECR =
           adlbFn("write_refcount_decr");
+  private static final Token REFCOUNT_BATCH = turbFn("refcount_batch");
   private static final Token FREE_LOCAL_BLOB = turbFn("free_local_blob");
 
   // Files
@@ -318,6 +324,8 @@ class Turbine {
   private static final Token ADLB_WORK_TYPE = turbFn("adlb_work_type");
   private static final Token DECLARE_CUSTOM_WORK_TYPES =
                                   turbFn("declare_custom_work_types");
+  private static final Token PROFILE_LEAF_DEGREE =
+                                  turbFn("profile_leaf_degree");
   private static final Token LASSIGN = new Token("lassign");
 
   private static Token turbFn(String functionName) {
@@ -332,6 +340,17 @@ class Turbine {
     return new Command(DECLARE_CUSTOM_WORK_TYPES, args);
   }
 
+  /**
+   * Record leaf degree of foreach loop for task profile
+   * @param outerProcName name of proc that splits loop
+   * @param leafDegree
+   */
+  public static Command profileLeafDegree(String outerProcName,
+                                          int leafDegree) {
+    return new Command(PROFILE_LEAF_DEGREE,
+            new TclString(outerProcName, true), new LiteralInt(leafDegree));
+  }
+
   public static Command declareStructType(Expression typeId,
           Expression typeName, TclList fieldList) {
     return new Command("adlb::declare_struct_type", Arrays.asList(typeId,
@@ -392,6 +411,18 @@ class Turbine {
     return new Command(STORE_VOID, voidVar);
   }
 
+  /**
+   * Store values into several futures at once
+   *
+   * @param storeArgs future, ADLB type, value and write refcount decrement
+   *                  for each future
+   * @return
+   */
+  public static Command multiSet(List<Expression> storeArgs) {
+    assert(storeArgs.size() % 4 == 0);
+    return new Command(STORE_MULTI, storeArgs);
+  }
+
   public static Command floatSet(Value turbineDstVar, Expression src) {
     return new Command(STORE_FLOAT, turbineDstVar, src);
   }
@@ -534,6 +565,25 @@ class Turbine {
     return new SetVariable(target, new Square(RETRIEVE_FILE, src, CACHED, decr));
   }
 
+  /**
+   * Retrieve values of several closed futures at once
+   *
+   * @param targets variable names to assign values to
+   * @param retrieveArgs future, ADLB type and read refcount decrement for
+   *                     each target
+   * @param caching whether values can be taken from cache
+   * @return
+   */
+  public static TclTree multiGet(List<String> targets,
+                 List<Expression> retrieveArgs, CacheMode caching) {
+    assert(retrieveArgs.size() == targets.size() * 3);
+    List<Expression> args = new ArrayList<Expression>(
+                                          retrieveArgs.size() + 1);
+    args.add(caching == CacheMode.CACHED ? CACHED : UNCACHED_MODE);
+    args.addAll(retrieveArgs);
+    return lassign(Square.fnCall(RETRIEVE_MULTI, args), targets);
+  }
+
   /**
    * Recursively enumerate container/bag contents typeList: list of types from
    * outer container to inner vale
@@ -1338,6 +1388,18 @@ class Turbine {
     return new Command(WRITE_REFCOUNT_DECR, arr, decr);
   }
 
+  /**
+   * Change read and write reference counts of several variables at once
+   *
+   * @param changes variable, read change and write change for each
+   *                variable
+   * @return
+   */
+  public static TclTree refcountBatch(List<Expression> changes) {
+    assert(changes.size() % 3 == 0);
+    return new Command(REFCOUNT_BATCH, changes);
+  }
+
   public static Command enableReferenceCounting() {
     return new Command(ENABLE_READ_REFCOUNT);
   }
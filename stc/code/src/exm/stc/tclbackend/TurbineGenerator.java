@@ -20,16 +20,19 @@
  */
 package exm.stc.tclbackend;
 
+import java.io.BufferedWriter;
 import java.io.File;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
@@ -166,6 +169,22 @@ public class TurbineGenerator implements CompilerBackend {
   private final Sequence tree = new Sequence();
 
 
+  /**
+   * If non-null, finished top-level code is written here after each
+   * function instead of being kept in tree until the end.
+   */
+  private Writer streamWriter = null;
+
+  /**
+   * Stream that streamWriter writes to
+   */
+  private OutputStream streamOutput = null;
+
+  /**
+   * First error while streaming output, to be rethrown from generate()
+   */
+  private IOException streamError = null;
+
   /**
    * For function that initializes globals
    */
@@ -248,6 +267,12 @@ public class TurbineGenerator implements CompilerBackend {
 
   private final List<WorkContext> customWorkTypes = new ArrayList<WorkContext>();
 
+  /**
+   * Commands to record leaf degree of foreach loop splitter procs in
+   * task profiles, if enabled
+   */
+  private final Sequence profileLeafDegrees = new Sequence();
+
   /**
    * Tcl symbol names for builtins
    * Swift function name -> (Tcl proc name, Tcl op template)
@@ -299,6 +324,20 @@ public class TurbineGenerator implements CompilerBackend {
     execContextStack.push(ExecContext.control());
   }
 
+  /**
+   * Write code for each function to output as soon as the function is
+   * finished, so that only the function being generated is kept in
+   * memory.  Must be called before code generation starts, and
+   * {@link #generate(OutputStream)} must be called with the same stream
+   * to write the remaining code.
+   * @param output
+   */
+  public void streamTo(OutputStream output) {
+    assert(streamWriter == null);
+    this.streamOutput = output;
+    this.streamWriter = new BufferedWriter(new OutputStreamWriter(output));
+  }
+
   @Override
   public void initialize(CodeGenOptions options, ForeignFunctions foreignFuncs) {
     this.options = options;
@@ -331,6 +370,10 @@ public class TurbineGenerator implements CompilerBackend {
     addAutoPaths();
 
     tree.add(new Command("package require turbine", turbineVersion));
+    if (batchCommandsEnabled()) {
+      // Fail at startup rather than on first use with older Turbine
+      tree.add(new Command("package require turbine", Turbine.BATCH_VERSION));
+    }
     tree.add(new Command("namespace import turbine::*"));
     tree.add(new Text(""));
 
@@ -369,6 +412,8 @@ public class TurbineGenerator implements CompilerBackend {
     // Initialize struct types
     tree.append(structTypeDeclarations());
 
+    tree.append(profileLeafDegrees);
+
     // Insert code to check versions
     tree.add(Turbine.checkConstants());
 
@@ -449,6 +494,27 @@ public class TurbineGenerator implements CompilerBackend {
    */
   @Override
   public void generate(OutputStream output) throws IOException {
+    Writer w;
+    if (streamWriter != null) {
+      assert(output == streamOutput);
+      if (streamError != null) {
+        throw streamError;
+      }
+      w = streamWriter;
+    } else {
+      w = new OutputStreamWriter(output);
+    }
+    writeTree(w);
+    // Check everything is flushed to underlying stream
+    w.flush();
+  }
+
+  /**
+   * Write out code in tree and remove it from tree
+   * @param w
+   * @throws IOException
+   */
+  private void writeTree(Writer w) throws IOException {
     StringBuilder sb = new StringBuilder(10*1024);
     try
     {
@@ -464,10 +530,22 @@ public class TurbineGenerator implements CompilerBackend {
       System.out.println("exiting");
       throw new STCFatal(ExitCode.ERROR_INTERNAL.code());
     }
-    OutputStreamWriter w = new OutputStreamWriter(output);
+    tree.clear();
     w.write(sb.toString());
-    // Check everything is flushed to underlying stream
-    w.flush();
+  }
+
+  /**
+   * If streaming, write out finished top-level code
+   */
+  private void streamTree() {
+    if (streamWriter == null || streamError != null) {
+      return;
+    }
+    try {
+      writeTree(streamWriter);
+    } catch (IOException e) {
+      streamError = e;
+    }
   }
 
 
@@ -648,12 +726,85 @@ public class TurbineGenerator implements CompilerBackend {
     return result;
   }
 
+  /**
+   * @return true if batched data commands may be generated
+   */
+  private static boolean batchCommandsEnabled() {
+    return Settings.getBooleanUnchecked(Settings.OPT_BATCH_REFCOUNTS) ||
+           Settings.getBooleanUnchecked(Settings.OPT_BATCH_RETRIEVES) ||
+           Settings.getBooleanUnchecked(Settings.OPT_BATCH_STORES);
+  }
+
   @Override
   public void modifyRefCounts(List<DirRefCount> refcounts) {
-    // TODO: could combine read/write refcounts for same variable
+    if (refcounts.size() <= 1 ||
+        !Settings.getBooleanUnchecked(Settings.OPT_BATCH_REFCOUNTS)) {
+      for (DirRefCount refcount: refcounts) {
+        modifyRefCount(refcount.var, refcount.type,
+                       refcount.dir, refcount.amount);
+      }
+      return;
+    }
+
+    // Net read and write change for each variable, so that each variable
+    // only needs one message to its server.  Files are handled separately
+    // since the read refcount is on the file's path.  Amounts only known
+    // at runtime are also left alone.
+    boolean readRefcounts = Settings.getBooleanUnchecked(
+                                        Settings.ENABLE_REFCOUNTING);
+    Map<Var, long[]> changes = new LinkedHashMap<Var, long[]>();
     for (DirRefCount refcount: refcounts) {
-      modifyRefCount(refcount.var, refcount.type,
-                     refcount.dir, refcount.amount);
+      Var var = refcount.var;
+      if (Types.isFile(var) || !refcount.amount.isInt()) {
+        modifyRefCount(var, refcount.type, refcount.dir, refcount.amount);
+        continue;
+      }
+
+      boolean read = refcount.type == RefCountType.READERS;
+      if (read ? !readRefcounts || !RefCounting.trackReadRefCount(var)
+               : !RefCounting.trackWriteRefCount(var)) {
+        continue;
+      }
+
+      long amount = refcount.amount.getInt();
+      if (refcount.dir == RCDir.DECR) {
+        amount = -amount;
+      }
+
+      long[] change = changes.get(var);
+      if (change == null) {
+        change = new long[2];
+        changes.put(var, change);
+      }
+      change[read ? 0 : 1] += amount;
+    }
+
+    List<Expression> batch = new ArrayList<Expression>();
+    int ops = 0;
+    Var lastVar = null;
+    for (Entry<Var, long[]> e: changes.entrySet()) {
+      long readChange = e.getValue()[0];
+      long writeChange = e.getValue()[1];
+      if (readChange != 0 || writeChange != 0) {
+        batch.add(varToExpr(e.getKey()));
+        batch.add(new LiteralInt(readChange));
+        batch.add(new LiteralInt(writeChange));
+        ops += (readChange != 0 ? 1 : 0) + (writeChange != 0 ? 1 : 0);
+        lastVar = e.getKey();
+      }
+    }
+
+    if (ops == 1) {
+      // Plain command is enough for a single change
+      long readChange = changes.get(lastVar)[0];
+      long writeChange = changes.get(lastVar)[1];
+      RefCountType rcType = readChange != 0 ? RefCountType.READERS
+                                            : RefCountType.WRITERS;
+      long change = readChange + writeChange;
+      modifyRefCount(lastVar, rcType, RCDir.fromAmount(change),
+                     Arg.newInt(Math.abs(change)));
+    } else if (ops > 1) {
+      pointAdd(Turbine.refcountBatch(batch));
     }
   }
 
@@ -772,6 +923,72 @@ public class TurbineGenerator implements CompilerBackend {
     }
   }
 
+  @Override
+  public void assignMulti(List<Assignment> assignments) {
+    if (assignments.size() <= 1 ||
+        !Settings.getBooleanUnchecked(Settings.OPT_BATCH_STORES)) {
+      for (Assignment a: assignments) {
+        assign(a);
+      }
+      return;
+    }
+
+    // Blobs need special handling to store from local pointer,
+    // so only batch remaining types
+    List<Assignment> batched = new ArrayList<Assignment>();
+    for (Assignment a: assignments) {
+      if (Types.isScalarFuture(a.dst) &&
+          a.src.type().getImplType().primType() == PrimType.BLOB) {
+        assign(a);
+      } else {
+        batched.add(a);
+      }
+    }
+
+    if (batched.size() == 1) {
+      assign(batched.get(0));
+    } else if (batched.size() > 1) {
+      List<Expression> storeArgs = new ArrayList<Expression>();
+      for (Assignment a: batched) {
+        storeArgs.add(varToExpr(a.dst));
+        if (Types.isStruct(a.dst)) {
+          assert(Types.isStructLocal(a.src));
+          assert(StructType.sharedStruct(
+                  (StructType)a.src.type().getImplType())
+                  .assignableTo(a.dst.type()));
+          // Same as assignStruct()
+          long writeDecr = RefCounting.baseStructWriteRefCount(
+                  a.dst.type(), a.dst.defType(), false, true);
+          storeArgs.add(TurbineTypes.reprType(a.dst));
+          storeArgs.add(argToExpr(a.src));
+          storeArgs.add(new LiteralInt(writeDecr));
+        } else {
+          assert(Types.isScalarFuture(a.dst));
+          assert(Types.isScalarValue(a.src));
+          assert(a.src.type().assignableTo(Types.retrievedType(a.dst)));
+          PrimType primType = a.src.type().getImplType().primType();
+          storeArgs.add(TurbineTypes.adlbPrimType(primType));
+          if (primType == PrimType.VOID) {
+            // Don't need to provide input value to void
+            storeArgs.add(Turbine.VOID_DUMMY_VAL);
+          } else {
+            storeArgs.add(argToExpr(a.src));
+          }
+          storeArgs.add(LiteralInt.ONE);
+        }
+      }
+      pointAdd(Turbine.multiSet(storeArgs));
+    }
+  }
+
+  private void assign(Assignment a) {
+    if (Types.isStruct(a.dst)) {
+      assignStruct(a.dst, a.src);
+    } else {
+      assignScalar(a.dst, a.src);
+    }
+  }
+
   @Override
   public void retrieveScalar(Var dst, Var src, Arg decr) {
     assert(Types.isScalarValue(dst));
@@ -830,6 +1047,66 @@ public class TurbineGenerator implements CompilerBackend {
     }
   }
 
+  @Override
+  public void retrieveMulti(List<Retrieval> retrievals) {
+    if (retrievals.size() <= 1 ||
+        !Settings.getBooleanUnchecked(Settings.OPT_BATCH_RETRIEVES)) {
+      for (Retrieval r: retrievals) {
+        retrieve(r);
+      }
+      return;
+    }
+
+    // Blobs need special handling to get local copy, and voids don't
+    // need to be retrieved, so only batch remaining types
+    List<Retrieval> batched = new ArrayList<Retrieval>();
+    for (Retrieval r: retrievals) {
+      if (Types.isFile(r.src)) {
+        batched.add(r);
+      } else {
+        PrimType primType = r.dst.type().getImplType().primType();
+        if (primType == PrimType.BLOB || primType == PrimType.VOID) {
+          retrieve(r);
+        } else {
+          batched.add(r);
+        }
+      }
+    }
+
+    if (batched.size() == 1) {
+      retrieve(batched.get(0));
+    } else if (batched.size() > 1) {
+      List<String> targets = new ArrayList<String>();
+      List<Expression> retrieveArgs = new ArrayList<Expression>();
+      for (Retrieval r: batched) {
+        assert(r.decr.isImmInt());
+        TypeName adlbType;
+        if (Types.isFile(r.src)) {
+          assert(Types.isFileVal(r.dst));
+          adlbType = Turbine.ADLB_FILE_TYPE;
+        } else {
+          assert(Types.isScalarFuture(r.src));
+          assert(Types.retrievedType(r.src).assignableTo(r.dst.type()));
+          adlbType = TurbineTypes.adlbPrimType(
+                          r.dst.type().getImplType().primType());
+        }
+        targets.add(prefixVar(r.dst));
+        retrieveArgs.add(varToExpr(r.src));
+        retrieveArgs.add(adlbType);
+        retrieveArgs.add(argToExpr(r.decr));
+      }
+      pointAdd(Turbine.multiGet(targets, retrieveArgs, CacheMode.CACHED));
+    }
+  }
+
+  private void retrieve(Retrieval r) {
+    if (Types.isFile(r.src)) {
+      retrieveFile(r.dst, r.src, r.decr);
+    } else {
+      retrieveScalar(r.dst, r.src, r.decr);
+    }
+  }
+
   @Override
   public void dereferenceScalar(Var dst, Var src) {
     assert(Types.isScalarFuture(dst));
@@ -2222,6 +2499,8 @@ public class TurbineGenerator implements CompilerBackend {
   public void endFunction() {
     pointPop();
     functionStack.pop();
+    // Function and any procs for its continuations are now complete
+    streamTree();
   }
 
   @Override
@@ -2928,12 +3207,18 @@ public class TurbineGenerator implements CompilerBackend {
     innerCallArgs.add(incVal);
 
     Sequence outer = new Sequence();
-    String outerProcName = uniqueTCLFunctionName(loopName + ":outer");
+    String outerProcName = uniqueTCLFunctionName(
+                                  TclNamer.loopOuterProcName(loopName));
     tree.add(new Proc(outerProcName,
             usedTclFunctionNames, outerFormalArgs, outer));
+    if (Settings.getBooleanUnchecked(Settings.TASK_PROFILE)) {
+      profileLeafDegrees.add(Turbine.profileLeafDegree(outerProcName,
+                                                       leafDegree));
+    }
 
     Sequence inner = new Sequence();
-    String innerProcName = uniqueTCLFunctionName(loopName + ":inner");
+    String innerProcName = uniqueTCLFunctionName(
+                                  TclNamer.loopInnerProcName(loopName));
     tree.add(new Proc(innerProcName,
           usedTclFunctionNames, commonFormalArgs, inner));
 
@@ -3350,7 +3635,7 @@ public class TurbineGenerator implements CompilerBackend {
     String unique = tclFunctionName;
     int next = 1;
     while (usedTclFunctionNames.contains(unique)) {
-      unique = tclFunctionName + "-" + next;
+      unique = TclNamer.uniqueProcName(tclFunctionName, next);
       next++;
     }
     return unique;
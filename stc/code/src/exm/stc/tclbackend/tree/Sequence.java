@@ -66,6 +66,13 @@ public class Sequence extends TclTree {
     members.addAll(seq.members);
   }
 
+  /**
+   * Remove all members, e.g. once they have been output
+   */
+  public void clear() {
+    members.clear();
+  }
+
   @Override
   public void appendTo(StringBuilder sb) {
     for (TclTree member: members) {
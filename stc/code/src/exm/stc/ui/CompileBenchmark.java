@@ -0,0 +1,628 @@
+/*
+ * Copyright 2013 University of Chicago and Argonne National Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package exm.stc.ui;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.CommandLineParser;
+import org.apache.commons.cli.GnuParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+import org.apache.commons.io.output.NullOutputStream;
+import org.apache.log4j.Logger;
+
+import exm.stc.ast.FilePosition.LineMapping;
+import exm.stc.common.Logging;
+import exm.stc.common.Settings;
+import exm.stc.common.exceptions.InvalidOptionException;
+import exm.stc.common.exceptions.STCFatal;
+import exm.stc.common.exceptions.UserException;
+import exm.stc.common.lang.ForeignFunctions;
+import exm.stc.common.util.Misc;
+import exm.stc.frontend.ASTWalker;
+import exm.stc.ic.STCMiddleEnd;
+import exm.stc.ic.opt.OptimizerProfile;
+import exm.stc.ic.opt.OptimizerProfile.PassRecord;
+import exm.stc.tclbackend.TurbineGenerator;
+
+/**
+ * Benchmark of compile time for Swift programs, so that regressions in
+ * compile latency can be caught.
+ *
+ * Each program is compiled repeatedly in the same JVM: a number of warmup
+ * compilations are discarded so that the JIT compiler has warmed up, then
+ * the frontend ({@link ASTWalker#walk}), the optimizer (in total and for
+ * each pass) and the Turbine backend are timed separately for each
+ * measured compilation.  The C preprocessor is run once per program before
+ * timing starts.  Programs that fail to compile, e.g. tests of compile
+ * errors, are skipped.
+ *
+ * Results can be written as CSV and compared against CSV from a previous
+ * run: if the fastest time for any phase of any program is slower than in
+ * the baseline by more than the threshold, the regressions are listed and
+ * the exit code is nonzero.
+ *
+ * Usage: CompileBenchmark [options] FILE-OR-DIRECTORY...
+ * Directories are searched recursively for .swift files.
+ */
+public class CompileBenchmark {
+
+  private static final String WARMUP_FLAG = "w";
+  private static final String ITERATIONS_FLAG = "n";
+  private static final String INCLUDE_FLAG = "I";
+  private static final String PREPROC_MACRO_FLAG = "D";
+  private static final String OUTPUT_FLAG = "o";
+  private static final String BASELINE_FLAG = "b";
+  private static final String THRESHOLD_FLAG = "t";
+  private static final String PASSES_FLAG = "p";
+
+  private static final String FRONTEND = "frontend";
+  private static final String OPTIMIZER = "optimizer";
+  private static final String BACKEND = "backend";
+  private static final String TOTAL = "total";
+  private static final List<String> PHASES =
+          Arrays.asList(FRONTEND, OPTIMIZER, BACKEND, TOTAL);
+  private static final String PASS_PREFIX = "pass:";
+
+  /** Name used for totals over all programs in output */
+  private static final String ALL_PROGRAMS = "ALL";
+
+  /** Times below this are too noisy to check for regressions */
+  private static final double NOISE_FLOOR_MS = 1.0;
+
+  private static final String CSV_HEADER =
+          "program,phase,mean_ms,min_ms,stddev_ms,samples";
+
+  private final int warmup;
+  private final int iterations;
+  private final List<String> includeDirs;
+  private final List<String> preprocessorMacros;
+  private final boolean reportPasses;
+
+  private CompileBenchmark(int warmup, int iterations,
+      List<String> includeDirs, List<String> preprocessorMacros,
+      boolean reportPasses) {
+    this.warmup = warmup;
+    this.iterations = iterations;
+    this.includeDirs = includeDirs;
+    this.preprocessorMacros = preprocessorMacros;
+    this.reportPasses = reportPasses;
+  }
+
+  public static void main(String[] args) {
+    int exitCode;
+    try {
+      exitCode = run(args);
+    } catch (STCFatal ex) {
+      exitCode = ex.exitCode;
+    }
+    System.exit(exitCode);
+  }
+
+  private static int run(String[] args) {
+    Options opts = initOptions();
+    CommandLine cmd;
+    try {
+      CommandLineParser parser = new GnuParser();
+      cmd = parser.parse(opts, args);
+    } catch (ParseException ex) {
+      System.err.println(ex.getMessage());
+      usage(opts);
+      return ExitCode.ERROR_COMMAND.code();
+    }
+
+    if (cmd.getArgs().length == 0) {
+      System.err.println("Expected at least one input file or directory");
+      usage(opts);
+      return ExitCode.ERROR_COMMAND.code();
+    }
+
+    int warmup, iterations;
+    double threshold;
+    try {
+      warmup = Integer.parseInt(cmd.getOptionValue(WARMUP_FLAG, "3"));
+      iterations = Integer.parseInt(cmd.getOptionValue(ITERATIONS_FLAG, "5"));
+      threshold = Double.parseDouble(cmd.getOptionValue(THRESHOLD_FLAG,
+                                                        "10"));
+    } catch (NumberFormatException ex) {
+      System.err.println("Invalid number: " + ex.getMessage());
+      return ExitCode.ERROR_COMMAND.code();
+    }
+    if (warmup < 0 || iterations < 1) {
+      System.err.println("Need at least one measured iteration and " +
+                         "non-negative warmup iterations");
+      return ExitCode.ERROR_COMMAND.code();
+    }
+
+    List<String> includeDirs = optionValues(cmd, INCLUDE_FLAG);
+    List<String> macros = optionValues(cmd, PREPROC_MACRO_FLAG);
+    CompileBenchmark bench = new CompileBenchmark(warmup, iterations,
+        includeDirs, macros, cmd.hasOption(PASSES_FLAG));
+
+    List<File> programs = new ArrayList<File>();
+    for (String arg: cmd.getArgs()) {
+      findPrograms(new File(arg), programs);
+    }
+
+    Map<String, Map<String, Stats>> results = bench.runAll(programs);
+
+    try {
+      if (cmd.hasOption(OUTPUT_FLAG)) {
+        writeCSV(cmd.getOptionValue(OUTPUT_FLAG), results);
+      }
+      if (cmd.hasOption(BASELINE_FLAG)) {
+        Map<String, Map<String, Stats>> baseline =
+                        readCSV(cmd.getOptionValue(BASELINE_FLAG));
+        if (!compare(baseline, results, threshold)) {
+          return ExitCode.ERROR_USER.code();
+        }
+      }
+    } catch (IOException ex) {
+      System.err.println("I/O error: " + ex.getMessage());
+      return ExitCode.ERROR_IO.code();
+    }
+    return ExitCode.SUCCESS.code();
+  }
+
+  private static Options initOptions() {
+    Options opts = new Options();
+    opts.addOption(WARMUP_FLAG, "warmup", true,
+                   "Warmup compilations per program (default 3)");
+    opts.addOption(ITERATIONS_FLAG, "iterations", true,
+                   "Measured compilations per program (default 5)");
+    opts.addOption(INCLUDE_FLAG, "include", true,
+                   "Add to import search path");
+    opts.addOption(PREPROC_MACRO_FLAG, true, "Preprocessor definition");
+    opts.addOption(OUTPUT_FLAG, "output", true, "Write results as CSV");
+    opts.addOption(BASELINE_FLAG, "baseline", true,
+                   "Compare against CSV results of previous run");
+    opts.addOption(THRESHOLD_FLAG, "threshold", true,
+                   "Percentage slowdown reported as regression (default 10)");
+    opts.addOption(PASSES_FLAG, "passes", false,
+                   "Report time for each optimizer pass");
+    return opts;
+  }
+
+  private static void usage(Options opts) {
+    HelpFormatter fmt = new HelpFormatter();
+    fmt.printHelp("CompileBenchmark [options] FILE-OR-DIRECTORY...", opts);
+  }
+
+  private static List<String> optionValues(CommandLine cmd, String opt) {
+    if (!cmd.hasOption(opt)) {
+      return Collections.emptyList();
+    }
+    return Arrays.asList(cmd.getOptionValues(opt));
+  }
+
+  private static void findPrograms(File f, List<File> programs) {
+    if (f.isDirectory()) {
+      File children[] = f.listFiles();
+      if (children == null) {
+        return;
+      }
+      Arrays.sort(children);
+      for (File child: children) {
+        if (child.isDirectory() || child.getName().endsWith(".swift")) {
+          findPrograms(child, programs);
+        }
+      }
+    } else {
+      programs.add(f);
+    }
+  }
+
+  /**
+   * Benchmark all programs and print results
+   * @param programs
+   * @return map from program to phase to statistics, including totals
+   *         over all programs
+   */
+  private Map<String, Map<String, Stats>> runAll(List<File> programs) {
+    Map<String, Map<String, Stats>> results =
+                  new TreeMap<String, Map<String, Stats>>();
+    System.out.println(String.format(Locale.ROOT, "%-48s %10s %10s %10s %10s",
+        "program (mean ms)", FRONTEND, OPTIMIZER, BACKEND, TOTAL));
+    int skipped = 0;
+    for (File program: programs) {
+      Map<String, Stats> programResult = benchmark(program);
+      if (programResult == null) {
+        skipped++;
+        continue;
+      }
+      results.put(program.getPath(), programResult);
+      System.out.println(String.format(Locale.ROOT,
+          "%-48s %10.2f %10.2f %10.2f %10.2f", program.getPath(),
+          programResult.get(FRONTEND).mean, programResult.get(OPTIMIZER).mean,
+          programResult.get(BACKEND).mean, programResult.get(TOTAL).mean));
+    }
+
+    Map<String, Stats> totals = sumPrograms(results.values());
+    System.out.println();
+    System.out.println("Compiled " + results.size() + " programs, skipped " +
+                       skipped + ": " + warmup + " warmup and " + iterations +
+                       " measured compilations each");
+    for (String phase: PHASES) {
+      System.out.println(String.format(Locale.ROOT,
+          "%-24s mean %10.2f ms  min %10.2f ms  stddev %8.2f ms",
+          phase, totals.get(phase).mean, totals.get(phase).min,
+          totals.get(phase).stddev));
+    }
+
+    if (reportPasses) {
+      List<Map.Entry<String, Stats>> passes =
+                    new ArrayList<Map.Entry<String, Stats>>();
+      for (Map.Entry<String, Stats> e: totals.entrySet()) {
+        if (e.getKey().startsWith(PASS_PREFIX)) {
+          passes.add(e);
+        }
+      }
+      Collections.sort(passes, new Comparator<Map.Entry<String, Stats>>() {
+        @Override
+        public int compare(Map.Entry<String, Stats> a,
+                           Map.Entry<String, Stats> b) {
+          return Double.compare(b.getValue().mean, a.getValue().mean);
+        }
+      });
+      System.out.println();
+      System.out.println("Optimizer passes, slowest first:");
+      for (Map.Entry<String, Stats> e: passes) {
+        System.out.println(String.format(Locale.ROOT,
+            "%-48s mean %10.2f ms  min %10.2f ms",
+            e.getKey().substring(PASS_PREFIX.length()),
+            e.getValue().mean, e.getValue().min));
+      }
+    }
+
+    results.put(ALL_PROGRAMS, totals);
+    return results;
+  }
+
+  /**
+   * Benchmark compilation of a single program in a fresh settings scope
+   * @param program
+   * @return statistics for each phase, or null if program couldn't be
+   *         compiled
+   */
+  private Map<String, Stats> benchmark(File program) {
+    Settings.setScope(Settings.newScope());
+    File preprocessed = null;
+    try {
+      Settings.initSTCProperties(System.getProperties());
+      if (program.getParent() != null) {
+        Settings.addModulePath(program.getParent());
+      }
+      for (String dir: includeDirs) {
+        Settings.addModulePath(dir);
+      }
+      Settings.set(Settings.INPUT_FILENAME, program.getPath());
+      Logger logger = Logging.getSTCLogger();
+
+      boolean preprocess = Settings.getBoolean(Settings.USE_C_PREPROCESSOR);
+      String input = program.getPath();
+      LineMapping lineMapping = null;
+      if (preprocess) {
+        preprocessed = File.createTempFile("stc-bench", ".swift");
+        lineMapping = Main.preprocess(logger, program.getPath(),
+                             preprocessed.getPath(), preprocessorMacros);
+        input = preprocessed.getPath();
+      }
+
+      Map<String, List<Long>> samples = new HashMap<String, List<Long>>();
+      for (int i = 0; i < warmup + iterations; i++) {
+        Map<String, Long> times = compileOnce(logger, input,
+                          program.getPath(), preprocess, lineMapping);
+        if (i < warmup) {
+          continue;
+        }
+        for (Map.Entry<String, Long> e: times.entrySet()) {
+          List<Long> phaseSamples = samples.get(e.getKey());
+          if (phaseSamples == null) {
+            phaseSamples = new ArrayList<Long>();
+            samples.put(e.getKey(), phaseSamples);
+          }
+          phaseSamples.add(e.getValue());
+        }
+      }
+
+      Map<String, Stats> result = new TreeMap<String, Stats>();
+      for (Map.Entry<String, List<Long>> e: samples.entrySet()) {
+        // Passes that only ran in some iterations took no time in others
+        while (e.getValue().size() < iterations) {
+          e.getValue().add(0L);
+        }
+        result.put(e.getKey(), Stats.fromNanos(e.getValue()));
+      }
+      return result;
+    } catch (InvalidOptionException ex) {
+      System.err.println("Error setting up options: " + ex.getMessage());
+      throw new STCFatal(ExitCode.ERROR_COMMAND.code());
+    } catch (UserException ex) {
+      System.err.println("Skipping " + program + ": " + ex.getMessage());
+      return null;
+    } catch (IOException ex) {
+      System.err.println("Skipping " + program + ": " + ex.getMessage());
+      return null;
+    } catch (STCFatal ex) {
+      // Preprocessor already reported error
+      System.err.println("Skipping " + program);
+      return null;
+    } catch (Throwable t) {
+      System.err.println("Skipping " + program + ": internal error");
+      System.err.print(Misc.stackTrace(t));
+      return null;
+    } finally {
+      if (preprocessed != null) {
+        preprocessed.delete();
+      }
+      Settings.setScope(null);
+    }
+  }
+
+  /**
+   * Compile program once, timing each phase
+   * @return map from phase to time in nanoseconds
+   */
+  private Map<String, Long> compileOnce(Logger logger, String input,
+      String originalInput, boolean preprocessed, LineMapping lineMapping)
+                                          throws UserException, IOException {
+    Map<String, Long> times = new HashMap<String, Long>();
+
+    long start = System.nanoTime();
+    ForeignFunctions foreignFuncs = new ForeignFunctions();
+    STCMiddleEnd intermediate = new STCMiddleEnd(logger, null, foreignFuncs);
+    ASTWalker walker = new ASTWalker(intermediate, foreignFuncs);
+    walker.walk(input, originalInput, preprocessed, lineMapping);
+    long frontendDone = System.nanoTime();
+
+    OptimizerProfile profile = new OptimizerProfile(null);
+    intermediate.optimize(profile);
+    long optimizerDone = System.nanoTime();
+
+    TurbineGenerator codeGen = new TurbineGenerator(logger, Misc.timestamp());
+    intermediate.regenerate(codeGen);
+    codeGen.generate(new NullOutputStream());
+    long backendDone = System.nanoTime();
+
+    times.put(FRONTEND, frontendDone - start);
+    times.put(OPTIMIZER, optimizerDone - frontendDone);
+    times.put(BACKEND, backendDone - optimizerDone);
+    times.put(TOTAL, backendDone - start);
+
+    for (PassRecord rec: profile.records()) {
+      String key = PASS_PREFIX + rec.passName;
+      Long prev = times.get(key);
+      times.put(key, (prev == null ? 0 : prev) + rec.timeNanos());
+    }
+    return times;
+  }
+
+  /**
+   * Sum statistics over programs.  Standard deviations are combined
+   * assuming that programs are independent.
+   */
+  private static Map<String, Stats> sumPrograms(
+                          Iterable<Map<String, Stats>> programs) {
+    Map<String, Stats> totals = new TreeMap<String, Stats>();
+    for (String phase: PHASES) {
+      totals.put(phase, new Stats(0, 0, 0, 0));
+    }
+    for (Map<String, Stats> program: programs) {
+      for (Map.Entry<String, Stats> e: program.entrySet()) {
+        Stats prev = totals.get(e.getKey());
+        Stats s = e.getValue();
+        if (prev == null) {
+          totals.put(e.getKey(), s);
+        } else {
+          totals.put(e.getKey(), new Stats(prev.mean + s.mean,
+              prev.min + s.min,
+              Math.sqrt(prev.stddev * prev.stddev + s.stddev * s.stddev),
+              Math.max(prev.samples, s.samples)));
+        }
+      }
+    }
+    return totals;
+  }
+
+  private static void writeCSV(String file,
+          Map<String, Map<String, Stats>> results) throws IOException {
+    PrintWriter out = new PrintWriter(new BufferedWriter(
+                                      new FileWriter(file)));
+    try {
+      out.println(CSV_HEADER);
+      for (Map.Entry<String, Map<String, Stats>> program: results.entrySet()) {
+        for (Map.Entry<String, Stats> phase: program.getValue().entrySet()) {
+          Stats s = phase.getValue();
+          out.println(csvString(program.getKey()) + "," +
+                      csvString(phase.getKey()) + "," +
+                      String.format(Locale.ROOT, "%.3f,%.3f,%.3f,%d",
+                                    s.mean, s.min, s.stddev, s.samples));
+        }
+      }
+    } finally {
+      out.close();
+    }
+  }
+
+  private static Map<String, Map<String, Stats>> readCSV(String file)
+                                                    throws IOException {
+    Map<String, Map<String, Stats>> results =
+                      new HashMap<String, Map<String, Stats>>();
+    BufferedReader in = new BufferedReader(new FileReader(file));
+    try {
+      String line = in.readLine();
+      if (line == null || !line.equals(CSV_HEADER)) {
+        throw new IOException("Expected header " + CSV_HEADER + " in " +
+                              file);
+      }
+      while ((line = in.readLine()) != null) {
+        List<String> fields = parseCSVLine(line);
+        if (fields.size() != 6) {
+          throw new IOException("Malformed line in " + file + ": " + line);
+        }
+        Map<String, Stats> program = results.get(fields.get(0));
+        if (program == null) {
+          program = new HashMap<String, Stats>();
+          results.put(fields.get(0), program);
+        }
+        try {
+          program.put(fields.get(1), new Stats(
+              Double.parseDouble(fields.get(2)),
+              Double.parseDouble(fields.get(3)),
+              Double.parseDouble(fields.get(4)),
+              Integer.parseInt(fields.get(5))));
+        } catch (NumberFormatException ex) {
+          throw new IOException("Malformed line in " + file + ": " + line);
+        }
+      }
+    } finally {
+      in.close();
+    }
+    return results;
+  }
+
+  /**
+   * Compare results against baseline, printing any regressions.  The
+   * minimum time is compared, since it is least affected by noise.
+   * @return true if no regressions
+   */
+  private static boolean compare(Map<String, Map<String, Stats>> baseline,
+      Map<String, Map<String, Stats>> results, double thresholdPercent) {
+    List<String> regressions = new ArrayList<String>();
+    // Totals are only comparable if the same programs were compiled
+    boolean sameSet = baseline.keySet().equals(results.keySet());
+    for (Map.Entry<String, Map<String, Stats>> program: results.entrySet()) {
+      Map<String, Stats> base = baseline.get(program.getKey());
+      if (base == null ||
+          (program.getKey().equals(ALL_PROGRAMS) && !sameSet)) {
+        continue;
+      }
+      for (Map.Entry<String, Stats> phase: program.getValue().entrySet()) {
+        Stats before = base.get(phase.getKey());
+        if (before == null || before.min < NOISE_FLOOR_MS) {
+          continue;
+        }
+        double after = phase.getValue().min;
+        double change = (after - before.min) / before.min * 100.0;
+        if (change > thresholdPercent) {
+          regressions.add(String.format(Locale.ROOT,
+              "%s %s: %.2f ms -> %.2f ms (+%.1f%%)", program.getKey(),
+              phase.getKey(), before.min, after, change));
+        }
+      }
+    }
+
+    System.out.println();
+    if (regressions.isEmpty()) {
+      System.out.println("No regressions over " + thresholdPercent +
+                         "% against baseline");
+      return true;
+    }
+    System.out.println("Regressions over " + thresholdPercent +
+                       "% against baseline:");
+    for (String regression: regressions) {
+      System.out.println("  " + regression);
+    }
+    return false;
+  }
+
+  private static String csvString(String s) {
+    if (s.indexOf(',') < 0 && s.indexOf('"') < 0) {
+      return s;
+    }
+    return "\"" + s.replace("\"", "\"\"") + "\"";
+  }
+
+  private static List<String> parseCSVLine(String line) {
+    List<String> fields = new ArrayList<String>();
+    StringBuilder field = new StringBuilder();
+    boolean quoted = false;
+    for (int i = 0; i < line.length(); i++) {
+      char c = line.charAt(i);
+      if (quoted) {
+        if (c == '"' && i + 1 < line.length() && line.charAt(i + 1) == '"') {
+          field.append('"');
+          i++;
+        } else if (c == '"') {
+          quoted = false;
+        } else {
+          field.append(c);
+        }
+      } else if (c == '"') {
+        quoted = true;
+      } else if (c == ',') {
+        fields.add(field.toString());
+        field.setLength(0);
+      } else {
+        field.append(c);
+      }
+    }
+    fields.add(field.toString());
+    return fields;
+  }
+
+  /**
+   * Summary statistics for samples, in milliseconds
+   */
+  private static class Stats {
+    final double mean;
+    final double min;
+    final double stddev;
+    final int samples;
+
+    Stats(double mean, double min, double stddev, int samples) {
+      this.mean = mean;
+      this.min = min;
+      this.stddev = stddev;
+      this.samples = samples;
+    }
+
+    static Stats fromNanos(List<Long> nanos) {
+      double sum = 0;
+      double min = Double.MAX_VALUE;
+      for (long x: nanos) {
+        sum += x / 1e6;
+        min = Math.min(min, x / 1e6);
+      }
+      double mean = sum / nanos.size();
+      double sumSq = 0;
+      for (long x: nanos) {
+        double diff = x / 1e6 - mean;
+        sumSq += diff * diff;
+      }
+      double stddev = nanos.size() > 1 ?
+                      Math.sqrt(sumSq / (nanos.size() - 1)) : 0;
+      return new Stats(mean, min, stddev, nanos.size());
+    }
+  }
+}
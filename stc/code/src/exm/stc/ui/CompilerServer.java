@@ -0,0 +1,274 @@
+/*
+ * Copyright 2013 University of Chicago and Argonne National Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package exm.stc.ui;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import exm.stc.common.Settings;
+import exm.stc.common.util.Misc;
+
+/**
+ * Long-running compiler process that compiles many programs, to avoid
+ * paying JVM startup and warmup costs for every compilation.
+ *
+ * Requests are read from standard input, one per block of lines:
+ * <pre>
+ * compile ID
+ * property KEY VALUE
+ * arg ARG
+ * end
+ * </pre>
+ * Property lines give settings for the request, equivalent to -D
+ * options passed to the JVM for a regular stc invocation.  Settings
+ * not given default to the system properties of the server JVM.  Arg
+ * lines give the command line arguments, e.g. options, the input file
+ * and the output file.  Relative paths are resolved against the working
+ * directory of the server.  Output files can't be the server's standard
+ * output, e.g. /dev/stdout, since that would corrupt the responses.
+ *
+ * For each request, the server writes any compiler output followed by
+ * the exit code to standard output:
+ * <pre>
+ * output ID LINE
+ * done ID EXITCODE
+ * </pre>
+ *
+ * Requests are compiled concurrently.  Each compilation runs in its own
+ * settings scope, so requests don't see each other's settings.
+ */
+public class CompilerServer {
+
+  private static final String COMPILE = "compile";
+  private static final String PROPERTY = "property";
+  private static final String ARG = "arg";
+  private static final String END = "end";
+
+  /** Stream for protocol responses */
+  private final PrintStream responses;
+
+  /** Captured output by scope of request */
+  private final Map<Settings.Scope, ByteArrayOutputStream> requestOutput =
+      new ConcurrentHashMap<Settings.Scope, ByteArrayOutputStream>();
+
+  private final ExecutorService executor;
+
+  private CompilerServer(PrintStream responses, int threads) {
+    this.responses = responses;
+    this.executor = Executors.newFixedThreadPool(threads);
+  }
+
+  public static void main(String[] args) {
+    int threads = Runtime.getRuntime().availableProcessors();
+    if (args.length == 1) {
+      try {
+        threads = Integer.parseInt(args[0]);
+      } catch (NumberFormatException e) {
+        threads = -1;
+      }
+    }
+    if (args.length > 1 || threads <= 0) {
+      System.err.println("usage: CompilerServer [threads]");
+      System.exit(ExitCode.ERROR_COMMAND.code());
+    }
+
+    // Redirect output before logging is set up, so that all compiler
+    // output goes to the request that produced it
+    PrintStream stdout = System.out;
+    CompilerServer server = new CompilerServer(stdout, threads);
+    PrintStream routed = new PrintStream(server.new RoutingStream(System.err),
+                                         true);
+    System.setOut(routed);
+    System.setErr(routed);
+
+    try {
+      server.serve(new BufferedReader(new InputStreamReader(System.in,
+                                                            "UTF-8")));
+    } catch (IOException e) {
+      System.err.println("Error reading requests: " + e.getMessage());
+      System.exit(ExitCode.ERROR_IO.code());
+    }
+  }
+
+  /**
+   * Process requests until end of input, then wait for outstanding
+   * requests to finish
+   * @param in
+   * @throws IOException
+   */
+  private void serve(BufferedReader in) throws IOException {
+    Request request = null;
+    String line;
+    while ((line = in.readLine()) != null) {
+      String cmd, rest;
+      int space = line.indexOf(' ');
+      if (space < 0) {
+        cmd = line.trim();
+        rest = "";
+      } else {
+        cmd = line.substring(0, space);
+        rest = line.substring(space + 1);
+      }
+
+      if (cmd.isEmpty()) {
+        continue;
+      } else if (cmd.equals(COMPILE) && request == null) {
+        request = new Request(rest.trim());
+      } else if (cmd.equals(PROPERTY) && request != null) {
+        int sep = rest.indexOf(' ');
+        if (sep < 0) {
+          request.properties.setProperty(rest, "");
+        } else {
+          request.properties.setProperty(rest.substring(0, sep),
+                                         rest.substring(sep + 1));
+        }
+      } else if (cmd.equals(ARG) && request != null) {
+        request.args.add(rest);
+      } else if (cmd.equals(END) && request != null) {
+        executor.execute(request);
+        request = null;
+      } else {
+        respond("error Unexpected line: " + line);
+      }
+    }
+
+    executor.shutdown();
+    boolean done = false;
+    while (!done) {
+      try {
+        done = executor.awaitTermination(Long.MAX_VALUE, TimeUnit.SECONDS);
+      } catch (InterruptedException e) {
+        // Continue on after spurious interrupt
+      }
+    }
+  }
+
+  private void respond(String line) {
+    synchronized (responses) {
+      responses.println(line);
+      responses.flush();
+    }
+  }
+
+  private void respond(List<String> lines) {
+    synchronized (responses) {
+      for (String line: lines) {
+        responses.println(line);
+      }
+      responses.flush();
+    }
+  }
+
+  private class Request implements Runnable {
+    private final String id;
+    private final Properties properties = new Properties();
+    private final List<String> args = new ArrayList<String>();
+
+    private Request(String id) {
+      this.id = id;
+    }
+
+    @Override
+    public void run() {
+      Settings.Scope scope = Settings.newScope();
+      ByteArrayOutputStream output = new ByteArrayOutputStream();
+      requestOutput.put(scope, output);
+      Settings.setScope(scope);
+
+      int exitCode;
+      try {
+        Properties requestProperties = new Properties();
+        requestProperties.putAll(System.getProperties());
+        requestProperties.putAll(properties);
+        exitCode = Main.compile(args.toArray(new String[args.size()]),
+                                requestProperties, true);
+      } catch (Throwable t) {
+        // Keep server running in case of unexpected errors
+        System.err.println("STC internal error: please report this");
+        System.err.print(Misc.stackTrace(t));
+        exitCode = ExitCode.ERROR_INTERNAL.code();
+      } finally {
+        Settings.setScope(null);
+        requestOutput.remove(scope);
+      }
+
+      List<String> lines = new ArrayList<String>();
+      for (String line: outputLines(output)) {
+        lines.add("output " + id + " " + line);
+      }
+      lines.add("done " + id + " " + exitCode);
+      respond(lines);
+    }
+
+    private String[] outputLines(ByteArrayOutputStream output) {
+      String text;
+      try {
+        text = output.toString("UTF-8");
+      } catch (UnsupportedEncodingException e) {
+        text = output.toString();
+      }
+      if (text.isEmpty()) {
+        return new String[0];
+      }
+      return text.split("\r?\n");
+    }
+  }
+
+  /**
+   * Stream that directs output to the request whose settings scope is
+   * active in the current thread
+   */
+  private class RoutingStream extends OutputStream {
+    private final OutputStream fallback;
+
+    private RoutingStream(OutputStream fallback) {
+      this.fallback = fallback;
+    }
+
+    private OutputStream target() {
+      OutputStream out = requestOutput.get(Settings.getScope());
+      return out != null ? out : fallback;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      target().write(b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      target().write(b, off, len);
+    }
+
+    @Override
+    public void flush() throws IOException {
+      target().flush();
+    }
+  }
+}
@@ -24,6 +24,9 @@ import java.io.IOException;
 import java.io.OutputStream;
 import java.io.PrintStream;
 import java.io.StringWriter;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
@@ -42,42 +45,114 @@ import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.lang3.SystemUtils;
 import org.apache.log4j.Logger;
 
+import exm.stc.ast.FilePosition.LineMapping;
 import exm.stc.common.Logging;
 import exm.stc.common.Settings;
 import exm.stc.common.exceptions.InvalidOptionException;
 import exm.stc.common.exceptions.STCFatal;
 import exm.stc.common.exceptions.STCRuntimeError;
 import exm.stc.common.lang.CompileTimeArgs;
+import exm.stc.frontend.Preprocessor;
+import exm.stc.frontend.Preprocessor.PreprocessorException;
 
 /**
  * Command line interface to STC compiler.  Some compiler options
  * are passed indirectly through Java properties.  See Settings.java
  * for handling of these options.
+ *
+ * Errors are signalled internally with STCFatal rather than by exiting,
+ * so that the compiler can also be invoked repeatedly in the same JVM,
+ * e.g. by {@link CompilerServer}.
  */
 public class Main {
   private static final String SWIFT_PROG_ARG_FLAG = "A";
   private static final String PREPROC_MACRO_FLAG = "D";
   private static final String INCLUDE_FLAG = "I";
   private static final String UPDATE_FLAG = "u";
-  private static final List<File> temporaries = new ArrayList<File>();
+
+  /**
+   * Settings for files that the compiler writes to
+   */
+  private static final List<String> OUTPUT_FILE_SETTINGS = Arrays.asList(
+      Settings.IC_OUTPUT_FILE, Settings.LOG_FILE, Settings.OPT_PROFILE_FILE,
+      Settings.IC_PACKAGE_OUTPUT);
+
+  /** Temporary files for this invocation */
+  private final List<File> temporaries = new ArrayList<File>();
+
+  /**
+   * If true, standard output of the process is reserved for other uses,
+   * so output files must not refer to it
+   */
+  private final boolean stdoutReserved;
+
+  /** Line mapping from built-in preprocessor, or null if not used */
+  private LineMapping inputLineMapping = null;
 
 
   public static void main(String[] args) {
+    int exitCode = compile(args, System.getProperties());
+    if (exitCode != ExitCode.SUCCESS.code()) {
+      System.exit(exitCode);
+    }
+  }
+
+  /**
+   * Run compiler with command line arguments.  Settings are initialized
+   * in the current settings scope.
+   * @param args command line arguments
+   * @param properties properties to override default settings with
+   * @return exit code
+   */
+  public static int compile(String[] args, Properties properties) {
+    return compile(args, properties, false);
+  }
+
+  /**
+   * Run compiler with command line arguments.  Settings are initialized
+   * in the current settings scope.
+   * @param args command line arguments
+   * @param properties properties to override default settings with
+   * @param stdoutReserved if true, standard output of the process is used
+   *        for something else, e.g. the protocol of {@link CompilerServer},
+   *        and it is an error for output files to refer to it
+   * @return exit code
+   */
+  static int compile(String[] args, Properties properties,
+                     boolean stdoutReserved) {
+    Main main = new Main(stdoutReserved);
+    try {
+      main.run(args, properties);
+      return ExitCode.SUCCESS.code();
+    } catch (STCFatal ex) {
+      return ex.exitCode;
+    } finally {
+      main.cleanupTemporaries();
+    }
+  }
+
+  private Main(boolean stdoutReserved) {
+    this.stdoutReserved = stdoutReserved;
+  }
 
+  private void run(String[] args, Properties properties) {
     Args stcArgs = processArgs(args);
 
     try {
-      Settings.initSTCProperties();
+      Settings.initSTCProperties(properties);
     } catch (InvalidOptionException ex) {
       System.err.println("Error setting up options: " + ex.getMessage());
-      System.exit(1);
+      throw new STCFatal(1);
+    }
+    if (stdoutReserved) {
+      checkNotStdout(stcArgs);
     }
     Logger logger = null;
     try {
       logger = setupLogging();
     } catch (InvalidOptionException ex) {
       System.err.println("Error setting up logging: " + ex.getMessage());
-      System.exit(1);
+      throw new STCFatal(1);
     }
 
 
@@ -97,15 +172,17 @@ public class Main {
       } else {
         STCompiler stc = new STCompiler(logger);
         stc.compile(inputFile.getPath(), stcArgs.inputFilename, preprocess,
-                     outStream, icOutput);
+                    inputLineMapping, outStream, icOutput);
         copyToOutput(tmpOutput, finalOutput);
       }
-
-      cleanupFiles(true, stcArgs);
     } catch (STCFatal ex) {
       // Cleanup output file if present
-      cleanupFiles(false, stcArgs);
-      System.exit(ex.exitCode);
+      cleanupOutput(stcArgs);
+      throw ex;
+    } finally {
+      // Streams may not have been closed if there was an error
+      IOUtils.closeQuietly(outStream);
+      IOUtils.closeQuietly(icOutput);
     }
   }
 
@@ -143,8 +220,7 @@ public class Main {
       // Use Apache CLI-provided messages
       System.err.println(ex.getMessage());
       usage(opts);
-      System.exit(1);
-      return null;
+      throw new STCFatal(1);
     }
 
     if (cmd.hasOption(INCLUDE_FLAG)) {
@@ -167,7 +243,7 @@ public class Main {
       System.out.println("Expected input file and optional output file, but got "
               + remainingArgs.length + " arguments");
       usage(opts);
-      System.exit(ExitCode.ERROR_COMMAND.code());
+      throw new STCFatal(ExitCode.ERROR_COMMAND.code());
     }
 
     String input = remainingArgs[0];
@@ -200,7 +276,7 @@ public class Main {
       }
     } catch (InvalidOptionException e) {
       STCompiler.reportInternalError(logger, e);
-      System.exit(1);
+      throw new STCFatal(1);
     }
     return false;
   }
@@ -251,37 +327,38 @@ public class Main {
    * @param args
    * @return
    */
-  private static File setupInputFile(Logger logger, boolean preprocess, Args args) {
+  private File setupInputFile(Logger logger, boolean preprocess, Args args) {
     File result;
     try {
       if (preprocess) {
         File input = new File(args.inputFilename);
         if (!input.isFile() || !input.canRead()) {
           System.out.println("Input file \"" + input + "\" is not readable");
-          System.exit(1);
+          throw new STCFatal(1);
         }
 
         result = File.createTempFile("stc-preproc", ".swift");
         temporaries.add(result);
-        runPreprocessor(logger, args.inputFilename, result.getPath(),
-                        args.preprocessorMacros);
+        inputLineMapping = preprocess(logger, args.inputFilename,
+                              result.getPath(), args.preprocessorMacros);
       } else {
         result = new File(args.inputFilename);
       }
       if (!result.isFile() || !result.canRead()) {
         System.out.println("Input file \"" + result + "\" is not readable");
-        System.exit(1);
+        throw new STCFatal(1);
       }
       return result;
     } catch (IOException ex) {
       System.out.println("Error while setting up input file: " +
               ex.toString());
-      System.exit(1);
+      throw new STCFatal(1);
+    } catch (STCFatal ex) {
+      throw ex;
     } catch (Throwable t) {
       STCompiler.reportInternalError(logger, t);
-      System.exit(1);
+      throw new STCFatal(1);
     }
-    return null;
   }
 
   private static File selectOutputFile(Args args) {
@@ -297,12 +374,17 @@ public class Main {
       } else {
         prefix = infile;
       }
-      outputFilename = prefix + ".tic";
+      if (Settings.get(Settings.BACKEND).equalsIgnoreCase(
+                                          Settings.BACKEND_JVM)) {
+        outputFilename = prefix + ".java";
+      } else {
+        outputFilename = prefix + ".tic";
+      }
     }
     return new File(outputFilename);
   }
 
-  private static File setupTmpOutput() {
+  private File setupTmpOutput() {
     try {
       File result = File.createTempFile("stc-out", ".swift");
       temporaries.add(result);
@@ -310,8 +392,41 @@ public class Main {
     } catch (IOException e) {
       System.out.println("Error while setting up temporary output: "
           + e.getMessage());
-      System.exit(1);
-      return null;
+      throw new STCFatal(1);
+    }
+  }
+
+  /**
+   * Check that no output file refers to standard output
+   */
+  private static void checkNotStdout(Args stcArgs) {
+    List<String> outputs = new ArrayList<String>();
+    outputs.add(selectOutputFile(stcArgs).getPath());
+    for (String setting: OUTPUT_FILE_SETTINGS) {
+      outputs.add(Settings.get(setting));
+    }
+
+    for (String output: outputs) {
+      if (output != null && output.length() > 0 && isStdout(output)) {
+        System.err.println("Cannot write output to standard output in " +
+                           "server mode: " + output);
+        throw new STCFatal(ExitCode.ERROR_COMMAND.code());
+      }
+    }
+  }
+
+  /**
+   * @return true if path refers to the standard output of this process,
+   *         e.g. /dev/stdout or the file standard output is redirected to
+   */
+  private static boolean isStdout(String path) {
+    try {
+      return Files.isSameFile(Paths.get(path), Paths.get("/dev/stdout"));
+    } catch (IOException e) {
+      // Doesn't exist yet, or no /dev/stdout on this system
+      return false;
+    } catch (InvalidPathException e) {
+      return false;
     }
   }
 
@@ -323,13 +438,51 @@ public class Main {
       e.printStackTrace();
       System.err.println("Unexpected error opening " +
                          outfile.getAbsolutePath() + " for output.") ;
-      System.exit(1);
-      return null;
+      throw new STCFatal(1);
     }
   }
 
 
-  private static void runPreprocessor(Logger logger, String input, String output,
+  /**
+   * Run preprocessor, using built-in preprocessor if enabled and the input
+   * doesn't need the external preprocessor.  This is only applied to the
+   * main program file: imported modules are never preprocessed.
+   * @return line mapping for output, or null if the external preprocessor
+   *         was used and the mapping must be extracted from its output
+   * @throws IOException
+   */
+  static LineMapping preprocess(Logger logger, String input, String output,
+                          List<String> preprocArgs) throws IOException {
+    if (useBuiltinPreprocessor()) {
+      LineMapping lineMapping = runBuiltinPreprocessor(logger, input, output,
+                                                       preprocArgs);
+      if (lineMapping != null) {
+        return lineMapping;
+      }
+    }
+    runPreprocessor(logger, input, output, preprocArgs);
+    return null;
+  }
+
+  /**
+   * Run built-in preprocessor
+   * @return line mapping for output, or null if the external preprocessor
+   *         must be used instead
+   * @throws IOException
+   */
+  private static LineMapping runBuiltinPreprocessor(Logger logger, String input,
+        String output, List<String> preprocArgs) throws IOException {
+    try {
+      return Preprocessor.preprocess(input, output, Settings.getModulePath(),
+                                     preprocArgs);
+    } catch (PreprocessorException e) {
+      // External preprocessor will report any errors
+      logger.debug("Using external preprocessor: " + e.getMessage());
+      return null;
+    }
+  }
+
+  static void runPreprocessor(Logger logger, String input, String output,
                                       List<String> preprocArgs) {
     List<String> cmd = new ArrayList<String>();
     /*
@@ -381,18 +534,29 @@ public class Main {
         System.out.println(cppStderr);
         System.out.println("Aborting due to failure in cpp preprocessor invoked as: " +
             cmdString + ". " + ("Exit code was " + cppExitCode + ". "));
-        System.exit(1);
+        throw new STCFatal(1);
       } else if (cppStderr.length() != 0){
         logger.warn("Preprocessor warnings:\n" + cppStderr);
       }
     } catch (IOException e) {
       System.out.println("I/O error while launching preprocessor with command line:" +
                           cmdString + ": " + e.getMessage());
-      System.exit(1);
+      throw new STCFatal(1);
     }
   }
 
 
+  private static boolean useBuiltinPreprocessor() {
+    try {
+      return Settings.getBoolean(Settings.PREPROCESSOR_BUILTIN) &&
+          !Settings.getBoolean(Settings.PREPROCESSOR_FORCE_CPP) &&
+          !Settings.getBoolean(Settings.PREPROCESSOR_FORCE_GCC);
+    } catch (InvalidOptionException e) {
+      System.out.println("Internal error with settings: " + e.getMessage());
+      throw new STCFatal(ExitCode.ERROR_INTERNAL.code());
+    }
+  }
+
   public static boolean useGCCProcessor() {
     try {
       if ((SystemUtils.IS_OS_MAC_OSX &&
@@ -405,8 +569,7 @@ public class Main {
       }
     } catch (InvalidOptionException e) {
       System.out.println("Internal error with settings: " + e.getMessage());
-      System.exit(ExitCode.ERROR_INTERNAL.code());
-      return false;
+      throw new STCFatal(ExitCode.ERROR_INTERNAL.code());
     }
   }
 
@@ -421,7 +584,11 @@ public class Main {
       // Use output stream since it interacts between with non-seekable
       // devices such as /dev/stdout
       PrintStream outStream = new PrintStream(new FileOutputStream(output));
-      FileUtils.copyFile(inputFile, outStream);
+      try {
+        FileUtils.copyFile(inputFile, outStream);
+      } finally {
+        outStream.close();
+      }
     } catch (IOException e) {
       System.out.println("Error copying " + inputFile);
       e.printStackTrace();
@@ -445,18 +612,21 @@ public class Main {
     {
       System.out.println("Error opening IC output file " + icFileName
                          + ": " + e.getMessage());
-      System.exit(ExitCode.ERROR_IO.code());
+      throw new STCFatal(ExitCode.ERROR_IO.code());
     }
     return output;
   }
 
-  private static void cleanupFiles(boolean success, Args stcArgs) {
-    if (!success && stcArgs.outputFilename != null) {
+  private static void cleanupOutput(Args stcArgs) {
+    if (stcArgs.outputFilename != null) {
       File outFile = new File(stcArgs.outputFilename);
       if (outFile.exists()) {
         outFile.delete();
       }
     }
+  }
+
+  private void cleanupTemporaries() {
     for (File temp: temporaries) {
       if (temp.exists()) {
         temp.delete();
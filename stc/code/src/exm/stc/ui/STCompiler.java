@@ -21,6 +21,8 @@ import java.io.PrintStream;
 
 import org.apache.log4j.Logger;
 
+import exm.stc.ast.FilePosition.LineMapping;
+import exm.stc.common.CompilerBackend;
 import exm.stc.common.Settings;
 import exm.stc.common.exceptions.STCFatal;
 import exm.stc.common.exceptions.UserException;
@@ -28,6 +30,7 @@ import exm.stc.common.lang.ForeignFunctions;
 import exm.stc.common.util.Misc;
 import exm.stc.frontend.ASTWalker;
 import exm.stc.ic.STCMiddleEnd;
+import exm.stc.jvm.JVMGenerator;
 import exm.stc.tclbackend.TurbineGenerator;
 
 /**
@@ -51,11 +54,15 @@ public class STCompiler {
    * passes of the compiler
    * @param inputFile
    * @param originalInputFile
+   * @param preprocessed
+   * @param lineMapping line mapping for preprocessed input, or null if it
+   *                    must be extracted from preprocessor output
    * @param output
    * @param icOutput
    */
   public void compile(String inputFile, String originalInputFile,
-                      boolean preprocessed, OutputStream output,
+                      boolean preprocessed, LineMapping lineMapping,
+                      OutputStream output,
           PrintStream icOutput) {
     try {
       logger.info("STC starting: " + Misc.timestamp());
@@ -68,7 +75,8 @@ public class STCompiler {
        */
       int compileIterations = profile ? 100000 : 1;
       for (int i = 0; i < compileIterations; i++) {
-        compileOnce(inputFile, originalInputFile, preprocessed, output, icOutput);
+        compileOnce(inputFile, originalInputFile, preprocessed, lineMapping,
+                    output, icOutput);
       }
 
       output.close();
@@ -101,12 +109,12 @@ public class STCompiler {
   }
 
   private void compileOnce(String inputFile, String originalInputFile,
-      boolean preprocessed,
+      boolean preprocessed, LineMapping lineMapping,
       OutputStream output, PrintStream icOutput) throws UserException {
     ForeignFunctions foreignFuncs = new ForeignFunctions();
     STCMiddleEnd intermediate = new STCMiddleEnd(logger, icOutput, foreignFuncs);
     ASTWalker walker = new ASTWalker(intermediate, foreignFuncs);
-    walker.walk(inputFile, originalInputFile, preprocessed);
+    walker.walk(inputFile, originalInputFile, preprocessed, lineMapping);
 
     /* Optimise intermediate representation by repeatedly rewriting tree
      * NOTE: currently the optimizer pass is actually required for correctness,
@@ -115,9 +123,22 @@ public class STCompiler {
      */
     intermediate.optimize();
 
-    /* Generate output tcl code from intermediate representation */
-    TurbineGenerator codeGen = new TurbineGenerator(logger, Misc.timestamp());
-    intermediate.regenerate(codeGen);
+    /* Generate output code from intermediate representation */
+    CompilerBackend codeGen;
+    if (Settings.get(Settings.BACKEND).equalsIgnoreCase(Settings.BACKEND_JVM)) {
+      JVMGenerator jvmGen = new JVMGenerator(logger, Misc.timestamp());
+      intermediate.regenerate(jvmGen);
+      jvmGen.checkSupported();
+      codeGen = jvmGen;
+    } else {
+      TurbineGenerator turbineGen = new TurbineGenerator(logger,
+                                                  Misc.timestamp());
+      if (Settings.getBooleanUnchecked(Settings.STREAM_OUTPUT)) {
+        turbineGen.streamTo(output);
+      }
+      intermediate.regenerate(turbineGen);
+      codeGen = turbineGen;
+    }
     try {
       codeGen.generate(output);
     } catch (IOException e) {
@@ -0,0 +1,140 @@
+package exm.stc.common.lang;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import exm.stc.common.lang.Types.ArrayType;
+import exm.stc.common.lang.Types.FunctionType;
+import exm.stc.common.lang.Types.RefType;
+import exm.stc.common.lang.Types.StructType;
+import exm.stc.common.lang.Types.StructType.StructField;
+import exm.stc.common.lang.Types.Type;
+import exm.stc.common.lang.Types.TypeVariable;
+import exm.stc.common.lang.Types.UnionType;
+
+public class TypeTableTest {
+
+  @Test
+  public void testInterned() {
+    assertSame(ArrayType.sharedArray(Types.F_INT, Types.F_STRING),
+               ArrayType.sharedArray(Types.F_INT, Types.F_STRING));
+    assertSame(RefType.create(Types.F_FLOAT, false),
+               RefType.create(Types.F_FLOAT, false));
+
+    // Nested types are built from canonical components
+    Type nested1 = ArrayType.sharedArray(Types.F_INT,
+        RefType.create(ArrayType.sharedArray(Types.F_INT, Types.F_INT),
+                       false));
+    Type nested2 = ArrayType.sharedArray(Types.F_INT,
+        RefType.create(ArrayType.sharedArray(Types.F_INT, Types.F_INT),
+                       false));
+    assertSame(nested1, nested2);
+
+    // Lists of types are compared element by element
+    assertSame(FunctionType.create(
+                  Arrays.asList(Types.F_INT, Types.F_FLOAT),
+                  Arrays.asList(Types.F_STRING), false),
+               FunctionType.create(
+                  new ArrayList<Type>(Arrays.asList(Types.F_INT,
+                                                    Types.F_FLOAT)),
+                  new ArrayList<Type>(Arrays.asList(Types.F_STRING)),
+                  false));
+
+    List<StructField> fields = Arrays.asList(
+        new StructField(Types.F_INT, "a"),
+        new StructField(Types.F_STRING, "b"));
+    assertSame(StructType.sharedStruct("pair", fields),
+               StructType.sharedStruct("pair",
+                                       new ArrayList<StructField>(fields)));
+  }
+
+  @Test
+  public void testDistinct() {
+    Type shared = ArrayType.sharedArray(Types.F_INT, Types.F_STRING);
+    Type local = ArrayType.localArray(Types.F_INT, Types.F_STRING);
+    assertNotSame(shared, local);
+    assertTrue(!shared.equals(local));
+
+    // Same parts, different class
+    assertNotSame(RefType.create(Types.F_INT, false),
+                  RefType.create(Types.F_INT, true));
+    assertNotSame(Types.F_INT, Types.V_INT);
+  }
+
+  /**
+   * Interning is stricter than equals(), so types that are equal but not
+   * identical must still compare equal
+   */
+  @Test
+  public void testEqualNotIdentical() {
+    Type u1 = UnionType.createUnionType(Types.F_INT, Types.F_FLOAT);
+    Type u2 = UnionType.createUnionType(Types.F_FLOAT, Types.F_INT);
+    assertNotSame(u1, u2);
+    assertEquals(u1, u2);
+    assertEquals(u1.hashCode(), u2.hashCode());
+  }
+
+  @Test
+  public void testDeserializedInterned() throws Exception {
+    Type type = ArrayType.sharedArray(Types.F_INT,
+                    RefType.create(Types.F_FLOAT, false));
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    ObjectOutputStream out = new ObjectOutputStream(bytes);
+    out.writeObject(type);
+    out.close();
+
+    ObjectInputStream in = new ObjectInputStream(
+                        new ByteArrayInputStream(bytes.toByteArray()));
+    assertSame(type, in.readObject());
+    in.close();
+  }
+
+  /**
+   * Types that are no longer referenced can be collected, after which
+   * new instances are created, which must behave the same as the old
+   * ones.  Types still referenced stay canonical.
+   */
+  @Test
+  public void testCollected() {
+    Type held = ArrayType.sharedArray(Types.F_INT,
+                      TypeVariable.create("TypeTableTestHeld"));
+
+    WeakReference<Type> ref = new WeakReference<Type>(
+        ArrayType.sharedArray(Types.F_INT,
+                              TypeVariable.create("TypeTableTestDropped")));
+    String desc = ref.get().toString();
+    int hashCode = ref.get().hashCode();
+
+    for (int i = 0; i < 20 && ref.get() != null; i++) {
+      System.gc();
+      // Allocate so that table is expunged
+      TypeVariable.create("TypeTableTest" + i);
+    }
+    Assume.assumeTrue(ref.get() == null);
+
+    Type recreated = ArrayType.sharedArray(Types.F_INT,
+                             TypeVariable.create("TypeTableTestDropped"));
+    assertSame(recreated, ArrayType.sharedArray(Types.F_INT,
+                             TypeVariable.create("TypeTableTestDropped")));
+    assertEquals(desc, recreated.toString());
+    assertEquals(hashCode, recreated.hashCode());
+
+    assertSame(held, ArrayType.sharedArray(Types.F_INT,
+                             TypeVariable.create("TypeTableTestHeld")));
+    assertTrue(!held.equals(recreated));
+  }
+}
@@ -0,0 +1,260 @@
+package exm.stc.common.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class PersistentHashMapTest {
+
+  /**
+   * Key with chosen hash code, to force collisions
+   */
+  private static class Key {
+    final int hash;
+    final String name;
+
+    Key(int hash, String name) {
+      this.hash = hash;
+      this.name = name;
+    }
+
+    @Override
+    public int hashCode() {
+      return hash;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      return obj instanceof Key && ((Key)obj).name.equals(name);
+    }
+
+    @Override
+    public String toString() {
+      return name + "#" + hash;
+    }
+  }
+
+  @Test
+  public void testEmpty() {
+    PersistentHashMap<String, Integer> m = PersistentHashMap.empty();
+    assertTrue(m.isEmpty());
+    assertEquals(0, m.size());
+    assertNull(m.get("a"));
+    assertFalse(m.containsKey("a"));
+    assertFalse(m.iterator().hasNext());
+    assertSame(m, m.minus("a"));
+  }
+
+  @Test
+  public void testBasic() {
+    PersistentHashMap<Integer, Integer> m = PersistentHashMap.empty();
+    for (int i = 0; i < 1000; i++) {
+      m = m.plus(i, i * 10);
+    }
+    assertEquals(1000, m.size());
+    for (int i = 0; i < 1000; i++) {
+      assertEquals(i * 10, (int)m.get(i));
+    }
+    assertNull(m.get(1000));
+
+    // Overwrite existing key
+    m = m.plus(5, 42);
+    assertEquals(1000, m.size());
+    assertEquals(42, (int)m.get(5));
+
+    // Binding same value should return same map
+    assertSame(m, m.plus(5, m.get(5)));
+  }
+
+  @Test
+  public void testNullKeyValue() {
+    PersistentHashMap<String, String> m = PersistentHashMap.empty();
+    m = m.plus(null, "x");
+    m = m.plus("a", null);
+    assertEquals(2, m.size());
+    assertEquals("x", m.get(null));
+    assertTrue(m.containsKey("a"));
+    assertNull(m.get("a"));
+
+    m = m.minus(null);
+    assertFalse(m.containsKey(null));
+    assertEquals(1, m.size());
+  }
+
+  /**
+   * Old versions of map must not change
+   */
+  @Test
+  public void testPersistence() {
+    PersistentHashMap<Integer, String> m1 = PersistentHashMap.empty();
+    for (int i = 0; i < 100; i++) {
+      m1 = m1.plus(i, "v" + i);
+    }
+
+    PersistentHashMap<Integer, String> m2 = m1.plus(100, "v100")
+                                              .plus(3, "changed")
+                                              .minus(50);
+    assertEquals(100, m1.size());
+    assertEquals("v3", m1.get(3));
+    assertEquals("v50", m1.get(50));
+    assertFalse(m1.containsKey(100));
+
+    assertEquals(100, m2.size());
+    assertEquals("changed", m2.get(3));
+    assertFalse(m2.containsKey(50));
+    assertEquals("v100", m2.get(100));
+  }
+
+  @Test
+  public void testFullCollisions() {
+    Key a = new Key(7, "a"), b = new Key(7, "b"), c = new Key(7, "c");
+    PersistentHashMap<Key, Integer> m = PersistentHashMap.empty();
+    m = m.plus(a, 1).plus(b, 2).plus(c, 3);
+    assertEquals(3, m.size());
+    assertEquals(1, (int)m.get(a));
+    assertEquals(2, (int)m.get(b));
+    assertEquals(3, (int)m.get(c));
+    assertNull(m.get(new Key(7, "d")));
+
+    // Overwrite within collision node
+    m = m.plus(b, 20);
+    assertEquals(3, m.size());
+    assertEquals(20, (int)m.get(b));
+
+    // Key with same position in root, but different hash
+    Key d = new Key(7 + (1 << 5), "d");
+    m = m.plus(d, 4);
+    assertEquals(4, m.size());
+    assertEquals(4, (int)m.get(d));
+    assertEquals(3, (int)m.get(c));
+
+    // Remove from collision node
+    PersistentHashMap<Key, Integer> m2 = m.minus(b);
+    assertEquals(3, m2.size());
+    assertFalse(m2.containsKey(b));
+    assertEquals(1, (int)m2.get(a));
+    assertEquals(3, (int)m2.get(c));
+    assertEquals(4, (int)m2.get(d));
+    assertEquals(20, (int)m.get(b));
+
+    // Remove until collision node has single leaf, then empty
+    m2 = m2.minus(a);
+    assertEquals(3, (int)m2.get(c));
+    m2 = m2.minus(c).minus(d);
+    assertTrue(m2.isEmpty());
+    assertFalse(m2.iterator().hasNext());
+  }
+
+  /**
+   * Keys with hashes that share prefixes, so trie is deep
+   */
+  @Test
+  public void testDeepTrie() {
+    PersistentHashMap<Key, Integer> m = PersistentHashMap.empty();
+    List<Key> keys = new ArrayList<Key>();
+    for (int i = 0; i < 3; i++) {
+      // Only differ in bits 10-11, so share first two levels
+      keys.add(new Key(3 | (i << 10), "k" + i));
+    }
+    for (int i = 0; i < keys.size(); i++) {
+      m = m.plus(keys.get(i), i);
+    }
+    for (int i = 0; i < keys.size(); i++) {
+      assertEquals(i, (int)m.get(keys.get(i)));
+    }
+    assertNull(m.get(new Key(3 | (3 << 10), "k3")));
+
+    m = m.minus(keys.get(1));
+    assertEquals(2, m.size());
+    assertEquals(0, (int)m.get(keys.get(0)));
+    assertEquals(2, (int)m.get(keys.get(2)));
+    m = m.minus(keys.get(0));
+    assertEquals(2, (int)m.get(keys.get(2)));
+    assertEquals(1, count(m));
+  }
+
+  @Test
+  public void testRemoveAbsent() {
+    PersistentHashMap<Key, Integer> m = PersistentHashMap.empty();
+    m = m.plus(new Key(1, "a"), 1);
+    assertSame(m, m.minus(new Key(1, "b")));
+    assertSame(m, m.minus(new Key(2, "a")));
+  }
+
+  @Test
+  public void testIteration() {
+    PersistentHashMap<Integer, Integer> m = PersistentHashMap.empty();
+    Map<Integer, Integer> expected = new HashMap<Integer, Integer>();
+    for (int i = 0; i < 500; i++) {
+      m = m.plus(i * 31, i);
+      expected.put(i * 31, i);
+    }
+
+    Map<Integer, Integer> seen = new HashMap<Integer, Integer>();
+    for (Map.Entry<Integer, Integer> e: m) {
+      assertNull("Duplicate key " + e.getKey(),
+                 seen.put(e.getKey(), e.getValue()));
+    }
+    assertEquals(expected, seen);
+
+    Iterator<Map.Entry<Integer, Integer>> it =
+          PersistentHashMap.<Integer, Integer>empty().iterator();
+    try {
+      it.next();
+      fail("Expected exception");
+    } catch (NoSuchElementException e) {
+      // Expected
+    }
+  }
+
+  /**
+   * Compare against HashMap with random operations and many collisions
+   */
+  @Test
+  public void testRandom() {
+    Random rand = new Random(1234);
+    PersistentHashMap<Key, Integer> m = PersistentHashMap.empty();
+    Map<Key, Integer> expected = new HashMap<Key, Integer>();
+    for (int i = 0; i < 20000; i++) {
+      int n = rand.nextInt(500);
+      // Only 64 distinct hashes with high bits set
+      Key key = new Key((n % 64) * 0x01010101, "k" + n);
+      if (rand.nextInt(3) == 0) {
+        m = m.minus(key);
+        expected.remove(key);
+      } else {
+        m = m.plus(key, i);
+        expected.put(key, i);
+      }
+      assertEquals(expected.size(), m.size());
+      assertEquals(expected.get(key), m.get(key));
+    }
+
+    Map<Key, Integer> seen = new HashMap<Key, Integer>();
+    for (Map.Entry<Key, Integer> e: m) {
+      seen.put(e.getKey(), e.getValue());
+    }
+    assertEquals(expected, seen);
+  }
+
+  private static int count(Iterable<?> it) {
+    int n = 0;
+    for (@SuppressWarnings("unused") Object o: it) {
+      n++;
+    }
+    return n;
+  }
+}
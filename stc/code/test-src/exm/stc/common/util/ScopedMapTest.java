@@ -0,0 +1,127 @@
+package exm.stc.common.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class ScopedMapTest {
+
+  @Test
+  public void testChildSeesParent() {
+    ScopedMap<String, Integer> parent = new ScopedMap<String, Integer>();
+    parent.put("a", 1);
+    parent.put("b", 2);
+
+    ScopedMap<String, Integer> child = parent.makeChild();
+    assertEquals(2, child.size());
+    assertEquals(1, (int)child.get("a"));
+    assertEquals(2, (int)child.get("b"));
+  }
+
+  @Test
+  public void testChildUpdateNotInParent() {
+    ScopedMap<String, Integer> parent = new ScopedMap<String, Integer>();
+    parent.put("a", 1);
+    parent.put("b", 2);
+
+    ScopedMap<String, Integer> child = parent.makeChild();
+    assertEquals(1, (int)child.put("a", 10));
+    assertNull(child.put("c", 3));
+    assertEquals(2, (int)child.remove("b"));
+
+    assertEquals(2, child.size());
+    assertEquals(10, (int)child.get("a"));
+    assertFalse(child.containsKey("b"));
+
+    assertEquals(2, parent.size());
+    assertEquals(1, (int)parent.get("a"));
+    assertEquals(2, (int)parent.get("b"));
+    assertFalse(parent.containsKey("c"));
+  }
+
+  /**
+   * Child has a snapshot of parent, so later updates to parent are
+   * not visible in existing children
+   */
+  @Test
+  public void testParentUpdateNotInChild() {
+    ScopedMap<String, Integer> parent = new ScopedMap<String, Integer>();
+    parent.put("a", 1);
+    ScopedMap<String, Integer> child = parent.makeChild();
+    ScopedMap<String, Integer> grandchild = child.makeChild();
+
+    parent.put("a", 2);
+    parent.put("b", 3);
+    parent.remove("a");
+
+    assertEquals(1, (int)child.get("a"));
+    assertFalse(child.containsKey("b"));
+    assertEquals(1, child.size());
+    assertEquals(1, (int)grandchild.get("a"));
+    assertFalse(grandchild.containsKey("b"));
+
+    // New child sees current contents
+    ScopedMap<String, Integer> child2 = parent.makeChild();
+    assertFalse(child2.containsKey("a"));
+    assertEquals(3, (int)child2.get("b"));
+  }
+
+  @Test
+  public void testIteration() {
+    ScopedMap<Integer, Integer> parent = new ScopedMap<Integer, Integer>();
+    Map<Integer, Integer> expected = new HashMap<Integer, Integer>();
+    for (int i = 0; i < 100; i++) {
+      parent.put(i, i * 2);
+      expected.put(i, i * 2);
+    }
+    ScopedMap<Integer, Integer> child = parent.makeChild();
+    child.put(100, 200);
+
+    assertEquals(expected, new HashMap<Integer, Integer>(parent));
+    expected.put(100, 200);
+    assertEquals(expected, new HashMap<Integer, Integer>(child));
+  }
+
+  @Test
+  public void testIteratorRemove() {
+    ScopedMap<Integer, Integer> parent = new ScopedMap<Integer, Integer>();
+    for (int i = 0; i < 100; i++) {
+      parent.put(i, i);
+    }
+    ScopedMap<Integer, Integer> child = parent.makeChild();
+
+    // Remove odd keys while iterating
+    Iterator<Map.Entry<Integer, Integer>> it = child.entrySet().iterator();
+    int visited = 0;
+    while (it.hasNext()) {
+      Map.Entry<Integer, Integer> e = it.next();
+      visited++;
+      if (e.getKey() % 2 == 1) {
+        it.remove();
+      }
+    }
+    assertEquals(100, visited);
+    assertEquals(50, child.size());
+    for (int i = 0; i < 100; i++) {
+      assertEquals(i % 2 == 0, child.containsKey(i));
+    }
+    assertEquals(100, parent.size());
+  }
+
+  @Test
+  public void testClear() {
+    ScopedMap<String, Integer> parent = new ScopedMap<String, Integer>();
+    parent.put("a", 1);
+    ScopedMap<String, Integer> child = parent.makeChild();
+    child.clear();
+    assertTrue(child.isEmpty());
+    assertEquals(1, (int)parent.get("a"));
+  }
+}
@@ -0,0 +1,84 @@
+package exm.stc.common.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+
+import org.junit.Test;
+
+public class ScopedSetTest {
+
+  @Test
+  public void testAddRemove() {
+    ScopedSet<String> s = new ScopedSet<String>();
+    assertTrue(s.add("a"));
+    assertFalse(s.add("a"));
+    assertTrue(s.add("b"));
+    assertEquals(2, s.size());
+    assertTrue(s.remove("a"));
+    assertFalse(s.remove("a"));
+    assertEquals(new HashSet<String>(Arrays.asList("b")), s);
+  }
+
+  @Test
+  public void testChildUpdateNotInParent() {
+    ScopedSet<String> parent = new ScopedSet<String>();
+    parent.add("a");
+    parent.add("b");
+
+    ScopedSet<String> child = parent.makeChild();
+    assertTrue(child.contains("a"));
+    child.add("c");
+    child.remove("a");
+
+    assertEquals(new HashSet<String>(Arrays.asList("b", "c")), child);
+    assertEquals(new HashSet<String>(Arrays.asList("a", "b")), parent);
+  }
+
+  /**
+   * Child has a snapshot of parent, so later updates to parent are
+   * not visible in existing children
+   */
+  @Test
+  public void testParentUpdateNotInChild() {
+    ScopedSet<String> parent = new ScopedSet<String>();
+    parent.add("a");
+    ScopedSet<String> child = parent.makeChild();
+
+    parent.add("b");
+    parent.remove("a");
+
+    assertEquals(new HashSet<String>(Arrays.asList("a")), child);
+    assertEquals(new HashSet<String>(Arrays.asList("b")),
+                 parent.makeChild());
+  }
+
+  @Test
+  public void testIteratorRemove() {
+    ScopedSet<Integer> parent = new ScopedSet<Integer>();
+    for (int i = 0; i < 100; i++) {
+      parent.add(i);
+    }
+    ScopedSet<Integer> child = parent.makeChild();
+
+    Iterator<Integer> it = child.iterator();
+    int visited = 0;
+    while (it.hasNext()) {
+      int i = it.next();
+      visited++;
+      if (i % 2 == 1) {
+        it.remove();
+      }
+    }
+    assertEquals(100, visited);
+    assertEquals(50, child.size());
+    for (int i = 0; i < 100; i++) {
+      assertEquals(i % 2 == 0, child.contains(i));
+    }
+    assertEquals(100, parent.size());
+  }
+}
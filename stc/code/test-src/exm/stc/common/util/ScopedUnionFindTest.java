@@ -220,6 +220,24 @@ public class ScopedUnionFindTest {
     assertEquals((Integer)4, subscriber.notifs.get(1).val2);
   }
 
+  /**
+   * Keys are iterated in the order they were merged, not hash order
+   */
+  @Test
+  public void testKeysOrder() {
+    ScopedUnionFind<Integer> uf = ScopedUnionFind.createRoot();
+    uf.merge(1, 30);
+    uf.merge(1, 20);
+    uf.merge(2, 10);
+    uf.merge(1, 2);
+
+    List<Integer> keys = new ArrayList<Integer>();
+    for (Integer key: uf.keys()) {
+      keys.add(key);
+    }
+    assertEquals(Arrays.asList(30, 20, 10, 2), keys);
+  }
+
   private static class NotificationSaver<T> implements UnionFindSubscriber<T> {
     final List<Pair<T, T>> notifs = new ArrayList<Pair<T, T>>();
 
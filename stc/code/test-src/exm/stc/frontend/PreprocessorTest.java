@@ -0,0 +1,237 @@
+package exm.stc.frontend;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import exm.stc.ast.FilePosition;
+import exm.stc.ast.FilePosition.LineMapping;
+import exm.stc.frontend.Preprocessor.PreprocessorException;
+
+public class PreprocessorTest {
+
+  @Rule
+  public TemporaryFolder tmp = new TemporaryFolder();
+
+  /** Output of last preprocessor run, one entry per line */
+  private List<String> outLines;
+
+  private File write(String name, String... lines) throws IOException {
+    File file = new File(tmp.getRoot(), name);
+    file.getParentFile().mkdirs();
+    FileUtils.writeLines(file, Arrays.asList(lines));
+    return file;
+  }
+
+  private LineMapping preprocess(File input, List<String> includePath,
+      List<String> macroDefs) throws IOException, PreprocessorException {
+    File output = new File(tmp.getRoot(), "out.swift");
+    LineMapping mapping = Preprocessor.preprocess(input.getPath(),
+                          output.getPath(), includePath, macroDefs);
+    outLines = FileUtils.readLines(output, StandardCharsets.ISO_8859_1);
+    return mapping;
+  }
+
+  private LineMapping preprocess(File input)
+      throws IOException, PreprocessorException {
+    return preprocess(input, Collections.<String>emptyList(),
+                      Collections.<String>emptyList());
+  }
+
+  /**
+   * @return non-blank output lines that aren't line markers
+   */
+  private List<String> code() {
+    List<String> result = new ArrayList<String>();
+    for (String line: outLines) {
+      if (!line.trim().isEmpty() && !line.startsWith("#")) {
+        result.add(line.trim());
+      }
+    }
+    return result;
+  }
+
+  /**
+   * @return 1-based output line number of first line containing text
+   */
+  private int outLine(String text) {
+    for (int i = 0; i < outLines.size(); i++) {
+      if (outLines.get(i).contains(text)) {
+        return i + 1;
+      }
+    }
+    fail("\"" + text + "\" not in output: " + outLines);
+    return -1;
+  }
+
+  private static void assertPosition(File file, int line, FilePosition pos)
+      throws IOException {
+    assertEquals(file.getCanonicalPath(),
+                 new File(pos.file).getCanonicalPath());
+    assertEquals(line, pos.line);
+  }
+
+  @Test
+  public void testDefine() throws Exception {
+    File in = write("main.swift",
+        "#define N 10",
+        "#define SQUARE(x) ((x) * (x))",
+        "#define STR(x) #x",
+        "#define CAT(a, b) a ## b",
+        "#define LOG(fmt, ...) printf(fmt, __VA_ARGS__)",
+        "int a = SQUARE(N + 1);",
+        "string s = STR(hello world);",
+        "int CAT(my, var) = N;",
+        "LOG(\"%i %i\", a, N);",
+        "#undef N",
+        "int b = N;");
+    preprocess(in);
+    assertEquals(Arrays.asList(
+        "int a = ((10 + 1) * (10 + 1));",
+        "string s = \"hello world\";",
+        "int myvar = 10;",
+        "printf(\"%i %i\", a, 10);",
+        "int b = N;"), code());
+  }
+
+  @Test
+  public void testCommandLineDefine() throws Exception {
+    File in = write("main.swift",
+        "int a = A;",
+        "int b = B;");
+    preprocess(in, Collections.<String>emptyList(),
+               Arrays.asList("A=42", "B"));
+    assertEquals(Arrays.asList("int a = 42;", "int b = 1;"), code());
+  }
+
+  @Test
+  public void testConditionals() throws Exception {
+    File in = write("main.swift",
+        "#define N 10",
+        "#if N > 5 && defined(N)",
+        "int a = 1;",
+        "#elif N > 1",
+        "int a = 2;",
+        "#else",
+        "int a = 3;",
+        "#endif",
+        "#ifdef UNDEFINED",
+        "int b = 1;",
+        "#if 1",
+        "int b = 2;",
+        "#endif",
+        "#elif (N * 2) % 3 == 2",
+        "int b = 3;",
+        "#endif",
+        "#ifndef UNDEFINED",
+        "int c = 1;",
+        "#else",
+        "#error not reached",
+        "#endif",
+        "#if 0",
+        "#unknown directive in skipped section",
+        "#endif");
+    preprocess(in);
+    assertEquals(Arrays.asList("int a = 1;", "int b = 3;", "int c = 1;"),
+                 code());
+  }
+
+  @Test
+  public void testInclude() throws Exception {
+    write("inc/defs.swift",
+        "#ifndef DEFS_SWIFT",
+        "#define DEFS_SWIFT",
+        "#define SQUARE(x) ((x) * (x))",
+        "int fromHeader = 7;",
+        "#endif");
+    write("local.swift",
+        "#pragma once",
+        "int fromLocal = 1;");
+    File in = write("main.swift",
+        "#include <defs.swift>",
+        "#include \"local.swift\"",
+        "#include <defs.swift>",
+        "#include \"local.swift\"",
+        "int a = SQUARE(2);");
+    List<String> includePath = Arrays.asList(
+                          new File(tmp.getRoot(), "inc").getPath());
+    preprocess(in, includePath, Collections.<String>emptyList());
+
+    // Guarded and #pragma once headers only included once
+    assertEquals(Arrays.asList("int fromHeader = 7;", "int fromLocal = 1;",
+                               "int a = ((2) * (2));"), code());
+    assertTrue(outLines.toString(),
+        outLines.contains("# 1 \"" + new File(includePath.get(0),
+                                           "defs.swift").getPath() + "\" 1"));
+  }
+
+  @Test
+  public void testLineMapping() throws Exception {
+    File header = write("defs.swift",
+        "// Header",
+        "",
+        "int fromHeader = 7;");
+    File in = write("main.swift",
+        "#include \"defs.swift\"",
+        "#define TWO 2",
+        "int one = 1;",
+        "",
+        "",
+        "",
+        "",
+        "",
+        "",
+        "",
+        "",
+        "",
+        "",
+        "int two = TWO;",
+        "trace(__LINE__);");
+    LineMapping mapping = preprocess(in);
+
+    assertPosition(header, 3,
+                   mapping.getFilePosition(outLine("fromHeader")));
+    assertPosition(in, 3, mapping.getFilePosition(outLine("one")));
+    // Long run of blank lines is replaced with line marker
+    assertPosition(in, 14, mapping.getFilePosition(outLine("two")));
+    assertTrue(outLines.contains("trace(15);"));
+    assertEquals(outLine("two") + 1, outLine("trace"));
+  }
+
+  /**
+   * Input the built-in preprocessor can't handle must raise an exception,
+   * so that the caller can fall back to the external preprocessor
+   */
+  @Test
+  public void testUnsupported() throws Exception {
+    checkUnsupported("#ident \"version 1\"");
+    checkUnsupported("#include MACRO_NAME");
+    checkUnsupported("#error stop");
+    checkUnsupported("#if 1", "int a;");
+    checkUnsupported("#endif");
+    checkUnsupported("#include \"missing.swift\"");
+  }
+
+  private void checkUnsupported(String... lines) throws IOException {
+    File in = write("unsupported.swift", lines);
+    try {
+      preprocess(in);
+      fail("Expected exception for " + Arrays.asList(lines));
+    } catch (PreprocessorException e) {
+      // Expected
+    }
+  }
+}
@@ -0,0 +1,94 @@
+package exm.stc.ic;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import exm.stc.common.Settings;
+
+public class FunctionCacheTest {
+
+  @Rule
+  public TemporaryFolder tmp = new TemporaryFolder();
+
+  @After
+  public void resetSettings() {
+    Settings.setScope(null);
+  }
+
+  private File program() throws IOException {
+    File file = new File(tmp.getRoot(), "main.swift");
+    FileUtils.writeLines(file, Arrays.asList(
+        "import sys;",
+        "main { trace(argv(\"n\")); }"));
+    return file;
+  }
+
+  private File cacheDir() {
+    return new File(tmp.getRoot(), "cache");
+  }
+
+  private String compile(String n, String... settings) throws IOException {
+    return TestCompiler.compile(program(), Arrays.asList("-A", "n=" + n),
+                                settings);
+  }
+
+  /**
+   * Compile with optimizations that prevent caching disabled
+   */
+  private String compileCached(String n) throws IOException {
+    return compile(n, Settings.IC_CACHE_DIR, cacheDir().getPath(),
+                   Settings.OPT_FUNCTION_INLINE, "false",
+                   Settings.OPT_FUNCTION_SPECIALIZE, "false",
+                   Settings.OPT_FUNCTION_SIGNATURE, "false");
+  }
+
+  private int cacheSize() {
+    String[] files = cacheDir().list();
+    return files == null ? 0 : files.length;
+  }
+
+  /**
+   * argv() is folded to compile-time argument, so a function compiled
+   * with a different value must not be used
+   */
+  @Test
+  public void testCompileTimeArgs() throws Exception {
+    String code = compileCached("10");
+    assertTrue(code, code.contains("\"10\""));
+    int size = cacheSize();
+    assertTrue(size > 0);
+
+    code = compileCached("20");
+    assertTrue(code, code.contains("\"20\""));
+    assertFalse(code, code.contains("\"10\""));
+    // Missed, so added to cache
+    assertTrue(cacheSize() > size);
+    size = cacheSize();
+
+    code = compileCached("10");
+    assertTrue(code, code.contains("\"10\""));
+    assertFalse(code, code.contains("\"20\""));
+    // Hit, so nothing added
+    assertEquals(size, cacheSize());
+  }
+
+  /**
+   * Cache isn't used with default optimizations, which include inlining
+   */
+  @Test
+  public void testNotUsedWithInlining() throws Exception {
+    compile("10", Settings.IC_CACHE_DIR, cacheDir().getPath());
+    assertEquals(0, cacheSize());
+  }
+}
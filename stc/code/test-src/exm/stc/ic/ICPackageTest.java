@@ -0,0 +1,134 @@
+package exm.stc.ic;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InvalidClassException;
+import java.io.ObjectOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import exm.stc.common.Settings;
+import exm.stc.common.lang.CompileTimeArgs;
+import exm.stc.common.lang.ExecContext;
+import exm.stc.common.lang.ExecContext.WorkContext;
+import exm.stc.common.lang.ForeignFunctions;
+
+public class ICPackageTest {
+
+  @Rule
+  public TemporaryFolder tmp = new TemporaryFolder();
+
+  @After
+  public void resetSettings() {
+    Settings.setScope(null);
+  }
+
+  private File write(String name, String... lines) throws IOException {
+    File file = tmp.newFile(name);
+    FileUtils.writeLines(file, Arrays.asList(lines));
+    return file;
+  }
+
+  /**
+   * Compile with inlining disabled so that package functions are called
+   * rather than inlined
+   */
+  private String compile(File in, String n, String... settings)
+                                                    throws IOException {
+    List<String> allSettings = new ArrayList<String>(Arrays.asList(settings));
+    allSettings.add(Settings.OPT_FUNCTION_INLINE);
+    allSettings.add("false");
+    return TestCompiler.compile(in, Arrays.asList("-A", "n=" + n),
+                                allSettings.toArray(new String[0]));
+  }
+
+  @Test
+  public void testKeyDependsOnCompileTimeArgs() throws Exception {
+    byte[] source = "main {}".getBytes(StandardCharsets.UTF_8);
+    Settings.setScope(Settings.newScope());
+    String noArgs = ICPackage.key(source);
+    CompileTimeArgs.addCompileTimeArg("n", "10");
+    String n10 = ICPackage.key(source);
+
+    Settings.setScope(Settings.newScope());
+    CompileTimeArgs.addCompileTimeArg("n", "20");
+    String n20 = ICPackage.key(source);
+
+    Settings.setScope(Settings.newScope());
+    CompileTimeArgs.addCompileTimeArg("n", "10");
+    assertEquals(n10, ICPackage.key(source));
+    assertNotEquals(noArgs, n10);
+    assertNotEquals(n10, n20);
+  }
+
+  /**
+   * A package compiled with different compile-time arguments must not be
+   * used, since argv() calls in it were folded to their values
+   */
+  @Test
+  public void testCompileTimeArgsMismatch() throws Exception {
+    File lib = write("lib.swift",
+        "import sys;",
+        "(string o) getn() { o = argv(\"n\"); }");
+    File driver = write("driver.swift",
+        "import lib;",
+        "main { trace(getn()); }");
+    File pkg = new File(tmp.getRoot(), "lib" + ICPackage.SUFFIX);
+
+    compile(lib, "10", Settings.IC_PACKAGE_OUTPUT, pkg.getPath());
+    assertTrue(pkg.isFile());
+
+    String code = compile(driver, "20",
+                          Settings.IC_PACKAGE_PATH, tmp.getRoot().getPath());
+    assertTrue(code, code.contains("\"20\""));
+    assertFalse(code, code.contains("\"10\""));
+
+    code = compile(driver, "10",
+                   Settings.IC_PACKAGE_PATH, tmp.getRoot().getPath());
+    assertTrue(code, code.contains("\"10\""));
+    assertFalse(code, code.contains("\"20\""));
+  }
+
+  /**
+   * Classes that can't appear in IC are not deserialized
+   */
+  @Test
+  public void testRejectUnexpectedClass() throws Exception {
+    File file = tmp.newFile("bad" + ICPackage.SUFFIX);
+    ObjectOutputStream out = new ObjectOutputStream(
+                                      new FileOutputStream(file));
+    try {
+      out.writeInt(ICPackage.MAGIC);
+      out.writeInt(ICPackage.FORMAT_VERSION);
+      out.writeObject(new File("x"));
+    } finally {
+      out.close();
+    }
+
+    Settings.setScope(Settings.newScope());
+    try {
+      ICPackage.read(file, new ForeignFunctions(),
+          Collections.<WorkContext>singletonList(
+                  ExecContext.defaultWorker().workContext()));
+      fail("Expected exception");
+    } catch (InvalidClassException e) {
+      assertTrue(e.getMessage(), e.getMessage().contains("java.io.File"));
+    }
+  }
+}
@@ -0,0 +1,57 @@
+package exm.stc.ic;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Assume;
+
+import exm.stc.common.Settings;
+import exm.stc.ui.ExitCode;
+import exm.stc.ui.Main;
+
+/**
+ * Run the whole compiler from tests.  Tests are skipped if Turbine's
+ * builtin modules can't be found.
+ */
+public class TestCompiler {
+
+  /**
+   * Compile file in fresh settings scope, with files in same directory
+   * importable
+   * @param settings pairs of setting names and values
+   * @return generated code
+   */
+  public static String compile(File in, List<String> args,
+                               String... settings) throws IOException {
+    File turbineHome = new File(System.getProperty(Settings.TURBINE_HOME,
+                                                   "../../turbine/code"));
+    Assume.assumeTrue(new File(turbineHome, "export/builtins.swift").isFile());
+
+    Properties props = new Properties();
+    props.setProperty(Settings.STC_HOME, ".");
+    props.setProperty(Settings.TURBINE_HOME, turbineHome.getPath());
+    props.setProperty(Settings.USE_C_PREPROCESSOR, "false");
+    for (int i = 0; i < settings.length; i += 2) {
+      props.setProperty(settings[i], settings[i + 1]);
+    }
+
+    File out = new File(in.getPath().replace(".swift", ".tic"));
+    List<String> allArgs = new ArrayList<String>();
+    allArgs.addAll(Arrays.asList("-I", in.getParent()));
+    allArgs.addAll(args);
+    allArgs.addAll(Arrays.asList(in.getPath(), out.getPath()));
+
+    Settings.setScope(Settings.newScope());
+    int exitCode = Main.compile(allArgs.toArray(new String[0]), props);
+    assertEquals(ExitCode.SUCCESS.code(), exitCode);
+    return FileUtils.readFileToString(out, StandardCharsets.UTF_8);
+  }
+}
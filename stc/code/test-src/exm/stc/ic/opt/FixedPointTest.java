@@ -0,0 +1,131 @@
+package exm.stc.ic.opt;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import exm.stc.common.Settings;
+import exm.stc.ic.TestCompiler;
+
+/**
+ * Skipping passes and iterations at fixed points must not change the
+ * generated code.
+ */
+public class FixedPointTest {
+
+  @Rule
+  public TemporaryFolder tmp = new TemporaryFolder();
+
+  @After
+  public void resetSettings() {
+    Settings.setScope(null);
+  }
+
+  private File write(String name, String... lines) throws IOException {
+    File file = tmp.newFile(name);
+    FileUtils.writeLines(file, Arrays.asList(lines));
+    return file;
+  }
+
+  /**
+   * Compile, dropping comments, which include timestamps
+   */
+  private List<String> compile(File in, boolean fixedPoint, int iterations)
+                                                        throws IOException {
+    String code = TestCompiler.compile(in, Collections.<String>emptyList(),
+        Settings.OPT_FIXED_POINT, Boolean.toString(fixedPoint),
+        Settings.OPT_MAX_ITERATIONS, Integer.toString(iterations));
+    List<String> lines = new ArrayList<String>();
+    for (String line: code.split("\n")) {
+      if (!line.trim().startsWith("#")) {
+        lines.add(line);
+      }
+    }
+    return lines;
+  }
+
+  private void checkSame(File in) throws IOException {
+    // With more iterations, more iterations are skipped
+    for (int iterations: new int[] {10, 40}) {
+      assertEquals("Iterations: " + iterations,
+                   compile(in, false, iterations),
+                   compile(in, true, iterations));
+    }
+  }
+
+  @Test
+  public void testFunctions() throws Exception {
+    checkSame(write("functions.swift",
+        "import io;",
+        "type point { int x; int y; }",
+        "(int o) square(int i) { o = i * i; }",
+        "(int o) scale(int i, int k) { o = i * k; }",
+        "main {",
+        "  int A[];",
+        "  foreach i in [1:8] { A[i] = square(i) + scale(i, 3); }",
+        "  int B[] = [1, 2, square(3)];",
+        "  point p;",
+        "  p.x = scale(2, 2);",
+        "  p.y = square(p.x);",
+        "  for (int j = 0; j < 4; j = j + 1) {",
+        "    trace(j, B[j %% 3], scale(j, 3));",
+        "  }",
+        "  printf(\"%i %i %i\", size(A), p.x, p.y);",
+        "}"));
+  }
+
+  @Test
+  public void testWaits() throws Exception {
+    checkSame(write("waits.swift",
+        "import io;",
+        "(int o) fib(int n) {",
+        "  if (n <= 1) { o = n; } else { o = fib(n - 1) + fib(n - 2); }",
+        "}",
+        "main {",
+        "  int x = fib(10);",
+        "  wait (x) {",
+        "    int y = x + 1;",
+        "    wait (y) { printf(\"%i %i\", x, y); }",
+        "  }",
+        "  foreach i in [0:3] {",
+        "    int z = fib(i);",
+        "    if (z > 1) { trace(i, z); } else { trace(z); }",
+        "  }",
+        "}"));
+  }
+
+  /**
+   * Several waits on the same variable are pushed down together, which
+   * must be done in the same order whatever else was computed before
+   */
+  @Test
+  public void testWaitPushdown() throws Exception {
+    checkSame(write("pushdown.swift",
+        "@dispatch=WORKER",
+        "(int o) double(int i) \"turbine\" \"0.0.1\" [",
+        "  \"set <<o>> [ expr <<i>> * 2 ]\"",
+        "];",
+        "@dispatch=WORKER",
+        "(int o) triple(int i) \"turbine\" \"0.0.1\" [",
+        "  \"set <<o>> [ expr <<i>> * 3 ]\"",
+        "];",
+        "main {",
+        "  int x = double(double(double(2)));",
+        "  int y = triple(x);",
+        "  int z = double(x);",
+        "  int q = triple(x);",
+        "  trace(q, x, y, z);",
+        "}"));
+  }
+}
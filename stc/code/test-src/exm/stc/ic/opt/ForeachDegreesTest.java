@@ -0,0 +1,229 @@
+package exm.stc.ic.opt;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.Collections;
+
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.google.common.collect.ArrayListMultimap;
+
+import exm.stc.common.CompilerBackend.RefCount;
+import exm.stc.common.Logging;
+import exm.stc.common.exceptions.InvalidOptionException;
+import exm.stc.common.exceptions.UserException;
+import exm.stc.common.lang.Arg;
+import exm.stc.common.lang.ExecTarget;
+import exm.stc.common.lang.FnID;
+import exm.stc.common.lang.ForeignFunctions;
+import exm.stc.common.lang.PassedVar;
+import exm.stc.common.lang.TaskProp.TaskPropKey;
+import exm.stc.common.lang.TaskProp.TaskProps;
+import exm.stc.common.lang.Types;
+import exm.stc.common.lang.Var;
+import exm.stc.common.lang.Var.Alloc;
+import exm.stc.common.lang.Var.DefType;
+import exm.stc.common.lang.Var.VarProvenance;
+import exm.stc.ic.tree.ForeachLoops.RangeLoop;
+import exm.stc.ic.tree.ICInstructions.FunctionCall;
+import exm.stc.ic.tree.ICInstructions.LocalFunctionCall;
+import exm.stc.ic.tree.ICTree.Block;
+import exm.stc.ic.tree.ICTree.Function;
+import exm.stc.ic.tree.ICTree.Program;
+import exm.stc.tclbackend.TclNamer;
+
+public class ForeachDegreesTest {
+
+  private static final String LOOP_NAME = "loop";
+
+  private static final FnID SYNC_FN_ID = new FnID("sync", "sync");
+  private static final FnID TASK_FN_ID = new FnID("task", "task");
+
+  private final ForeignFunctions ff = new ForeignFunctions();
+  private final Program prog = new Program(ff);
+  private final Function fn = new Function(FnID.ENTRY_FUNCTION, Var.NONE,
+                                  Var.NONE, ExecTarget.syncControl());
+
+  @BeforeClass
+  public static void setupLogging() {
+    Logging.setupLogging("ForeachDegreesTest.stc.log", true);
+  }
+
+  @Before
+  public void setup() {
+    prog.addFunction(fn);
+  }
+
+  /**
+   * Add loop with automatic degrees to function
+   * @param end last iteration, or null if unknown
+   */
+  private RangeLoop addLoop(Long end, boolean autoDegree) {
+    Block block = fn.mainBlock();
+    Var loopVar = block.declare(Types.V_INT, "i", Alloc.LOCAL,
+        DefType.LOCAL_USER, VarProvenance.unknown(), false);
+    Arg endArg;
+    if (end != null) {
+      endArg = Arg.newInt(end);
+    } else {
+      endArg = block.declare(Types.V_INT, "n", Alloc.LOCAL,
+          DefType.LOCAL_USER, VarProvenance.unknown(), false).asArg();
+    }
+    RangeLoop loop = new RangeLoop(LOOP_NAME, loopVar, null,
+        Arg.newInt(1), endArg, Arg.newInt(1),
+        Collections.<PassedVar>emptyList(), Collections.<Var>emptyList(),
+        1, false, 16, 64, autoDegree,
+        Collections.<RefCount>emptyList(),
+        ArrayListMultimap.<Var, RefCount>create(),
+        Collections.<RefCount>emptyList());
+    block.addContinuation(loop);
+    return loop;
+  }
+
+  /**
+   * Add synchronous calls to loop body
+   */
+  private void addSyncCalls(RangeLoop loop, int n) {
+    for (int i = 0; i < n; i++) {
+      loop.getLoopBody().addStatement(new LocalFunctionCall(SYNC_FN_ID,
+                                          Arg.NONE, Var.NONE, ff));
+    }
+  }
+
+  /**
+   * Add call to loop body that spawns parallel task
+   */
+  private void addParallelTask(RangeLoop loop) {
+    Var out = loop.getLoopBody().declare(Types.F_INT, "out", Alloc.STACK,
+        DefType.LOCAL_USER, VarProvenance.unknown(), false);
+    TaskProps props = new TaskProps();
+    props.put(TaskPropKey.PARALLELISM, Arg.newInt(4));
+    loop.getLoopBody().addStatement(FunctionCall.createFunctionCall(
+        TASK_FN_ID, out.asList(), Arg.NONE, ExecTarget.dispatchedControl(),
+        props, ff));
+  }
+
+  private static RuntimeProfile profile(long tasks, double seconds,
+      int leafDegree) throws IOException, InvalidOptionException {
+    String line = TclNamer.loopOuterProcName(LOOP_NAME) + " " + tasks +
+                  " " + seconds + (leafDegree > 0 ? " " + leafDegree : "");
+    return RuntimeProfile.read(new StringReader(line), "test");
+  }
+
+  private void run(RuntimeProfile profile) throws UserException {
+    new ForeachDegrees(profile).optimize(Logging.getSTCLogger(), prog);
+  }
+
+  /**
+   * Cheap body: leaves run many iterations
+   */
+  @Test
+  public void testEmptyBody() throws UserException {
+    RangeLoop loop = addLoop(100000L, true);
+    run(null);
+    // Cost of at least one instruction per iteration
+    assertEquals(256, loop.getLeafDegree());
+    // 391 leaves, split so that tree has two levels
+    assertEquals(20, loop.getSplitDegree());
+  }
+
+  @Test
+  public void testSyncCalls() throws UserException {
+    RangeLoop loop = addLoop(1000L, true);
+    addSyncCalls(loop, 2);
+    run(null);
+    assertEquals(2, loop.getLeafDegree());
+    assertEquals(23, loop.getSplitDegree());
+  }
+
+  /**
+   * Split degree is clamped for small and large iteration counts
+   */
+  @Test
+  public void testSmallLoop() throws UserException {
+    RangeLoop loop = addLoop(10L, true);
+    run(null);
+    assertEquals(4, loop.getSplitDegree());
+  }
+
+  @Test
+  public void testLargeLoop() throws UserException {
+    RangeLoop loop = addLoop(100000000L, true);
+    addSyncCalls(loop, 4);
+    run(null);
+    assertEquals(1, loop.getLeafDegree());
+    assertEquals(64, loop.getSplitDegree());
+  }
+
+  @Test
+  public void testUnknownIterations() throws UserException {
+    RangeLoop loop = addLoop(null, true);
+    addSyncCalls(loop, 1);
+    run(null);
+    assertEquals(4, loop.getLeafDegree());
+    assertEquals(16, loop.getSplitDegree());
+  }
+
+  /**
+   * Loops that launch long-running tasks release them in small leaves
+   */
+  @Test
+  public void testHeavyBody() throws UserException {
+    RangeLoop loop = addLoop(null, true);
+    addParallelTask(loop);
+    run(null);
+    assertEquals(16, loop.getLeafDegree());
+    assertEquals(32, loop.getSplitDegree());
+  }
+
+  /**
+   * Profiled time per iteration overrides estimate
+   */
+  @Test
+  public void testProfile() throws Exception {
+    RangeLoop loop = addLoop(100000L, true);
+    addSyncCalls(loop, 1);
+    // 0.1ms per leaf of 4 iterations: 400 iterations take 10ms
+    run(profile(1000, 0.1, 4));
+    assertEquals(400, loop.getLeafDegree());
+    assertEquals(16, loop.getSplitDegree());
+  }
+
+  /**
+   * Result doesn't depend on degree used in profiled run
+   */
+  @Test
+  public void testProfileConverges() throws Exception {
+    RangeLoop loop = addLoop(100000L, true);
+    addSyncCalls(loop, 1);
+    run(profile(250, 2.5, 400));
+    assertEquals(400, loop.getLeafDegree());
+  }
+
+  /**
+   * Profile without leaf degree can't be used
+   */
+  @Test
+  public void testProfileNoDegree() throws Exception {
+    RangeLoop loop = addLoop(1000L, true);
+    addSyncCalls(loop, 1);
+    run(profile(1000, 0.1, 0));
+    assertEquals(4, loop.getLeafDegree());
+  }
+
+  /**
+   * Degrees chosen by user are kept
+   */
+  @Test
+  public void testUserDegree() throws UserException {
+    RangeLoop loop = addLoop(1000L, false);
+    addSyncCalls(loop, 1);
+    run(null);
+    assertEquals(16, loop.getSplitDegree());
+    assertEquals(64, loop.getLeafDegree());
+  }
+}
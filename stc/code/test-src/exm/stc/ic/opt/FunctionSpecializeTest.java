@@ -0,0 +1,198 @@
+package exm.stc.ic.opt;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import exm.stc.common.Logging;
+import exm.stc.common.Settings;
+import exm.stc.common.exceptions.UserException;
+import exm.stc.common.lang.Arg;
+import exm.stc.common.lang.ExecTarget;
+import exm.stc.common.lang.FnID;
+import exm.stc.common.lang.ForeignFunctions;
+import exm.stc.common.lang.Operators.BuiltinOpcode;
+import exm.stc.common.lang.TaskProp.TaskProps;
+import exm.stc.common.lang.Types;
+import exm.stc.common.lang.Types.RefType;
+import exm.stc.common.lang.Var;
+import exm.stc.common.lang.Var.Alloc;
+import exm.stc.common.lang.Var.DefType;
+import exm.stc.common.lang.Var.VarProvenance;
+import exm.stc.ic.tree.ICInstructions.Builtin;
+import exm.stc.ic.tree.ICInstructions.FunctionCall;
+import exm.stc.ic.tree.ICTree.Block;
+import exm.stc.ic.tree.ICTree.Function;
+import exm.stc.ic.tree.ICTree.Program;
+import exm.stc.ic.tree.ICTree.Statement;
+import exm.stc.ic.tree.ICTree.StatementType;
+import exm.stc.ic.tree.TurbineOp;
+
+public class FunctionSpecializeTest {
+
+  private static final FnID CALLEE_ID = new FnID("callee", "callee");
+
+  private final ForeignFunctions ff = new ForeignFunctions();
+  private final Program prog = new Program(ff);
+  private Function entry;
+  private Function callee;
+
+  @BeforeClass
+  public static void setupLogging() {
+    Logging.setupLogging("FunctionSpecializeTest.stc.log", true);
+  }
+
+  /**
+   * Create program where entry function calls function taking an int and
+   * a reference to an int.  Inlining is disabled so that the callee is
+   * always a candidate.
+   */
+  @Before
+  public void setup() {
+    Settings.setScope(Settings.newScope());
+    Settings.set(Settings.OPT_FUNCTION_INLINE, "false");
+
+    Var x = new Var(Types.F_INT, "x", Alloc.STACK, DefType.INARG,
+                    VarProvenance.unknown());
+    Var r = new Var(RefType.create(Types.F_INT, false), "r", Alloc.STACK,
+                    DefType.INARG, VarProvenance.unknown());
+    Var out = new Var(Types.F_INT, "out", Alloc.STACK, DefType.OUTARG,
+                      VarProvenance.unknown());
+    callee = new Function(CALLEE_ID, Arrays.asList(x, r), out.asList(),
+                          ExecTarget.syncControl());
+    callee.mainBlock().addStatement(Builtin.createAsync(
+        BuiltinOpcode.PLUS_INT, out, Arrays.asList(x.asArg(), x.asArg())));
+    prog.addFunction(callee);
+
+    entry = new Function(FnID.ENTRY_FUNCTION, Var.NONE, Var.NONE,
+                         ExecTarget.syncControl());
+    prog.addFunction(entry);
+  }
+
+  @After
+  public void resetSettings() {
+    Settings.setScope(null);
+  }
+
+  private FunctionCall addCall(Arg x, Arg r) {
+    Block block = entry.mainBlock();
+    Var result = block.declare(Types.F_INT, "result", Alloc.STACK,
+        DefType.LOCAL_USER, VarProvenance.unknown(), false);
+    FunctionCall call = FunctionCall.createFunctionCall(CALLEE_ID,
+        result.asList(), Arrays.asList(x, r), ExecTarget.syncControl(),
+        new TaskProps(), ff);
+    block.addStatement(call);
+    return call;
+  }
+
+  private Var declareLocal(String name, boolean ref) {
+    return entry.mainBlock().declare(
+        ref ? RefType.create(Types.F_INT, false) : Types.F_INT, name,
+        Alloc.STACK, DefType.LOCAL_USER, VarProvenance.unknown(), false);
+  }
+
+  private Arg constant(long val) {
+    return prog.constants().getOrCreateByVal(Arg.newInt(val)).asArg();
+  }
+
+  private void specialize() throws UserException {
+    System.err.println(prog);
+    new FunctionSpecialize().optimize(Logging.getSTCLogger(), prog);
+    System.err.println(prog);
+  }
+
+  /**
+   * @return calls made by entry function, in order
+   */
+  private List<FunctionCall> calls() {
+    List<FunctionCall> calls = new ArrayList<FunctionCall>();
+    for (Statement stmt: entry.mainBlock().getStatements()) {
+      if (stmt.type() == StatementType.INSTRUCTION &&
+          stmt.instruction() instanceof FunctionCall) {
+        calls.add((FunctionCall)stmt.instruction());
+      }
+    }
+    return calls;
+  }
+
+  /**
+   * @return specialized copies of callee in program
+   */
+  private List<Function> copies() {
+    List<Function> copies = new ArrayList<Function>();
+    for (Function f: prog.functions()) {
+      if (!f.id().equals(CALLEE_ID) &&
+          f.id().originalName().equals(CALLEE_ID.originalName())) {
+        copies.add(f);
+      }
+    }
+    return copies;
+  }
+
+  @Test
+  public void testConstantArg() throws UserException {
+    Var ref = declareLocal("ref", true);
+    addCall(constant(3), ref.asArg());
+    addCall(constant(3), ref.asArg());
+    addCall(constant(4), ref.asArg());
+    specialize();
+
+    // One copy per distinct constant, with constant input removed
+    List<Function> copies = copies();
+    assertEquals(2, copies.size());
+    List<FunctionCall> calls = calls();
+    assertEquals(calls.get(0).functionID(), calls.get(1).functionID());
+    for (int i = 0; i < calls.size(); i++) {
+      FunctionCall call = calls.get(i);
+      assertTrue(call.toString(), !call.functionID().equals(CALLEE_ID));
+      assertEquals(ref.asArg().asList(), call.getFunctionInputs());
+      Function copy = prog.lookupFunction(call.functionID());
+      assertNotNull(copy);
+      assertEquals(callee.getInputList().subList(1, 2),
+                   copy.getInputList());
+    }
+
+    // Constant substituted for parameter in copy
+    Function copy = prog.lookupFunction(calls.get(2).functionID());
+    assertTrue(copy.toString(), copy.toString().contains(
+        constant(4).getVar().name()));
+    assertTrue(copy.toString(), !copy.mainBlock().toString().contains(
+        callee.getInputList().get(0).name()));
+
+    // Original is unchanged
+    assertEquals(2, callee.getInputList().size());
+  }
+
+  /**
+   * Neither variables that may have any value nor references are
+   * specialized, even if the reference refers to a constant
+   */
+  @Test
+  public void testNonConstantArg() throws UserException {
+    Var local = declareLocal("local", false);
+    Var ref = declareLocal("ref", true);
+    FunctionCall call1 = addCall(local.asArg(), ref.asArg());
+    Var ref2 = declareLocal("ref2", true);
+    entry.mainBlock().addStatement(
+        TurbineOp.storeRef(ref2, constant(3).getVar(), false));
+    FunctionCall call2 = addCall(local.asArg(), ref2.asArg());
+    specialize();
+
+    assertTrue(copies().isEmpty());
+    assertEquals(Arrays.asList(call1, call2), calls());
+    assertEquals(CALLEE_ID, call1.functionID());
+    assertEquals(CALLEE_ID, call2.functionID());
+    assertNull(prog.lookupFunction(new FnID(CALLEE_ID.uniqueName() +
+                                   "-spec1", CALLEE_ID.originalName())));
+  }
+}
@@ -0,0 +1,207 @@
+package exm.stc.ic.opt;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import exm.stc.common.Logging;
+import exm.stc.common.lang.Arg;
+import exm.stc.common.lang.ExecTarget;
+import exm.stc.common.lang.FnID;
+import exm.stc.common.lang.ForeignFunctions;
+import exm.stc.common.lang.TaskProp.TaskProps;
+import exm.stc.common.lang.Types;
+import exm.stc.common.lang.Var;
+import exm.stc.common.lang.Var.Alloc;
+import exm.stc.common.lang.Var.DefType;
+import exm.stc.common.lang.Var.VarProvenance;
+import exm.stc.ic.tree.ICInstructions.FunctionCall;
+import exm.stc.ic.tree.ICInstructions.Instruction;
+import exm.stc.ic.tree.ICInstructions.LocalFunctionCall;
+import exm.stc.ic.tree.ICTree.Block;
+import exm.stc.ic.tree.ICTree.Function;
+import exm.stc.ic.tree.ICTree.Program;
+import exm.stc.ic.tree.TurbineOp;
+
+public class FunctionSummariesTest {
+
+  /** Foreign function not declared pure, so assumed to have side effects */
+  private static final FnID IMPURE_FN_ID = new FnID("impure", "impure");
+
+  private final ForeignFunctions ff = new ForeignFunctions();
+  private final Program prog = new Program(ff);
+
+  @BeforeClass
+  public static void setupLogging() {
+    Logging.setupLogging("FunctionSummariesTest.stc.log", true);
+  }
+
+  /**
+   * Add function with one int input and one int output that sets
+   * output to constant
+   */
+  private Function addFunction(String name) {
+    Var in = new Var(Types.F_INT, "in", Alloc.STACK, DefType.INARG,
+                     VarProvenance.unknown());
+    Var out = new Var(Types.F_INT, "out", Alloc.STACK, DefType.OUTARG,
+                      VarProvenance.unknown());
+    Function fn = new Function(new FnID(name, name), in.asList(),
+                               out.asList(), ExecTarget.syncControl());
+    fn.mainBlock().addStatement(TurbineOp.storePrim(out, Arg.newInt(1)));
+    prog.addFunction(fn);
+    return fn;
+  }
+
+  /**
+   * Add synchronous call from caller to callee, passing caller's input
+   */
+  private Instruction addCall(Function caller, Function callee) {
+    Block block = caller.mainBlock();
+    Var result = block.declare(Types.F_INT, "result:" + callee.id(),
+        Alloc.STACK, DefType.LOCAL_COMPILER, VarProvenance.unknown(), false);
+    Instruction call = FunctionCall.createFunctionCall(callee.id(),
+        result.asList(), caller.getInputList().get(0).asArg().asList(),
+        ExecTarget.syncControl(), new TaskProps(), ff);
+    block.addStatement(call);
+    return call;
+  }
+
+  private void addImpureCall(Function fn) {
+    fn.mainBlock().addStatement(new LocalFunctionCall(IMPURE_FN_ID,
+                                    Arg.NONE, Var.NONE, ff));
+  }
+
+  /**
+   * Side effects of a function must be visible in all its callers,
+   * however indirectly they are reached
+   */
+  @Test
+  public void testSideEffectsThroughCallee() {
+    Function pureLeaf = addFunction("pureLeaf");
+    Function pureMid = addFunction("pureMid");
+    Function leaf = addFunction("leaf");
+    Function mid = addFunction("mid");
+    Function top = addFunction("top");
+
+    Instruction callPureLeaf = addCall(pureMid, pureLeaf);
+    addImpureCall(leaf);
+    Instruction callLeaf = addCall(mid, leaf);
+    Instruction callMid = addCall(top, mid);
+    Instruction callPureMid = addCall(top, pureMid);
+
+    FunctionSummaries summaries = FunctionSummaries.compute(
+                                      Logging.getSTCLogger(), prog);
+    System.err.println(summaries);
+
+    assertTrue(summaries.get(pureLeaf.id()).isPure());
+    assertTrue(summaries.get(pureMid.id()).isPure());
+    assertFalse(summaries.hasSideEffects(callPureLeaf));
+    assertFalse(summaries.hasSideEffects(callPureMid));
+
+    for (Function fn: Arrays.asList(leaf, mid, top)) {
+      FunctionSummary summary = summaries.get(fn.id());
+      assertTrue(fn.id() + " has side effects", summary.hasSideEffects());
+      assertFalse(fn.id() + " isn't pure", summary.isPure());
+    }
+    assertTrue(summaries.hasSideEffects(callLeaf));
+    assertTrue(summaries.hasSideEffects(callMid));
+  }
+
+  /**
+   * Writing caller's data is a side effect, so call can't be removed
+   * even though the callee's output is unused
+   */
+  @Test
+  public void testWriteInput() {
+    Function writer = addFunction("writer");
+    Var in = writer.getInputList().get(0);
+    writer.mainBlock().addStatement(TurbineOp.storePrim(in, Arg.newInt(2)));
+
+    Function caller = addFunction("caller");
+    Block block = caller.mainBlock();
+    Var local = block.declare(Types.F_INT, "local", Alloc.STACK,
+        DefType.LOCAL_USER, VarProvenance.unknown(), false);
+    Var result = block.declare(Types.F_INT, "result", Alloc.STACK,
+        DefType.LOCAL_COMPILER, VarProvenance.unknown(), false);
+    Instruction call = FunctionCall.createFunctionCall(writer.id(),
+        result.asList(), local.asArg().asList(), ExecTarget.syncControl(),
+        new TaskProps(), ff);
+    block.addStatement(call);
+
+    FunctionSummaries summaries = FunctionSummaries.compute(
+                                      Logging.getSTCLogger(), prog);
+    System.err.println(summaries);
+
+    FunctionSummary writerSummary = summaries.get(writer.id());
+    assertTrue(writerSummary.writesInput(0));
+    assertTrue(writerSummary.hasSideEffects());
+    assertTrue(summaries.hasSideEffects(call));
+    assertFalse(summaries.get(caller.id()).writesInput(0));
+  }
+
+  /**
+   * Mutually recursive functions form one component, listed before its
+   * callers, and side effects anywhere in the component reach all
+   * members even if the function with the side effect is analysed last
+   */
+  @Test
+  public void testRecursiveComponent() {
+    Function main = addFunction("main");
+    Function even = addFunction("even");
+    Function odd = addFunction("odd");
+    Function self = addFunction("self");
+    Function leaf = addFunction("leaf");
+
+    addCall(main, even);
+    addCall(main, self);
+    addCall(even, odd);
+    addCall(odd, even);
+    addCall(odd, leaf);
+    addImpureCall(odd);
+    addCall(self, self);
+    addCall(self, leaf);
+
+    CallGraph graph = CallGraph.build(prog);
+    System.err.println(graph);
+
+    assertEquals(Arrays.asList(odd.id()), graph.callees(even.id()));
+    assertEquals(Arrays.asList(even.id(), leaf.id()),
+                 graph.callees(odd.id()));
+    assertEquals(Arrays.asList(main.id(), odd.id()),
+                 graph.callers(even.id()));
+
+    assertTrue(graph.isRecursive(even.id()));
+    assertTrue(graph.isRecursive(odd.id()));
+    assertTrue(graph.isRecursive(self.id()));
+    assertFalse(graph.isRecursive(main.id()));
+    assertFalse(graph.isRecursive(leaf.id()));
+
+    List<List<FnID>> components = graph.components();
+    assertEquals(4, components.size());
+    assertTrue(components.contains(Arrays.asList(even.id(), odd.id())));
+    assertTrue(components.contains(Arrays.asList(self.id())));
+    assertEquals(Arrays.asList(main.id()),
+                 components.get(components.size() - 1));
+    assertTrue(components.indexOf(Arrays.asList(leaf.id())) <
+               components.indexOf(Arrays.asList(even.id(), odd.id())));
+    assertTrue(components.indexOf(Arrays.asList(leaf.id())) <
+               components.indexOf(Arrays.asList(self.id())));
+
+    FunctionSummaries summaries = FunctionSummaries.compute(
+                                      Logging.getSTCLogger(), prog);
+    System.err.println(summaries);
+
+    assertTrue(summaries.get(even.id()).hasSideEffects());
+    assertTrue(summaries.get(odd.id()).hasSideEffects());
+    assertTrue(summaries.get(main.id()).hasSideEffects());
+    // Recursion alone isn't a side effect
+    assertTrue(summaries.get(self.id()).isPure());
+    assertTrue(summaries.get(leaf.id()).isPure());
+  }
+}
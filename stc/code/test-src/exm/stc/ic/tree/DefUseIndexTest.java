@@ -0,0 +1,235 @@
+package exm.stc.ic.tree;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+import java.util.ListIterator;
+
+import org.junit.Test;
+
+import exm.stc.common.lang.ExecTarget;
+import exm.stc.common.lang.FnID;
+import exm.stc.common.lang.ForeignFunctions;
+import exm.stc.common.lang.TaskProp.TaskProps;
+import exm.stc.common.lang.Types;
+import exm.stc.common.lang.Var;
+import exm.stc.common.lang.Var.Alloc;
+import exm.stc.common.lang.Var.DefType;
+import exm.stc.common.lang.Var.VarProvenance;
+import exm.stc.ic.tree.Conditionals.IfStatement;
+import exm.stc.ic.tree.ICInstructions.FunctionCall;
+import exm.stc.ic.tree.ICInstructions.Instruction;
+import exm.stc.ic.tree.ICTree.Block;
+import exm.stc.ic.tree.ICTree.Function;
+import exm.stc.ic.tree.ICTree.RenameMode;
+import exm.stc.ic.tree.ICTree.Statement;
+
+/**
+ * Check that cached indices are dropped when blocks are edited, so that
+ * they never differ from a freshly built index.
+ */
+public class DefUseIndexTest {
+
+  private static final FnID F_ID = new FnID("f", "f");
+  private static final FnID G_ID = new FnID("g", "g");
+
+  private final ForeignFunctions ff = new ForeignFunctions();
+  private final Function fn = new Function(FnID.ENTRY_FUNCTION, Var.NONE,
+                                  Var.NONE, ExecTarget.syncControl());
+
+  private Var declare(Block block, String name) {
+    return block.declare(Types.F_INT, name, Alloc.STACK,
+        DefType.LOCAL_USER, VarProvenance.unknown(), false);
+  }
+
+  private Instruction call(FnID id, Var in, Var out) {
+    return FunctionCall.createFunctionCall(id, out.asList(),
+        in.asArg().asList(), ExecTarget.syncControl(), new TaskProps(), ff);
+  }
+
+  private static void assertFresh(Block block) {
+    assertTrue(block.defUse().sameAs(DefUseIndex.build(block)));
+  }
+
+  private void assertFresh(Function function) {
+    assertTrue(function.defUse().sameAs(DefUseIndex.build(function)));
+  }
+
+  @Test
+  public void testCached() {
+    Block block = fn.mainBlock();
+    Var x = declare(block, "x");
+    Var y = declare(block, "y");
+    block.addInstruction(call(F_ID, x, y));
+
+    assertNull(block.cachedDefUse());
+    DefUseIndex index = block.defUse();
+    assertSame(index, block.cachedDefUse());
+    assertSame(index, block.defUse());
+    assertEquals(1, index.instructionCount());
+    assertEquals(1, index.readers(x).size());
+    assertEquals(1, index.writers(y).size());
+    assertEquals(1, index.calls(F_ID).size());
+  }
+
+  @Test
+  public void testAddInstruction() {
+    Block block = fn.mainBlock();
+    Var x = declare(block, "x");
+    Var y = declare(block, "y");
+    Var z = declare(block, "z");
+    block.addInstruction(call(F_ID, x, y));
+    block.defUse();
+
+    block.addInstruction(call(G_ID, y, z));
+    assertNull(block.cachedDefUse());
+    assertFresh(block);
+    assertTrue(block.defUse().isWritten(z));
+    assertEquals(1, block.defUse().readers(y).size());
+
+    block.defUse();
+    block.addInstructionFront(call(G_ID, z, x));
+    assertNull(block.cachedDefUse());
+    assertFresh(block);
+    assertEquals(3, block.defUse().instructionCount());
+  }
+
+  @Test
+  public void testRemoveInstruction() {
+    Block block = fn.mainBlock();
+    Var x = declare(block, "x");
+    Var y = declare(block, "y");
+    block.addInstruction(call(F_ID, x, y));
+    block.addInstruction(call(G_ID, y, x));
+    assertEquals(2, block.defUse().instructionCount());
+
+    ListIterator<Statement> it = block.statementIterator();
+    it.next();
+    it.remove();
+    assertNull(block.cachedDefUse());
+    assertFresh(block);
+    assertTrue(block.defUse().calls(F_ID).isEmpty());
+    assertFalse(block.defUse().isWritten(y));
+  }
+
+  @Test
+  public void testReplaceInstruction() {
+    Block block = fn.mainBlock();
+    Var x = declare(block, "x");
+    Var y = declare(block, "y");
+    block.addInstruction(call(F_ID, x, y));
+    block.defUse();
+
+    ListIterator<Statement> it = block.statementIterator();
+    it.next();
+    it.set(call(G_ID, y, x));
+    assertNull(block.cachedDefUse());
+    assertFresh(block);
+    assertTrue(block.defUse().calls(F_ID).isEmpty());
+    assertEquals(1, block.defUse().calls(G_ID).size());
+  }
+
+  @Test
+  public void testRename() {
+    Block block = fn.mainBlock();
+    Var x = declare(block, "x");
+    Var y = declare(block, "y");
+    Var z = declare(block, "z");
+    block.addInstruction(call(F_ID, x, y));
+    block.defUse();
+
+    block.renameVars(fn.id(), Collections.singletonMap(x, z.asArg()),
+                     RenameMode.REPLACE_VAR, true);
+    assertNull(block.cachedDefUse());
+    assertFresh(block);
+    assertTrue(block.defUse().readers(x).isEmpty());
+    assertEquals(1, block.defUse().readers(z).size());
+  }
+
+  /**
+   * Editing a nested block drops its index and the function's, but not
+   * the index of the enclosing block
+   */
+  @Test
+  public void testNestedBlock() {
+    Block main = fn.mainBlock();
+    Var x = declare(main, "x");
+    Var y = declare(main, "y");
+    main.addInstruction(call(F_ID, x, y));
+    IfStatement ifStmt = new IfStatement(x.asArg());
+    main.addContinuation(ifStmt);
+    Block nested = ifStmt.thenBlock();
+    nested.addInstruction(call(G_ID, y, x));
+
+    assertFresh(fn);
+    assertEquals(2, fn.defUse().instructionCount());
+    DefUseIndex mainIndex = main.defUse();
+
+    nested.addInstruction(call(F_ID, y, x));
+    assertNull(fn.cachedDefUse());
+    assertNull(nested.cachedDefUse());
+    assertSame(mainIndex, main.cachedDefUse());
+    assertFresh(fn);
+    assertEquals(2, fn.defUse().calls(F_ID).size());
+    assertEquals(2, fn.defUse().writers(x).size());
+  }
+
+  /**
+   * Blocks built before being added to the function must still invalidate
+   * the function's index when edited afterwards
+   */
+  @Test
+  public void testAttachedBlock() {
+    Block main = fn.mainBlock();
+    Var x = declare(main, "x");
+    Var y = declare(main, "y");
+    IfStatement ifStmt = new IfStatement(x.asArg());
+    ifStmt.thenBlock().addInstruction(call(F_ID, x, y));
+    fn.defUse();
+
+    main.addContinuation(ifStmt);
+    assertNull(fn.cachedDefUse());
+    assertFresh(fn);
+    assertEquals(1, fn.defUse().calls(F_ID).size());
+
+    ifStmt.elseBlock().addInstruction(call(G_ID, y, x));
+    assertNull(fn.cachedDefUse());
+    assertFresh(fn);
+    assertEquals(1, fn.defUse().calls(G_ID).size());
+  }
+
+  @Test
+  public void testRemoveContinuation() {
+    Block main = fn.mainBlock();
+    Var x = declare(main, "x");
+    Var y = declare(main, "y");
+    IfStatement ifStmt = new IfStatement(x.asArg());
+    main.addContinuation(ifStmt);
+    ifStmt.thenBlock().addInstruction(call(F_ID, x, y));
+    assertEquals(1, fn.defUse().instructionCount());
+
+    main.removeContinuation(0);
+    assertNull(fn.cachedDefUse());
+    assertFresh(fn);
+    assertEquals(0, fn.defUse().instructionCount());
+  }
+
+  @Test
+  public void testSwapBlock() {
+    Block main = fn.mainBlock();
+    Var x = declare(main, "x");
+    Var y = declare(main, "y");
+    main.addInstruction(call(F_ID, x, y));
+    assertNotNull(fn.defUse());
+
+    fn.swapBlock(new Block(fn));
+    assertNull(fn.cachedDefUse());
+    assertFresh(fn);
+    assertTrue(fn.defUse().calls(F_ID).isEmpty());
+  }
+}
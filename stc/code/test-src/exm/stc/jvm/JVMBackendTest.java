@@ -0,0 +1,119 @@
+package exm.stc.jvm;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import javax.tools.JavaCompiler;
+import javax.tools.ToolProvider;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import exm.stc.common.Settings;
+import exm.stc.ic.TestCompiler;
+import exm.stc.jvm.runtime.JVMRuntime;
+
+/**
+ * Compile Swift programs with the JVM backend, then compile the generated
+ * Java against the runtime packaged with STC and run it.
+ */
+public class JVMBackendTest {
+
+  private static final long TIMEOUT_SECONDS = 60;
+
+  @Rule
+  public TemporaryFolder tmp = new TemporaryFolder();
+
+  @After
+  public void resetSettings() {
+    Settings.setScope(null);
+  }
+
+  /**
+   * Location of runtime classes, i.e. stc.jar when run from the build
+   */
+  private static String runtimePath() {
+    return new File(JVMRuntime.class.getProtectionDomain()
+                    .getCodeSource().getLocation().getPath()).getPath();
+  }
+
+  /**
+   * Compile and run program
+   * @return lines written by the program
+   */
+  private List<String> run(String name, String... lines) throws Exception {
+    JavaCompiler javac = ToolProvider.getSystemJavaCompiler();
+    Assume.assumeNotNull(javac);
+
+    File swift = tmp.newFile(name + ".swift");
+    FileUtils.writeLines(swift, Arrays.asList(lines));
+    String code = TestCompiler.compile(swift,
+        Collections.<String>emptyList(),
+        Settings.BACKEND, Settings.BACKEND_JVM);
+
+    // Class is named after the output file
+    File java = new File(tmp.getRoot(), name + ".java");
+    FileUtils.writeStringToFile(java, code, StandardCharsets.UTF_8);
+    File classes = tmp.newFolder(name + "-classes");
+    int rc = javac.run(null, null, null, "-nowarn",
+        "-cp", runtimePath(), "-d", classes.getPath(), java.getPath());
+    assertEquals("javac failed on:\n" + code, 0, rc);
+
+    File javaExe = new File(new File(System.getProperty("java.home"), "bin"),
+                            "java");
+    File output = new File(tmp.getRoot(), name + ".out");
+    Process proc = new ProcessBuilder(javaExe.getPath(), "-cp",
+          classes.getPath() + File.pathSeparator + runtimePath(), name)
+          .redirectErrorStream(true)
+          .redirectOutput(output)
+          .start();
+    if (!proc.waitFor(TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+      proc.destroyForcibly();
+      throw new IOException("Timed out running " + name);
+    }
+    List<String> result = FileUtils.readLines(output, StandardCharsets.UTF_8);
+    assertEquals(result.toString(), 0, proc.exitValue());
+    return result;
+  }
+
+  @Test
+  public void testRecursion() throws Exception {
+    List<String> out = run("fib",
+        "(int o) fib(int n) {",
+        "  if (n <= 1) { o = n; } else { o = fib(n - 1) + fib(n - 2); }",
+        "}",
+        "main {",
+        "  float f = toFloat(fib(10)) / 2.0;",
+        "  trace(fib(15), f);",
+        "}");
+    assertEquals(Arrays.asList("trace: 610,27.5"), out);
+  }
+
+  /**
+   * Loops that split into tasks, and array read once closed
+   */
+  @Test
+  public void testArrays() throws Exception {
+    List<String> out = run("arrays",
+        "(int o) square(int i) { o = i * i; }",
+        "main {",
+        "  int A[];",
+        "  foreach i in [0:99] { A[i] = square(i); }",
+        "  foreach x, i in A {",
+        "    if (i == 99) { trace(\"last\", x, size(A)); }",
+        "  }",
+        "}");
+    assertEquals(Arrays.asList("trace: last,9801,100"), out);
+  }
+}
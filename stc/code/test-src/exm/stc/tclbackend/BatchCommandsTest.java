@@ -0,0 +1,182 @@
+package exm.stc.tclbackend;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import exm.stc.common.Settings;
+import exm.stc.ic.TestCompiler;
+
+/**
+ * Check that batched data commands are generated only when enabled, and
+ * that generated code then requires a Turbine that provides them.
+ */
+public class BatchCommandsTest {
+
+  private static final String REQUIRE_BATCH_VERSION =
+              "package require turbine " + Turbine.BATCH_VERSION;
+
+  @Rule
+  public TemporaryFolder tmp = new TemporaryFolder();
+
+  @After
+  public void resetSettings() {
+    Settings.setScope(null);
+  }
+
+  private File write(String name, String... lines) throws IOException {
+    File file = tmp.newFile(name);
+    FileUtils.writeLines(file, Arrays.asList(lines));
+    return file;
+  }
+
+  private String compile(File in, String... settings) throws IOException {
+    return TestCompiler.compile(in, Collections.<String>emptyList(),
+                                settings);
+  }
+
+  private static String findLine(String code, String text) {
+    for (String line: code.split("\n")) {
+      if (line.contains(text)) {
+        return line;
+      }
+    }
+    fail("No line containing " + text + " in:\n" + code);
+    return null;
+  }
+
+  /**
+   * Recursive calls with several arguments, so that references to the
+   * arguments are passed and released together
+   */
+  private File multProgram() throws IOException {
+    return write("mult.swift",
+        "(int o) mult_helper(int i, int j, int s) {",
+        "  if (j) { o = mult_helper(i, j - 1, s + i); } else { o = s; }",
+        "}",
+        "(int o) mult(int i, int j) { o = mult_helper(i, j, 0); }",
+        "main {",
+        "  int x = 3;",
+        "  int y = 4;",
+        "  trace(mult(x, y), mult(y, x));",
+        "}");
+  }
+
+  @Test
+  public void testRefcountsDefault() throws Exception {
+    String code = compile(multProgram());
+    assertFalse(code, code.contains("turbine::refcount_batch"));
+    assertFalse(code, code.contains(REQUIRE_BATCH_VERSION));
+  }
+
+  @Test
+  public void testRefcountsBatched() throws Exception {
+    String code = compile(multProgram(),
+                          Settings.OPT_BATCH_REFCOUNTS, "true");
+    assertTrue(code, code.contains("turbine::refcount_batch"));
+    assertTrue(code, code.contains(REQUIRE_BATCH_VERSION));
+  }
+
+  /**
+   * Struct fields and plain futures set by a function that isn't
+   * inlined, then both loaded together.  Input comes from the command
+   * line so that the calls can't be evaluated at compile time.
+   */
+  private File structProgram() throws IOException {
+    return write("struct.swift",
+        "import sys;",
+        "type pt { int x; int y; }",
+        "(int x, int y) two(int a) {",
+        "  if (a > 100) { x, y = two(a - 100); }",
+        "  else { x = a + 1; y = a * 2; }",
+        "}",
+        "main {",
+        "  int a = toint(argv(\"a\"));",
+        "  pt p;",
+        "  p.x, p.y = two(a);",
+        "  int B[];",
+        "  B[0], B[1] = two(a + 1);",
+        "  trace(p.x * p.y, B[0] * B[1]);",
+        "}");
+  }
+
+  @Test
+  public void testRetrievesDefault() throws Exception {
+    String code = compile(structProgram());
+    assertFalse(code, code.contains("turbine::retrieve_multi"));
+    assertFalse(code, code.contains(REQUIRE_BATCH_VERSION));
+  }
+
+  /**
+   * Struct field handles include a subscript, and must be passed through
+   * unchanged
+   */
+  @Test
+  public void testRetrievesBatched() throws Exception {
+    String code = compile(structProgram(),
+                          Settings.OPT_BATCH_RETRIEVES, "true");
+    assertTrue(code, code.contains(
+        "turbine::retrieve_multi CACHED ${sf:p_x} integer"));
+    assertTrue(code, code.contains(REQUIRE_BATCH_VERSION));
+  }
+
+  /**
+   * Function that isn't inlined with outputs of every type that can be
+   * stored, computed before any of them are stored
+   */
+  private File mixedProgram() throws IOException {
+    return write("mixed.swift",
+        "import blob;",
+        "import sys;",
+        "type rec { int i; string s; }",
+        "(int i, float f, string s, boolean b, blob x, rec r) mixed(int a) {",
+        "  if (a > 100) { i, f, s, b, x, r = mixed(a - 100); }",
+        "  else {",
+        "    x = string2blob(fromint(a));",
+        "    r.i = a; r.s = \"r\";",
+        "    i = a + 1; f = toFloat(a) / 2.0; b = a > 3;",
+        "    s = \"s\" + fromint(a);",
+        "  }",
+        "}",
+        "main {",
+        "  int i; float f; string s; boolean b; blob x; rec r;",
+        "  i, f, s, b, x, r = mixed(toint(argv(\"a\")));",
+        "  trace(i, f, s, b, blob2string(x), r.i, r.s);",
+        "}");
+  }
+
+  @Test
+  public void testStoresDefault() throws Exception {
+    String code = compile(mixedProgram());
+    assertFalse(code, code.contains("turbine::store_multi"));
+    assertFalse(code, code.contains(REQUIRE_BATCH_VERSION));
+  }
+
+  /**
+   * Each store in the batch has the type of its own output, and blobs
+   * are stored separately from local blob values
+   */
+  @Test
+  public void testStoresBatched() throws Exception {
+    String code = compile(mixedProgram(), Settings.OPT_BATCH_STORES, "true");
+    String batch = findLine(code, "turbine::store_multi ${u:");
+    assertTrue(batch, batch.contains("${u:r} s:rec ${v:r} "));
+    assertTrue(batch, batch.contains("${u:i} integer ${v:i} 1"));
+    assertTrue(batch, batch.contains("${u:f} float ${v:f} 1"));
+    assertTrue(batch, batch.contains("${u:b} integer ${v:b} 1"));
+    assertFalse(batch, batch.contains("${u:x}"));
+    assertTrue(code, code.contains("turbine::store_blob ${u:x} ${v:x}"));
+    assertTrue(code, code.contains(REQUIRE_BATCH_VERSION));
+  }
+}
@@ -0,0 +1,79 @@
+package exm.stc.ui;
+
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Assume;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import exm.stc.ast.FilePosition.LineMapping;
+import exm.stc.common.Logging;
+
+/**
+ * Check choice between built-in and external preprocessor
+ */
+public class PreprocessFallbackTest {
+
+  @Rule
+  public TemporaryFolder tmp = new TemporaryFolder();
+
+  private File write(String name, String... lines) throws IOException {
+    File file = tmp.newFile(name);
+    FileUtils.writeLines(file, Arrays.asList(lines));
+    return file;
+  }
+
+  private static boolean haveExternalPreprocessor() {
+    String cmd = Main.useGCCProcessor() ? "gcc" : "cpp";
+    for (String dir: System.getenv("PATH").split(File.pathSeparator)) {
+      if (new File(dir, cmd).canExecute()) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  @Test
+  public void testBuiltin() throws Exception {
+    File in = write("main.swift",
+        "#define N 3",
+        "int x = N;");
+    File out = new File(tmp.getRoot(), "out.swift");
+    LineMapping mapping = Main.preprocess(Logging.getSTCLogger(),
+        in.getPath(), out.getPath(), Collections.<String>emptyList());
+    // Mapping is only returned by built-in preprocessor
+    assertNotNull(mapping);
+    assertTrue(FileUtils.readLines(out).contains("int x = 3;"));
+  }
+
+  /**
+   * Built-in preprocessor doesn't support #ident, so cpp must be used
+   */
+  @Test
+  public void testFallback() throws Exception {
+    Assume.assumeTrue(haveExternalPreprocessor());
+    File in = write("main.swift",
+        "#ident \"version 1\"",
+        "#define N 3",
+        "int x = N;",
+        "int y = M;");
+    File out = new File(tmp.getRoot(), "out.swift");
+    LineMapping mapping = Main.preprocess(Logging.getSTCLogger(),
+        in.getPath(), out.getPath(), Arrays.asList("M=4"));
+    assertNull(mapping);
+
+    List<String> lines = FileUtils.readLines(out);
+    assertTrue(lines.toString(), lines.contains("int x = 3;"));
+    assertTrue(lines.toString(), lines.contains("int y = 4;"));
+  }
+}
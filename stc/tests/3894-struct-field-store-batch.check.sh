@@ -0,0 +1,7 @@
+#!/bin/bash
+
+# Both outputs of two() are stored together
+grep -q 'turbine::store_multi ${u:x} integer ${v:x} 1 ${u:y} integer' ${TCL_FILE} || exit 1
+grep -q "trace: 4,6,2,5,8,1" ${TURBINE_OUTPUT} || exit 1
+
+exit 0
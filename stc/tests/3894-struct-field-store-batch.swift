@@ -0,0 +1,46 @@
+// Check that batched stores into struct fields only write the
+// field, not the whole struct.  The outputs of two() are stored
+// with a single store_multi, and main() passes it struct field
+// handles for outputs.
+// SKIP-O0-TEST
+
+import assert;
+import sys;
+
+type pt {
+  int x;
+  int y;
+  int z;
+}
+
+// Recursive so that it isn't inlined into caller
+(int x, int y) two(int a) {
+  if (a > 100) {
+    x, y = two(a - 100);
+  } else {
+    x = a + 1;
+    y = a * 2;
+  }
+}
+
+main {
+  int a = toint(argv("a", "3"));
+
+  pt p;
+  p.x, p.y = two(a);
+  p.z = a - 1;
+
+  int A[];
+  A[0], A[1] = two(a + 1);
+  A[2] = a - 2;
+
+  assertEqual(p.x, 4, "p.x");
+  assertEqual(p.y, 6, "p.y");
+  assertEqual(p.z, 2, "p.z");
+  assertEqual(A[0], 5, "A[0]");
+  assertEqual(A[1], 8, "A[1]");
+  assertEqual(A[2], 1, "A[2]");
+  assertEqual(size(A), 3, "size(A)");
+
+  trace(p.x, p.y, p.z, A[0], A[1], A[2]);
+}
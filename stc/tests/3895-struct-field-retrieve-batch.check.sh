@@ -0,0 +1,7 @@
+#!/bin/bash
+
+# Struct field handles are named sf:<struct>_<field>
+grep -q 'turbine::retrieve_multi .*{sf:p_x}' ${TCL_FILE} || exit 1
+grep -q "trace: p,24,40" ${TURBINE_OUTPUT} || exit 1
+
+exit 0
@@ -0,0 +1,42 @@
+// SKIP-O0-TEST
+// SKIP-O1-TEST
+// Check that struct fields can be retrieved with a single
+// retrieve_multi, which must fetch only the fields.  Loads of the
+// fields are only adjacent with wait coalescing, so lower
+// optimization levels are skipped.
+
+import assert;
+import sys;
+
+type pt {
+  int x;
+  int y;
+  string name;
+}
+
+// Recursive so that it isn't inlined into caller
+(int x, int y) two(int a) {
+  if (a > 100) {
+    x, y = two(a - 100);
+  } else {
+    x = a + 1;
+    y = a * 2;
+  }
+}
+
+main {
+  int a = toint(argv("a", "3"));
+
+  pt p;
+  p.x, p.y = two(a);
+  p.name = "p";
+
+  int B[];
+  B[0], B[1] = two(a + 1);
+
+  int s = p.x * p.y;
+  int t = B[0] * B[1];
+  assertEqual(s, 24, "s");
+  assertEqual(t, 40, "t");
+  trace(p.name, s, t);
+}
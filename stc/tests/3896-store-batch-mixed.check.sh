@@ -0,0 +1,7 @@
+#!/bin/bash
+
+# Struct, integer and float outputs are stored with one command
+grep -q 'turbine::store_multi .* s:rec .* integer .* float ' ${TCL_FILE} || exit 1
+grep -q "trace: 4,s3,r,5,s4,4" ${TURBINE_OUTPUT} || exit 1
+
+exit 0
@@ -0,0 +1,70 @@
+// Check that futures of different types are stored correctly when
+// batched into a single store_multi: int, float, string, boolean,
+// a whole struct, and struct fields as outputs.  Blobs are stored
+// separately, but the other outputs are still batched.
+// SKIP-O0-TEST
+// SKIP-O1-TEST
+
+import assert;
+import blob;
+import sys;
+
+type rec {
+  int i;
+  float f;
+  string s;
+  boolean b;
+}
+
+// Recursive so that it isn't inlined into caller
+(int i, float f, string s, boolean b, blob x, rec r) mixed(int a) {
+  if (a > 100) {
+    i, f, s, b, x, r = mixed(a - 100);
+  } else {
+    x = string2blob("x" + fromint(a));
+    r.i = a;
+    r.f = 0.25;
+    r.s = "r";
+    r.b = false;
+    i = a + 1;
+    f = toFloat(a) / 2.0;
+    s = "s" + fromint(a);
+    b = a > 3;
+  }
+}
+
+main {
+  int a = toint(argv("a", "3"));
+
+  rec p;
+  rec q;
+  blob x;
+  p.i, p.f, p.s, p.b, x, q = mixed(a);
+
+  int i;
+  float f;
+  string s;
+  boolean b;
+  blob y;
+  rec q2;
+  i, f, s, b, y, q2 = mixed(a + 101);
+
+  assertEqual(p.i, 4, "p.i");
+  assertEqual(p.f, 1.5, "p.f");
+  assertEqual(p.s, "s3", "p.s");
+  assertEqual(p.b, false, "p.b");
+  assertEqual(blob2string(x), "x3", "x");
+  assertEqual(q.i, 3, "q.i");
+  assertEqual(q.f, 0.25, "q.f");
+  assertEqual(q.s, "r", "q.s");
+  assertEqual(q.b, false, "q.b");
+
+  assertEqual(i, 5, "i");
+  assertEqual(f, 2.0, "f");
+  assertEqual(s, "s4", "s");
+  assertEqual(b, true, "b");
+  assertEqual(blob2string(y), "x4", "y");
+  assertEqual(q2.i, 4, "q2.i");
+
+  trace(p.i, p.s, q.s, i, s, q2.i);
+}
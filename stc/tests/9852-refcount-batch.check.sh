@@ -0,0 +1,6 @@
+#!/bin/bash
+
+grep -q "turbine::refcount_batch" ${TCL_FILE} || exit 1
+grep -q "trace: 12,12,9" ${TURBINE_OUTPUT} || exit 1
+
+exit 0
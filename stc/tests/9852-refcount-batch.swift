@@ -0,0 +1,36 @@
+
+/*
+   Reference count changes for several variables at the same program
+   point are combined into one batch command.  The check script makes
+   sure that a batch was generated.
+*/
+
+import assert;
+
+(int o) mult_helper(int i, int j, int s)
+{
+  if (j)
+  {
+    o = mult_helper(i, j - 1, s + i);
+  }
+  else
+  {
+    o = s;
+  }
+}
+
+(int o) mult(int i, int j)
+{
+  o = mult_helper(i, j, 0);
+}
+
+main
+{
+  int x = 3;
+  int y = 4;
+  int A[] = [mult(x, y), mult(y, x), mult(x, x)];
+  trace(A[0], A[1], A[2]);
+  assertEqual(A[0], 12, "A[0]");
+  assertEqual(A[1], 12, "A[1]");
+  assertEqual(A[2], 9, "A[2]");
+}
@@ -35,11 +35,13 @@ namespace eval turbine {
         create_struct     store_struct                \
         retrieve_struct retrieve_decr_struct acquire_struct \
         retrieve_decr_blob_string                     \
+        store_multi retrieve_multi                    \
         allocate_container                            \
         container_lookup container_list               \
         container_insert notify_waiter                \
         read_refcount_incr read_refcount_decr         \
         write_refcount_incr write_refcount_decr       \
+        refcount_batch                                \
         create_globals
 
     variable global_vars
@@ -65,6 +67,13 @@ namespace eval turbine {
         }
     }
 
+    # usage: refcount_batch [<id> <read change> <write change>]*
+    # Apply reference count changes for several variables at once,
+    # sending one request per variable
+    proc refcount_batch { args } {
+        adlb::refcount_incr_multi {*}$args
+    }
+
     # usage: allocate [<name>] <type>
     # If name is given, print a log message
     proc allocate { args } {
@@ -377,6 +386,96 @@ namespace eval turbine {
       return [ retrieve_string $id $cachemode 1 ]
     }
 
+    # usage: store_multi [<id> <type> <value> <write decr>]*
+    # Store values into several futures with a single command.
+    # <type> is an ADLB type, including struct types
+    proc store_multi { args } {
+        set store_args [ list ]
+        foreach { id type value write_decr } $args {
+            if { [ string equal $type integer ] } {
+                # Tcl cannot convert e.g., 099 to an integer.  Trim:
+                if { ! [ string equal $value "0" ] } {
+                    set value [ string trimleft $value "0" ]
+                }
+            }
+            if { [ string equal $type string ] } {
+                log "store: <$id>=[ log_string $value ]"
+            } else {
+                log "store: <$id>=$value"
+            }
+            lappend store_args $id $type $value $write_decr
+        }
+
+        adlb::store_multi {*}$store_args
+
+        foreach { id type value write_decr } $store_args {
+            if { [ string equal $type integer ] } {
+                c::cache_store $id integer $value
+            }
+        }
+    }
+
+    # usage: retrieve_multi <cachemode> [<id> <type> <decr>]*
+    # Retrieve several closed integer, float, string or file
+    # futures, decrementing read refcounts of each by <decr>.
+    # For files, <id> is the file handle.
+    # <cachemode> is as for retrieve_integer.  Values not in the
+    # cache are retrieved with a single command.
+    # Returns list of values in same order as arguments
+    proc retrieve_multi { cachemode args } {
+        set cache [ string equal $cachemode CACHED ]
+        set results [ list ]
+        set cached_decrs [ list ]
+        set fetch [ list ]
+        set fetch_ix [ list ]
+        foreach { handle type decrref } $args {
+            if { [ string equal $type file ] } {
+                set id [ get_file_td $handle ]
+            } else {
+                set id $handle
+            }
+            if { $cache && [ c::cache_check $id ] } {
+                lappend results [ c::cache_retrieve $id ]
+                if { $decrref } {
+                    lappend cached_decrs $id [ expr { -$decrref } ] 0
+                }
+            } else {
+                lappend fetch_ix [ llength $results ]
+                lappend results {}
+                lappend fetch $id $type $decrref
+            }
+        }
+
+        if { [ llength $cached_decrs ] } {
+            adlb::refcount_incr_multi {*}$cached_decrs
+        }
+
+        if { [ llength $fetch ] } {
+            set values [ adlb::retrieve_multi {*}$fetch ]
+            foreach i $fetch_ix { id type decrref } $fetch \
+                    value $values {
+                if { $cache } {
+                    c::cache_store $id $type $value
+                }
+                lset results $i $value
+            }
+        }
+
+        set i 0
+        foreach { handle type decrref } $args {
+            set result [ lindex $results $i ]
+            if { [ string equal $type file ] } {
+                debug "retrieve: <[ get_file_td $handle ]>=$result"
+                lset results $i [ create_local_file_ref \
+                    [ dict get $result path ] 2 [ is_file_mapped $handle ] ]
+            } else {
+                debug "retrieve: <$handle>=$result"
+            }
+            incr i
+        }
+        return $results
+    }
+
     proc create_void { id {read_refcount 1} {write_refcount 1} \
                           {debug_symbol 0} {permanent 0} } {
         # emulating void with integer
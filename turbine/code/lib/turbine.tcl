@@ -75,6 +75,11 @@ namespace eval turbine {
     # The list of enabled debug categories
     variable debug_categories
 
+    # Leaf degree of foreach loop splitter procs, by proc name.
+    # Written to the task profile so that STC can compute the time
+    # per loop iteration
+    variable profile_leaf_degrees
+
     # User function
     # rank_config: If an empty string, configure ranks based on environment.
     #     If an integer, interpret as a server count and do old-style
@@ -145,6 +150,8 @@ namespace eval turbine {
         c::init [ adlb::amserver ] \
             [ adlb::comm_rank ] [ adlb::comm_size ]
 
+        profile_init
+
         setup_mode $rank_allocation $work_types
 
         # Initialize Turbine features
@@ -533,6 +540,26 @@ namespace eval turbine {
       adlb::enable_read_refcount
     }
 
+    # Start a new task profile if TURBINE_PROFILE_FILE is set.
+    # Workers append to the file on shutdown, so truncate it first
+    # to avoid mixing in entries from previous runs
+    proc profile_init {} {
+        global env
+        if { ! [ info exists env(TURBINE_PROFILE_FILE) ] } {
+            return
+        }
+        if { [ adlb::comm_rank ] == 0 } {
+            close [ open $env(TURBINE_PROFILE_FILE) w ]
+        }
+        adlb::barrier [ adlb::comm_get adlb ]
+    }
+
+    # Record leaf degree of foreach loop splitter proc for task profile
+    proc profile_leaf_degree { proc_name degree } {
+        variable profile_leaf_degrees
+        set profile_leaf_degrees($proc_name) $degree
+    }
+
     # Basic debugging function
     # If #args == 1, then just print that as a message
     # If #args == 2, the first argument is the category,
@@ -2735,6 +2735,63 @@ ADLB_Store_Cmd(ClientData cdata, Tcl_Interp* interp,
   return TCL_OK;
 }
 
+/**
+   usage: adlb::store_multi [<handle> <type> <value> <decrement writers>]*
+   Store values into several data, as if by a sequence of adlb::store
+   commands.  Struct types can be given as for adlb::store.  Handles
+   may include a subscript, as for adlb::store.
+*/
+static int
+ADLB_Store_Multi_Cmd(ClientData cdata, Tcl_Interp* interp,
+                     int objc, Tcl_Obj* const objv[])
+{
+  TCL_CONDITION(((objc - 1) % 4 == 0),
+                "requires id, type, value, decr quadruples");
+
+  int rc;
+  for (int i = 1; i < objc; i += 4)
+  {
+    tcl_adlb_handle handle;
+    rc = ADLB_PARSE_HANDLE(objv[i], &handle, true);
+    TCL_CHECK_MSG(rc, "Invalid handle %s", Tcl_GetString(objv[i]));
+
+    adlb_data_type type;
+    adlb_type_extra extra;
+    rc = adlb_type_from_obj_extra(interp, objv, objv[i + 1], &type,
+                                  &extra);
+    TCL_CHECK(rc);
+    TCL_CONDITION(type != ADLB_DATA_TYPE_CONTAINER &&
+                  type != ADLB_DATA_TYPE_MULTISET,
+                  "store_multi does not support type %s",
+                  Tcl_GetString(objv[i + 1]));
+
+    adlb_binary_data data;
+    rc = adlb_tclobj2bin(interp, objv, type, extra,
+                        objv[i + 2], false, &xfer_buf, &data);
+    TCL_CHECK_MSG(rc, "<%"PRId64"> failed, could not extract data from "
+                  "%s!", handle.id, Tcl_GetString(objv[i + 2]));
+
+    adlb_refc decr = ADLB_WRITE_REFC;
+    rc = Tcl_GetIntFromObj(interp, objv[i + 3], &decr.write_refcount);
+    TCL_CHECK_MSG(rc, "decrement arg must be int!");
+
+    int store_rc = ADLB_Store(handle.id, handle.sub.val, type, data.data,
+                              data.length, decr, ADLB_READ_REFC);
+
+    if (data.data != xfer_buf.data)
+      ADLB_Free_binary_data(&data);
+
+    rc = CHECK_ADLB_STORE(interp, objv, store_rc, handle.id,
+                          handle.sub.val);
+    TCL_CHECK(rc);
+
+    rc = ADLB_PARSE_HANDLE_CLEANUP(&handle);
+    TCL_CHECK(rc);
+  }
+
+  return TCL_OK;
+}
+
 static inline void report_type_mismatch(adlb_data_type expected,
                                         adlb_data_type actual);
 
@@ -2826,6 +2883,88 @@ ADLB_Retrieve_Impl(ClientData cdata, Tcl_Interp *interp,
   return TCL_OK;
 }
 
+/**
+   Retrieve one datum for adlb::retrieve_multi
+   i: position of handle, type and decr in objv
+   result: set to contents converted to Tcl object
+*/
+static int
+retrieve_multi_item(Tcl_Interp *interp, Tcl_Obj *const objv[], int i,
+                    Tcl_Obj **result)
+{
+  int rc;
+  tcl_adlb_handle handle;
+  rc = ADLB_PARSE_HANDLE(objv[i], &handle, true);
+  TCL_CHECK_MSG(rc, "Invalid handle %s", Tcl_GetString(objv[i]));
+
+  adlb_data_type given_type;
+  adlb_type_extra extra;
+  rc = adlb_type_from_obj_extra(interp, objv, objv[i + 1],
+                                &given_type, &extra);
+  TCL_CHECK_MSG(rc, "arg %i must be valid type!", i + 1);
+
+  adlb_retrieve_refc refcounts = ADLB_RETRIEVE_NO_REFC;
+  rc = Tcl_GetIntFromObj(interp, objv[i + 2],
+                         &refcounts.decr_self.read_refcount);
+  TCL_CHECK_MSG(rc, "requires decr amount!");
+
+  adlb_data_type type;
+  size_t length;
+  int ret_rc = ADLB_Retrieve(handle.id, handle.sub.val, refcounts,
+                             &type, xfer, &length);
+  CHECK_ADLB_RETRIEVE(ret_rc, handle);
+
+  rc = ADLB_PARSE_HANDLE_CLEANUP(&handle);
+  TCL_CHECK(rc);
+
+  if (given_type != type)
+  {
+    report_type_mismatch(given_type, type);
+    return TCL_ERROR;
+  }
+
+  rc = adlb_datum2tclobj(interp, objv, handle.id, type, extra,
+                         xfer, length, result);
+  TCL_CHECK(rc);
+
+  return TCL_OK;
+}
+
+/**
+   usage: adlb::retrieve_multi [<handle> <type> <decr>]*
+   Retrieve several closed data, decrementing the read reference count
+   of each by <decr>.  Handles may include a subscript, as for
+   adlb::retrieve.  Returns a list of the contents converted to Tcl
+   objects, in the same order as the arguments.
+*/
+static int
+ADLB_Retrieve_Multi_Cmd(ClientData cdata, Tcl_Interp *interp,
+                        int objc, Tcl_Obj *const objv[])
+{
+  TCL_CONDITION(((objc - 1) % 3 == 0),
+                "requires id, type, decr triples");
+
+  int rc;
+  Tcl_Obj* results = Tcl_NewListObj(0, NULL);
+  for (int i = 1; i < objc; i += 3)
+  {
+    Tcl_Obj* result = NULL;
+    rc = retrieve_multi_item(interp, objv, i, &result);
+    TCL_CHECK_GOTO(rc, exit_err);
+
+    rc = Tcl_ListObjAppendElement(interp, results, result);
+    TCL_CHECK_GOTO(rc, exit_err);
+  }
+
+  Tcl_SetObjResult(interp, results);
+  return TCL_OK;
+
+exit_err:
+  // Frees any values already retrieved
+  Tcl_DecrRefCount(results);
+  return TCL_ERROR;
+}
+
 /**
    interp, objv, id, and length: just for error checking and messages
    If object is a blob, this converts it to a string
@@ -4957,6 +5096,40 @@ ADLB_Read_Refcount_Decr_Cmd(ClientData cdata, Tcl_Interp *interp,
               ADLB_READ_REFCOUNT, objv[1], amount, true);
 }
 
+/**
+   usage: adlb::refcount_incr_multi [<id> <read change> <write change>]*
+   Apply read and write refcount changes to several data, as if by a
+   sequence of adlb::refcount_incr commands.  Read and write changes to
+   a datum are combined into one request, but there is still one request
+   per datum: ADLB has no call to change refcounts of several data on a
+   server at once, so this only saves Tcl command overhead.
+ **/
+static int
+ADLB_Refcount_Incr_Multi_Cmd(ClientData cdata, Tcl_Interp *interp,
+                   int objc, Tcl_Obj *const objv[])
+{
+  TCL_CONDITION(((objc - 1) % 3 == 0),
+                "requires id, read change, write change triples");
+
+  int rc;
+  for (int i = 1; i < objc; i += 3)
+  {
+    adlb_datum_id id;
+    rc = ADLB_EXTRACT_HANDLE_ID(objv[i], &id);
+    TCL_CHECK(rc);
+
+    adlb_refc incr = ADLB_NO_REFC;
+    rc = Tcl_GetIntFromObj(interp, objv[i + 1], &incr.read_refcount);
+    TCL_CHECK_MSG(rc, "Error extracting read reference count");
+    rc = Tcl_GetIntFromObj(interp, objv[i + 2], &incr.write_refcount);
+    TCL_CHECK_MSG(rc, "Error extracting write reference count");
+
+    rc = ADLB_Refcount_incr(id, incr);
+    TCL_CONDITION(rc == ADLB_SUCCESS, "failed to change refcount: "
+                  "<%"PRId64">", id);
+  }
+  return TCL_OK;
+}
 
 /**
    usage: adlb::read_refcount_enable
@@ -6055,6 +6228,8 @@ tcl_adlb_init(Tcl_Interp* interp)
   COMMAND("store",     ADLB_Store_Cmd);
   COMMAND("retrieve",  ADLB_Retrieve_Cmd);
   COMMAND("retrieve_decr",  ADLB_Retrieve_Decr_Cmd);
+  COMMAND("store_multi",  ADLB_Store_Multi_Cmd);
+  COMMAND("retrieve_multi",  ADLB_Retrieve_Multi_Cmd);
   COMMAND("acquire_ref",  ADLB_Acquire_Ref_Cmd);
   COMMAND("acquire_write_ref",  ADLB_Acquire_Write_Ref_Cmd);
   COMMAND("acquire_sub_ref",  ADLB_Acquire_Sub_Ref_Cmd);
@@ -6077,6 +6252,7 @@ tcl_adlb_init(Tcl_Interp* interp)
   COMMAND("read_refcount_decr", ADLB_Read_Refcount_Decr_Cmd);
   COMMAND("write_refcount_incr", ADLB_Write_Refcount_Incr_Cmd);
   COMMAND("write_refcount_decr", ADLB_Write_Refcount_Decr_Cmd);
+  COMMAND("refcount_incr_multi", ADLB_Refcount_Incr_Multi_Cmd);
   COMMAND("insert",    ADLB_Insert_Cmd);
   COMMAND("struct_insert",    ADLB_Struct_Insert_Cmd);
   COMMAND("insert_atomic", ADLB_Insert_Atomic_Cmd);
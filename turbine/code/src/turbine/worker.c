@@ -22,11 +22,21 @@
  */
 
 #define _GNU_SOURCE // for asprintf()
+#include <assert.h>
+#include <ctype.h>
+#include <fcntl.h>
 #include <stdbool.h>
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include <unistd.h>
 
 #include <adlb.h>
 #include <tcl.h>
 
+#include <table.h>
+#include <tools.h>
+
 #include "src/util/debug.h"
 #include "src/turbine/turbine.h"
 #include "src/turbine/turbine-checks.h"
@@ -36,9 +46,35 @@
 
 static void task_error(Tcl_Interp* interp, int tcl_rc, char* command);
 
+static void profile_init(void);
+static void profile_record(const char* command, int length,
+                           double seconds);
+static void profile_finalize(Tcl_Interp* interp);
+
 /** Limit for biggest task ADLB_Get() can give us */
 static const int MAX_TASK = 1*1000*1000*1000;
 
+/**
+   Task profile output file from TURBINE_PROFILE_FILE,
+   or NULL if profiling is disabled
+ */
+static char* profile_file = NULL;
+
+/** Map from proc name to struct task_stats */
+static struct table profile;
+
+/** Profile output file descriptor, only valid during finalize */
+static int profile_fd = -1;
+
+/** Interpreter to look up proc information, only valid during finalize */
+static Tcl_Interp* profile_interp = NULL;
+
+struct task_stats
+{
+  long count;
+  double seconds;
+};
+
 /*
   Main worker loop
   TODO: priority isn't inherited from parent tasks
@@ -49,10 +85,13 @@ turbine_worker_loop(Tcl_Interp* interp,
                     int work_type)
 {
   int rc;
+  turbine_code result = TURBINE_SUCCESS;
 
   turbine_code tc = turbine_service_init();
   turbine_check(tc);
 
+  profile_init();
+
   while (true)
   {
     // These are overwritten by ADLB_Get():
@@ -72,7 +111,8 @@ turbine_worker_loop(Tcl_Interp* interp,
     if (code != ADLB_SUCCESS)
     {
       printf("Get failed with code %i\n", code);
-      return TURBINE_ERROR_ADLB;
+      result = TURBINE_ERROR_ADLB;
+      break;
     }
     assert(type_recved == work_type);
 
@@ -91,20 +131,32 @@ turbine_worker_loop(Tcl_Interp* interp,
     if (print_command)
       log_printf_force("eval: %s", command);
 
+    double start = 0.0;
+    if (profile_file != NULL)
+      start = MPI_Wtime();
+
     rc = Tcl_EvalEx(interp, command, task_size-1, 0);
     if (rc != TCL_OK)
     {
       task_error(interp, rc, command);
-      return TURBINE_ERROR_EXTERNAL;
+      result = TURBINE_ERROR_EXTERNAL;
+      break;
     }
+
+    if (profile_file != NULL)
+      profile_record(command, task_size-1, MPI_Wtime() - start);
     if (payload != buffer)
       // Free the oversized buffer created by ADLB_Get()
       free(payload);
   }
 
-  turbine_service_finalize();
+  if (result == TURBINE_SUCCESS)
+    turbine_service_finalize();
 
-  return TURBINE_SUCCESS;
+  // Write profile on every exit path, including task errors
+  profile_finalize(interp);
+
+  return result;
 }
 
 static void
@@ -121,3 +173,99 @@ task_error(Tcl_Interp* interp, int tcl_rc, char* command)
   Tcl_AddErrorInfo(interp, msg);
   free(msg);
 }
+
+/*
+  Task profiling: if TURBINE_PROFILE_FILE is set, count tasks and
+  their run time by proc name, i.e. the first word of the task.
+  Each worker appends lines "<proc> <count> <seconds>" to the file
+  on shutdown, with the leaf degree as a fourth field for foreach
+  loop splitter procs.  The file is truncated by turbine::init, so
+  it only has entries from the current run.
+  STC can use this to guide optimization.
+ */
+static void
+profile_init()
+{
+  getenv_string("TURBINE_PROFILE_FILE", NULL, &profile_file);
+  if (profile_file != NULL)
+    table_init(&profile, 1024);
+}
+
+static void
+profile_record(const char* command, int length, double seconds)
+{
+  int start = 0;
+  while (start < length && isspace(command[start]))
+    start++;
+  int end = start;
+  while (end < length && !isspace(command[end]))
+    end++;
+  if (end == start)
+    return;
+
+  char name[end-start+1];
+  memcpy(name, &command[start], (size_t)(end-start));
+  name[end-start] = '\0';
+
+  struct task_stats* stats;
+  if (!table_search(&profile, name, (void**)&stats))
+  {
+    stats = malloc(sizeof(*stats));
+    assert(stats != NULL);
+    stats->count = 0;
+    stats->seconds = 0.0;
+    table_add(&profile, name, stats);
+  }
+  stats->count++;
+  stats->seconds += seconds;
+}
+
+static void
+profile_write_entry(const char* name, void* data)
+{
+  struct task_stats* stats = data;
+  if (profile_fd >= 0)
+  {
+    // Write each line in one call: other workers append to same file
+    char* line;
+    int n;
+    const char* degree = Tcl_GetVar2(profile_interp,
+                                     "::turbine::profile_leaf_degrees",
+                                     name, TCL_GLOBAL_ONLY);
+    if (degree != NULL)
+      n = asprintf(&line, "%s %li %.6f %s\n", name, stats->count,
+                   stats->seconds, degree);
+    else
+      n = asprintf(&line, "%s %li %.6f\n", name, stats->count,
+                   stats->seconds);
+    if (n > 0)
+    {
+      ssize_t written = write(profile_fd, line, (size_t)n);
+      if (written != n)
+        printf("WARNING: could not write task profile: %s\n",
+               profile_file);
+      free(line);
+    }
+  }
+  free(stats);
+}
+
+static void
+profile_finalize(Tcl_Interp* interp)
+{
+  if (profile_file == NULL)
+    return;
+
+  profile_interp = interp;
+  profile_fd = open(profile_file, O_WRONLY|O_APPEND|O_CREAT, 0644);
+  if (profile_fd < 0)
+    printf("WARNING: could not open task profile: %s\n", profile_file);
+
+  table_free_callback(&profile, false, profile_write_entry);
+
+  if (profile_fd >= 0)
+    close(profile_fd);
+  profile_fd = -1;
+  profile_interp = NULL;
+  profile_file = NULL;
+}